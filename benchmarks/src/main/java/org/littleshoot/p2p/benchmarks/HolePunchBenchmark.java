@@ -0,0 +1,321 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.p2p.StunBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to connect and round trip time of a hand-rolled UDP hole punch
+ * between two peers behind simulated NATs, for every combination of NAT
+ * types, with no network. Each peer learns its public address from a
+ * local STUN server, both send to each other's public address, and if no
+ * packet gets through in time they fall back to a local relay.
+ * <p>
+ * This is a model of what NAT types and link shaping do to traversal, not
+ * a measurement of the library's ICE. The ICE library opens its own
+ * sockets, which can't be routed through a simulated NAT, and needs an
+ * XMPP or SIP server to signal through, so none of these run here:
+ * candidate gathering, pair priorities and check pacing, nomination, TURN
+ * allocation, UDT or TCP on the selected pair, and signaling. Only our
+ * STUN client is shared with the real path. Run with
+ * <code>-p natA=... -p natB=...</code> to pick combinations and
+ * <code>-p latencyMillis</code> and <code>-p lossPercent</code> to shape
+ * the links.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HolePunchBenchmark {
+
+    /**
+     * How long to punch before falling back to the relay.
+     */
+    private static final int PUNCH_TIMEOUT_MILLIS = 500;
+
+    /**
+     * How often to send while punching or retransmitting.
+     */
+    private static final int PROBE_INTERVAL_MILLIS = 10;
+
+    /**
+     * The simulated network shared by both peers.
+     */
+    @State(Scope.Benchmark)
+    public static class Network {
+
+        @Param({"FULL_CONE", "PORT_RESTRICTED_CONE", "SYMMETRIC"})
+        public String natA;
+
+        @Param({"FULL_CONE", "PORT_RESTRICTED_CONE", "SYMMETRIC"})
+        public String natB;
+
+        @Param({"10"})
+        public int latencyMillis;
+
+        @Param({"0", "5"})
+        public int lossPercent;
+
+        private LocalStunServer stunServer;
+
+        private LocalUdpRelay relay;
+
+        private SimulatedNat first;
+
+        private SimulatedNat second;
+
+        @Setup
+        public void setUp() throws IOException {
+            this.stunServer = new LocalStunServer();
+            this.relay = new LocalUdpRelay();
+            this.first = new SimulatedNat(SimulatedNat.Type.valueOf(natA),
+                InetAddress.getByName("127.0.0.2"), latencyMillis,
+                lossPercent / 100.0);
+            this.second = new SimulatedNat(SimulatedNat.Type.valueOf(natB),
+                InetAddress.getByName("127.0.0.3"), latencyMillis,
+                lossPercent / 100.0);
+        }
+
+        @TearDown
+        public void tearDown() {
+            this.first.close();
+            this.second.close();
+            this.stunServer.close();
+        }
+    }
+
+    /**
+     * A fresh pair of sockets for each connection attempt.
+     */
+    @State(Scope.Thread)
+    public static class Peers {
+
+        private NatSocket first;
+
+        private NatSocket second;
+
+        @Setup(Level.Invocation)
+        public void setUp(final Network network) throws IOException {
+            this.first = network.first.newSocket();
+            this.second = network.second.newSocket();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            this.first.close();
+            this.second.close();
+        }
+    }
+
+    /**
+     * A pair of peers connected once for the whole trial.
+     */
+    @State(Scope.Thread)
+    public static class Connected {
+
+        private NatSocket first;
+
+        private NatSocket second;
+
+        private Path path;
+
+        private int latencyMillis;
+
+        private long seq;
+
+        @Setup
+        public void setUp(final Network network) throws IOException {
+            this.latencyMillis = network.latencyMillis;
+            this.first = network.first.newSocket();
+            this.second = network.second.newSocket();
+            this.path = connect(network, this.first, this.second);
+        }
+
+        @TearDown
+        public void tearDown() {
+            this.path.close();
+            this.first.close();
+            this.second.close();
+        }
+    }
+
+    @Benchmark
+    public boolean connect(final Network network, final Peers peers)
+        throws IOException {
+        final Path path = connect(network, peers.first, peers.second);
+        path.close();
+        return path.relayed;
+    }
+
+    @Benchmark
+    public long roundTrip(final Connected connected) throws IOException {
+        final long seq = ++connected.seq;
+        final ByteBuffer ping = ByteBuffer.allocate(64);
+        ping.putLong(0, seq);
+        final Path path = connected.path;
+        final int timeout = 4 * connected.latencyMillis + 50;
+        connected.first.setSoTimeout(timeout);
+        connected.second.setSoTimeout(timeout);
+        while (true) {
+            connected.first.send(new DatagramPacket(ping.array(), 64,
+                path.firstTarget));
+            try {
+                awaitSeq(connected.second, seq);
+                connected.second.send(new DatagramPacket(ping.array(), 64,
+                    path.secondTarget));
+                awaitSeq(connected.first, seq);
+                return seq;
+            } catch (final SocketTimeoutException e) {
+                // Lost in one direction or the other. Try again.
+            }
+        }
+    }
+
+    /**
+     * Waits for a ping with the given sequence number, skipping leftover
+     * probes and retransmissions.
+     */
+    private static void awaitSeq(final NatSocket sock, final long seq)
+        throws IOException {
+        final byte[] buf = new byte[1500];
+        final DatagramPacket in = new DatagramPacket(buf, buf.length);
+        while (true) {
+            in.setLength(buf.length);
+            sock.receive(in);
+            if (in.getLength() >= 8 &&
+                ByteBuffer.wrap(buf).getLong(0) == seq) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects two peers, directly if their NATs allow it and through the
+     * relay if not.
+     */
+    static Path connect(final Network network, final NatSocket first,
+        final NatSocket second) throws IOException {
+        final InetSocketAddress stun = network.stunServer.getAddress();
+        final InetSocketAddress firstPublic = bind(first, stun);
+        final InetSocketAddress secondPublic = bind(second, stun);
+        if (punch(first, second, firstPublic, secondPublic)) {
+            return new Path(secondPublic, firstPublic, null);
+        }
+        final LocalUdpRelay.Session session = network.relay.newSession();
+        if (!punch(first, second, session.getFirstAddress(),
+            session.getSecondAddress(), 10 * PUNCH_TIMEOUT_MILLIS)) {
+            session.close();
+            throw new IOException("Could not connect even through the relay");
+        }
+        return new Path(session.getFirstAddress(),
+            session.getSecondAddress(), session);
+    }
+
+    private static InetSocketAddress bind(final DatagramSocket sock,
+        final InetSocketAddress stun) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            final StunBinding.Result result =
+                StunBinding.request(sock, stun, 200);
+            if (result != null) {
+                return result.getMappedAddress();
+            }
+            // Lost. Retransmit.
+        }
+        throw new IOException("No STUN response from " + stun);
+    }
+
+    private static boolean punch(final NatSocket first,
+        final NatSocket second, final InetSocketAddress firstPublic,
+        final InetSocketAddress secondPublic) throws IOException {
+        return punch(first, second, secondPublic, firstPublic,
+            PUNCH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Both peers send to the other's target until each has heard from the
+     * other.
+     */
+    private static boolean punch(final NatSocket first,
+        final NatSocket second, final InetSocketAddress firstTarget,
+        final InetSocketAddress secondTarget, final int timeoutMillis)
+        throws IOException {
+        final byte[] probe = new byte[20];
+        final DatagramPacket in = new DatagramPacket(new byte[1500], 1500);
+        first.setSoTimeout(1);
+        second.setSoTimeout(1);
+        boolean firstHeard = false;
+        boolean secondHeard = false;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            first.send(new DatagramPacket(probe, probe.length, firstTarget));
+            second.send(new DatagramPacket(probe, probe.length, secondTarget));
+            final long next =
+                System.currentTimeMillis() + PROBE_INTERVAL_MILLIS;
+            while (System.currentTimeMillis() < next) {
+                firstHeard |= poll(first, in);
+                secondHeard |= poll(second, in);
+                if (firstHeard && secondHeard) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean poll(final NatSocket sock,
+        final DatagramPacket in) throws IOException {
+        try {
+            in.setLength(1500);
+            sock.receive(in);
+            return true;
+        } catch (final SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Where each peer sends to reach the other.
+     */
+    static final class Path {
+        private final InetSocketAddress firstTarget;
+        private final InetSocketAddress secondTarget;
+        private final LocalUdpRelay.Session session;
+        private final boolean relayed;
+
+        private Path(final InetSocketAddress firstTarget,
+            final InetSocketAddress secondTarget,
+            final LocalUdpRelay.Session session) {
+            this.firstTarget = firstTarget;
+            this.secondTarget = secondTarget;
+            this.session = session;
+            this.relayed = session != null;
+        }
+
+        private void close() {
+            if (this.session != null) {
+                this.session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TURN relay stand-in on the loopback interface. Each accepted connection
+ * is sent the same chunk of data over and over, the way a busy relay
+ * delivers a remote peer's data, until the connection closes. It doesn't
+ * speak TURN: where its address is handed to the ICE infrastructure as a
+ * TURN server, only offers are built and nothing allocates on it.
+ */
+public class LocalRelayServer {
+
+    private final ServerSocket serverSocket;
+
+    private final byte[] chunk;
+
+    /**
+     * Creates a new relay on an ephemeral loopback port and starts
+     * accepting connections.
+     *
+     * @param chunkSize The size of each write to accepted connections.
+     * @throws IOException If the server socket can't be bound.
+     */
+    public LocalRelayServer(final int chunkSize) throws IOException {
+        this.serverSocket =
+            new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.chunk = new byte[chunkSize];
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "Local-Relay-Server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the address to connect to.
+     *
+     * @return The relay address.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Stops accepting connections.
+     */
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (final IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            final Socket sock;
+            try {
+                sock = this.serverSocket.accept();
+            } catch (final IOException e) {
+                return;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    send(sock);
+                }
+            }, "Local-Relay-Sender");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void send(final Socket sock) {
+        try {
+            final OutputStream os = sock.getOutputStream();
+            while (true) {
+                os.write(this.chunk);
+            }
+        } catch (final IOException e) {
+            // The benchmark closed the connection.
+        } finally {
+            Loopback.closeQuietly(sock);
+        }
+    }
+}
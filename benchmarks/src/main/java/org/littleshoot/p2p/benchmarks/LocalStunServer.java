@@ -0,0 +1,118 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * STUN server stand-in on the loopback interface. It answers RFC 5389
+ * binding requests with the XOR-MAPPED-ADDRESS of the sender and ignores
+ * everything else, which is all the P2P layer asks of a STUN server.
+ */
+public class LocalStunServer {
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private static final int BINDING_REQUEST = 0x0001;
+
+    private static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    private static final int HEADER_LENGTH = 20;
+
+    private final DatagramSocket socket;
+
+    private final Thread thread;
+
+    /**
+     * Creates a new server on an ephemeral loopback port and starts
+     * answering requests.
+     *
+     * @throws IOException If the socket can't be bound.
+     */
+    public LocalStunServer() throws IOException {
+        this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "Local-STUN-Server");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the address to send binding requests to.
+     *
+     * @return The server address.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) this.socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void close() {
+        this.socket.close();
+    }
+
+    private void serve() {
+        final byte[] buf = new byte[1500];
+        final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!this.socket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                this.socket.receive(packet);
+                final byte[] response = respond(buf, packet.getLength(),
+                    (InetSocketAddress) packet.getSocketAddress());
+                if (response != null) {
+                    this.socket.send(new DatagramPacket(response,
+                        response.length, packet.getSocketAddress()));
+                }
+            } catch (final IOException e) {
+                // Closed, or a bad packet we couldn't answer.
+            }
+        }
+    }
+
+    private static byte[] respond(final byte[] request, final int length,
+        final InetSocketAddress sender) {
+        if (length < HEADER_LENGTH) {
+            return null;
+        }
+        final ByteBuffer in = ByteBuffer.wrap(request, 0, length);
+        if ((in.getShort() & 0xffff) != BINDING_REQUEST) {
+            return null;
+        }
+        in.getShort();
+        if (in.getInt() != MAGIC_COOKIE) {
+            return null;
+        }
+        final byte[] transactionId = new byte[12];
+        in.get(transactionId);
+
+        final byte[] address = sender.getAddress().getAddress();
+        final ByteBuffer out =
+            ByteBuffer.allocate(HEADER_LENGTH + 8 + address.length);
+        out.putShort((short) BINDING_SUCCESS_RESPONSE);
+        out.putShort((short) (4 + 4 + address.length));
+        out.putInt(MAGIC_COOKIE);
+        out.put(transactionId);
+        out.putShort((short) XOR_MAPPED_ADDRESS);
+        out.putShort((short) (4 + address.length));
+        out.put((byte) 0);
+        out.put((byte) (address.length == 4 ? 0x01 : 0x02));
+        out.putShort((short) (sender.getPort() ^ (MAGIC_COOKIE >>> 16)));
+        final byte[] mask = new byte[16];
+        ByteBuffer.wrap(mask).putInt(MAGIC_COOKIE).put(transactionId);
+        for (int i = 0; i < address.length; i++) {
+            out.put((byte) (address[i] ^ mask[i]));
+        }
+        return out.array();
+    }
+}
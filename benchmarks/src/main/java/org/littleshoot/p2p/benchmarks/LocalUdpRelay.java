@@ -0,0 +1,105 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * TURN relay stand-in on the loopback interface. Each session is a pair
+ * of relay ports, one per peer, and whatever arrives on one port goes out
+ * of the other to the last address that sent to it. That's the data path
+ * of a TURN allocation with a permission for the other peer, without the
+ * allocation handshake.
+ */
+public class LocalUdpRelay {
+
+    /**
+     * Opens a relay session.
+     *
+     * @return The session.
+     * @throws IOException If the relay ports can't be bound.
+     */
+    public Session newSession() throws IOException {
+        return new Session();
+    }
+
+    /**
+     * A pair of relay ports joined together.
+     */
+    public static final class Session {
+
+        private final DatagramSocket first;
+
+        private final DatagramSocket second;
+
+        private volatile SocketAddress firstPeer;
+
+        private volatile SocketAddress secondPeer;
+
+        private Session() throws IOException {
+            final InetAddress loopback = InetAddress.getLoopbackAddress();
+            this.first = new DatagramSocket(0, loopback);
+            this.second = new DatagramSocket(0, loopback);
+            forward(this.first, this.second, true);
+            forward(this.second, this.first, false);
+        }
+
+        /**
+         * @return The relay address for the first peer to send to.
+         */
+        public InetSocketAddress getFirstAddress() {
+            return (InetSocketAddress) this.first.getLocalSocketAddress();
+        }
+
+        /**
+         * @return The relay address for the second peer to send to.
+         */
+        public InetSocketAddress getSecondAddress() {
+            return (InetSocketAddress) this.second.getLocalSocketAddress();
+        }
+
+        /**
+         * Closes both relay ports.
+         */
+        public void close() {
+            this.first.close();
+            this.second.close();
+        }
+
+        private void forward(final DatagramSocket from,
+            final DatagramSocket to, final boolean fromFirst) {
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    final byte[] buf = new byte[65536];
+                    final DatagramPacket packet =
+                        new DatagramPacket(buf, buf.length);
+                    while (!from.isClosed()) {
+                        try {
+                            packet.setLength(buf.length);
+                            from.receive(packet);
+                            final SocketAddress target;
+                            if (fromFirst) {
+                                firstPeer = packet.getSocketAddress();
+                                target = secondPeer;
+                            } else {
+                                secondPeer = packet.getSocketAddress();
+                                target = firstPeer;
+                            }
+                            if (target != null) {
+                                to.send(new DatagramPacket(buf,
+                                    packet.getLength(), target));
+                            }
+                        } catch (final IOException e) {
+                            // Closed.
+                        }
+                    }
+                }
+            }, "Local-UDP-Relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
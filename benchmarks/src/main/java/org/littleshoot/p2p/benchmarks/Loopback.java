@@ -0,0 +1,121 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.lastbamboo.common.portmapping.NatPmpService;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.lastbamboo.common.portmapping.UpnpService;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Helpers shared by the loopback benchmarks.
+ */
+public final class Loopback {
+
+    /**
+     * Port mapping that never maps anything, since there's no gateway in
+     * front of the loopback interface.
+     */
+    public static final NoPortMapping NO_PORT_MAPPING = new NoPortMapping();
+
+    private Loopback() {
+        // Not instantiable.
+    }
+
+    /**
+     * Returns a candidate provider that always returns the given server.
+     *
+     * @param server The server.
+     * @return The provider.
+     */
+    public static CandidateProvider<InetSocketAddress> candidates(
+        final InetSocketAddress server) {
+        return new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Collections.singletonList(server);
+            }
+            public InetSocketAddress getCandidate() {
+                return server;
+            }
+        };
+    }
+
+    /**
+     * Reads and discards everything from the socket on a daemon thread
+     * until it closes.
+     *
+     * @param sock The socket to drain.
+     */
+    public static void drain(final Socket sock) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buf = new byte[64 * 1024];
+                try {
+                    final InputStream is = sock.getInputStream();
+                    while (is.read(buf) != -1) {
+                    }
+                } catch (final IOException e) {
+                    // Closed.
+                } finally {
+                    closeQuietly(sock);
+                }
+            }
+        }, "Loopback-Drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the given resource, ignoring errors.
+     *
+     * @param closeable The resource to close. May be <code>null</code>.
+     */
+    public static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * NAT PMP and UPnP implementation that doesn't map anything.
+     */
+    public static final class NoPortMapping implements NatPmpService,
+        UpnpService {
+
+        private NoPortMapping() {
+        }
+
+        public int addNatPmpMapping(final PortMappingProtocol protocol,
+            final int localPort, final int externalPortRequested,
+            final PortMapListener portMapListener) {
+            return 0;
+        }
+
+        public void removeNatPmpMapping(final int mappingIndex) {
+        }
+
+        public int addUpnpMapping(final PortMappingProtocol protocol,
+            final int localPort, final int externalPortRequested,
+            final PortMapListener portMapListener) {
+            return 0;
+        }
+
+        public void removeUpnpMapping(final int mappingIndex) {
+        }
+
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Datagram throughput between two plain loopback UDP sockets. Each
+ * operation sends one datagram and receives it on the other side, so lost
+ * datagrams show up as timeouts rather than inflated numbers.
+ * <p>
+ * This doesn't go through {@code EndpointFactory}: the factory only hands
+ * out a {@link org.littleshoot.util.FiveTuple} for the pair an ICE check
+ * selected, which needs a full offer/answer exchange. What's measured is
+ * the datagram path an application drives once it has the tuple, as a
+ * baseline for the endpoint code sitting on top of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LoopbackDatagramBenchmark {
+
+    @Param({"512", "1200", "1472"})
+    public int datagramSize;
+
+    private DatagramSocket local;
+
+    private DatagramSocket remote;
+
+    private DatagramPacket outgoing;
+
+    private DatagramPacket incoming;
+
+    @Setup
+    public void setUp() throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.local = new DatagramSocket(0, loopback);
+        this.remote = new DatagramSocket(0, loopback);
+        this.remote.setSoTimeout(1000);
+        this.local.connect(this.remote.getLocalSocketAddress());
+        this.remote.connect(this.local.getLocalSocketAddress());
+        this.outgoing = new DatagramPacket(new byte[this.datagramSize],
+            this.datagramSize);
+        final byte[] buf = new byte[this.datagramSize];
+        this.incoming = new DatagramPacket(buf, buf.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.local.close();
+        this.remote.close();
+    }
+
+    @Benchmark
+    public int sendReceive() throws IOException {
+        this.local.send(this.outgoing);
+        this.incoming.setLength(this.datagramSize);
+        this.remote.receive(this.incoming);
+        return this.incoming.getLength();
+    }
+}
@@ -0,0 +1,61 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * A datagram socket inside a {@link SimulatedNat}. Sends and receives look
+ * like any other datagram socket's, so code like the STUN client runs
+ * unchanged, but every packet actually goes through the NAT.
+ */
+public class NatSocket extends DatagramSocket {
+
+    private final InetSocketAddress nat;
+
+    private final byte[] receiveBuffer = new byte[65536];
+
+    NatSocket(final InetSocketAddress nat) throws SocketException {
+        super(0, InetAddress.getLoopbackAddress());
+        this.nat = nat;
+    }
+
+    @Override
+    public void send(final DatagramPacket packet) throws IOException {
+        final ByteBuffer out = ByteBuffer.allocate(
+            SimulatedNat.HEADER_LENGTH + packet.getLength());
+        SimulatedNat.writeAddress(out,
+            (InetSocketAddress) packet.getSocketAddress());
+        out.put(packet.getData(), packet.getOffset(), packet.getLength());
+        super.send(new DatagramPacket(out.array(), out.capacity(), this.nat));
+    }
+
+    @Override
+    public synchronized void receive(final DatagramPacket packet)
+        throws IOException {
+        final DatagramPacket raw =
+            new DatagramPacket(this.receiveBuffer, this.receiveBuffer.length);
+        while (true) {
+            super.receive(raw);
+            // Anything that didn't come through the NAT never reached us.
+            if (!this.nat.equals(raw.getSocketAddress()) ||
+                raw.getLength() < SimulatedNat.HEADER_LENGTH) {
+                raw.setLength(this.receiveBuffer.length);
+                continue;
+            }
+            final ByteBuffer in =
+                ByteBuffer.wrap(this.receiveBuffer, 0, raw.getLength());
+            final InetSocketAddress source = SimulatedNat.readAddress(in);
+            final int length = Math.min(in.remaining(),
+                packet.getData().length - packet.getOffset());
+            in.get(packet.getData(), packet.getOffset(), length);
+            packet.setLength(length);
+            packet.setSocketAddress(source);
+            return;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.barchart.udt.net.NetServerSocketUDT;
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * Stream throughput of barchart's {@link NetSocketUDT} on the loopback
+ * interface. Multiply the operation rate by the chunk size for bytes per
+ * second, with UDT's default buffer and window settings.
+ * <p>
+ * This doesn't go through {@code BarchartUdtSocketFactory}. That factory
+ * only creates sockets in rendezvous mode on the UDP pair an ICE check
+ * selected, which needs a full offer/answer exchange, so the rendezvous
+ * setup it does isn't measured here, only the socket it ends up with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class NetSocketUdtBenchmark {
+
+    @Param({"1024", "16384", "65536"})
+    public int chunkSize;
+
+    private ServerSocket serverSocket;
+
+    private Socket client;
+
+    private OutputStream out;
+
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.serverSocket = new NetServerSocketUDT();
+        this.serverSocket.bind(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Loopback.drain(serverSocket.accept());
+                } catch (final IOException e) {
+                    // Closed in tear down.
+                }
+            }
+        }, "UDT-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        this.client = new NetSocketUDT();
+        this.client.connect(this.serverSocket.getLocalSocketAddress());
+        this.out = this.client.getOutputStream();
+        this.chunk = new byte[this.chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        Loopback.closeQuietly(this.client);
+        Loopback.closeQuietly(this.serverSocket);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        this.out.write(this.chunk);
+    }
+}
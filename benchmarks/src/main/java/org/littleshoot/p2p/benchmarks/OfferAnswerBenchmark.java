@@ -0,0 +1,333 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+
+import org.lastbamboo.common.ice.EndpointFactory;
+import org.lastbamboo.common.ice.IceMediaStreamFactory;
+import org.lastbamboo.common.ice.IceMediaStreamFactoryImpl;
+import org.lastbamboo.common.ice.IceOfferAnswerFactory;
+import org.lastbamboo.common.ice.MappedServerSocket;
+import org.lastbamboo.common.ice.MappedTcpOffererServerPool;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerConnectException;
+import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.lastbamboo.common.turn.http.server.ServerDataFeeder;
+import org.littleshoot.p2p.IceInfrastructure;
+import org.littleshoot.p2p.StunBinding;
+import org.littleshoot.util.FiveTuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures offer/answer exchanges between two peers in one process on the
+ * loopback interface, each with its own ICE infrastructure, along with
+ * the work each exchange starts with: creating a client's
+ * {@link OfferAnswerFactory} from the shared infrastructure or from
+ * scratch, building the {@link IceOfferAnswerFactory} behind it, and the
+ * STUN binding that gathers the server reflexive candidate for an offer.
+ * <p>
+ * {@link #offerAnswer()} runs the signaling half of an exchange, with the
+ * offer and answer handed straight across instead of over XMPP, and
+ * {@link #offerAnswerConnect()} also waits for the connectivity checks to
+ * nominate a pair and hand the offerer its socket. The infrastructure
+ * hands out a lazy factory and only builds the
+ * {@link IceOfferAnswerFactory} on the client's first session, so the
+ * shared and cold suites measure what client creation costs, and
+ * {@link #iceOfferAnswerFactory()} measures the deferred construction on
+ * its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class OfferAnswerBenchmark {
+
+    /**
+     * The longest to wait for an exchange to connect.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private LocalStunServer stunServer;
+
+    private LocalRelayServer relayServer;
+
+    private ServerSocket httpServer;
+
+    private IceInfrastructure infrastructure;
+
+    private MappedServerSocket answererServer;
+
+    private DatagramSocket stunSocket;
+
+    private IceMediaStreamFactory mediaStreamFactory;
+
+    private EndpointFactory endpointFactory;
+
+    private ServerDataFeeder feeder;
+
+    private MappedTcpOffererServerPool offererServerPool;
+
+    private ServerSocket peerHttpServer;
+
+    private IceInfrastructure peerInfrastructure;
+
+    private OfferAnswerFactory<Socket> offerer;
+
+    private OfferAnswerFactory<Socket> answerer;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.stunServer = new LocalStunServer();
+        this.relayServer = new LocalRelayServer(1024);
+        this.httpServer =
+            new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.infrastructure = acquire();
+        this.answererServer = this.infrastructure.getAnswererServer(
+            (InetSocketAddress) this.httpServer.getLocalSocketAddress());
+        this.stunSocket =
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+        // The parts the infrastructure shares between clients, so each
+        // operation only builds the factory itself.
+        this.mediaStreamFactory = new IceMediaStreamFactoryImpl(
+            Loopback.candidates(this.stunServer.getAddress()));
+        this.endpointFactory = new EndpointFactory();
+        this.feeder = new ServerDataFeeder(
+            this.answererServer.getHostAddress());
+        this.offererServerPool = new MappedTcpOffererServerPool(
+            Loopback.NO_PORT_MAPPING, Loopback.NO_PORT_MAPPING,
+            ServerSocketFactory.getDefault());
+
+        // The peer on the other end of the exchanges, with infrastructure
+        // of its own just as it would have in another process.
+        this.peerHttpServer =
+            new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.peerInfrastructure = acquire();
+        this.offerer = this.infrastructure.newSocketOfferAnswerFactory(
+            this.answererServer);
+        this.answerer = this.peerInfrastructure.newSocketOfferAnswerFactory(
+            this.peerInfrastructure.getAnswererServer((InetSocketAddress)
+                this.peerHttpServer.getLocalSocketAddress()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.feeder.close();
+        this.peerInfrastructure.release();
+        Loopback.closeQuietly(this.peerHttpServer);
+        this.infrastructure.release();
+        this.stunSocket.close();
+        Loopback.closeQuietly(this.httpServer);
+        this.relayServer.close();
+        this.stunServer.close();
+    }
+
+    /**
+     * Creates a socket offer/answer factory from the shared infrastructure,
+     * which is what every client after the first one pays.
+     */
+    @Benchmark
+    public OfferAnswerFactory<Socket> sharedSocketFactory() {
+        return this.infrastructure.newSocketOfferAnswerFactory(
+            this.answererServer);
+    }
+
+    /**
+     * Creates an endpoint offer/answer factory from the shared
+     * infrastructure.
+     */
+    @Benchmark
+    public OfferAnswerFactory<FiveTuple> sharedEndpointFactory() {
+        return this.infrastructure.newEndpointOfferAnswerFactory(
+            this.answererServer);
+    }
+
+    /**
+     * Builds a fresh infrastructure for a single client and tears it down
+     * again, which is what every client paid before the infrastructure was
+     * shared.
+     */
+    @Benchmark
+    public OfferAnswerFactory<Socket> coldSocketFactory() {
+        final IceInfrastructure cold = acquire();
+        try {
+            return cold.newSocketOfferAnswerFactory(this.answererServer);
+        } finally {
+            cold.release();
+        }
+    }
+
+    /**
+     * Builds the ICE offer/answer factory a client's lazy factory creates
+     * on its first session, from already shared parts.
+     */
+    @Benchmark
+    public OfferAnswerFactory<FiveTuple> iceOfferAnswerFactory() {
+        return new IceOfferAnswerFactory<FiveTuple>(this.mediaStreamFactory,
+            this.endpointFactory,
+            Loopback.candidates(this.relayServer.getAddress()),
+            this.answererServer, this.feeder,
+            Loopback.candidates(this.stunServer.getAddress()),
+            this.offererServerPool, SocketFactory.getDefault());
+    }
+
+    /**
+     * Runs the signaling half of an exchange: the offerer generates an
+     * offer, the answerer processes it and generates an answer, and the
+     * offerer processes the answer. Both sides are closed before their
+     * checks get far.
+     */
+    @Benchmark
+    public byte[] offerAnswer() throws OfferAnswerConnectException {
+        final Exchange exchange = new Exchange();
+        try {
+            return exchange.signal();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Runs a whole exchange, from generating the offer until the offerer
+     * has a connected socket to the answerer.
+     */
+    @Benchmark
+    public Socket offerAnswerConnect()
+        throws OfferAnswerConnectException, InterruptedException,
+        IOException {
+        final Exchange exchange = new Exchange();
+        try {
+            exchange.signal();
+            return exchange.awaitSocket();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Gathers a server reflexive candidate from the local STUN server.
+     */
+    @Benchmark
+    public StunBinding.Result stunBinding() throws IOException {
+        return StunBinding.request(this.stunSocket,
+            this.stunServer.getAddress(), 1000);
+    }
+
+    /**
+     * One exchange between the offerer and the answerer.
+     */
+    private final class Exchange {
+
+        private final Outcome offererOutcome = new Outcome();
+
+        private final Outcome answererOutcome = new Outcome();
+
+        private OfferAnswer offerSide;
+
+        private OfferAnswer answerSide;
+
+        private byte[] signal() throws OfferAnswerConnectException {
+            this.offerSide = offerer.createOfferer(this.offererOutcome,
+                IceMediaStreamDesc.newReliable());
+            final byte[] offer = this.offerSide.generateOffer();
+            this.answerSide = answerer.createAnswerer(this.answererOutcome,
+                false);
+            this.answerSide.processOffer(ByteBuffer.wrap(offer));
+            final byte[] answer = this.answerSide.generateAnswer();
+            this.offerSide.processAnswer(ByteBuffer.wrap(answer));
+            return answer;
+        }
+
+        private Socket awaitSocket()
+            throws InterruptedException, IOException {
+            if (!this.offererOutcome.done.await(CONNECT_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS)) {
+                throw new IOException("Exchange didn't connect");
+            }
+            if (this.offererOutcome.socket == null) {
+                throw new IOException("Exchange failed");
+            }
+            return this.offererOutcome.socket;
+        }
+
+        private void close() {
+            if (this.offerSide != null) {
+                this.offerSide.close();
+            }
+            if (this.answerSide != null) {
+                this.answerSide.close();
+            }
+            this.offererOutcome.close();
+            this.answererOutcome.close();
+        }
+    }
+
+    /**
+     * Collects the socket one side of an exchange ends up with.
+     */
+    private static final class Outcome
+        implements OfferAnswerListener<Socket> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Socket socket;
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            this.done.countDown();
+        }
+
+        public void onTcpSocket(final Socket sock) {
+            onSocket(sock);
+        }
+
+        public void onUdpSocket(final Socket sock) {
+            onSocket(sock);
+        }
+
+        private void onSocket(final Socket sock) {
+            this.socket = sock;
+            this.done.countDown();
+        }
+
+        private void close() {
+            final Socket sock = this.socket;
+            if (sock != null) {
+                Loopback.closeQuietly(sock);
+            }
+        }
+    }
+
+    private IceInfrastructure acquire() {
+        // New providers each time, so each call gets its own
+        // infrastructure rather than the shared one.
+        return IceInfrastructure.acquire(Loopback.NO_PORT_MAPPING,
+            Loopback.NO_PORT_MAPPING, SocketFactory.getDefault(),
+            ServerSocketFactory.getDefault(),
+            Loopback.candidates(this.stunServer.getAddress()),
+            Loopback.candidates(this.relayServer.getAddress()));
+    }
+}
@@ -0,0 +1,307 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A NAT simulated in user space on the loopback interface. Sockets from
+ * {@link #newSocket()} are "inside" the NAT: everything they send goes
+ * through it, out of a public socket bound to the NAT's public address,
+ * and only replies the NAT's type lets through come back. Each direction
+ * can add latency and drop packets at random.
+ * <p>
+ * Give each NAT its own loopback address, such as 127.0.0.2, so address
+ * restricted filtering can tell peers apart. Only IPv4 is supported.
+ */
+public class SimulatedNat {
+
+    /**
+     * How the NAT maps and filters, after the classic STUN taxonomy.
+     */
+    public enum Type {
+
+        /**
+         * One mapping per inside socket, and anyone can send to it.
+         */
+        FULL_CONE,
+
+        /**
+         * One mapping per inside socket, open to addresses it has sent to.
+         */
+        RESTRICTED_CONE,
+
+        /**
+         * One mapping per inside socket, open to address and port pairs it
+         * has sent to.
+         */
+        PORT_RESTRICTED_CONE,
+
+        /**
+         * A new mapping for each destination, open only to that
+         * destination.
+         */
+        SYMMETRIC
+    }
+
+    /**
+     * The address and port header on every packet between the NAT and its
+     * inside sockets.
+     */
+    static final int HEADER_LENGTH = 6;
+
+    private final Type type;
+
+    private final InetAddress publicAddress;
+
+    private final int latencyMillis;
+
+    private final double lossRate;
+
+    private final DatagramSocket inside;
+
+    private final Map<String, Mapping> mappings =
+        new ConcurrentHashMap<String, Mapping>();
+
+    private final ScheduledExecutorService delayer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "NAT-Delay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final Random random = new Random();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new NAT and starts forwarding.
+     *
+     * @param type How the NAT maps and filters.
+     * @param publicAddress The loopback address for the public side.
+     * @param latencyMillis The delay added to each packet in each
+     * direction.
+     * @param lossRate The fraction of packets to drop in each direction.
+     * @throws IOException If the NAT's inside socket can't be bound.
+     */
+    public SimulatedNat(final Type type, final InetAddress publicAddress,
+        final int latencyMillis, final double lossRate) throws IOException {
+        this.type = type;
+        this.publicAddress = publicAddress;
+        this.latencyMillis = latencyMillis;
+        this.lossRate = lossRate;
+        this.inside = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        daemon(new Runnable() {
+            public void run() {
+                forwardOutbound();
+            }
+        }, "NAT-Inside");
+    }
+
+    /**
+     * Creates a socket inside this NAT.
+     *
+     * @return The socket.
+     * @throws SocketException If the socket can't be bound.
+     */
+    public NatSocket newSocket() throws SocketException {
+        return new NatSocket(getInsideAddress());
+    }
+
+    /**
+     * Returns the type of this NAT.
+     *
+     * @return The type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of public mappings the NAT has made.
+     *
+     * @return The number of mappings.
+     */
+    public int getMappingCount() {
+        return this.mappings.size();
+    }
+
+    /**
+     * Stops forwarding and closes every mapping.
+     */
+    public void close() {
+        this.closed = true;
+        this.inside.close();
+        for (final Mapping mapping : this.mappings.values()) {
+            mapping.socket.close();
+        }
+        this.delayer.shutdownNow();
+    }
+
+    InetSocketAddress getInsideAddress() {
+        return (InetSocketAddress) this.inside.getLocalSocketAddress();
+    }
+
+    private void forwardOutbound() {
+        final byte[] buf = new byte[65536];
+        final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!this.closed) {
+            try {
+                packet.setLength(buf.length);
+                this.inside.receive(packet);
+                if (packet.getLength() < HEADER_LENGTH) {
+                    continue;
+                }
+                final InetSocketAddress source =
+                    (InetSocketAddress) packet.getSocketAddress();
+                final ByteBuffer in =
+                    ByteBuffer.wrap(buf, 0, packet.getLength());
+                final InetSocketAddress destination = readAddress(in);
+                final Mapping mapping = mapping(source, destination);
+                mapping.addresses.add(destination.getAddress());
+                mapping.endpoints.add(destination);
+                final byte[] payload = new byte[in.remaining()];
+                in.get(payload);
+                deliver(mapping.socket, payload, destination);
+            } catch (final IOException e) {
+                // Closed, or a mapping we couldn't bind.
+            }
+        }
+    }
+
+    private Mapping mapping(final InetSocketAddress source,
+        final InetSocketAddress destination) throws IOException {
+        final String key = this.type == Type.SYMMETRIC ?
+            source + "|" + destination : source.toString();
+        Mapping mapping = this.mappings.get(key);
+        if (mapping == null) {
+            mapping = new Mapping(source,
+                new DatagramSocket(0, this.publicAddress));
+            this.mappings.put(key, mapping);
+            final Mapping started = mapping;
+            daemon(new Runnable() {
+                public void run() {
+                    forwardInbound(started);
+                }
+            }, "NAT-Mapping");
+        }
+        return mapping;
+    }
+
+    private void forwardInbound(final Mapping mapping) {
+        final byte[] buf = new byte[65536];
+        final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!this.closed) {
+            try {
+                packet.setLength(buf.length);
+                mapping.socket.receive(packet);
+                final InetSocketAddress source =
+                    (InetSocketAddress) packet.getSocketAddress();
+                if (!allowed(mapping, source)) {
+                    continue;
+                }
+                final ByteBuffer out = ByteBuffer.allocate(
+                    HEADER_LENGTH + packet.getLength());
+                writeAddress(out, source);
+                out.put(buf, 0, packet.getLength());
+                deliver(this.inside, out.array(), mapping.insideAddress);
+            } catch (final IOException e) {
+                // Closed.
+            }
+        }
+    }
+
+    private boolean allowed(final Mapping mapping,
+        final InetSocketAddress source) {
+        switch (this.type) {
+            case FULL_CONE:
+                return true;
+            case RESTRICTED_CONE:
+                return mapping.addresses.contains(source.getAddress());
+            default:
+                return mapping.endpoints.contains(source);
+        }
+    }
+
+    private void deliver(final DatagramSocket from, final byte[] data,
+        final InetSocketAddress to) {
+        synchronized (this.random) {
+            if (this.random.nextDouble() < this.lossRate) {
+                return;
+            }
+        }
+        final Runnable send = new Runnable() {
+            public void run() {
+                try {
+                    from.send(new DatagramPacket(data, data.length, to));
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        };
+        if (this.latencyMillis <= 0) {
+            send.run();
+        } else if (!this.closed) {
+            this.delayer.schedule(send, this.latencyMillis,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static InetSocketAddress readAddress(final ByteBuffer in)
+        throws IOException {
+        final byte[] address = new byte[4];
+        in.get(address);
+        final int port = in.getShort() & 0xffff;
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    }
+
+    static void writeAddress(final ByteBuffer out,
+        final InetSocketAddress address) throws IOException {
+        final byte[] bytes = address.getAddress().getAddress();
+        if (bytes.length != 4) {
+            throw new IOException("Only IPv4 is simulated: " + address);
+        }
+        out.put(bytes);
+        out.putShort((short) address.getPort());
+    }
+
+    private static void daemon(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A public socket standing in for one inside socket.
+     */
+    private static final class Mapping {
+        private final InetSocketAddress insideAddress;
+        private final DatagramSocket socket;
+        private final Set<InetAddress> addresses = Collections.newSetFromMap(
+            new ConcurrentHashMap<InetAddress, Boolean>());
+        private final Set<InetSocketAddress> endpoints =
+            Collections.newSetFromMap(
+                new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+        private Mapping(final InetSocketAddress insideAddress,
+            final DatagramSocket socket) {
+            this.insideAddress = insideAddress;
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.littleshoot.p2p.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.p2p.DirectBufferPool;
+import org.littleshoot.p2p.NioRelay;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies data arriving over TCP from the local relay stand-in into a TCP
+ * connection to a local server. Each operation moves one buffer's worth of
+ * data, either with a blocking copy loop on the benchmark thread or
+ * through {@link NioRelay}, on a pair of socket channels or pumping a
+ * plain socket the way it pumps UDT and TURN sockets, which have no
+ * channel.
+ * <p>
+ * This doesn't touch {@code ServerDataFeeder}. The feeder gets relayed
+ * data as TURN data indications from littleshoot-ice's TURN client, and
+ * there's no way to drive it without a TURN allocation, so the hop it
+ * makes for relayed connections isn't measured here. Every path measured
+ * here runs over loopback TCP.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SocketCopyBenchmark {
+
+    /**
+     * The relay and local server stand-ins.
+     */
+    @State(Scope.Benchmark)
+    public static class Servers {
+
+        @Param({"4096", "65536"})
+        public int bufferSize;
+
+        private LocalRelayServer relayServer;
+
+        private ServerSocket httpServer;
+
+        @Setup
+        public void setUp() throws IOException {
+            this.relayServer = new LocalRelayServer(this.bufferSize);
+            this.httpServer =
+                new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+
+        @TearDown
+        public void tearDown() {
+            Loopback.closeQuietly(this.httpServer);
+            this.relayServer.close();
+        }
+    }
+
+    /**
+     * A relay connection copied to the local server on the benchmark
+     * thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Blocking {
+
+        private Socket relay;
+
+        private Socket server;
+
+        private InputStream in;
+
+        private OutputStream out;
+
+        private byte[] buf;
+
+        @Setup
+        public void setUp(final Servers servers) throws IOException {
+            final InetAddress loopback = InetAddress.getLoopbackAddress();
+            this.relay = new Socket(loopback,
+                servers.relayServer.getAddress().getPort());
+            this.server = new Socket(loopback,
+                servers.httpServer.getLocalPort());
+            Loopback.drain(servers.httpServer.accept());
+            this.in = this.relay.getInputStream();
+            this.out = this.server.getOutputStream();
+            this.buf = new byte[servers.bufferSize];
+        }
+
+        @TearDown
+        public void tearDown() {
+            Loopback.closeQuietly(this.relay);
+            Loopback.closeQuietly(this.server);
+        }
+    }
+
+    /**
+     * A relay connection forwarded to the local server by the NIO relay,
+     * with the benchmark thread reading what arrives at the server.
+     */
+    @State(Scope.Benchmark)
+    public static class Nio {
+
+        private ExecutorService executor;
+
+        private NioRelay relay;
+
+        private Socket received;
+
+        private InputStream in;
+
+        private byte[] buf;
+
+        @Setup
+        public void setUp(final Servers servers) throws IOException {
+            this.executor = Executors.newCachedThreadPool();
+            this.relay = new NioRelay(
+                new DirectBufferPool(servers.bufferSize, 64), 4,
+                this.executor);
+            final SocketChannel relayChannel =
+                SocketChannel.open(servers.relayServer.getAddress());
+            final SocketChannel serverChannel = SocketChannel.open(
+                (InetSocketAddress) servers.httpServer.getLocalSocketAddress());
+            this.received = servers.httpServer.accept();
+            this.relay.relay(relayChannel, serverChannel);
+            this.in = this.received.getInputStream();
+            this.buf = new byte[servers.bufferSize];
+        }
+
+        @TearDown
+        public void tearDown() {
+            Loopback.closeQuietly(this.received);
+            this.relay.close();
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A relay connection without a channel pumped to the local server by
+     * the NIO relay, with the benchmark thread reading what arrives at the
+     * server.
+     */
+    @State(Scope.Benchmark)
+    public static class Pump {
+
+        private ExecutorService executor;
+
+        private NioRelay relay;
+
+        private Socket received;
+
+        private InputStream in;
+
+        private byte[] buf;
+
+        @Setup
+        public void setUp(final Servers servers) throws IOException {
+            this.executor = Executors.newCachedThreadPool();
+            this.relay = new NioRelay(
+                new DirectBufferPool(servers.bufferSize, 64), 4,
+                this.executor);
+            // Created without a channel, like UDT and TURN sockets.
+            final Socket relaySocket = new Socket(
+                InetAddress.getLoopbackAddress(),
+                servers.relayServer.getAddress().getPort());
+            this.relay.relay(relaySocket,
+                (InetSocketAddress) servers.httpServer.getLocalSocketAddress());
+            this.received = servers.httpServer.accept();
+            this.in = this.received.getInputStream();
+            this.buf = new byte[servers.bufferSize];
+        }
+
+        @TearDown
+        public void tearDown() {
+            Loopback.closeQuietly(this.received);
+            this.relay.close();
+            this.executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public int blockingCopy(final Blocking state) throws IOException {
+        int total = 0;
+        while (total < state.buf.length) {
+            final int n = state.in.read(state.buf, total,
+                state.buf.length - total);
+            if (n == -1) {
+                throw new IOException("Relay closed");
+            }
+            state.out.write(state.buf, total, n);
+            total += n;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int nioRelay(final Nio state) throws IOException {
+        return readBuffer(state.in, state.buf);
+    }
+
+    @Benchmark
+    public int nioPump(final Pump state) throws IOException {
+        return readBuffer(state.in, state.buf);
+    }
+
+    private static int readBuffer(final InputStream in, final byte[] buf)
+        throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            final int n = in.read(buf, total, buf.length - total);
+            if (n == -1) {
+                throw new IOException("Relay closed");
+            }
+            total += n;
+        }
+        return total;
+    }
+}
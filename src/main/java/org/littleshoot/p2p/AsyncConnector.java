@@ -0,0 +1,148 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.p2p.P2PClient;
+
+/**
+ * Non-blocking front end for the clients the builders return. Each call
+ * returns a {@link P2PFuture} right away, and the connection race runs on
+ * the configuration's executor, so the thread asking for a connection
+ * never waits on NAT traversal. Futures can be cancelled, can carry their
+ * own deadline, and can be fanned out to many peers at once.
+ * <p>
+ * Connections race a direct attempt against a relayed one exactly as
+ * {@link RacingConnector} does.
+ * <p>
+ * This frees the caller's thread, not threads in general. The clients'
+ * connect calls block, so while a connection is in flight it holds three
+ * of the executor's threads: the task waiting on the race and one for
+ * each attempt. With the default executor those are platform threads
+ * from a cached pool, so a fan-out to many peers at once starts three
+ * threads per peer. An executor set with {@link P2PConfig#setExecutor}
+ * needs room for all three per connection in flight: the attempts are
+ * submitted from the waiting task, so a pool that's too small leaves them
+ * queued until the relay deadline fails the race.
+ *
+ * @param <T> The type of connection, such as a socket or a five tuple.
+ */
+public class AsyncConnector<T> {
+
+    /**
+     * Fails futures whose deadline has passed. One thread serves every
+     * connector since all it does is flip futures.
+     */
+    private static final ScheduledExecutorService deadlines =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("P2P-Connect-Deadline"));
+
+    private final RacingConnector<T> connector;
+
+    private final P2PConfig config;
+
+    /**
+     * Creates a new connector.
+     *
+     * @param client The client to create connections with.
+     * @param config The client's configuration.
+     */
+    public AsyncConnector(final P2PClient<T> client, final P2PConfig config) {
+        this.connector = new RacingConnector<T>(client, config);
+        this.config = config;
+    }
+
+    /**
+     * Starts connecting to the given peer. The connection fails once the
+     * relay deadline's maximum passes.
+     *
+     * @param uri The URI of the peer.
+     * @return The pending connection.
+     */
+    public P2PFuture<T> connect(final URI uri) {
+        final P2PFuture<T> future =
+            new P2PFuture<T>(this.config.getCloser());
+        future.setTask(this.config.getExecutor().submit(new Runnable() {
+            public void run() {
+                try {
+                    future.succeed(connector.connect(uri).getConnection());
+                } catch (final IOException e) {
+                    future.fail(e);
+                } catch (final RuntimeException e) {
+                    future.fail(e);
+                }
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Starts connecting to the given peer with a deadline of its own. The
+     * future fails with an {@link IOException} if the connection isn't made
+     * in time, and the attempts still running are interrupted.
+     *
+     * @param uri The URI of the peer.
+     * @param timeoutMillis How long to wait for the connection.
+     * @return The pending connection.
+     */
+    public P2PFuture<T> connect(final URI uri, final long timeoutMillis) {
+        final P2PFuture<T> future = connect(uri);
+        final ScheduledFuture<?> timer = deadlines.schedule(new Runnable() {
+            public void run() {
+                future.fail(new IOException("No connection to " + uri +
+                    " after " + timeoutMillis + "ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new ConnectListener<T>() {
+            public void onConnect(final T connection) {
+                timer.cancel(false);
+            }
+            public void onFailure(final Throwable cause) {
+                timer.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts connecting to every given peer at once.
+     *
+     * @param uris The URIs of the peers.
+     * @param timeoutMillis How long to wait for each connection.
+     * @return The pending connections, keyed by peer, in the order given.
+     */
+    public Map<URI, P2PFuture<T>> connectAll(final Collection<URI> uris,
+        final long timeoutMillis) {
+        final Map<URI, P2PFuture<T>> futures =
+            new LinkedHashMap<URI, P2PFuture<T>>();
+        for (final URI uri : uris) {
+            if (!futures.containsKey(uri)) {
+                futures.put(uri, connect(uri, timeoutMillis));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Cancels every future in a fan-out, closing any connections already
+     * made.
+     *
+     * @param <T> The type of connection.
+     * @param futures The futures from {@link #connectAll}.
+     */
+    public static <T> void cancelAll(
+        final Map<URI, P2PFuture<T>> futures) {
+        for (final P2PFuture<T> future : futures.values()) {
+            if (!future.cancel(true)) {
+                future.discard(future.getNow());
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.littleshoot.p2p;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A limit on the bytes buffered in memory across every session that shares
+ * it. Producers take bytes from the budget before buffering data and give
+ * them back once the data has been written on. When the budget runs out
+ * they stop reading, so a slow consumer throttles whoever is sending to it
+ * instead of filling the heap.
+ * <p>
+ * Only buffers taken from the budget are bounded by it. Of the builders'
+ * paths that's the {@link NioRelay}s behind the answerer servers, which
+ * also carry the data relayed to us through TURN servers on its way to the
+ * local server, through a {@link TurnDataFeeder}.
+ * <p>
+ * The clients the builders return report the answerer servers' budget
+ * through {@link P2PMetrics#byteBudget(ByteBudget)}, so its used, peak
+ * and throttled bytes can be exposed as gauges.
+ */
+public class ByteBudget {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(ByteBudget.class);
+
+    private final long limitBytes;
+
+    private long usedBytes = 0;
+
+    private long peakBytes = 0;
+
+    private long throttleCount = 0;
+
+    private long throttledBytes = 0;
+
+    private boolean starved = false;
+
+    private final List<Runnable> releaseListeners =
+        new CopyOnWriteArrayList<Runnable>();
+
+    /**
+     * Creates a new budget.
+     *
+     * @param limitBytes The most bytes to allow at once.
+     */
+    public ByteBudget(final long limitBytes) {
+        if (limitBytes < 1) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        this.limitBytes = limitBytes;
+    }
+
+    /**
+     * Takes bytes from the budget if there's room. A request larger than
+     * the whole budget succeeds when nothing else is using it, so a single
+     * oversized buffer can't wedge its session forever.
+     *
+     * @param bytes The number of bytes.
+     * @return <code>true</code> if the bytes were taken,
+     * <code>false</code> if the caller should stop producing until
+     * bytes are released.
+     */
+    public synchronized boolean tryAcquire(final int bytes) {
+        if (!fits(bytes)) {
+            if (!this.starved) {
+                log.debug("Byte budget of {} exhausted", this.limitBytes);
+            }
+            throttle(bytes);
+            return false;
+        }
+        take(bytes);
+        return true;
+    }
+
+    /**
+     * Takes bytes from the budget, waiting for room if there is none.
+     *
+     * @param bytes The number of bytes.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized void acquire(final int bytes)
+        throws InterruptedException {
+        if (!fits(bytes)) {
+            throttle(bytes);
+            while (!fits(bytes)) {
+                wait();
+            }
+        }
+        take(bytes);
+    }
+
+    /**
+     * Gives bytes back to the budget and wakes anyone waiting for room.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void release(final int bytes) {
+        final boolean wasStarved;
+        synchronized (this) {
+            this.usedBytes = Math.max(0, this.usedBytes - bytes);
+            wasStarved = this.starved;
+            this.starved = false;
+            notifyAll();
+        }
+        if (wasStarved) {
+            for (final Runnable listener : this.releaseListeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Adds a task to run when bytes are released after a producer was
+     * turned away, so non-blocking producers know to try again.
+     *
+     * @param listener The task. It runs on the releasing thread and should
+     * return quickly.
+     */
+    public void addReleaseListener(final Runnable listener) {
+        this.releaseListeners.add(listener);
+    }
+
+    /**
+     * Removes a release task.
+     *
+     * @param listener The task.
+     */
+    public void removeReleaseListener(final Runnable listener) {
+        this.releaseListeners.remove(listener);
+    }
+
+    /**
+     * Returns the most bytes allowed at once.
+     *
+     * @return The limit, in bytes.
+     */
+    public long getLimitBytes() {
+        return this.limitBytes;
+    }
+
+    /**
+     * Returns the bytes currently taken.
+     *
+     * @return The bytes in use.
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * Returns the most bytes ever taken at once.
+     *
+     * @return The high water mark, in bytes.
+     */
+    public synchronized long getPeakBytes() {
+        return this.peakBytes;
+    }
+
+    /**
+     * Returns how many times a producer was throttled because the budget
+     * was used up.
+     *
+     * @return The number of times producers were throttled.
+     */
+    public synchronized long getThrottleCount() {
+        return this.throttleCount;
+    }
+
+    /**
+     * Returns the total of the requests that were throttled because the
+     * budget was used up. This only grows.
+     *
+     * @return The bytes producers were turned away or made to wait for.
+     */
+    public synchronized long getThrottledBytes() {
+        return this.throttledBytes;
+    }
+
+    private void throttle(final int bytes) {
+        this.starved = true;
+        this.throttleCount++;
+        this.throttledBytes += bytes;
+    }
+
+    private boolean fits(final int bytes) {
+        return this.usedBytes == 0 ||
+            this.usedBytes + bytes <= this.limitBytes;
+    }
+
+    private void take(final int bytes) {
+        this.usedBytes += bytes;
+        this.peakBytes = Math.max(this.peakBytes, this.usedBytes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ByteBudget [used=" + usedBytes + ", limit=" + limitBytes +
+            ", peak=" + peakBytes + ", throttled=" + throttleCount +
+            ", throttledBytes=" + throttledBytes + "]";
+    }
+}
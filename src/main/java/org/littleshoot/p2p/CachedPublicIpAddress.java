@@ -0,0 +1,40 @@
+package org.littleshoot.p2p;
+
+import java.net.InetAddress;
+
+import org.lastbamboo.common.stun.client.PublicIpAddress;
+
+/**
+ * Public address lookup that answers from the {@link NetworkCache} when it
+ * knows our public address on the current network, and only asks the
+ * shared STUN lookup when it doesn't. This is what the NAT behavior
+ * discovery the builders start pays for: once it has run on a network,
+ * clients stop looking up the public address again.
+ */
+class CachedPublicIpAddress extends PublicIpAddress {
+
+    private final NetworkCache cache;
+
+    private final PublicIpAddress delegate;
+
+    /**
+     * Creates a new lookup.
+     *
+     * @param cache The cache to answer from.
+     * @param delegate The lookup to use when the cache doesn't know.
+     */
+    CachedPublicIpAddress(final NetworkCache cache,
+        final PublicIpAddress delegate) {
+        this.cache = cache;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public InetAddress getPublicIpAddress() {
+        final NatBehaviorDiscovery.Result profile = this.cache.getProfile();
+        if (profile != null && profile.getPublicAddress() != null) {
+            return profile.getPublicAddress();
+        }
+        return this.delegate.getPublicIpAddress();
+    }
+}
@@ -0,0 +1,267 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Candidate provider that caches the results of SRV lookups for as long as
+ * the records' TTLs allow. Entries are refreshed in the background before
+ * they expire, and stale entries are served whenever DNS is slow or fails,
+ * so callers on the connection setup path never wait on DNS for longer than
+ * the configured maximum wait.
+ * <p>
+ * If the resolver can't answer at all the lookup falls back to the wrapped
+ * provider, caching its results for {@link #FALLBACK_TTL_SECONDS}.
+ */
+public class CachingSrvCandidateProvider
+    implements CandidateProvider<InetSocketAddress> {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(CachingSrvCandidateProvider.class);
+
+    /**
+     * How long to cache results from the fallback provider, which doesn't
+     * expose TTLs.
+     */
+    public static final long FALLBACK_TTL_SECONDS = 5 * 60;
+
+    /**
+     * The shortest time we cache anything for, protecting against records
+     * with very low or zero TTLs.
+     */
+    private static final long MIN_TTL_SECONDS = 30;
+
+    /**
+     * How long to cache an answer with no usable records before asking
+     * again.
+     */
+    public static final long NEGATIVE_TTL_SECONDS = 60;
+
+    /**
+     * The fraction of the TTL after which we refresh in the background.
+     */
+    private static final double REFRESH_FRACTION = 0.75;
+
+    private final String name;
+
+    private final DnsSrvResolver resolver;
+
+    private final CandidateProvider<InetSocketAddress> fallback;
+
+    private final long maxWaitMillis;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("SRV-Refresh"));
+
+    private final Random random = new Random();
+
+    private volatile Entry entry;
+
+    private Future<Entry> pending;
+
+    /**
+     * Creates a new caching provider and starts the first lookup in the
+     * background.
+     *
+     * @param name The SRV name to look up.
+     * @param resolver The resolver for the SRV records.
+     * @param fallback The provider to use when the resolver fails.
+     * @param maxWaitMillis The longest a caller waits for a lookup when
+     * there's nothing usable in the cache.
+     */
+    public CachingSrvCandidateProvider(final String name,
+        final DnsSrvResolver resolver,
+        final CandidateProvider<InetSocketAddress> fallback,
+        final long maxWaitMillis) {
+        this.name = name;
+        this.resolver = resolver;
+        this.fallback = fallback;
+        this.maxWaitMillis = maxWaitMillis;
+        refreshAsync();
+    }
+
+    /**
+     * Returns the cached servers ordered by SRV priority, with weighted
+     * random ordering within each priority.
+     */
+    public Collection<InetSocketAddress> getCandidates() {
+        final Entry current = this.entry;
+        final long now = System.currentTimeMillis();
+        if (current != null && now < current.refreshAt) {
+            return current.order(this.random);
+        }
+
+        final Future<Entry> refresh = refreshAsync();
+        if (current != null && now < current.expiresAt) {
+            // Still valid -- the refresh happens in the background.
+            return current.order(this.random);
+        }
+
+        // Expired or empty. Give DNS a bounded amount of time, then serve
+        // whatever we have, stale or not.
+        try {
+            final Entry fresh =
+                refresh.get(this.maxWaitMillis, TimeUnit.MILLISECONDS);
+            return fresh.order(this.random);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            log.debug("SRV lookup failed", e);
+        } catch (final TimeoutException e) {
+            log.debug("SRV lookup for {} is slow -- serving stale entry",
+                this.name);
+        }
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        return current.order(this.random);
+    }
+
+    public InetSocketAddress getCandidate() {
+        final Collection<InetSocketAddress> candidates = getCandidates();
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return candidates.iterator().next();
+    }
+
+    /**
+     * Stops background refreshing.
+     */
+    public void stop() {
+        this.executor.shutdownNow();
+    }
+
+    private synchronized Future<Entry> refreshAsync() {
+        if (this.pending != null && !this.pending.isDone()) {
+            return this.pending;
+        }
+        this.pending = this.executor.submit(
+            new Callable<Entry>() {
+                public Entry call() throws IOException {
+                    final Entry fresh = lookup();
+                    entry = fresh;
+                    return fresh;
+                }
+            });
+        return this.pending;
+    }
+
+    private Entry lookup() throws IOException {
+        try {
+            final List<SrvRecord> records = this.resolver.resolve(this.name);
+            if (!records.isEmpty()) {
+                log.debug("Resolved {} to {}", this.name, records);
+                return new Entry(records);
+            }
+            log.debug("No SRV records for {}", this.name);
+        } catch (final IOException e) {
+            log.debug("Could not resolve "+this.name, e);
+        }
+        final Collection<InetSocketAddress> fallbackServers =
+            this.fallback.getCandidates();
+        if (fallbackServers == null || fallbackServers.isEmpty()) {
+            throw new IOException("Could not resolve "+this.name);
+        }
+        final List<SrvRecord> records = new ArrayList<SrvRecord>();
+        for (final InetSocketAddress server : fallbackServers) {
+            if (server.isUnresolved()) {
+                continue;
+            }
+            records.add(new SrvRecord(0, 0, server.getPort(),
+                server.getHostName(), FALLBACK_TTL_SECONDS,
+                server.getAddress()));
+        }
+        return new Entry(records);
+    }
+
+    /**
+     * A cached lookup result.
+     */
+    private static final class Entry {
+
+        private final List<SrvRecord> records;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        private Entry(final List<SrvRecord> records) {
+            long ttl;
+            if (records.isEmpty()) {
+                ttl = NEGATIVE_TTL_SECONDS;
+            } else {
+                ttl = Long.MAX_VALUE;
+                for (final SrvRecord record : records) {
+                    ttl = Math.min(ttl, record.getTtlSeconds());
+                }
+                ttl = Math.max(ttl, MIN_TTL_SECONDS);
+            }
+            final long now = System.currentTimeMillis();
+            this.records = new ArrayList<SrvRecord>(records);
+            Collections.sort(this.records, new Comparator<SrvRecord>() {
+                public int compare(final SrvRecord r1, final SrvRecord r2) {
+                    return r1.getPriority() - r2.getPriority();
+                }
+            });
+            this.refreshAt = now + (long) (ttl * 1000 * REFRESH_FRACTION);
+            this.expiresAt = now + ttl * 1000;
+        }
+
+        /**
+         * Orders records by priority and, within each priority, by weighted
+         * random selection as described in RFC 2782.
+         */
+        private List<InetSocketAddress> order(final Random random) {
+            final List<InetSocketAddress> ordered =
+                new ArrayList<InetSocketAddress>(records.size());
+            int start = 0;
+            while (start < records.size()) {
+                int end = start;
+                final int priority = records.get(start).getPriority();
+                while (end < records.size() &&
+                    records.get(end).getPriority() == priority) {
+                    end++;
+                }
+                final List<SrvRecord> group =
+                    new ArrayList<SrvRecord>(records.subList(start, end));
+                while (!group.isEmpty()) {
+                    int total = 0;
+                    for (final SrvRecord record : group) {
+                        total += record.getWeight();
+                    }
+                    int index = 0;
+                    if (total > 0) {
+                        int pick = random.nextInt(total + 1);
+                        while (index < group.size() - 1 &&
+                            pick > group.get(index).getWeight()) {
+                            pick -= group.get(index).getWeight();
+                            index++;
+                        }
+                    }
+                    ordered.add(group.remove(index).toSocketAddress());
+                }
+                start = end;
+            }
+            return ordered;
+        }
+    }
+}
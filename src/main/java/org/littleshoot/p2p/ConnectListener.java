@@ -0,0 +1,25 @@
+package org.littleshoot.p2p;
+
+/**
+ * Listener for the outcome of an asynchronous connection.
+ *
+ * @param <T> The type of connection, such as a socket.
+ */
+public interface ConnectListener<T> {
+
+    /**
+     * Called when the connection succeeds.
+     *
+     * @param connection The new connection.
+     */
+    void onConnect(T connection);
+
+    /**
+     * Called when the connection fails, times out, or is cancelled. For
+     * cancellation the cause is a
+     * {@link java.util.concurrent.CancellationException}.
+     *
+     * @param cause The reason the connection failed.
+     */
+    void onFailure(Throwable cause);
+}
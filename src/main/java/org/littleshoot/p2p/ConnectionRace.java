@@ -0,0 +1,317 @@
+package org.littleshoot.p2p;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Races several connection attempts with staggered starts, "happy eyeballs"
+ * style, and returns the first one that succeeds. Each attempt starts
+ * either when its delay has passed or as soon as every attempt already
+ * running has failed, whichever comes first. Attempts that lose the race are
+ * cancelled, and any that succeed anyway are closed with the race's
+ * {@link Closer}. Connections that aren't sockets or {@link Closeable}, such
+ * as ICE endpoints, need a closer of their own.
+ *
+ * @param <T> The type of connection, such as {@link Socket}.
+ */
+public class ConnectionRace<T> {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(ConnectionRace.class);
+
+    /**
+     * Closes sockets and anything else {@link Closeable}, and ignores any
+     * other connections.
+     */
+    public static final Closer<Object> DEFAULT_CLOSER = new Closer<Object>() {
+        public void close(final Object connection) throws IOException {
+            if (connection instanceof Socket) {
+                ((Socket) connection).close();
+            } else if (connection instanceof Closeable) {
+                ((Closeable) connection).close();
+            } else if (connection != null) {
+                log.debug("No way to close {}", connection);
+            }
+        }
+    };
+
+    private final Executor executor;
+
+    private final Closer<? super T> closer;
+
+    /**
+     * Creates a new race that closes losing connections with
+     * {@link #DEFAULT_CLOSER}.
+     *
+     * @param executor The executor to run attempts on. This needs at least
+     * as many threads as there are attempts.
+     */
+    public ConnectionRace(final Executor executor) {
+        this(executor, DEFAULT_CLOSER);
+    }
+
+    /**
+     * Creates a new race.
+     *
+     * @param executor The executor to run attempts on. This needs at least
+     * as many threads as there are attempts.
+     * @param closer Closes connections that lose the race.
+     */
+    public ConnectionRace(final Executor executor,
+        final Closer<? super T> closer) {
+        this.executor = executor;
+        this.closer = closer;
+    }
+
+    /**
+     * Runs the given attempts and returns the first successful result.
+     *
+     * @param attempts The attempts, in the order they should start.
+     * @param timeoutMillis The longest to wait for any attempt to succeed.
+     * @return The winning connection and the attempt that made it.
+     * @throws IOException If every attempt failed or none succeeded in
+     * time.
+     */
+    public Result<T> race(final List<Attempt<T>> attempts,
+        final long timeoutMillis) throws IOException {
+        if (attempts.isEmpty()) {
+            throw new IOException("Nothing to race");
+        }
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeoutMillis;
+        final AtomicBoolean decided = new AtomicBoolean(false);
+        final CompletionService<T> completions =
+            new ExecutorCompletionService<T>(this.executor);
+        final Map<Future<T>, Attempt<T>> running =
+            new HashMap<Future<T>, Attempt<T>>();
+        final List<Future<T>> all = new ArrayList<Future<T>>();
+        Exception lastError = null;
+        Future<T> winner = null;
+        int started = 0;
+        int failed = 0;
+        try {
+            while (true) {
+                final long now = System.currentTimeMillis();
+                // Start everything that's due, or the next attempt if
+                // everything running has already failed.
+                while (started < attempts.size() &&
+                    (start + attempts.get(started).delayMillis <= now ||
+                     failed == started)) {
+                    final Attempt<T> attempt = attempts.get(started);
+                    log.debug("Starting {} attempt", attempt.name);
+                    final Future<T> future = completions.submit(
+                        closeIfLost(attempt.connector, decided));
+                    running.put(future, attempt);
+                    all.add(future);
+                    started++;
+                }
+                if (now >= deadline) {
+                    throw new IOException("No connection after "+
+                        timeoutMillis+"ms", lastError);
+                }
+                long wait = deadline - now;
+                if (started < attempts.size()) {
+                    wait = Math.min(wait,
+                        start + attempts.get(started).delayMillis - now);
+                }
+                final Future<T> done =
+                    completions.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                final Attempt<T> attempt = running.remove(done);
+                try {
+                    final T result = done.get();
+                    if (decided.compareAndSet(false, true)) {
+                        winner = done;
+                        final long elapsed =
+                            System.currentTimeMillis() - start;
+                        log.debug("{} attempt won in {}ms", attempt.name,
+                            elapsed);
+                        return new Result<T>(result, attempt.name, elapsed);
+                    }
+                    closeQuietly(this.closer, result);
+                } catch (final ExecutionException e) {
+                    log.debug(attempt.name+" attempt failed", e.getCause());
+                    lastError = e.getCause() instanceof Exception ?
+                        (Exception) e.getCause() : e;
+                    failed++;
+                    if (failed == attempts.size()) {
+                        throw new IOException("All attempts failed",
+                            lastError);
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting");
+        } finally {
+            decided.set(true);
+            for (final Future<T> future : all) {
+                if (future == winner) {
+                    continue;
+                }
+                if (!future.cancel(true) && !future.isCancelled()) {
+                    // Finished before we could cancel it -- close whatever
+                    // it connected.
+                    closeCompleted(future);
+                }
+            }
+        }
+    }
+
+    private void closeCompleted(final Future<T> future) {
+        try {
+            closeQuietly(this.closer, future.get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            // Failed attempts have nothing to close.
+        }
+    }
+
+    private Callable<T> closeIfLost(final Callable<T> connector,
+        final AtomicBoolean decided) {
+        return new Callable<T>() {
+            public T call() throws Exception {
+                final T result = connector.call();
+                if (decided.get()) {
+                    // Someone else already won, and nobody will collect us.
+                    closeQuietly(closer, result);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Closes a connection nobody will use, logging any error.
+     *
+     * @param <T> The type of connection.
+     * @param closer The closer for the connection's type.
+     * @param connection The connection to close.
+     */
+    static <T> void closeQuietly(final Closer<? super T> closer,
+        final T connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            closer.close(connection);
+        } catch (final IOException e) {
+            log.debug("Error closing losing connection", e);
+        } catch (final RuntimeException e) {
+            log.debug("Error closing losing connection", e);
+        }
+    }
+
+    /**
+     * Closes connections of a given type that lost a race.
+     *
+     * @param <T> The type of connection.
+     */
+    public interface Closer<T> {
+
+        /**
+         * Closes the connection, releasing whatever it holds.
+         *
+         * @param connection The connection.
+         * @throws IOException If the connection couldn't be closed.
+         */
+        void close(T connection) throws IOException;
+    }
+
+    /**
+     * A single connection attempt in a race.
+     *
+     * @param <T> The type of connection.
+     */
+    public static final class Attempt<T> {
+
+        private final String name;
+        private final long delayMillis;
+        private final Callable<T> connector;
+
+        /**
+         * Creates a new attempt.
+         *
+         * @param name The name of the attempt, typically the transport.
+         * @param delayMillis How long after the race starts to start this
+         * attempt if the attempts before it are still running.
+         * @param connector Creates the connection.
+         */
+        public Attempt(final String name, final long delayMillis,
+            final Callable<T> connector) {
+            this.name = name;
+            this.delayMillis = delayMillis;
+            this.connector = connector;
+        }
+    }
+
+    /**
+     * The winner of a race.
+     *
+     * @param <T> The type of connection.
+     */
+    public static final class Result<T> {
+
+        private final T connection;
+        private final String name;
+        private final long elapsedMillis;
+
+        private Result(final T connection, final String name,
+            final long elapsedMillis) {
+            this.connection = connection;
+            this.name = name;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * Returns this result with the winning connection replaced, such
+         * as by a wrapper around it.
+         */
+        Result<T> withConnection(final T replacement) {
+            return new Result<T>(replacement, this.name, this.elapsedMillis);
+        }
+
+        /**
+         * @return The winning connection.
+         */
+        public T getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return The name of the winning attempt.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return How long the race took, in milliseconds.
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.littleshoot.p2p;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating named daemon threads, so background work in the
+ * P2P layer never keeps the JVM alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+    
+    private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param name The base name for created threads.
+     */
+    DaemonThreadFactory(final String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, 
+            name + "-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,452 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.util.FiveTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Datagram I/O for many flows on one UDP port the caller binds. The engine
+ * runs one non-blocking channel on the port, and any number of flows, one
+ * per remote address, share it.
+ * A single selector thread reads every packet waiting on the port per
+ * wakeup and hands each to its flow's {@link DatagramFlowListener}, and
+ * sends are queued in pooled direct buffers and written out in batches,
+ * with one selector wakeup for however many packets queue up meanwhile.
+ * That keeps per-packet cost to the system calls themselves, instead of a
+ * blocking socket and thread per flow.
+ * <p>
+ * Packets from addresses with no flow are dropped and counted. Packets
+ * bigger than the pool's buffers are truncated, so size the pool for the
+ * largest packet expected. When too many sends are waiting, new ones are
+ * dropped instead of queued, which suits media-style traffic where late
+ * packets are useless anyway.
+ * <p>
+ * This does not speed up the {@link FiveTuple} endpoints
+ * {@link P2PEndpoints} clients get from the ICE library. The library
+ * keeps the socket it checked a pair on and doesn't hand it out, and the
+ * engine never binds a port another socket holds, since two sockets on
+ * one port split its packets. Flows are still opened with five tuples,
+ * but only on ports the caller bound itself.
+ */
+public class DatagramEngine {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(DatagramEngine.class);
+
+    /**
+     * The most packets read or written per wakeup, so one busy direction
+     * can't starve the other.
+     */
+    public static final int MAX_BATCH = 64;
+
+    /**
+     * The most sends waiting to go out before new ones are dropped.
+     */
+    private static final int MAX_QUEUED = 4096;
+
+    /**
+     * The socket buffer size we ask for, to ride out bursts between
+     * wakeups.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final DirectBufferPool pool;
+
+    private final DatagramChannel channel;
+
+    private final Selector selector;
+
+    private final SelectionKey key;
+
+    private final ConcurrentMap<SocketAddress, Flow> flows =
+        new ConcurrentHashMap<SocketAddress, Flow>();
+
+    private final Queue<Outgoing> outgoing =
+        new ConcurrentLinkedQueue<Outgoing>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+
+    private final AtomicLong packetsSent = new AtomicLong();
+
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    private final AtomicLong wakeups = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates an engine on a new channel bound to the given address. The
+     * address must not already be in use.
+     *
+     * @param local The address to bind to.
+     * @param pool The pool of buffers for sends and receives.
+     * @return The new engine.
+     * @throws IOException If the address can't be bound.
+     */
+    public static DatagramEngine bind(final InetSocketAddress local,
+        final DirectBufferPool pool) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(local);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DatagramEngine(channel, pool);
+    }
+
+    /**
+     * Creates a new engine that takes over the given bound channel and
+     * starts its selector thread. The engine owns the channel from then
+     * on, and closes it when it's closed.
+     *
+     * @param channel The channel, already bound to the flows' local port.
+     * @param pool The pool of buffers for sends and receives.
+     * @throws IOException If the channel can't be set up for the engine.
+     */
+    public DatagramEngine(final DatagramChannel channel,
+        final DirectBufferPool pool) throws IOException {
+        if (!channel.socket().isBound()) {
+            throw new IllegalArgumentException("Channel isn't bound");
+        }
+        this.pool = pool;
+        this.channel = channel;
+        try {
+            this.channel.configureBlocking(false);
+            bestEffortBuffers();
+            this.selector = Selector.open();
+            this.key = this.channel.register(this.selector,
+                SelectionKey.OP_READ);
+        } catch (final IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        new DaemonThreadFactory("P2P-Datagram-Engine").newThread(
+            new Runnable() {
+                public void run() {
+                    select();
+                }
+            }).start();
+    }
+
+    /**
+     * Opens a flow for an endpoint on this engine's port.
+     *
+     * @param tuple The endpoint. Its local port must be the engine's.
+     * @param listener The listener for packets from the remote address.
+     * @return The new flow.
+     * @throws IOException If the engine is closed.
+     */
+    public Flow open(final FiveTuple tuple,
+        final DatagramFlowListener listener) throws IOException {
+        if (this.closed) {
+            throw new IOException("Engine closed");
+        }
+        if (tuple.getLocal().getPort() != getLocalAddress().getPort()) {
+            throw new IllegalArgumentException("Endpoint " +
+                tuple.getLocal() + " isn't on port " +
+                getLocalAddress().getPort());
+        }
+        final Flow flow = new Flow(tuple, listener);
+        if (this.flows.putIfAbsent(flow.remote, flow) != null) {
+            throw new IllegalStateException("Already a flow for " +
+                flow.remote);
+        }
+        return flow;
+    }
+
+    /**
+     * Returns the address the engine is bound to.
+     *
+     * @return The local address.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) this.channel.socket()
+            .getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the number of open flows.
+     *
+     * @return The number of flows.
+     */
+    public int getFlowCount() {
+        return this.flows.size();
+    }
+
+    /**
+     * @return The packets delivered to flows.
+     */
+    public long getPacketsReceived() {
+        return this.packetsReceived.get();
+    }
+
+    /**
+     * @return The packets written to the network.
+     */
+    public long getPacketsSent() {
+        return this.packetsSent.get();
+    }
+
+    /**
+     * @return The packets dropped, because they came from an address with
+     * no flow or because too many sends were waiting.
+     */
+    public long getPacketsDropped() {
+        return this.packetsDropped.get();
+    }
+
+    /**
+     * Returns the number of times the selector thread woke up. Packets per
+     * wakeup shows how well sends and receives are batching.
+     *
+     * @return The number of wakeups.
+     */
+    public long getWakeups() {
+        return this.wakeups.get();
+    }
+
+    /**
+     * Closes the engine and all of its flows. Queued sends are dropped.
+     */
+    public void close() {
+        this.closed = true;
+        this.flows.clear();
+        this.selector.wakeup();
+    }
+
+    private void bestEffortBuffers() {
+        try {
+            this.channel.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            this.channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        } catch (final IOException e) {
+            log.debug("Could not size socket buffers", e);
+        }
+    }
+
+    private void select() {
+        final ByteBuffer in = this.pool.acquire();
+        try {
+            while (!this.closed) {
+                this.selector.select();
+                this.selector.selectedKeys().clear();
+                this.wakeups.incrementAndGet();
+                receive(in);
+                flush();
+            }
+        } catch (final IOException e) {
+            log.warn("Datagram engine failed", e);
+        } catch (final ClosedSelectorException e) {
+            log.debug("Datagram engine selector closed");
+        } finally {
+            this.closed = true;
+            this.pool.release(in);
+            Outgoing out;
+            while ((out = this.outgoing.poll()) != null) {
+                this.pool.release(out.buf);
+            }
+            try {
+                this.channel.close();
+                this.selector.close();
+            } catch (final IOException e) {
+                log.debug("Error closing engine", e);
+            }
+        }
+    }
+
+    /**
+     * Reads up to a batch of packets, reusing one buffer for all of them.
+     */
+    private void receive(final ByteBuffer in) throws IOException {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            in.clear();
+            final SocketAddress from = this.channel.receive(in);
+            if (from == null) {
+                return;
+            }
+            in.flip();
+            final Flow flow = this.flows.get(from);
+            if (flow == null) {
+                this.packetsDropped.incrementAndGet();
+                continue;
+            }
+            this.packetsReceived.incrementAndGet();
+            flow.received.incrementAndGet();
+            try {
+                flow.listener.onPacket(flow, in);
+            } catch (final RuntimeException e) {
+                log.warn("Flow listener threw", e);
+            }
+        }
+    }
+
+    /**
+     * Writes up to a batch of queued packets. If the socket buffer fills
+     * we wait for writability instead of spinning.
+     */
+    private void flush() throws IOException {
+        this.flushScheduled.set(false);
+        for (int i = 0; i < MAX_BATCH; i++) {
+            final Outgoing out = this.outgoing.peek();
+            if (out == null) {
+                break;
+            }
+            if (this.channel.send(out.buf, out.to) == 0) {
+                this.key.interestOps(
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.outgoing.poll();
+            this.queued.decrementAndGet();
+            this.pool.release(out.buf);
+            this.packetsSent.incrementAndGet();
+        }
+        if (this.outgoing.isEmpty()) {
+            this.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            // More than a batch waiting -- come straight back.
+            this.selector.wakeup();
+        }
+    }
+
+    private boolean enqueue(final Outgoing out) {
+        if (this.queued.incrementAndGet() > MAX_QUEUED) {
+            this.queued.decrementAndGet();
+            this.packetsDropped.incrementAndGet();
+            return false;
+        }
+        this.outgoing.add(out);
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * A packet waiting to go out.
+     */
+    private static final class Outgoing {
+        private final ByteBuffer buf;
+        private final SocketAddress to;
+
+        private Outgoing(final ByteBuffer buf, final SocketAddress to) {
+            this.buf = buf;
+            this.to = to;
+        }
+    }
+
+    /**
+     * The packets to and from one remote address.
+     */
+    public final class Flow {
+
+        private final FiveTuple tuple;
+
+        private final InetSocketAddress remote;
+
+        private final DatagramFlowListener listener;
+
+        private final AtomicLong received = new AtomicLong();
+
+        private final AtomicLong sent = new AtomicLong();
+
+        private volatile boolean open = true;
+
+        private Flow(final FiveTuple tuple,
+            final DatagramFlowListener listener) {
+            this.tuple = tuple;
+            this.remote = tuple.getRemote();
+            this.listener = listener;
+        }
+
+        /**
+         * Queues a packet to the remote address. The data is copied, so
+         * the caller can reuse its buffer right away.
+         *
+         * @param data The packet, from its position to its limit.
+         * @return <code>true</code> if the packet was queued,
+         * <code>false</code> if it was dropped because the flow is closed
+         * or too many sends are waiting.
+         */
+        public boolean send(final ByteBuffer data) {
+            if (!this.open || closed) {
+                return false;
+            }
+            final ByteBuffer buf = pool.acquire();
+            if (data.remaining() > buf.remaining()) {
+                pool.release(buf);
+                throw new IllegalArgumentException("Packet of " +
+                    data.remaining() + " bytes is bigger than the pool's " +
+                    buf.capacity() + " byte buffers");
+            }
+            buf.put(data);
+            buf.flip();
+            if (!enqueue(new Outgoing(buf, this.remote))) {
+                pool.release(buf);
+                return false;
+            }
+            this.sent.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Stops delivering packets for this flow. Packets already queued
+         * still go out.
+         */
+        public void close() {
+            this.open = false;
+            flows.remove(this.remote, this);
+        }
+
+        /**
+         * @return The endpoint this flow carries.
+         */
+        public FiveTuple getFiveTuple() {
+            return tuple;
+        }
+
+        /**
+         * @return The remote address of the flow.
+         */
+        public InetSocketAddress getRemote() {
+            return remote;
+        }
+
+        /**
+         * @return The packets received on this flow.
+         */
+        public long getPacketsReceived() {
+            return received.get();
+        }
+
+        /**
+         * @return The packets queued on this flow.
+         */
+        public long getPacketsSent() {
+            return sent.get();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.littleshoot.p2p;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener for packets arriving on a {@link DatagramEngine} flow.
+ */
+public interface DatagramFlowListener {
+
+    /**
+     * Called on the engine's thread for each packet from the flow's remote
+     * address. The buffer is reused for the next packet as soon as this
+     * returns, so copy anything that needs to outlive the call, and return
+     * quickly since every flow on the engine waits.
+     *
+     * @param flow The flow the packet arrived on.
+     * @param packet The packet, positioned at its first byte.
+     */
+    void onPacket(DatagramEngine.Flow flow, ByteBuffer packet);
+}
@@ -0,0 +1,181 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket that passes everything through to another, already connected
+ * socket. Subclasses override what they need to watch or change.
+ */
+class DelegatingSocket extends Socket {
+
+    protected final Socket socket;
+
+    DelegatingSocket(final Socket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.socket.isClosed();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        this.socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.socket.shutdownOutput();
+    }
+
+    @Override
+    public void connect(final SocketAddress endpoint, final int timeout)
+        throws IOException {
+        throw new SocketException("Socket is already connected");
+    }
+
+    @Override
+    public void bind(final SocketAddress bindpoint) throws IOException {
+        throw new SocketException("Socket is already bound");
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        // Handing out the channel would let callers bypass us.
+        return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return this.socket.isBound();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.socket.isOutputShutdown();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return this.socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return this.socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return this.socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return this.socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return this.socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setSoTimeout(final int timeout) throws SocketException {
+        this.socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return this.socket.getSoTimeout();
+    }
+
+    @Override
+    public void setTcpNoDelay(final boolean on) throws SocketException {
+        this.socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return this.socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setKeepAlive(final boolean on) throws SocketException {
+        this.socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return this.socket.getKeepAlive();
+    }
+
+    @Override
+    public void setSoLinger(final boolean on, final int linger)
+        throws SocketException {
+        this.socket.setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return this.socket.getSoLinger();
+    }
+
+    @Override
+    public void setSendBufferSize(final int size) throws SocketException {
+        this.socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return this.socket.getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(final int size) throws SocketException {
+        this.socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return this.socket.getReceiveBufferSize();
+    }
+}
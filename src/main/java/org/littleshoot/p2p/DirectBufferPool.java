@@ -0,0 +1,91 @@
+package org.littleshoot.p2p;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized direct buffers. Direct buffers let socket reads
+ * and writes skip the copy through a temporary native buffer the JVM
+ * makes for heap buffers, but they're expensive to allocate and slow to
+ * free, so we keep them around.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> pooled =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize The size of each buffer, in bytes.
+     * @param maxPooled The most free buffers to keep. Buffers released
+     * beyond this are left for the garbage collector.
+     */
+    public DirectBufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if the pool is
+     * empty.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buf = this.pooled.poll();
+        if (buf != null) {
+            this.pooledCount.decrementAndGet();
+            return buf;
+        }
+        this.allocations.incrementAndGet();
+        return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch it again.
+     *
+     * @param buf The buffer.
+     */
+    public void release(final ByteBuffer buf) {
+        if (buf.capacity() != this.bufferSize || !buf.isDirect()) {
+            return;
+        }
+        if (this.pooledCount.incrementAndGet() > this.maxPooled) {
+            this.pooledCount.decrementAndGet();
+            return;
+        }
+        buf.clear();
+        this.pooled.offer(buf);
+    }
+
+    /**
+     * Returns the size of the buffers in this pool.
+     *
+     * @return The buffer size, in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of buffers this pool has allocated, which should
+     * level off once the pool is warm.
+     *
+     * @return The number of allocations.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,538 @@
+package org.littleshoot.p2p;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves DNS SRV records directly against a configured set of name
+ * servers. Unlike lookups through the JVM resolver this exposes record TTLs
+ * and doesn't depend on JVM-wide name server properties. By default the
+ * name servers are the system's own.
+ * <p>
+ * Responses are only accepted from the name server queried and with the
+ * query's ID, and CNAMEs are followed, both for the SRV name and for the
+ * targets of its records.
+ */
+public class DnsSrvResolver {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(DnsSrvResolver.class);
+
+    /**
+     * System property holding a comma separated list of name servers to
+     * use instead of the system's, as host or host:port.
+     */
+    public static final String NAMESERVERS_PROPERTY =
+        "org.littleshoot.p2p.nameservers";
+
+    /**
+     * The resolver configuration on Unix-like systems.
+     */
+    private static final File RESOLV_CONF = new File("/etc/resolv.conf");
+
+    /**
+     * The most CNAMEs followed for one name.
+     */
+    private static final int MAX_CNAMES = 8;
+
+    private static final int DNS_PORT = 53;
+
+    private static final int TYPE_A = 1;
+
+    private static final int TYPE_CNAME = 5;
+
+    private static final int TYPE_SRV = 33;
+
+    private static final int CLASS_IN = 1;
+
+    private final List<InetSocketAddress> nameservers;
+
+    private final int timeoutMillis;
+
+    private final Random random = new Random();
+
+    /**
+     * Creates a resolver using the name servers from the
+     * {@link #NAMESERVERS_PROPERTY} system property, or the system's name
+     * servers if it's not set. If neither gives any name servers, every
+     * lookup fails, so callers fall back to whatever else they have.
+     *
+     * @param timeoutMillis How long to wait for each name server.
+     * @return The new resolver.
+     */
+    public static DnsSrvResolver newConfiguredResolver(
+        final int timeoutMillis) {
+        final String configured = System.getProperty(NAMESERVERS_PROPERTY);
+        final List<InetSocketAddress> nameservers =
+            StringUtils.isBlank(configured) ?
+                systemNameservers() : parseNameservers(configured);
+        if (nameservers.isEmpty()) {
+            log.warn("No name servers found for SRV lookups");
+        }
+        return new DnsSrvResolver(nameservers, timeoutMillis, true);
+    }
+
+    /**
+     * Returns the system's name servers: those in /etc/resolv.conf where
+     * there is one, and otherwise those the JVM's own resolver found, on
+     * JVMs that let us ask.
+     *
+     * @return The name servers, which may be empty if we couldn't find
+     * them.
+     */
+    public static List<InetSocketAddress> systemNameservers() {
+        if (RESOLV_CONF.isFile()) {
+            try {
+                final List<InetSocketAddress> servers =
+                    parseResolvConf(new FileReader(RESOLV_CONF));
+                if (!servers.isEmpty()) {
+                    return servers;
+                }
+            } catch (final IOException e) {
+                log.debug("Could not read "+RESOLV_CONF, e);
+            }
+        }
+        try {
+            // Where there's no resolv.conf, such as on Windows, this knows
+            // the configured servers. Newer JVMs don't allow the call.
+            final Class<?> config =
+                Class.forName("sun.net.dns.ResolverConfiguration");
+            final Object current = config.getMethod("open").invoke(null);
+            final List<?> names =
+                (List<?>) config.getMethod("nameservers").invoke(current);
+            final List<InetSocketAddress> servers =
+                new ArrayList<InetSocketAddress>(names.size());
+            for (final Object name : names) {
+                servers.add(new InetSocketAddress(String.valueOf(name),
+                    DNS_PORT));
+            }
+            return servers;
+        } catch (final Exception e) {
+            log.debug("Could not get the JVM's name servers", e);
+        } catch (final LinkageError e) {
+            log.debug("Could not get the JVM's name servers", e);
+        }
+        return new ArrayList<InetSocketAddress>(0);
+    }
+
+    /**
+     * Reads the name servers from resolver configuration in the format of
+     * /etc/resolv.conf.
+     *
+     * @param config The configuration. It's closed when done.
+     * @return The name servers.
+     * @throws IOException If the configuration can't be read.
+     */
+    static List<InetSocketAddress> parseResolvConf(final Reader config)
+        throws IOException {
+        final List<InetSocketAddress> servers =
+            new ArrayList<InetSocketAddress>();
+        final BufferedReader reader = new BufferedReader(config);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2 || !fields[0].equals("nameserver")) {
+                    continue;
+                }
+                // Drop any IPv6 zone, which InetAddress can't always parse.
+                final int zone = fields[1].indexOf('%');
+                final String host =
+                    zone == -1 ? fields[1] : fields[1].substring(0, zone);
+                servers.add(new InetSocketAddress(host, DNS_PORT));
+            }
+        } finally {
+            reader.close();
+        }
+        return servers;
+    }
+
+    /**
+     * Parses a comma separated list of name servers.
+     *
+     * @param nameservers The name servers, as host or host:port.
+     * @return The name server addresses.
+     */
+    public static List<InetSocketAddress> parseNameservers(
+        final String nameservers) {
+        final List<InetSocketAddress> addresses =
+            new ArrayList<InetSocketAddress>();
+        for (final String server : StringUtils.split(nameservers, ",")) {
+            final String trimmed = server.trim();
+            if (StringUtils.isBlank(trimmed)) {
+                continue;
+            }
+            final int colon = trimmed.lastIndexOf(':');
+            if (colon > 0 && trimmed.indexOf(':') == colon) {
+                addresses.add(new InetSocketAddress(
+                    trimmed.substring(0, colon),
+                    Integer.parseInt(trimmed.substring(colon + 1))));
+            } else {
+                addresses.add(new InetSocketAddress(trimmed, DNS_PORT));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param nameservers The name servers to query, in order.
+     * @param timeoutMillis How long to wait for each name server.
+     */
+    public DnsSrvResolver(final List<InetSocketAddress> nameservers,
+        final int timeoutMillis) {
+        this(nameservers, timeoutMillis, false);
+    }
+
+    private DnsSrvResolver(final List<InetSocketAddress> nameservers,
+        final int timeoutMillis, final boolean allowNone) {
+        if (nameservers.isEmpty() && !allowNone) {
+            throw new IllegalArgumentException("No name servers");
+        }
+        this.nameservers =
+            Collections.unmodifiableList(
+                new ArrayList<InetSocketAddress>(nameservers));
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the name servers this resolver queries.
+     *
+     * @return The name servers.
+     */
+    public List<InetSocketAddress> getNameservers() {
+        return nameservers;
+    }
+
+    /**
+     * Looks up the SRV records for the given name. Targets are resolved from
+     * the additional section of the response when present, and with
+     * separate A queries otherwise.
+     *
+     * @param name The SRV name, such as "_turn._tcp.littleshoot.org".
+     * @return The records. Records whose targets could not be resolved are
+     * left out.
+     * @throws IOException If none of the name servers could answer.
+     */
+    public List<SrvRecord> resolve(final String name) throws IOException {
+        String owner = name.toLowerCase();
+        Response response = query(owner, TYPE_SRV);
+        for (int i = 0; response.srvRecords.isEmpty() && i < MAX_CNAMES;
+            i++) {
+            // An alias whose records the name server didn't include.
+            final Alias alias = response.aliases.get(owner);
+            if (alias == null) {
+                break;
+            }
+            owner = canonical(response, alias.target);
+            if (!response.srvRecords.isEmpty() ||
+                response.aliases.containsKey(owner)) {
+                continue;
+            }
+            response = query(owner, TYPE_SRV);
+        }
+        final List<SrvRecord> records = new ArrayList<SrvRecord>();
+        for (final SrvRecord record : response.srvRecords) {
+            final AddressRecord known = address(response, record.getTarget());
+            if (known != null) {
+                records.add(record.withAddress(known.address, known.ttl));
+                continue;
+            }
+            try {
+                final AddressRecord resolved = resolveAddress(
+                    canonical(response, record.getTarget()));
+                if (resolved != null) {
+                    records.add(record.withAddress(resolved.address,
+                        resolved.ttl));
+                }
+            } catch (final IOException e) {
+                log.debug("Could not resolve SRV target: "+record, e);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Looks up the address of a name with A queries, following any CNAMEs
+     * the name servers answer with.
+     */
+    private AddressRecord resolveAddress(final String name)
+        throws IOException {
+        String current = name;
+        for (int i = 0; i <= MAX_CNAMES; i++) {
+            final Response response = query(current, TYPE_A);
+            final AddressRecord resolved = address(response, current);
+            if (resolved != null) {
+                return resolved;
+            }
+            final String next = canonical(response, current);
+            if (next.equals(current)) {
+                return null;
+            }
+            current = next;
+        }
+        log.debug("Too many CNAMEs for {}", name);
+        return null;
+    }
+
+    /**
+     * Returns the address record for a name in a response, following the
+     * CNAMEs in it. Its TTL is the lowest along the chain.
+     */
+    private static AddressRecord address(final Response response,
+        final String name) {
+        String current = name;
+        long ttl = Long.MAX_VALUE;
+        for (int i = 0; i <= MAX_CNAMES; i++) {
+            final AddressRecord record = response.addresses.get(current);
+            if (record != null) {
+                return new AddressRecord(record.address,
+                    Math.min(ttl, record.ttl));
+            }
+            final Alias alias = response.aliases.get(current);
+            if (alias == null) {
+                return null;
+            }
+            ttl = Math.min(ttl, alias.ttl);
+            current = alias.target;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name at the end of the CNAME chain for a name in a
+     * response, which is the name itself if it's not an alias.
+     */
+    private static String canonical(final Response response,
+        final String name) {
+        String current = name;
+        for (int i = 0; i < MAX_CNAMES; i++) {
+            final Alias alias = response.aliases.get(current);
+            if (alias == null) {
+                break;
+            }
+            current = alias.target;
+        }
+        return current;
+    }
+
+    private Response query(final String name, final int type)
+        throws IOException {
+        if (this.nameservers.isEmpty()) {
+            throw new IOException("No name servers to ask for "+name);
+        }
+        IOException lastError = null;
+        for (final InetSocketAddress nameserver : this.nameservers) {
+            try {
+                return query(nameserver, name, type);
+            } catch (final IOException e) {
+                log.debug("Query to "+nameserver+" failed", e);
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private Response query(final InetSocketAddress nameserver,
+        final String name, final int type) throws IOException {
+        final int id = this.random.nextInt(0x10000);
+        final ByteBuffer request = ByteBuffer.allocate(512);
+        request.putShort((short) id);
+        // Standard query with recursion desired.
+        request.putShort((short) 0x0100);
+        request.putShort((short) 1);
+        request.putShort((short) 0);
+        request.putShort((short) 0);
+        request.putShort((short) 0);
+        for (final String label : StringUtils.split(name, ".")) {
+            final byte[] bytes = label.getBytes("US-ASCII");
+            request.put((byte) bytes.length);
+            request.put(bytes);
+        }
+        request.put((byte) 0);
+        request.putShort((short) type);
+        request.putShort((short) CLASS_IN);
+
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(this.timeoutMillis);
+            socket.send(new DatagramPacket(request.array(),
+                request.position(), nameserver));
+            final byte[] data = new byte[4096];
+            final DatagramPacket packet = new DatagramPacket(data,
+                data.length);
+            while (true) {
+                try {
+                    socket.receive(packet);
+                } catch (final SocketTimeoutException e) {
+                    throw new IOException("No response from "+nameserver+
+                        " for "+name);
+                }
+                final ByteBuffer buf = ByteBuffer.wrap(data, 0,
+                    packet.getLength());
+                // Anyone can send us a datagram, so only take the reply
+                // from the server we asked.
+                if (packet.getAddress().equals(nameserver.getAddress()) &&
+                    packet.getPort() == nameserver.getPort() &&
+                    packet.getLength() >= 4 &&
+                    (buf.getShort(0) & 0xffff) == id &&
+                    (buf.get(2) & 0x80) != 0) {
+                    return parse(buf);
+                }
+                log.debug("Ignoring stray DNS packet from {}",
+                    packet.getSocketAddress());
+                packet.setLength(data.length);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Response parse(final ByteBuffer buf) throws IOException {
+        try {
+            buf.getShort();
+            final int flags = buf.getShort() & 0xffff;
+            final int rcode = flags & 0x000f;
+            if (rcode != 0) {
+                throw new IOException("DNS error code: "+rcode);
+            }
+            if ((flags & 0x0200) != 0) {
+                log.debug("Truncated DNS response -- using partial records");
+            }
+            final int questions = buf.getShort() & 0xffff;
+            final int answers = buf.getShort() & 0xffff;
+            final int authorities = buf.getShort() & 0xffff;
+            final int additionals = buf.getShort() & 0xffff;
+            for (int i = 0; i < questions; i++) {
+                readName(buf);
+                buf.getInt();
+            }
+            final Response response = new Response();
+            final int records = answers + authorities + additionals;
+            for (int i = 0; i < records; i++) {
+                final String owner = readName(buf);
+                final int type = buf.getShort() & 0xffff;
+                buf.getShort();
+                final long ttl = buf.getInt() & 0xffffffffL;
+                final int length = buf.getShort() & 0xffff;
+                final int end = buf.position() + length;
+                if (type == TYPE_SRV) {
+                    final int priority = buf.getShort() & 0xffff;
+                    final int weight = buf.getShort() & 0xffff;
+                    final int port = buf.getShort() & 0xffff;
+                    final String target = readName(buf);
+                    response.srvRecords.add(new SrvRecord(priority, weight,
+                        port, target, ttl, null));
+                } else if (type == TYPE_CNAME) {
+                    if (!response.aliases.containsKey(owner)) {
+                        response.aliases.put(owner,
+                            new Alias(readName(buf), ttl));
+                    }
+                } else if (type == TYPE_A && length == 4) {
+                    final byte[] address = new byte[4];
+                    buf.get(address);
+                    if (!response.addresses.containsKey(owner)) {
+                        response.addresses.put(owner, new AddressRecord(
+                            InetAddress.getByAddress(owner, address), ttl));
+                    }
+                }
+                buf.position(end);
+            }
+            return response;
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Malformed DNS response");
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Malformed DNS response");
+        }
+    }
+
+    private String readName(final ByteBuffer buf) {
+        final StringBuilder sb = new StringBuilder();
+        int position = buf.position();
+        int jumps = 0;
+        boolean jumped = false;
+        while (true) {
+            final int length = buf.get(position) & 0xff;
+            if (length == 0) {
+                position++;
+                break;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                if (++jumps > 16) {
+                    throw new IllegalArgumentException("Name pointer loop");
+                }
+                final int pointer =
+                    ((length & 0x3f) << 8) | (buf.get(position + 1) & 0xff);
+                if (!jumped) {
+                    buf.position(position + 2);
+                    jumped = true;
+                }
+                position = pointer;
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < length; i++) {
+                sb.append((char) (buf.get(position + 1 + i) & 0xff));
+            }
+            position += length + 1;
+        }
+        if (!jumped) {
+            buf.position(position);
+        }
+        return sb.toString().toLowerCase();
+    }
+
+    private static final class AddressRecord {
+        private final InetAddress address;
+        private final long ttl;
+
+        private AddressRecord(final InetAddress address, final long ttl) {
+            this.address = address;
+            this.ttl = ttl;
+        }
+    }
+
+    private static final class Alias {
+        private final String target;
+        private final long ttl;
+
+        private Alias(final String target, final long ttl) {
+            this.target = target;
+            this.ttl = ttl;
+        }
+    }
+
+    private static final class Response {
+        private final List<SrvRecord> srvRecords = new ArrayList<SrvRecord>();
+        private final Map<String, AddressRecord> addresses =
+            new HashMap<String, AddressRecord>();
+        private final Map<String, Alias> aliases =
+            new HashMap<String, Alias>();
+    }
+}
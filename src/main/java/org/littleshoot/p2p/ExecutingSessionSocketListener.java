@@ -0,0 +1,129 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.littleshoot.util.SessionSocketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * Session socket listener that hands each incoming socket to another
+ * listener on an executor, so the thread that accepted the socket can go
+ * straight back to accepting. Sockets the listener fails on are closed.
+ * <p>
+ * UDT sockets can go to an executor of their own. Every UDT read and write
+ * blocks in native code, which pins a virtual thread to its carrier, so
+ * UDT sessions belong on platform threads even when the others run on
+ * virtual ones.
+ */
+public class ExecutingSessionSocketListener implements SessionSocketListener {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(ExecutingSessionSocketListener.class);
+
+    private final SessionSocketListener listener;
+
+    private final Executor executor;
+
+    private final Executor udtExecutor;
+
+    /**
+     * Creates a new listener.
+     * 
+     * @param listener The listener to pass sockets to.
+     * @param executor The executor to call the listener on.
+     */
+    public ExecutingSessionSocketListener(
+        final SessionSocketListener listener, final Executor executor) {
+        this(listener, executor, executor);
+    }
+
+    /**
+     * Creates a new listener that calls the listener for UDT sockets on
+     * a different executor.
+     *
+     * @param listener The listener to pass sockets to.
+     * @param executor The executor to call the listener on.
+     * @param udtExecutor The executor to call the listener on for UDT
+     * sockets.
+     */
+    public ExecutingSessionSocketListener(
+        final SessionSocketListener listener, final Executor executor,
+        final Executor udtExecutor) {
+        this.listener = listener;
+        this.executor = executor;
+        this.udtExecutor = udtExecutor;
+    }
+
+    public void onSocket(final String id, final Socket sock) 
+        throws IOException {
+        final Executor sessions = isUdt(sock) ? this.udtExecutor :
+            this.executor;
+        try {
+            sessions.execute(new Runnable() {
+                public void run() {
+                    try {
+                        listener.onSocket(id, sock);
+                    } catch (final IOException e) {
+                        log.debug("Error handling session socket", e);
+                        closeQuietly(sock);
+                    } catch (final RuntimeException e) {
+                        log.warn("Error handling session socket", e);
+                        closeQuietly(sock);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            throw new IOException("Session executor rejected socket", e);
+        }
+    }
+
+    public void reconnected() {
+        this.listener.reconnected();
+    }
+
+    /**
+     * Returns whether the given socket is a UDT socket, looking through our
+     * own socket wrappers.
+     *
+     * @param sock The socket.
+     * @return <code>true</code> if it's a UDT socket.
+     */
+    static boolean isUdt(final Socket sock) {
+        return udtSocket(sock) != null;
+    }
+
+    /**
+     * Returns the barchart UDT socket behind the given socket, looking
+     * through our own socket wrappers.
+     *
+     * @param sock The socket.
+     * @return The UDT socket, or <code>null</code> if it isn't one.
+     */
+    static NetSocketUDT udtSocket(final Socket sock) {
+        Socket current = sock;
+        while (current instanceof DelegatingSocket) {
+            current = ((DelegatingSocket) current).socket;
+        }
+        if (current instanceof NetSocketUDT) {
+            return (NetSocketUDT) current;
+        }
+        return null;
+    }
+
+    private static void closeQuietly(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            log.debug("Error closing socket", e);
+        }
+    }
+}
@@ -0,0 +1,1010 @@
+package org.littleshoot.p2p;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.lastbamboo.common.ice.BarchartUdtSocketFactory;
+import org.lastbamboo.common.ice.EndpointFactory;
+import org.lastbamboo.common.ice.IceMediaStreamFactory;
+import org.lastbamboo.common.ice.IceMediaStreamFactoryImpl;
+import org.lastbamboo.common.ice.IceOfferAnswerFactory;
+import org.lastbamboo.common.ice.MappedServerSocket;
+import org.lastbamboo.common.ice.MappedTcpOffererServerPool;
+import org.lastbamboo.common.ice.UdpSocketFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.portmapping.NatPmpService;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.lastbamboo.common.portmapping.UpnpService;
+import org.lastbamboo.common.stun.client.PublicIpAddress;
+import org.lastbamboo.common.stun.client.StunServerRepository;
+import org.lastbamboo.common.turn.client.TurnClientListener;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.DnsSrvCandidateProvider;
+import org.littleshoot.util.FiveTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ICE components that don't belong to any single client: the STUN and
+ * TURN candidate providers, the media stream factory, the UDT and endpoint
+ * factories, the offerer server pool, the answerer servers and their TURN
+ * data feeders. The builders in {@link P2P}, {@link P2PSockets} and
+ * {@link P2PEndpoints} share one instance per port mapping and socket
+ * factory configuration instead of building a full stack per client.
+ * <p>
+ * Instances are reference counted. Each call to
+ * {@link #acquire(NatPmpService, UpnpService, SocketFactory,
+ * ServerSocketFactory, boolean)} must be balanced by a call to
+ * {@link #release()}. When the last reference goes away the instance is
+ * dropped from the shared registry and everything it built is closed: the
+ * answerer servers and their relays, the TURN data feeders, the offerer
+ * listeners and the STUN and TURN server rankings. Clients created through
+ * the builders without an explicit infrastructure hold a reference of their
+ * own, which {@link #releaseClient(Object)} gives back once the client is
+ * shut down.
+ * <p>
+ * The transports are built lazily. Native UDT libraries are loaded, the
+ * offerer server pool is bound and TURN data feeders are created when a
+ * client starts its first session rather than when it's created, which
+ * keeps startup fast for short lived processes.
+ */
+public class IceInfrastructure {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(IceInfrastructure.class);
+
+    /**
+     * NAT PMP service that doesn't map anything. This is a single instance
+     * so that all clients using the defaults share the same infrastructure.
+     */
+    static final NatPmpService EMPTY_NAT_PMP_SERVICE = new NatPmpService() {
+
+        public void removeNatPmpMapping(final int mappingIndex) {
+        }
+
+        public int addNatPmpMapping(final PortMappingProtocol protocol,
+                final int localPort, final int externalPortRequested,
+                final PortMapListener portMapListener) {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+
+        }
+    };
+
+    /**
+     * UPnP service that doesn't map anything. This is a single instance
+     * so that all clients using the defaults share the same infrastructure.
+     */
+    static final UpnpService EMPTY_UPNP_SERVICE = new UpnpService() {
+
+        public void removeUpnpMapping(final int mappingIndex) {
+        }
+
+        public int addUpnpMapping(final PortMappingProtocol protocol,
+                final int localPort, final int externalPortRequested,
+                final PortMapListener portMapListener) {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+
+        }
+    };
+
+    /**
+     * How long to wait for the default gateway to answer a mapping request.
+     */
+    private static final int GATEWAY_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The lease to ask the default gateway for.
+     */
+    private static final int GATEWAY_LEASE_SECONDS = 60 * 60;
+
+    /**
+     * How long to keep a mapping on the default gateway that no one is
+     * using.
+     */
+    private static final long GATEWAY_KEEP_MILLIS = 5 * 60 * 1000;
+
+    private static PortMappingManager defaultPortMapping;
+
+    private static boolean defaultPortMappingTried = false;
+
+    /**
+     * How long to wait for each STUN probe response.
+     */
+    private static final int STUN_PROBE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The number of probes sent to each STUN server per ranking round.
+     */
+    private static final int STUN_PROBES = 3;
+
+    /**
+     * The time between STUN server ranking rounds.
+     */
+    private static final long STUN_REFRESH_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * The SRV name for looking up TURN servers.
+     */
+    private static final String TURN_SRV_NAME = "_turn._tcp.littleshoot.org";
+
+    /**
+     * How long to wait for each name server when resolving TURN servers.
+     */
+    private static final int DNS_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * The longest we'll hold up a connection waiting on DNS when there's no
+     * cached TURN server.
+     */
+    private static final long MAX_DNS_WAIT_MILLIS = 500;
+
+    /**
+     * How long to wait for each TCP connect when probing TURN relays.
+     */
+    private static final int RELAY_PROBE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The number of connects to each TURN relay per ranking round.
+     */
+    private static final int RELAY_PROBES = 2;
+
+    /**
+     * The time between TURN relay ranking rounds. This is also how long it
+     * takes to notice a relay going down.
+     */
+    private static final long RELAY_REFRESH_MILLIS = 30 * 1000;
+
+    /**
+     * The most allocations we place on any one TURN relay.
+     */
+    private static final int MAX_ALLOCATIONS_PER_RELAY = 1000;
+
+    /**
+     * The number of offerer listeners kept bound and ready.
+     */
+    private static final int MIN_IDLE_LISTENERS = 2;
+
+    /**
+     * The most pooled offerer listeners out at once.
+     */
+    private static final int MAX_LISTENERS = 16;
+
+    /**
+     * How long an extra idle offerer listener is kept.
+     */
+    private static final long LISTENER_IDLE_MILLIS = 60 * 1000;
+
+    /**
+     * How long an offer waits for a pooled listener when all are out.
+     */
+    private static final long LISTENER_WAIT_MILLIS = 50;
+
+    /**
+     * The size of the buffers answerer connections are relayed through.
+     */
+    private static final int ANSWERER_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * The most buffers each direction of an answerer connection holds.
+     */
+    private static final int ANSWERER_BUFFERS_PER_DIRECTION = 8;
+
+    /**
+     * The most bytes all answerer connections together may buffer.
+     */
+    private static final long ANSWERER_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private static final Map<Key, IceInfrastructure> sharedInstances =
+        new HashMap<Key, IceInfrastructure>();
+
+    /**
+     * What each client built by the builders holds, so it can all be let go
+     * when the client is done.
+     */
+    private static final Map<Object, ClientResources> clients =
+        new IdentityHashMap<Object, ClientResources>();
+
+    private final Key key;
+
+    private int references = 0;
+
+    private final ProbingCandidateProvider stunCandidateProvider;
+
+    private final CandidateProvider<InetSocketAddress> turnCandidateProvider;
+
+    private final RelayPool relayPool;
+
+    private final IceMediaStreamFactory mediaStreamFactory;
+
+    private final PublicIpAddress publicIpAddress = new PublicIpAddress();
+
+    private UdpSocketFactory<Socket> udtSocketFactory;
+
+    private UdpSocketFactory<FiveTuple> endpointFactory;
+
+    private MappedTcpOffererServerPool offererServerPool;
+
+    private PooledServerSocketFactory offererServerSockets;
+
+    private final Map<InetSocketAddress, MappedServerSocket> answererServers =
+        new HashMap<InetSocketAddress, MappedServerSocket>();
+
+    private List<NioRelay> answererRelays;
+
+    private final ByteBudget answererBudget =
+        new ByteBudget(ANSWERER_BUDGET_BYTES);
+
+    private final Map<InetSocketAddress, TurnClientListener> turnListeners =
+        new HashMap<InetSocketAddress, TurnClientListener>();
+
+    /**
+     * Acquires a reference to the infrastructure shared by all clients using
+     * the given configuration, creating it if necessary.
+     *
+     * @param natPmpService The NAT PMP implementation.
+     * @param upnpService The UPnP implementation.
+     * @param socketFactory The factory for creating plain TCP sockets.
+     * @param serverSocketFactory The factory for creating server sockets.
+     * @param useRelay Whether or not to use TURN relays.
+     * @return The shared infrastructure.
+     */
+    public static IceInfrastructure acquire(
+        final NatPmpService natPmpService, final UpnpService upnpService,
+        final SocketFactory socketFactory,
+        final ServerSocketFactory serverSocketFactory,
+        final boolean useRelay) {
+        return acquire(new Key(natPmpService, upnpService, socketFactory,
+            serverSocketFactory, useRelay, null, null, null));
+    }
+
+    /**
+     * Acquires a reference to the infrastructure shared by all clients using
+     * the given configuration, mapping ports only if the client's settings
+     * ask for it with {@link P2PConfig#setPortMapping(boolean)}, and
+     * applying the client's {@link UdtProfile} to UDT sessions.
+     *
+     * @param config The client's settings.
+     * @param socketFactory The factory for creating plain TCP sockets.
+     * @param serverSocketFactory The factory for creating server sockets.
+     * @param useRelay Whether or not to use TURN relays.
+     * @return The shared infrastructure.
+     */
+    public static IceInfrastructure acquire(final P2PConfig config,
+        final SocketFactory socketFactory,
+        final ServerSocketFactory serverSocketFactory,
+        final boolean useRelay) {
+        final NatPmpService natPmpService = config.isPortMapping() ?
+            gatewayNatPmpService() : EMPTY_NAT_PMP_SERVICE;
+        return acquire(new Key(natPmpService, EMPTY_UPNP_SERVICE,
+            socketFactory, serverSocketFactory, useRelay, null, null,
+            config.getUdtProfile()));
+    }
+
+    /**
+     * Acquires a reference to the infrastructure shared by all clients using
+     * the given configuration and the given STUN and TURN servers instead of
+     * the public ones. This is mostly useful for testing and benchmarking
+     * against local servers.
+     *
+     * @param natPmpService The NAT PMP implementation.
+     * @param upnpService The UPnP implementation.
+     * @param socketFactory The factory for creating plain TCP sockets.
+     * @param serverSocketFactory The factory for creating server sockets.
+     * @param stunServers The STUN servers to rank and use.
+     * @param turnServers The TURN servers to use.
+     * @return The shared infrastructure.
+     */
+    public static IceInfrastructure acquire(
+        final NatPmpService natPmpService, final UpnpService upnpService,
+        final SocketFactory socketFactory,
+        final ServerSocketFactory serverSocketFactory,
+        final CandidateProvider<InetSocketAddress> stunServers,
+        final CandidateProvider<InetSocketAddress> turnServers) {
+        if (stunServers == null || turnServers == null) {
+            throw new NullPointerException("Need STUN and TURN servers");
+        }
+        return acquire(new Key(natPmpService, upnpService, socketFactory,
+            serverSocketFactory, true, stunServers, turnServers, null));
+    }
+
+    private static IceInfrastructure acquire(final Key key) {
+        synchronized (sharedInstances) {
+            IceInfrastructure infrastructure = sharedInstances.get(key);
+            if (infrastructure == null) {
+                log.debug("Creating new ICE infrastructure");
+                infrastructure = new IceInfrastructure(key);
+                sharedInstances.put(key, infrastructure);
+            }
+            infrastructure.references++;
+            return infrastructure;
+        }
+    }
+
+    private IceInfrastructure(final Key key) {
+        this.key = key;
+
+        // We hard-code this instead of looking it up to avoid the DNS
+        // control point.
+        final CandidateProvider<InetSocketAddress> stunServers =
+            key.stunServers != null ? key.stunServers :
+            new CandidateProvider<InetSocketAddress>() {
+
+                public Collection<InetSocketAddress> getCandidates() {
+                    return StunServerRepository.getServers();
+                }
+
+                public InetSocketAddress getCandidate() {
+                    return getCandidates().iterator().next();
+                }
+            };
+        
+        // Rank the servers in the background so each client gets a fast
+        // server and load is spread across all of them. Like the factories
+        // from LazyProxy, nothing goes out until the first session needs
+        // a server.
+        this.stunCandidateProvider = new ProbingCandidateProvider(stunServers,
+            new StunServerProbe(STUN_PROBE_TIMEOUT_MILLIS), STUN_PROBES, 
+            STUN_REFRESH_MILLIS);
+        this.stunCandidateProvider.startOnFirstUse();
+        //final CandidateProvider<InetSocketAddress> stunCandidateProvider =
+        //    new DnsSrvCandidateProvider("_stun._udp.littleshoot.org");
+        if (key.turnServers != null) {
+            this.turnCandidateProvider = key.turnServers;
+        } else if (key.useRelay) {
+            // Cache the relay lookup so relay fallback never stalls on DNS.
+            this.turnCandidateProvider = new CachingSrvCandidateProvider(
+                TURN_SRV_NAME, 
+                DnsSrvResolver.newConfiguredResolver(DNS_TIMEOUT_MILLIS),
+                new DnsSrvCandidateProvider(TURN_SRV_NAME), 
+                MAX_DNS_WAIT_MILLIS);
+        } else {
+            this.turnCandidateProvider =
+                new CandidateProvider<InetSocketAddress>() {
+                @Override
+                public Collection<InetSocketAddress> getCandidates() {
+                    return new ArrayList<InetSocketAddress>(0);
+                }
+                @Override
+                public InetSocketAddress getCandidate() {
+                    return null;
+                }
+            };
+        }
+        if (key.turnServers != null || key.useRelay) {
+            // Spread allocations across the relays we can reach fastest,
+            // and steer new ones away from relays that go down.
+            this.relayPool = new RelayPool(this.turnCandidateProvider,
+                new TcpServerProbe(key.socketFactory,
+                    RELAY_PROBE_TIMEOUT_MILLIS),
+                RELAY_PROBES, RELAY_REFRESH_MILLIS,
+                MAX_ALLOCATIONS_PER_RELAY);
+            this.relayPool.startOnFirstUse();
+        } else {
+            this.relayPool = null;
+        }
+        // Each stream binds its UDP sockets, asks the STUN server for their
+        // mappings and allocates on the relay inside the ICE library, which
+        // can't take candidates gathered ahead of time. What we can warm
+        // is warm: the offerer's TCP listeners are pooled, the STUN and
+        // TURN servers are ranked and the relay lookup is cached.
+        this.mediaStreamFactory =
+            new IceMediaStreamFactoryImpl(this.stunCandidateProvider);
+    }
+
+    /**
+     * Releases everything a client made by {@link P2P}, {@link P2PSockets}
+     * or {@link P2PEndpoints} holds: the protocol registered for it, its
+     * pooled sockets and, if the builder acquired the infrastructure for
+     * it, its reference to the infrastructure. Call this once the client
+     * itself is shut down. Releasing a client twice, or one the builders
+     * didn't make, does nothing.
+     *
+     * @param client The client.
+     * @return <code>true</code> if the client held anything.
+     */
+    public static boolean releaseClient(final Object client) {
+        final ClientResources resources;
+        synchronized (clients) {
+            resources = clients.remove(client);
+        }
+        if (resources == null) {
+            return false;
+        }
+        resources.close();
+        return true;
+    }
+
+    /**
+     * Records the protocol and other resources a new client holds, so
+     * {@link #releaseClient(Object)} can let go of them.
+     *
+     * @param client The client.
+     * @param protocolId The protocol registered for the client, or
+     * <code>null</code> if there isn't one.
+     * @param protocol The registered protocol.
+     * @param resources Anything else to close with the client.
+     */
+    static void track(final Object client, final String protocolId,
+        final Protocol protocol, final Closeable... resources) {
+        if (client == null) {
+            return;
+        }
+        synchronized (clients) {
+            ClientResources held = clients.get(client);
+            if (held == null) {
+                held = new ClientResources();
+                clients.put(client, held);
+            }
+            held.protocolId = protocolId;
+            held.protocol = protocol;
+            for (final Closeable resource : resources) {
+                held.closeables.add(resource);
+            }
+        }
+    }
+
+    /**
+     * Hands a reference to this infrastructure to a client, so it's
+     * released along with the client. Builders that acquire the
+     * infrastructure themselves call this once the client is built. With
+     * no client, or a client already holding a reference, the reference is
+     * released right away so it can't leak.
+     *
+     * @param client The client.
+     */
+    void adopt(final Object client) {
+        if (client == null) {
+            // Nothing to tie the reference to.
+            release();
+            return;
+        }
+        synchronized (clients) {
+            ClientResources held = clients.get(client);
+            if (held == null) {
+                held = new ClientResources();
+                clients.put(client, held);
+            }
+            if (held.infrastructure == null) {
+                held.infrastructure = this;
+                return;
+            }
+        }
+        // The client already holds one, and releases only that.
+        release();
+    }
+
+    /**
+     * Returns the NAT PMP service for clients built without one of their
+     * own, which doesn't map anything. Mapping ports is opt in; see
+     * {@link P2PConfig#setPortMapping(boolean)}.
+     *
+     * @return The NAT PMP service.
+     */
+    static NatPmpService defaultNatPmpService() {
+        return EMPTY_NAT_PMP_SERVICE;
+    }
+
+    /**
+     * Returns the UPnP service for clients built without one of their own,
+     * which doesn't map anything. We have no UPnP client.
+     *
+     * @return The UPnP service.
+     */
+    static UpnpService defaultUpnpService() {
+        return EMPTY_UPNP_SERVICE;
+    }
+
+    /**
+     * Returns the NAT PMP service for clients that turned port mapping on:
+     * a {@link PortMappingManager} for this host's default gateway, shared
+     * by every such client so they also share infrastructure, or a service
+     * that doesn't map anything if we can't find the gateway.
+     *
+     * @return The NAT PMP service.
+     */
+    static NatPmpService gatewayNatPmpService() {
+        final PortMappingManager manager = defaultPortMapping();
+        if (manager == null) {
+            return EMPTY_NAT_PMP_SERVICE;
+        }
+        return manager;
+    }
+
+    private static synchronized PortMappingManager defaultPortMapping() {
+        if (!defaultPortMappingTried) {
+            defaultPortMappingTried = true;
+            try {
+                defaultPortMapping = new PortMappingManager(
+                    NatPmpGateway.forDefaultGateway(GATEWAY_TIMEOUT_MILLIS),
+                    GATEWAY_LEASE_SECONDS, GATEWAY_KEEP_MILLIS);
+            } catch (final IOException e) {
+                log.info("No default gateway to map ports on", e);
+            }
+        }
+        return defaultPortMapping;
+    }
+
+    /**
+     * Releases a reference to this infrastructure. When the last reference
+     * is released it's removed from the shared registry, everything it
+     * built is closed, and the next
+     * {@link #acquire(NatPmpService, UpnpService, SocketFactory,
+     * ServerSocketFactory, boolean)} with the same configuration builds a
+     * fresh one.
+     */
+    public void release() {
+        synchronized (sharedInstances) {
+            if (this.references == 0) {
+                log.warn("ICE infrastructure already released");
+                return;
+            }
+            this.references--;
+            if (this.references == 0) {
+                log.debug("Last reference released -- removing "+
+                    "ICE infrastructure");
+                sharedInstances.remove(this.key);
+                this.stunCandidateProvider.stop();
+                if (this.relayPool != null) {
+                    this.relayPool.stop();
+                }
+                synchronized (this) {
+                    for (final MappedServerSocket server :
+                        this.answererServers.values()) {
+                        if (server instanceof NioAnswererServer) {
+                            ((NioAnswererServer) server).close();
+                        }
+                    }
+                    this.answererServers.clear();
+                    for (final TurnClientListener listener :
+                        this.turnListeners.values()) {
+                        // Don't build a feeder just to close it.
+                        if (LazyProxy.isInitialized(listener)) {
+                            listener.close();
+                        }
+                    }
+                    this.turnListeners.clear();
+                    if (this.answererRelays != null) {
+                        for (final NioRelay relay : this.answererRelays) {
+                            relay.close();
+                        }
+                        this.answererRelays = null;
+                    }
+                    // The offerer pool's listeners all come from this
+                    // factory, so shutting it down closes them and removes
+                    // their mappings.
+                    if (this.offererServerSockets != null &&
+                        this.offererServerSockets !=
+                        this.key.serverSocketFactory) {
+                        this.offererServerSockets.shutdown();
+                    }
+                }
+                // Callers own the TURN providers they pass in.
+                if (this.key.turnServers == null &&
+                    this.turnCandidateProvider instanceof 
+                    CachingSrvCandidateProvider) {
+                    ((CachingSrvCandidateProvider) 
+                        this.turnCandidateProvider).stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of outstanding references to this infrastructure.
+     *
+     * @return The number of outstanding references.
+     */
+    public int getReferenceCount() {
+        synchronized (sharedInstances) {
+            return this.references;
+        }
+    }
+
+    /**
+     * Returns the settings applied to the UDT sockets of this
+     * infrastructure's sessions.
+     *
+     * @return The profile, or <code>null</code> for UDT's defaults.
+     */
+    UdtProfile getUdtProfile() {
+        return this.key.udtProfile;
+    }
+
+    /**
+     * Returns the answerer server relaying incoming connections to the
+     * given local server, creating it on first use.
+     *
+     * @param serverAddress The address of the local server.
+     * @return The answerer server.
+     * @throws IOException If the server can't be created.
+     */
+    public synchronized MappedServerSocket getAnswererServer(
+        final InetSocketAddress serverAddress) throws IOException {
+        MappedServerSocket server = this.answererServers.get(serverAddress);
+        if (server == null) {
+            server = new NioAnswererServer(this.key.natPmpService,
+                this.key.upnpService, serverAddress, getAnswererRelays());
+            this.answererServers.put(serverAddress, server);
+        }
+        return server;
+    }
+
+    /**
+     * Returns the event loops answerer servers splice connections on,
+     * starting them on first use. All answerer servers share them and
+     * their byte budget.
+     */
+    private synchronized List<NioRelay> getAnswererRelays()
+        throws IOException {
+        if (this.answererRelays == null) {
+            final int loops = Math.max(1, Math.min(4,
+                Runtime.getRuntime().availableProcessors() / 2));
+            final DirectBufferPool pool = new DirectBufferPool(
+                ANSWERER_BUFFER_SIZE,
+                (int) (ANSWERER_BUDGET_BYTES / ANSWERER_BUFFER_SIZE));
+            final List<NioRelay> relays = new ArrayList<NioRelay>(loops);
+            for (int i = 0; i < loops; i++) {
+                // Accepted connections always have channels, so there's
+                // nothing to pump.
+                relays.add(new NioRelay(pool, ANSWERER_BUFFERS_PER_DIRECTION,
+                    this.answererBudget, null));
+            }
+            this.answererRelays = relays;
+        }
+        return this.answererRelays;
+    }
+
+    /**
+     * Creates a new offer/answer factory producing sockets over TCP, UDT or
+     * TURN using the shared components.
+     *
+     * @param answererServer The server accepting incoming connections.
+     * @return The new offer/answer factory.
+     */
+    public OfferAnswerFactory<Socket> newSocketOfferAnswerFactory(
+        final MappedServerSocket answererServer) {
+        return lazyOfferAnswerFactory(
+            new Callable<OfferAnswerFactory<Socket>>() {
+                public OfferAnswerFactory<Socket> call() {
+                    return new IceOfferAnswerFactory<Socket>(
+                        mediaStreamFactory, getUdtSocketFactory(),
+                        getRelayCandidateProvider(), answererServer,
+                        getTurnClientListener(answererServer),
+                        stunCandidateProvider, getOffererServerPool(),
+                        key.socketFactory);
+                }
+            });
+    }
+
+    /**
+     * Creates a new offer/answer factory producing {@link FiveTuple}
+     * endpoints using the shared components.
+     *
+     * @param answererServer The server accepting incoming connections.
+     * @return The new offer/answer factory.
+     */
+    public OfferAnswerFactory<FiveTuple> newEndpointOfferAnswerFactory(
+        final MappedServerSocket answererServer) {
+        return lazyOfferAnswerFactory(
+            new Callable<OfferAnswerFactory<FiveTuple>>() {
+                public OfferAnswerFactory<FiveTuple> call() {
+                    return new IceOfferAnswerFactory<FiveTuple>(
+                        mediaStreamFactory, getEndpointFactory(),
+                        getRelayCandidateProvider(), answererServer,
+                        getTurnClientListener(answererServer),
+                        stunCandidateProvider, getOffererServerPool(),
+                        key.socketFactory);
+                }
+            });
+    }
+
+    /**
+     * Wraps factory creation so the offerer server pool is bound, and the
+     * TURN feeder and transport factories are built, only when the client
+     * starts its first session.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> OfferAnswerFactory<T> lazyOfferAnswerFactory(
+        final Callable<OfferAnswerFactory<T>> factory) {
+        return LazyProxy.create(OfferAnswerFactory.class, factory);
+    }
+
+    /**
+     * Returns the TURN servers relays are allocated on, through the relay
+     * pool if there is one.
+     *
+     * @return The TURN servers.
+     */
+    CandidateProvider<InetSocketAddress> getRelayCandidateProvider() {
+        return this.relayPool != null ? this.relayPool :
+            this.turnCandidateProvider;
+    }
+
+    /**
+     * Returns the public IP address lookup shared by all clients.
+     *
+     * @return The public IP address lookup.
+     */
+    public PublicIpAddress getPublicIpAddress() {
+        return this.publicIpAddress;
+    }
+
+    /**
+     * Returns the public IP address lookup for a client, answering from the
+     * given cache when it knows our public address on this network.
+     *
+     * @param cache The client's network cache, or <code>null</code> if it
+     * doesn't have one.
+     * @return The public IP address lookup.
+     */
+    public PublicIpAddress getPublicIpAddress(final NetworkCache cache) {
+        if (cache == null) {
+            return this.publicIpAddress;
+        }
+        return new CachedPublicIpAddress(cache, this.publicIpAddress);
+    }
+
+    /**
+     * Returns the pool choosing TURN relays for new allocations. Add a
+     * {@link RelayListener} to hear when a relay goes down so sessions
+     * relayed through it can reconnect through another one.
+     *
+     * @return The relay pool, or <code>null</code> if relays aren't used.
+     */
+    public RelayPool getRelayPool() {
+        return this.relayPool;
+    }
+
+    /**
+     * Returns the budget every answerer server and TURN feeder buffers
+     * relayed data within.
+     *
+     * @return The answerer servers' byte budget.
+     */
+    public ByteBudget getAnswererBudget() {
+        return this.answererBudget;
+    }
+
+    /**
+     * Returns the ranked STUN servers this infrastructure uses.
+     *
+     * @return The STUN servers.
+     */
+    CandidateProvider<InetSocketAddress> getStunCandidateProvider() {
+        return this.stunCandidateProvider;
+    }
+
+    /**
+     * Returns the factory for creating plain TCP sockets to peers.
+     *
+     * @return The socket factory.
+     */
+    public SocketFactory getSocketFactory() {
+        return this.key.socketFactory;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized UdpSocketFactory<Socket> getUdtSocketFactory() {
+        if (this.udtSocketFactory == null) {
+            // Loading the native UDT libraries is the slowest part of
+            // startup, so wait for the first session that needs UDT.
+            this.udtSocketFactory = LazyProxy.create(UdpSocketFactory.class,
+                new Callable<UdpSocketFactory<Socket>>() {
+                    public UdpSocketFactory<Socket> call() {
+                        UdtNativeLibrary.prepare();
+                        //return new UdtSocketFactory();
+                        final UdpSocketFactory<Socket> factory =
+                            new BarchartUdtSocketFactory(key.socketFactory);
+                        if (key.udtProfile == null) {
+                            return factory;
+                        }
+                        return key.udtProfile.tune(factory);
+                    }
+                });
+        }
+        return this.udtSocketFactory;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized UdpSocketFactory<FiveTuple> getEndpointFactory() {
+        if (this.endpointFactory == null) {
+            this.endpointFactory = LazyProxy.create(UdpSocketFactory.class,
+                new Callable<UdpSocketFactory<FiveTuple>>() {
+                    public UdpSocketFactory<FiveTuple> call() {
+                        return new EndpointFactory();
+                    }
+                });
+        }
+        return this.endpointFactory;
+    }
+
+    private synchronized MappedTcpOffererServerPool getOffererServerPool() {
+        if (this.offererServerPool == null) {
+            this.offererServerPool =
+                new MappedTcpOffererServerPool(this.key.natPmpService,
+                    this.key.upnpService, getOffererServerSockets());
+        }
+        return this.offererServerPool;
+    }
+
+    /**
+     * Returns the pool of listeners behind the TCP candidates of offers,
+     * for its hit, miss and wait statistics. Callers wanting other sizes
+     * pass their own {@link PooledServerSocketFactory} as the server socket
+     * factory, and it's used as is.
+     *
+     * @return The listener pool.
+     */
+    public synchronized PooledServerSocketFactory getOffererServerSockets() {
+        if (this.offererServerSockets == null) {
+            if (this.key.serverSocketFactory instanceof
+                PooledServerSocketFactory) {
+                this.offererServerSockets =
+                    (PooledServerSocketFactory) this.key.serverSocketFactory;
+            } else {
+                // Pre-mapping only helps when the offerer pool maps through
+                // the same manager and so finds the mapping already made.
+                this.offererServerSockets = new PooledServerSocketFactory(
+                    this.key.serverSocketFactory,
+                    this.key.natPmpService instanceof PortMappingManager ?
+                        this.key.natPmpService : null,
+                    MIN_IDLE_LISTENERS, MAX_LISTENERS, LISTENER_IDLE_MILLIS,
+                    LISTENER_WAIT_MILLIS);
+            }
+        }
+        return this.offererServerSockets;
+    }
+
+    private synchronized TurnClientListener getTurnClientListener(
+        final MappedServerSocket answererServer) {
+        final InetSocketAddress hostAddress = answererServer.getHostAddress();
+        TurnClientListener listener = this.turnListeners.get(hostAddress);
+        if (listener == null) {
+            listener = LazyProxy.create(TurnClientListener.class,
+                new Callable<TurnClientListener>() {
+                    public TurnClientListener call() throws IOException {
+                        // Relayed peers share the answerer servers' relays
+                        // and byte budget with the peers they accept.
+                        return new TurnDataFeeder(hostAddress,
+                            getAnswererRelays());
+                    }
+                });
+            this.turnListeners.put(hostAddress, listener);
+        }
+        if (this.relayPool != null) {
+            // This is only called as a client's first session builds its
+            // ICE factory, so it's when the relays start to matter.
+            this.relayPool.start();
+
+            // Tell the pool how many peers each relay carries.
+            return RelaySessionTracker.wrap(listener, this.relayPool);
+        }
+        return listener;
+    }
+
+    /**
+     * The protocol, sockets and infrastructure references held by one
+     * client.
+     */
+    private static final class ClientResources {
+
+        private final List<Closeable> closeables = new ArrayList<Closeable>();
+        private IceInfrastructure infrastructure;
+        private String protocolId;
+        private Protocol protocol;
+
+        private void close() {
+            if (this.protocolId != null) {
+                unregister();
+            }
+            for (final Closeable closeable : this.closeables) {
+                try {
+                    closeable.close();
+                } catch (final IOException e) {
+                    log.debug("Error closing client resource", e);
+                }
+            }
+            if (this.infrastructure != null) {
+                this.infrastructure.release();
+            }
+        }
+
+        private void unregister() {
+            try {
+                // Leave it alone if a newer client registered its own.
+                if (Protocol.getProtocol(this.protocolId) == this.protocol) {
+                    Protocol.unregisterProtocol(this.protocolId);
+                }
+            } catch (final IllegalStateException e) {
+                log.debug("Protocol already unregistered", e);
+            }
+        }
+    }
+
+    /**
+     * The configuration identifying a shared infrastructure. Services and
+     * factories are compared by identity.
+     */
+    private static final class Key {
+
+        private final NatPmpService natPmpService;
+        private final UpnpService upnpService;
+        private final SocketFactory socketFactory;
+        private final ServerSocketFactory serverSocketFactory;
+        private final boolean useRelay;
+        private final CandidateProvider<InetSocketAddress> stunServers;
+        private final CandidateProvider<InetSocketAddress> turnServers;
+        private final UdtProfile udtProfile;
+
+        private Key(final NatPmpService natPmpService,
+            final UpnpService upnpService, final SocketFactory socketFactory,
+            final ServerSocketFactory serverSocketFactory,
+            final boolean useRelay,
+            final CandidateProvider<InetSocketAddress> stunServers,
+            final CandidateProvider<InetSocketAddress> turnServers,
+            final UdtProfile udtProfile) {
+            this.natPmpService = natPmpService;
+            this.upnpService = upnpService;
+            this.socketFactory = socketFactory;
+            this.serverSocketFactory = serverSocketFactory;
+            this.useRelay = useRelay;
+            this.stunServers = stunServers;
+            this.turnServers = turnServers;
+            this.udtProfile = udtProfile;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 + System.identityHashCode(natPmpService);
+            result = 31 * result + System.identityHashCode(upnpService);
+            result = 31 * result + System.identityHashCode(socketFactory);
+            result = 31 * result +
+                System.identityHashCode(serverSocketFactory);
+            result = 31 * result + (useRelay ? 1231 : 1237);
+            result = 31 * result + System.identityHashCode(stunServers);
+            result = 31 * result + System.identityHashCode(turnServers);
+            result = 31 * result + System.identityHashCode(udtProfile);
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return natPmpService == other.natPmpService &&
+                upnpService == other.upnpService &&
+                socketFactory == other.socketFactory &&
+                serverSocketFactory == other.serverSocketFactory &&
+                useRelay == other.useRelay &&
+                stunServers == other.stunServers &&
+                turnServers == other.turnServers &&
+                udtProfile == other.udtProfile;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.littleshoot.p2p;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates implementations of an interface that build the real object the
+ * first time one of its methods is called. This keeps expensive transport
+ * setup, like loading native libraries or binding server sockets, off the
+ * startup path until a session actually needs it.
+ *
+ * @param <T> The interface type.
+ */
+final class LazyProxy<T> implements InvocationHandler {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log = LoggerFactory.getLogger(LazyProxy.class);
+
+    private final Class<T> type;
+
+    private final Callable<? extends T> factory;
+
+    private volatile T target;
+
+    /**
+     * Creates a new lazy implementation of the given interface.
+     *
+     * @param type The interface.
+     * @param factory Builds the real object. If it fails, the error goes to
+     * the caller of the method that triggered it and the next call tries
+     * again.
+     * @return The lazy implementation.
+     */
+    static <T> T create(final Class<T> type,
+        final Callable<? extends T> factory) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+            new Class<?>[] {type}, new LazyProxy<T>(type, factory)));
+    }
+
+    /**
+     * Returns whether the real object behind a proxy made by
+     * {@link #create(Class, Callable)} has been built yet, so callers can
+     * close it without building it just to close it.
+     *
+     * @param proxy The proxy.
+     * @return <code>true</code> if the real object exists.
+     */
+    static boolean isInitialized(final Object proxy) {
+        final InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+        return handler instanceof LazyProxy &&
+            ((LazyProxy<?>) handler).target != null;
+    }
+
+    private LazyProxy(final Class<T> type,
+        final Callable<? extends T> factory) {
+        this.type = type;
+        this.factory = factory;
+    }
+
+    public Object invoke(final Object proxy, final Method method,
+        final Object[] args) throws Throwable {
+        // Don't build the target just to print or compare the proxy.
+        if (method.getDeclaringClass() == Object.class) {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                final T current = this.target;
+                return current == null ?
+                    "Lazy " + this.type.getSimpleName() : current.toString();
+            }
+        }
+        try {
+            return method.invoke(target(method), args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private T target(final Method method) throws Throwable {
+        T current = this.target;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.target == null) {
+                log.debug("Initializing {} on first call to {}",
+                    this.type.getSimpleName(), method.getName());
+                try {
+                    this.target = this.factory.call();
+                } catch (final Exception e) {
+                    throw declaredOrUnchecked(method, e);
+                }
+            }
+            return this.target;
+        }
+    }
+
+    private static Throwable declaredOrUnchecked(final Method method,
+        final Exception e) {
+        if (e instanceof RuntimeException) {
+            return e;
+        }
+        for (final Class<?> declared : method.getExceptionTypes()) {
+            if (declared.isInstance(e)) {
+                return e;
+            }
+        }
+        return new IllegalStateException("Could not initialize", e);
+    }
+}
@@ -0,0 +1,120 @@
+package org.littleshoot.p2p;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Socket that counts the bytes read and written through it and reports
+ * them to {@link P2PMetrics} when it's closed, under the transport it was
+ * made with. The {@link RacingConnector} wraps the sockets it connects in
+ * these.
+ */
+class MeteredSocket extends DelegatingSocket {
+
+    private final Transport transport;
+
+    private final P2PMetrics metrics;
+
+    private final long opened = System.nanoTime();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicBoolean reported = new AtomicBoolean(false);
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    MeteredSocket(final Socket socket, final Transport transport,
+        final P2PMetrics metrics) throws IOException {
+        super(socket);
+        this.transport = transport;
+        this.metrics = metrics;
+        this.in = new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    bytesRead.incrementAndGet();
+                }
+                return b;
+            }
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+            @Override
+            public void close() throws IOException {
+                MeteredSocket.this.close();
+            }
+        };
+        this.out = new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                bytesWritten.incrementAndGet();
+            }
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+                out.write(b, off, len);
+                bytesWritten.addAndGet(len);
+            }
+            @Override
+            public void close() throws IOException {
+                MeteredSocket.this.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the transport the socket was made with.
+     *
+     * @return The transport.
+     */
+    Transport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.socket.close();
+        } finally {
+            if (this.reported.compareAndSet(false, true)) {
+                this.metrics.bytesTransferred(this.transport,
+                    this.bytesRead.get(), this.bytesWritten.get(),
+                    System.nanoTime() - this.opened);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MeteredSocket [transport=" + transport + ", socket=" +
+            socket + "]";
+    }
+}
@@ -0,0 +1,117 @@
+package org.littleshoot.p2p;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.lastbamboo.common.p2p.P2PClient;
+import org.littleshoot.util.SessionSocketListener;
+
+/**
+ * Session socket listener that multiplexes every incoming socket, so a
+ * single socket established with a peer can carry any number of
+ * concurrent logical streams without another round of ICE. Build a client
+ * with {@link P2PEndpoints#newMultiplexingXmppP2PClient}, or pass this as
+ * the call socket listener to any of the builders, and open streams from
+ * the other side with {@link #connect(P2PClient, URI)}.
+ */
+public class MultiplexingSessionSocketListener 
+    implements SessionSocketListener, Closeable {
+
+    private final MuxStreamListener streamListener;
+    
+    private final Executor executor;
+    
+    private final Map<String, SocketMultiplexer> multiplexers = 
+        new ConcurrentHashMap<String, SocketMultiplexer>();
+
+    /**
+     * Creates a new listener.
+     * 
+     * @param streamListener The listener for streams peers open.
+     * @param executor The executor for reading frames and dispatching 
+     * streams.
+     */
+    public MultiplexingSessionSocketListener(
+        final MuxStreamListener streamListener, final Executor executor) {
+        this.streamListener = streamListener;
+        this.executor = executor;
+    }
+
+    public void onSocket(final String id, final Socket sock) 
+        throws IOException {
+        final SocketMultiplexer multiplexer = 
+            new SocketMultiplexer(sock, false, this.streamListener, 
+                this.executor);
+        final SocketMultiplexer old = this.multiplexers.put(id, multiplexer);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Returns the multiplexer for the given peer, opening a P2P socket to
+     * it with the given client if there isn't an open one. We're the
+     * initiator on sockets we open, so streams on them don't collide with
+     * streams the peer opens.
+     *
+     * @param client The client to open the socket with.
+     * @param uri The URI of the peer.
+     * @return The multiplexer.
+     * @throws IOException If the socket can't be opened.
+     */
+    public synchronized SocketMultiplexer connect(
+        final P2PClient<Socket> client, final URI uri) throws IOException {
+        final SocketMultiplexer existing = getMultiplexer(uri.toString());
+        if (existing != null) {
+            return existing;
+        }
+        final SocketMultiplexer multiplexer = SocketMultiplexer.connect(
+            client, uri, this.streamListener, this.executor);
+        this.multiplexers.put(uri.toString(), multiplexer);
+        return multiplexer;
+    }
+
+    /**
+     * Closes every multiplexer and the sockets under them.
+     */
+    public void close() {
+        for (final SocketMultiplexer multiplexer :
+            this.multiplexers.values()) {
+            multiplexer.close();
+        }
+        this.multiplexers.clear();
+    }
+
+    /**
+     * Returns the multiplexer for the session with the given ID, which 
+     * also lets us open streams back to the peer.
+     * 
+     * @param id The session ID.
+     * @return The multiplexer, or <code>null</code> if there's no open 
+     * session with that ID.
+     */
+    public SocketMultiplexer getMultiplexer(final String id) {
+        final SocketMultiplexer multiplexer = this.multiplexers.get(id);
+        if (multiplexer != null && multiplexer.isClosed()) {
+            this.multiplexers.remove(id);
+            return null;
+        }
+        return multiplexer;
+    }
+
+    public void reconnected() {
+        // P2P sockets are independent of the signaling connection, so we 
+        // keep live ones and just drop the dead ones.
+        for (final Map.Entry<String, SocketMultiplexer> entry : 
+            this.multiplexers.entrySet()) {
+            if (entry.getValue().isClosed()) {
+                this.multiplexers.remove(entry.getKey());
+            }
+        }
+    }
+}
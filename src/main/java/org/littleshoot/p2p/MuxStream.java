@@ -0,0 +1,286 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * A single logical stream carried by a {@link SocketMultiplexer}. Reads
+ * block until the peer sends data, and writes block while the peer's
+ * receive window for this stream is full.
+ */
+public class MuxStream {
+
+    private final SocketMultiplexer multiplexer;
+
+    private final int id;
+
+    private final LinkedList<byte[]> received = new LinkedList<byte[]>();
+
+    private int receivedOffset = 0;
+
+    private int buffered = 0;
+
+    private int consumed = 0;
+
+    private int sendWindow = SocketMultiplexer.INITIAL_WINDOW;
+
+    private boolean remoteFinished = false;
+
+    private boolean localFinished = false;
+
+    private boolean reset = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            return readData(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MuxStream.this) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            MuxStream.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+            writeData(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            shutdownOutput();
+        }
+    };
+
+    MuxStream(final SocketMultiplexer multiplexer, final int id) {
+        this.multiplexer = multiplexer;
+        this.id = id;
+    }
+
+    /**
+     * Returns the ID of this stream, unique within its multiplexer.
+     *
+     * @return The stream ID.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the stream for reading data from the peer.
+     *
+     * @return The input stream.
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Returns the stream for writing data to the peer. Closing it tells the
+     * peer we won't write anything else, like
+     * {@link java.net.Socket#shutdownOutput()}.
+     *
+     * @return The output stream.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Tells the peer we won't write anything else on this stream. We can
+     * still read until the peer does the same.
+     *
+     * @throws IOException If the frame can't be sent.
+     */
+    public void shutdownOutput() throws IOException {
+        final boolean done;
+        synchronized (this) {
+            if (this.localFinished || this.reset) {
+                return;
+            }
+            this.localFinished = true;
+            done = this.remoteFinished;
+        }
+        this.multiplexer.writeFrame(this.id, SocketMultiplexer.FIN, null, 0,
+            0);
+        if (done) {
+            this.multiplexer.removeStream(this.id);
+        }
+    }
+
+    /**
+     * Closes the stream. If both sides have finished writing this is a
+     * clean close, and otherwise the stream is reset so the peer stops
+     * sending.
+     */
+    public void close() {
+        final boolean clean;
+        synchronized (this) {
+            if (this.reset) {
+                return;
+            }
+            clean = this.remoteFinished;
+            if (!clean) {
+                this.reset = true;
+                notifyAll();
+            }
+        }
+        try {
+            if (clean) {
+                shutdownOutput();
+            } else {
+                this.multiplexer.writeFrame(this.id, SocketMultiplexer.RESET,
+                    null, 0, 0);
+                this.multiplexer.removeStream(this.id);
+            }
+        } catch (final IOException e) {
+            // The multiplexer is closed, which closes the stream anyway.
+        }
+    }
+
+    private int readData(final byte[] b, final int off, final int len)
+        throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final int credit;
+        final int read;
+        synchronized (this) {
+            while (this.received.isEmpty() && !this.remoteFinished &&
+                !this.reset) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading");
+                }
+            }
+            if (this.received.isEmpty()) {
+                if (this.reset) {
+                    throw new IOException("Stream reset");
+                }
+                return -1;
+            }
+            final byte[] chunk = this.received.getFirst();
+            read = Math.min(len, chunk.length - this.receivedOffset);
+            System.arraycopy(chunk, this.receivedOffset, b, off, read);
+            this.receivedOffset += read;
+            if (this.receivedOffset == chunk.length) {
+                this.received.removeFirst();
+                this.receivedOffset = 0;
+            }
+            this.buffered -= read;
+            this.consumed += read;
+
+            // Batch window updates so we don't send one per read.
+            if (this.consumed >= SocketMultiplexer.INITIAL_WINDOW / 2 &&
+                !this.remoteFinished) {
+                credit = this.consumed;
+                this.consumed = 0;
+            } else {
+                credit = 0;
+            }
+        }
+        if (credit > 0) {
+            this.multiplexer.sendWindowUpdate(this.id, credit);
+        }
+        return read;
+    }
+
+    private void writeData(final byte[] b, int off, int len)
+        throws IOException {
+        while (len > 0) {
+            final int n;
+            synchronized (this) {
+                while (this.sendWindow == 0 && !this.reset) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while writing");
+                    }
+                }
+                if (this.reset) {
+                    throw new IOException("Stream reset");
+                }
+                if (this.localFinished) {
+                    throw new IOException("Stream output shut down");
+                }
+                n = Math.min(len, Math.min(this.sendWindow,
+                    SocketMultiplexer.MAX_FRAME));
+                this.sendWindow -= n;
+            }
+            this.multiplexer.writeFrame(this.id, SocketMultiplexer.DATA, b,
+                off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    synchronized void onData(final byte[] data) throws IOException {
+        if (this.reset) {
+            // We reset the stream and the peer hasn't heard yet.
+            return;
+        }
+        if (this.buffered + data.length > SocketMultiplexer.INITIAL_WINDOW) {
+            throw new IOException("Peer overran window on stream "+this.id);
+        }
+        this.received.add(data);
+        this.buffered += data.length;
+        notifyAll();
+    }
+
+    void onWindowUpdate(final int credit) {
+        synchronized (this) {
+            this.sendWindow += credit;
+            notifyAll();
+        }
+    }
+
+    void onFin() {
+        final boolean done;
+        synchronized (this) {
+            this.remoteFinished = true;
+            done = this.localFinished;
+            notifyAll();
+        }
+        if (done) {
+            this.multiplexer.removeStream(this.id);
+        }
+    }
+
+    synchronized void onReset() {
+        this.reset = true;
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "MuxStream [id=" + id + "]";
+    }
+}
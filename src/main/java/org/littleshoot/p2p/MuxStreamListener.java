@@ -0,0 +1,15 @@
+package org.littleshoot.p2p;
+
+/**
+ * Listener for logical streams the remote side opens over a 
+ * {@link SocketMultiplexer}.
+ */
+public interface MuxStreamListener {
+
+    /**
+     * Called when the remote side opens a new stream.
+     * 
+     * @param stream The new stream.
+     */
+    void onStream(MuxStream stream);
+}
@@ -0,0 +1,30 @@
+package org.littleshoot.p2p;
+
+/**
+ * How a NAT maps or filters UDP traffic, in the terms of RFC 4787.
+ */
+public enum NatBehavior {
+
+    /**
+     * The same for every remote address and port. For mapping this also
+     * covers having no NAT at all. Hole punching almost always works.
+     */
+    ENDPOINT_INDEPENDENT,
+
+    /**
+     * Depends on the remote address but not the port.
+     */
+    ADDRESS_DEPENDENT,
+
+    /**
+     * Depends on the remote address and port. A NAT that maps this way is
+     * what's usually called symmetric, and direct UDP connections through
+     * it rarely work.
+     */
+    ADDRESS_AND_PORT_DEPENDENT,
+
+    /**
+     * We couldn't tell.
+     */
+    UNKNOWN;
+}
@@ -0,0 +1,225 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out our public address and how our NAT maps and filters UDP using
+ * the tests from RFC 5780. The full tests need a STUN server with a second
+ * address. With servers that don't have one we compare the mappings two
+ * different servers see instead, which tells mapping behavior apart well
+ * enough for deciding whether hole punching is worth trying, and leave
+ * filtering unknown.
+ */
+public class NatBehaviorDiscovery {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(NatBehaviorDiscovery.class);
+
+    private final CandidateProvider<InetSocketAddress> stunServers;
+
+    private final int timeoutMillis;
+
+    /**
+     * Creates a new discovery.
+     *
+     * @param stunServers The STUN servers to test against, best first.
+     * @param timeoutMillis How long to wait for each response.
+     */
+    public NatBehaviorDiscovery(
+        final CandidateProvider<InetSocketAddress> stunServers,
+        final int timeoutMillis) {
+        this.stunServers = stunServers;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the tests. This takes a few round trips to the STUN servers, and
+     * longer when packets are filtered and we have to wait out timeouts.
+     *
+     * @return The public address and NAT behavior.
+     * @throws IOException If no STUN server answered.
+     */
+    public Result discover() throws IOException {
+        final Collection<InetSocketAddress> servers =
+            this.stunServers.getCandidates();
+        if (servers == null || servers.isEmpty()) {
+            throw new IOException("No STUN servers");
+        }
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            final Iterator<InetSocketAddress> it = servers.iterator();
+            StunBinding.Result first = null;
+            while (first == null && it.hasNext()) {
+                first = StunBinding.request(socket, it.next(),
+                    this.timeoutMillis);
+            }
+            if (first == null) {
+                throw new IOException("No STUN server answered");
+            }
+            final InetSocketAddress mapped = first.getMappedAddress();
+            if (isLocal(mapped, socket)) {
+                log.debug("Not behind a NAT");
+                return new Result(mapped.getAddress(),
+                    NatBehavior.ENDPOINT_INDEPENDENT,
+                    NatBehavior.UNKNOWN);
+            }
+            final InetSocketAddress other = first.getOtherAddress();
+            if (other == null) {
+                return new Result(mapped.getAddress(),
+                    compareServers(socket, mapped, it), NatBehavior.UNKNOWN);
+            }
+            return new Result(mapped.getAddress(),
+                mapping(socket, first.getServer(), mapped, other),
+                filtering(first.getServer()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * RFC 5780 section 4.3: compare the mappings for the server's primary
+     * address, its other address and its other address and port.
+     */
+    private NatBehavior mapping(final DatagramSocket socket,
+        final InetSocketAddress server, final InetSocketAddress mapped,
+        final InetSocketAddress other) throws IOException {
+        final StunBinding.Result second = StunBinding.request(socket,
+            new InetSocketAddress(other.getAddress(), server.getPort()),
+            this.timeoutMillis);
+        if (second == null) {
+            return NatBehavior.UNKNOWN;
+        }
+        if (second.getMappedAddress().equals(mapped)) {
+            return NatBehavior.ENDPOINT_INDEPENDENT;
+        }
+        final StunBinding.Result third =
+            StunBinding.request(socket, other, this.timeoutMillis);
+        if (third == null) {
+            return NatBehavior.UNKNOWN;
+        }
+        if (third.getMappedAddress().equals(second.getMappedAddress())) {
+            return NatBehavior.ADDRESS_DEPENDENT;
+        }
+        return NatBehavior.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    /**
+     * RFC 5780 section 4.4: see which responses from other addresses and
+     * ports get through. Each test uses a fresh socket so earlier tests
+     * haven't opened the filter already.
+     */
+    private NatBehavior filtering(final InetSocketAddress server)
+        throws IOException {
+        if (changeRequest(server, true, true)) {
+            return NatBehavior.ENDPOINT_INDEPENDENT;
+        }
+        if (changeRequest(server, false, true)) {
+            return NatBehavior.ADDRESS_DEPENDENT;
+        }
+        return NatBehavior.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    private boolean changeRequest(final InetSocketAddress server,
+        final boolean changeIp, final boolean changePort)
+        throws IOException {
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            return StunBinding.request(socket, server, this.timeoutMillis,
+                changeIp, changePort) != null;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Without RFC 5780 support, all we can tell is whether two different
+     * servers see the same mapping. If they don't, we assume the worst.
+     */
+    private NatBehavior compareServers(final DatagramSocket socket,
+        final InetSocketAddress mapped,
+        final Iterator<InetSocketAddress> remaining) throws IOException {
+        while (remaining.hasNext()) {
+            final StunBinding.Result result =
+                StunBinding.request(socket, remaining.next(),
+                    this.timeoutMillis);
+            if (result == null) {
+                continue;
+            }
+            if (result.getMappedAddress().equals(mapped)) {
+                return NatBehavior.ENDPOINT_INDEPENDENT;
+            }
+            return NatBehavior.ADDRESS_AND_PORT_DEPENDENT;
+        }
+        return NatBehavior.UNKNOWN;
+    }
+
+    private static boolean isLocal(final InetSocketAddress mapped,
+        final DatagramSocket socket) {
+        if (mapped.getPort() != socket.getLocalPort()) {
+            return false;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(mapped.getAddress()) !=
+                null;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * What discovery found.
+     */
+    public static final class Result {
+
+        private final InetAddress publicAddress;
+        private final NatBehavior mapping;
+        private final NatBehavior filtering;
+
+        Result(final InetAddress publicAddress, final NatBehavior mapping,
+            final NatBehavior filtering) {
+            this.publicAddress = publicAddress;
+            this.mapping = mapping;
+            this.filtering = filtering;
+        }
+
+        /**
+         * @return Our public address.
+         */
+        public InetAddress getPublicAddress() {
+            return publicAddress;
+        }
+
+        /**
+         * @return How our NAT maps addresses.
+         */
+        public NatBehavior getMapping() {
+            return mapping;
+        }
+
+        /**
+         * @return How our NAT filters incoming packets.
+         */
+        public NatBehavior getFiltering() {
+            return filtering;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [publicAddress=" + publicAddress + ", mapping=" +
+                mapping + ", filtering=" + filtering + "]";
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.littleshoot.p2p;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps ports on a NAT-PMP gateway, as described in RFC 6886. Requests are
+ * retransmitted with the RFC's doubling backoff, starting at 250
+ * milliseconds, until the timeout passes.
+ */
+public class NatPmpGateway implements PortMappingGateway {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(NatPmpGateway.class);
+
+    /**
+     * The port gateways listen for NAT-PMP requests on.
+     */
+    public static final int PORT = 5351;
+
+    private static final byte VERSION = 0;
+
+    private static final byte EXTERNAL_ADDRESS = 0;
+
+    private static final byte MAP_UDP = 1;
+
+    private static final byte MAP_TCP = 2;
+
+    private static final int INITIAL_RETRANSMIT_MILLIS = 250;
+
+    private static final String[] RESULTS = {
+        "Success", "Unsupported version", "Not authorized",
+        "Network failure", "Out of resources", "Unsupported opcode"
+    };
+
+    private final InetSocketAddress gateway;
+
+    private final int timeoutMillis;
+
+    /**
+     * Creates a client for the default gateway of this host.
+     *
+     * @param timeoutMillis How long to wait for each answer.
+     * @return The client.
+     * @throws IOException If we can't work out the default gateway.
+     */
+    public static NatPmpGateway forDefaultGateway(final int timeoutMillis)
+        throws IOException {
+        return new NatPmpGateway(findDefaultGateway(), timeoutMillis);
+    }
+
+    /**
+     * Creates a client for the given gateway.
+     *
+     * @param gateway The gateway's address on the local network.
+     * @param timeoutMillis How long to wait for each answer.
+     */
+    public NatPmpGateway(final InetAddress gateway, final int timeoutMillis) {
+        this(new InetSocketAddress(gateway, PORT), timeoutMillis);
+    }
+
+    /**
+     * Creates a client for a gateway listening on a non-standard port, such
+     * as a fake gateway in a test.
+     *
+     * @param gateway The gateway's address.
+     * @param timeoutMillis How long to wait for each answer.
+     */
+    public NatPmpGateway(final InetSocketAddress gateway,
+        final int timeoutMillis) {
+        this.gateway = gateway;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Asks the gateway for its public address.
+     *
+     * @return The public address.
+     * @throws IOException If the gateway doesn't answer or refuses.
+     */
+    public InetAddress getExternalAddress() throws IOException {
+        final ByteBuffer response =
+            request(new byte[] {VERSION, EXTERNAL_ADDRESS}, EXTERNAL_ADDRESS);
+        final byte[] address = new byte[4];
+        response.get(address);
+        return InetAddress.getByAddress(address);
+    }
+
+    public PortMapping map(final PortMappingProtocol protocol,
+        final int internalPort, final int suggestedExternalPort,
+        final int lifetimeSeconds) throws IOException {
+        final byte op = opcode(protocol);
+        final ByteBuffer request = ByteBuffer.allocate(12);
+        request.put(VERSION).put(op).putShort((short) 0);
+        request.putShort((short) internalPort);
+        request.putShort((short) suggestedExternalPort);
+        request.putInt(lifetimeSeconds);
+        final ByteBuffer response = request(request.array(), op);
+        final int internal = response.getShort() & 0xffff;
+        final int external = response.getShort() & 0xffff;
+        final int lifetime = response.getInt();
+        if (internal != internalPort) {
+            throw new IOException("Gateway mapped the wrong port: "+internal);
+        }
+        return new PortMapping(protocol, internal, external, lifetime);
+    }
+
+    public void unmap(final PortMappingProtocol protocol,
+        final int internalPort) throws IOException {
+        // A mapping request with a lifetime of zero deletes the mapping.
+        map(protocol, internalPort, 0, 0);
+    }
+
+    private static byte opcode(final PortMappingProtocol protocol) {
+        return protocol == PortMappingProtocol.UDP ? MAP_UDP : MAP_TCP;
+    }
+
+    /**
+     * Sends a request and returns the response positioned after the
+     * common header.
+     */
+    private ByteBuffer request(final byte[] request, final byte op)
+        throws IOException {
+        final DatagramSocket sock = new DatagramSocket();
+        try {
+            final DatagramPacket out =
+                new DatagramPacket(request, request.length, this.gateway);
+            final DatagramPacket in = new DatagramPacket(new byte[16], 16);
+            final long deadline =
+                System.currentTimeMillis() + this.timeoutMillis;
+            int wait = INITIAL_RETRANSMIT_MILLIS;
+            while (true) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException(
+                        "No NAT-PMP response from "+this.gateway);
+                }
+                sock.send(out);
+                sock.setSoTimeout((int) Math.min(wait, remaining));
+                wait *= 2;
+                try {
+                    sock.receive(in);
+                } catch (final SocketTimeoutException e) {
+                    log.debug("Retransmitting NAT-PMP request");
+                    continue;
+                }
+                if (!in.getAddress().equals(this.gateway.getAddress()) ||
+                    in.getLength() < 8) {
+                    // Not from the gateway, or not NAT-PMP.
+                    continue;
+                }
+                final ByteBuffer response =
+                    ByteBuffer.wrap(in.getData(), 0, in.getLength());
+                final byte version = response.get();
+                final byte responseOp = response.get();
+                if (version != VERSION || responseOp != (byte) (op + 128)) {
+                    continue;
+                }
+                final int result = response.getShort() & 0xffff;
+                if (result != 0) {
+                    throw new IOException("NAT-PMP request refused: " +
+                        (result < RESULTS.length ? RESULTS[result] :
+                            String.valueOf(result)));
+                }
+                // Seconds since the gateway's mapping table was reset.
+                response.getInt();
+                return response;
+            }
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * Reads the default gateway from the kernel's routing table. Java has
+     * no portable way to ask, so this only works on Linux.
+     */
+    private static InetAddress findDefaultGateway() throws IOException {
+        final BufferedReader reader =
+            new BufferedReader(new FileReader("/proc/net/route"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length > 2 && "00000000".equals(fields[1])) {
+                    // The gateway is in hex, least significant byte first.
+                    final long gw = Long.parseLong(fields[2], 16);
+                    return InetAddress.getByAddress(new byte[] {
+                        (byte) gw, (byte) (gw >> 8), (byte) (gw >> 16),
+                        (byte) (gw >> 24)
+                    });
+                }
+            }
+        } catch (final NumberFormatException e) {
+            throw new IOException("Bad routing table entry", e);
+        } finally {
+            reader.close();
+        }
+        throw new IOException("No default gateway");
+    }
+}
@@ -0,0 +1,612 @@
+package org.littleshoot.p2p;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers what we've learned about the networks we've been on, so
+ * restarts and reconnections don't have to learn it again. For each
+ * network this keeps our public address, how the NAT maps and filters,
+ * and the paths that worked to each peer, and it's saved to disk as JSON.
+ * <p>
+ * Networks are told apart by a fingerprint of the local interfaces and
+ * their addresses, so moving a laptop between home and the office keeps
+ * what we know about both. Entries older than the maximum age are ignored.
+ * Share one instance per file -- instances don't coordinate.
+ */
+public class NetworkCache {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(NetworkCache.class);
+
+    private static final int MAX_NETWORKS = 8;
+
+    private static final int MAX_PEERS = 500;
+
+    private static final int MAX_PAIRS_PER_PEER = 4;
+
+    private static final long SAVE_DELAY_MILLIS = 10 * 1000;
+
+    private static final int DISCOVERY_TIMEOUT_MILLIS = 2000;
+
+    private final File file;
+
+    private final long maxAgeMillis;
+
+    private final Map<String, Network> networks =
+        new HashMap<String, Network>();
+
+    private final ScheduledExecutorService saver =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("P2P-Network-Cache"));
+
+    private String fingerprint;
+
+    private boolean saveScheduled = false;
+
+    private boolean discovering = false;
+
+    /**
+     * Creates a cache in the LittleShoot directory that keeps entries for
+     * a day.
+     *
+     * @return The new cache.
+     */
+    public static NetworkCache newDefault() {
+        return new NetworkCache(new File(CommonUtils.getLittleShootDir(),
+            "network-cache.json"), 24 * 60 * 60 * 1000L);
+    }
+
+    /**
+     * Creates a cache backed by the given file, loading whatever it holds.
+     *
+     * @param file The file to load from and save to.
+     * @param maxAgeMillis How long entries stay valid.
+     */
+    public NetworkCache(final File file, final long maxAgeMillis) {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+        load();
+        this.fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Returns the fingerprint of the network we're on.
+     *
+     * @return The fingerprint.
+     */
+    public synchronized String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Works out again which network we're on. Call this when connectivity
+     * changes, such as when the signaling connection comes back.
+     */
+    public void refreshFingerprint() {
+        final String current = computeFingerprint();
+        synchronized (this) {
+            if (!current.equals(this.fingerprint)) {
+                log.debug("Network changed");
+                this.fingerprint = current;
+            }
+        }
+    }
+
+    /**
+     * Returns what we know about the NAT on the current network.
+     *
+     * @return The public address and NAT behavior, or <code>null</code> if
+     * we haven't learned them recently on this network.
+     */
+    public synchronized NatBehaviorDiscovery.Result getProfile() {
+        final Network network = this.networks.get(this.fingerprint);
+        if (network == null || network.profile == null ||
+            isStale(network.discovered)) {
+            return null;
+        }
+        return network.profile;
+    }
+
+    /**
+     * Records what we've learned about the NAT on the current network.
+     *
+     * @param profile The public address and NAT behavior.
+     */
+    public synchronized void recordProfile(
+        final NatBehaviorDiscovery.Result profile) {
+        final Network network = currentNetwork();
+        network.profile = profile;
+        network.discovered = System.currentTimeMillis();
+        scheduleSave();
+    }
+
+    /**
+     * Learns our public address and NAT behavior in the background, unless
+     * we already know them for this network.
+     *
+     * @param stunServers The STUN servers to use.
+     * @param executor The executor to run discovery on.
+     */
+    public void discoverAsync(
+        final CandidateProvider<InetSocketAddress> stunServers,
+        final Executor executor) {
+        synchronized (this) {
+            if (this.discovering || getProfile() != null) {
+                return;
+            }
+            this.discovering = true;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    final NatBehaviorDiscovery.Result result =
+                        new NatBehaviorDiscovery(stunServers,
+                            DISCOVERY_TIMEOUT_MILLIS).discover();
+                    log.debug("Discovered {}", result);
+                    recordProfile(result);
+                } catch (final IOException e) {
+                    log.debug("Could not discover NAT behavior", e);
+                } finally {
+                    synchronized (NetworkCache.this) {
+                        discovering = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a path that worked to the given peer on the current network.
+     *
+     * @param peer The peer.
+     * @param transport The transport the connection used.
+     * @param local Our end of the connection.
+     * @param remote The peer's end of the connection.
+     */
+    public synchronized void recordSuccess(final String peer,
+        final Transport transport, final InetSocketAddress local,
+        final InetSocketAddress remote) {
+        final Network network = currentNetwork();
+        LinkedList<KnownPair> pairs = network.peers.get(peer);
+        if (pairs == null) {
+            if (network.peers.size() >= MAX_PEERS) {
+                evictOldestPeer(network);
+            }
+            pairs = new LinkedList<KnownPair>();
+            network.peers.put(peer, pairs);
+        }
+        final KnownPair pair = new KnownPair(transport, local, remote,
+            System.currentTimeMillis());
+        for (final Iterator<KnownPair> it = pairs.iterator(); it.hasNext();) {
+            if (it.next().samePath(pair)) {
+                it.remove();
+            }
+        }
+        pairs.addFirst(pair);
+        while (pairs.size() > MAX_PAIRS_PER_PEER) {
+            pairs.removeLast();
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Returns the paths that worked to the given peer on the current
+     * network, most recent first.
+     *
+     * @param peer The peer.
+     * @return The paths. This is empty if we don't know any.
+     */
+    public synchronized List<KnownPair> getKnownPairs(final String peer) {
+        final Network network = this.networks.get(this.fingerprint);
+        if (network == null) {
+            return Collections.emptyList();
+        }
+        final List<KnownPair> pairs = network.peers.get(peer);
+        if (pairs == null) {
+            return Collections.emptyList();
+        }
+        final List<KnownPair> fresh = new ArrayList<KnownPair>(pairs.size());
+        for (final KnownPair pair : pairs) {
+            if (!isStale(pair.lastSuccess)) {
+                fresh.add(pair);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Writes the cache to disk now.
+     */
+    public void save() {
+        final String json;
+        synchronized (this) {
+            this.saveScheduled = false;
+            json = toJson().toJSONString();
+        }
+        final File parent = this.file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            log.warn("Could not create directory for {}", this.file);
+            return;
+        }
+        // Write to a temporary file first so a crash never leaves us with
+        // half a cache.
+        final File temp = new File(this.file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp),
+                "UTF-8");
+            writer.write(json);
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(this.file)) {
+                // Windows won't rename over an existing file.
+                if (!this.file.delete() || !temp.renameTo(this.file)) {
+                    log.warn("Could not replace {}", this.file);
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("Could not save network cache", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (this.saveScheduled) {
+            return;
+        }
+        this.saveScheduled = true;
+        this.saver.schedule(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isStale(final long timestamp) {
+        return System.currentTimeMillis() - timestamp > this.maxAgeMillis;
+    }
+
+    private Network currentNetwork() {
+        Network network = this.networks.get(this.fingerprint);
+        if (network == null) {
+            if (this.networks.size() >= MAX_NETWORKS) {
+                evictOldestNetwork();
+            }
+            network = new Network();
+            this.networks.put(this.fingerprint, network);
+        }
+        network.lastSeen = System.currentTimeMillis();
+        return network;
+    }
+
+    private void evictOldestNetwork() {
+        String oldest = null;
+        long oldestSeen = Long.MAX_VALUE;
+        for (final Map.Entry<String, Network> entry :
+            this.networks.entrySet()) {
+            if (entry.getValue().lastSeen < oldestSeen) {
+                oldestSeen = entry.getValue().lastSeen;
+                oldest = entry.getKey();
+            }
+        }
+        this.networks.remove(oldest);
+    }
+
+    private static void evictOldestPeer(final Network network) {
+        String oldest = null;
+        long oldestSuccess = Long.MAX_VALUE;
+        for (final Map.Entry<String, LinkedList<KnownPair>> entry :
+            network.peers.entrySet()) {
+            final long last = entry.getValue().isEmpty() ? 0 :
+                entry.getValue().getFirst().lastSuccess;
+            if (last < oldestSuccess) {
+                oldestSuccess = last;
+                oldest = entry.getKey();
+            }
+        }
+        network.peers.remove(oldest);
+    }
+
+    /**
+     * Fingerprints the network from the names, hardware addresses and IP
+     * addresses of the interfaces that are up. A new DHCP lease, Wi-Fi
+     * network or VPN changes it.
+     */
+    private static String computeFingerprint() {
+        final List<String> parts = new ArrayList<String>();
+        try {
+            final Enumeration<NetworkInterface> interfaces =
+                NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                final NetworkInterface ni = interfaces.nextElement();
+                if (!ni.isUp() || ni.isLoopback()) {
+                    continue;
+                }
+                final StringBuilder sb = new StringBuilder(ni.getName());
+                final byte[] mac = ni.getHardwareAddress();
+                if (mac != null) {
+                    sb.append('|').append(hex(mac, mac.length));
+                }
+                final Enumeration<InetAddress> addresses =
+                    ni.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    final InetAddress address = addresses.nextElement();
+                    if (!address.isLinkLocalAddress()) {
+                        sb.append('|').append(address.getHostAddress());
+                    }
+                }
+                parts.add(sb.toString());
+            }
+        } catch (final SocketException e) {
+            log.debug("Could not list network interfaces", e);
+        }
+        Collections.sort(parts);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (final String part : parts) {
+                digest.update(part.getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+            return hex(digest.digest(), 8);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-1?", e);
+        } catch (final IOException e) {
+            throw new IllegalStateException("No UTF-8?", e);
+        }
+    }
+
+    private static String hex(final byte[] bytes, final int length) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format("%02x", bytes[i] & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private void load() {
+        if (!this.file.isFile()) {
+            return;
+        }
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(this.file),
+                "UTF-8");
+            final Object parsed = JSONValue.parse(reader);
+            if (parsed instanceof Map) {
+                fromJson((Map<?, ?>) parsed);
+            } else {
+                log.warn("Ignoring corrupt network cache: {}", this.file);
+            }
+        } catch (final IOException e) {
+            log.warn("Could not read network cache", e);
+        } catch (final RuntimeException e) {
+            // Bad values in a hand-edited or corrupted file.
+            log.warn("Ignoring corrupt network cache: "+this.file, e);
+            this.networks.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject toJson() {
+        final JSONObject root = new JSONObject();
+        for (final Map.Entry<String, Network> entry :
+            this.networks.entrySet()) {
+            final Network network = entry.getValue();
+            final JSONObject json = new JSONObject();
+            json.put("lastSeen", network.lastSeen);
+            if (network.profile != null) {
+                final NatBehaviorDiscovery.Result profile = network.profile;
+                json.put("publicAddress",
+                    profile.getPublicAddress().getHostAddress());
+                json.put("mapping", profile.getMapping().name());
+                json.put("filtering", profile.getFiltering().name());
+                json.put("discovered", network.discovered);
+            }
+            final JSONObject peers = new JSONObject();
+            for (final Map.Entry<String, LinkedList<KnownPair>> peer :
+                network.peers.entrySet()) {
+                final JSONArray pairs = new JSONArray();
+                for (final KnownPair pair : peer.getValue()) {
+                    pairs.add(pair.toJson());
+                }
+                peers.put(peer.getKey(), pairs);
+            }
+            json.put("peers", peers);
+            root.put(entry.getKey(), json);
+        }
+        return root;
+    }
+
+    private void fromJson(final Map<?, ?> root) throws UnknownHostException {
+        for (final Map.Entry<?, ?> entry : root.entrySet()) {
+            final Map<?, ?> json = (Map<?, ?>) entry.getValue();
+            final Network network = new Network();
+            network.lastSeen = number(json.get("lastSeen"));
+            if (json.get("publicAddress") != null) {
+                network.profile = new NatBehaviorDiscovery.Result(
+                    InetAddress.getByName((String) json.get("publicAddress")),
+                    NatBehavior.valueOf((String) json.get("mapping")),
+                    NatBehavior.valueOf((String) json.get("filtering")));
+                network.discovered = number(json.get("discovered"));
+            }
+            final Map<?, ?> peers = (Map<?, ?>) json.get("peers");
+            if (peers != null) {
+                for (final Map.Entry<?, ?> peer : peers.entrySet()) {
+                    final LinkedList<KnownPair> pairs =
+                        new LinkedList<KnownPair>();
+                    for (final Object pair : (List<?>) peer.getValue()) {
+                        pairs.add(KnownPair.fromJson((Map<?, ?>) pair));
+                    }
+                    network.peers.put((String) peer.getKey(), pairs);
+                }
+            }
+            this.networks.put((String) entry.getKey(), network);
+        }
+    }
+
+    private static long number(final Object value) {
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    /**
+     * What we know about one network. Guarded by the cache.
+     */
+    private static final class Network {
+        private long lastSeen;
+        private NatBehaviorDiscovery.Result profile;
+        private long discovered;
+        private final Map<String, LinkedList<KnownPair>> peers =
+            new HashMap<String, LinkedList<KnownPair>>();
+    }
+
+    /**
+     * A path that worked to a peer.
+     */
+    public static final class KnownPair {
+
+        private final Transport transport;
+        private final InetSocketAddress local;
+        private final InetSocketAddress remote;
+        private final long lastSuccess;
+
+        private KnownPair(final Transport transport,
+            final InetSocketAddress local, final InetSocketAddress remote,
+            final long lastSuccess) {
+            this.transport = transport;
+            this.local = local;
+            this.remote = remote;
+            this.lastSuccess = lastSuccess;
+        }
+
+        /**
+         * @return The transport the connection used.
+         */
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * @return Our end of the connection.
+         */
+        public InetSocketAddress getLocal() {
+            return local;
+        }
+
+        /**
+         * @return The peer's end of the connection.
+         */
+        public InetSocketAddress getRemote() {
+            return remote;
+        }
+
+        /**
+         * @return When the path last worked, in milliseconds since the
+         * epoch.
+         */
+        public long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        private boolean samePath(final KnownPair other) {
+            return transport == other.transport &&
+                equal(local, other.local) && equal(remote, other.remote);
+        }
+
+        private static boolean equal(final Object a, final Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @SuppressWarnings("unchecked")
+        private JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            json.put("transport", transport.name());
+            if (local != null) {
+                json.put("localHost", local.getAddress().getHostAddress());
+                json.put("localPort", local.getPort());
+            }
+            if (remote != null) {
+                json.put("remoteHost", remote.getAddress().getHostAddress());
+                json.put("remotePort", remote.getPort());
+            }
+            json.put("lastSuccess", lastSuccess);
+            return json;
+        }
+
+        private static KnownPair fromJson(final Map<?, ?> json)
+            throws UnknownHostException {
+            return new KnownPair(
+                Transport.valueOf((String) json.get("transport")),
+                address(json.get("localHost"), json.get("localPort")),
+                address(json.get("remoteHost"), json.get("remotePort")),
+                number(json.get("lastSuccess")));
+        }
+
+        private static InetSocketAddress address(final Object host,
+            final Object port) throws UnknownHostException {
+            if (host == null || port == null) {
+                return null;
+            }
+            // These are literal addresses, so there's no lookup.
+            return new InetSocketAddress(InetAddress.getByName((String) host),
+                (int) number(port));
+        }
+
+        @Override
+        public String toString() {
+            return "KnownPair [transport=" + transport + ", local=" + local +
+                ", remote=" + remote + ", lastSuccess=" + lastSuccess + "]";
+        }
+    }
+}
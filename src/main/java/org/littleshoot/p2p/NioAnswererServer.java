@@ -0,0 +1,276 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.ice.MappedServerSocket;
+import org.lastbamboo.common.portmapping.NatPmpService;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.lastbamboo.common.portmapping.UpnpService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answerer server that accepts incoming TCP connections from offerers and
+ * splices each one into a new connection to the local server, all without
+ * a thread per connection. One selector thread accepts and finishes the
+ * non-blocking connects to the local server, and the connected pairs are
+ * handed round robin to a set of {@link NioRelay} event loops. This
+ * replaces the blocking accept and forwarding threads of
+ * <code>MappedTcpAnswererServer</code>, which capped the inbound
+ * connections a node could take.
+ * <p>
+ * Like the server it replaces, it maps its port with NAT-PMP and UPnP so
+ * offerers outside the NAT can reach it.
+ */
+public class NioAnswererServer implements MappedServerSocket {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(NioAnswererServer.class);
+
+    private final InetSocketAddress serverAddress;
+
+    private final List<NioRelay> relays;
+
+    private final NatPmpService natPmpService;
+
+    private final UpnpService upnpService;
+
+    private final ServerSocketChannel acceptor;
+
+    private final Selector selector;
+
+    private final InetSocketAddress hostAddress;
+
+    private final AtomicInteger nextRelay = new AtomicInteger();
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final int natPmpIndex;
+
+    private final int upnpIndex;
+
+    private volatile int mappedPort = -1;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new server, binds it, starts mapping its port and starts
+     * accepting.
+     *
+     * @param natPmpService The NAT PMP implementation.
+     * @param upnpService The UPnP implementation.
+     * @param serverAddress The address of the local server to forward
+     * connections to.
+     * @param relays The event loops to splice connections on.
+     * @throws IOException If the server can't be bound.
+     */
+    public NioAnswererServer(final NatPmpService natPmpService,
+        final UpnpService upnpService, final InetSocketAddress serverAddress,
+        final List<NioRelay> relays) throws IOException {
+        if (relays.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one relay");
+        }
+        this.serverAddress = serverAddress;
+        this.relays = new ArrayList<NioRelay>(relays);
+        this.natPmpService = natPmpService;
+        this.upnpService = upnpService;
+        this.selector = Selector.open();
+        this.acceptor = ServerSocketChannel.open();
+        this.acceptor.socket().setReuseAddress(true);
+        this.acceptor.socket().bind(new InetSocketAddress(0));
+        this.acceptor.configureBlocking(false);
+        this.acceptor.register(this.selector, SelectionKey.OP_ACCEPT);
+        final int port = this.acceptor.socket().getLocalPort();
+        this.hostAddress =
+            new InetSocketAddress(InetAddress.getLocalHost(), port);
+        final PortMapListener mapListener = new PortMapListener() {
+            public void onPortMap(final int externalPort) {
+                log.debug("Answerer port {} mapped to {}", port,
+                    externalPort);
+                mappedPort = externalPort;
+            }
+            public void onPortMapError() {
+                log.debug("Could not map answerer port {}", port);
+            }
+        };
+        this.natPmpIndex = natPmpService.addNatPmpMapping(
+            PortMappingProtocol.TCP, port, port, mapListener);
+        this.upnpIndex = upnpService.addUpnpMapping(
+            PortMappingProtocol.TCP, port, port, mapListener);
+        new DaemonThreadFactory("P2P-Answerer-Accept").newThread(
+            new Runnable() {
+                public void run() {
+                    select();
+                }
+            }).start();
+    }
+
+    public InetSocketAddress getHostAddress() {
+        return this.hostAddress;
+    }
+
+    public boolean isPortMapped() {
+        return this.mappedPort != -1;
+    }
+
+    public int getMappedPort() {
+        return this.mappedPort;
+    }
+
+    /**
+     * Returns the number of connections accepted and spliced.
+     *
+     * @return The number of connections.
+     */
+    public long getAcceptedCount() {
+        return this.accepted.get();
+    }
+
+    /**
+     * Returns the number of accepted connections dropped because the local
+     * server couldn't be reached.
+     *
+     * @return The number of failures.
+     */
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * Stops accepting and removes the port mappings. Connections already
+     * spliced carry on in their relays.
+     */
+    public void close() {
+        this.closed = true;
+        this.selector.wakeup();
+        this.natPmpService.removeNatPmpMapping(this.natPmpIndex);
+        this.upnpService.removeUpnpMapping(this.upnpIndex);
+    }
+
+    private void select() {
+        try {
+            while (!this.closed) {
+                this.selector.select();
+                final Iterator<SelectionKey> keys =
+                    this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isConnectable()) {
+                        finishConnect(key);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("Answerer selector failed", e);
+        } catch (final ClosedSelectorException e) {
+            log.debug("Answerer selector closed");
+        } finally {
+            for (final SelectionKey key : this.selector.keys()) {
+                closeQuietly(key.channel());
+                if (key.attachment() instanceof SocketChannel) {
+                    closeQuietly((SocketChannel) key.attachment());
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (final IOException e) {
+                log.debug("Error closing selector", e);
+            }
+        }
+    }
+
+    /**
+     * Accepts everything pending and starts a non-blocking connect to the
+     * local server for each.
+     */
+    private void accept() {
+        while (true) {
+            final SocketChannel remote;
+            try {
+                remote = this.acceptor.accept();
+            } catch (final IOException e) {
+                // Usually the peer reset before we got to it.
+                log.debug("Error accepting", e);
+                return;
+            }
+            if (remote == null) {
+                return;
+            }
+            SocketChannel local = null;
+            try {
+                remote.socket().setTcpNoDelay(true);
+                local = SocketChannel.open();
+                local.configureBlocking(false);
+                if (local.connect(this.serverAddress)) {
+                    splice(remote, local);
+                } else {
+                    local.register(this.selector, SelectionKey.OP_CONNECT,
+                        remote);
+                }
+            } catch (final IOException e) {
+                log.debug("Could not connect to local server", e);
+                this.failed.incrementAndGet();
+                closeQuietly(remote);
+                if (local != null) {
+                    closeQuietly(local);
+                }
+            }
+        }
+    }
+
+    private void finishConnect(final SelectionKey key) {
+        final SocketChannel local = (SocketChannel) key.channel();
+        final SocketChannel remote = (SocketChannel) key.attachment();
+        key.cancel();
+        try {
+            local.finishConnect();
+            splice(remote, local);
+        } catch (final IOException e) {
+            log.debug("Could not connect to local server", e);
+            this.failed.incrementAndGet();
+            closeQuietly(remote);
+            closeQuietly(local);
+        }
+    }
+
+    private void splice(final SocketChannel remote, final SocketChannel local)
+        throws IOException {
+        final int index = (this.nextRelay.getAndIncrement() & 0x7fffffff) %
+            this.relays.size();
+        this.relays.get(index).relay(remote, local);
+        this.accepted.incrementAndGet();
+    }
+
+    private static void closeQuietly(final Channel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.debug("Error closing channel", e);
+        }
+    }
+}
@@ -0,0 +1,958 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards data in both directions between pairs of connections, such as
+ * a P2P socket and a connection to the local HTTP server. Pairs of socket
+ * channels are relayed on a single selector thread through pooled direct
+ * buffers, with gathering writes so everything queued for a connection
+ * goes out in one system call. Each direction holds at most a fixed number
+ * of buffers, and reading stops until the other side catches up, so a slow
+ * reader can't make us buffer without bound.
+ * <p>
+ * Every buffer also comes out of a {@link ByteBudget} that can be shared
+ * with other relays, which bounds the memory of all sessions together.
+ * When the budget runs out, connections stop reading until buffers are
+ * written out and released, so the backpressure reaches the senders.
+ * <p>
+ * Sockets without a channel, which includes every UDT and TURN socket the
+ * ICE library creates, can't be registered with a selector. Those are
+ * pumped by two threads from the executor with a heap buffer per
+ * direction, which is no cheaper than a plain copy loop; it only keeps
+ * them inside the budget. Relays made without an executor refuse them.
+ * <p>
+ * A connection can also be relayed to a {@link FeedTarget} that takes
+ * whole messages instead of a channel, which is how {@link TurnDataFeeder}
+ * passes data peers send through a TURN server to the local server. Data
+ * in both directions comes out of the same budget, and the target is told
+ * to stop offering data while its connection is behind or the budget has
+ * run out.
+ * <p>
+ * Of the builders' paths, the {@link NioAnswererServer} relays the TCP
+ * connections it accepts through this class, and they always have
+ * channels. The builders' TURN feeders share the answerer servers' relays.
+ */
+public class NioRelay {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log = LoggerFactory.getLogger(NioRelay.class);
+
+    private final DirectBufferPool pool;
+
+    private final int maxBuffersPerDirection;
+
+    private final ByteBudget budget;
+
+    private final Executor executor;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> pending =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicLong bytesRelayed = new AtomicLong();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    /**
+     * Connections that stopped reading because the budget ran out. Only
+     * touched on the selector thread.
+     */
+    private final List<Relayed> starved = new LinkedList<Relayed>();
+
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+
+    private final Runnable resumeStarved = new Runnable() {
+        public void run() {
+            resumeScheduled.set(false);
+            final List<Relayed> waiting = new ArrayList<Relayed>(starved);
+            starved.clear();
+            for (final Relayed relayed : waiting) {
+                relayed.resume();
+            }
+        }
+    };
+
+    private final Runnable budgetReleased = new Runnable() {
+        public void run() {
+            if (resumeScheduled.compareAndSet(false, true)) {
+                pending.add(resumeStarved);
+                selector.wakeup();
+            }
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    private volatile Thread selectorThread;
+
+    /**
+     * Creates a new relay and starts its selector thread.
+     *
+     * @param pool The pool of buffers to relay through.
+     * @param maxBuffersPerDirection The most buffers to hold for each
+     * direction of a connection.
+     * @param executor The executor for pumping sockets without channels,
+     * or <code>null</code> to refuse sockets without channels.
+     * @throws IOException If the selector can't be opened.
+     */
+    public NioRelay(final DirectBufferPool pool,
+        final int maxBuffersPerDirection, final Executor executor)
+        throws IOException {
+        this(pool, maxBuffersPerDirection, new ByteBudget(Long.MAX_VALUE),
+            executor);
+    }
+
+    /**
+     * Creates a new relay drawing its buffers from the given budget and
+     * starts its selector thread.
+     *
+     * @param pool The pool of buffers to relay through.
+     * @param maxBuffersPerDirection The most buffers to hold for each
+     * direction of a connection. This is the per-session budget.
+     * @param budget The budget for the buffers of all connections, which
+     * may be shared with other relays.
+     * @param executor The executor for pumping sockets without channels,
+     * or <code>null</code> to refuse sockets without channels.
+     * @throws IOException If the selector can't be opened.
+     */
+    public NioRelay(final DirectBufferPool pool,
+        final int maxBuffersPerDirection, final ByteBudget budget,
+        final Executor executor) throws IOException {
+        if (maxBuffersPerDirection < 1) {
+            throw new IllegalArgumentException("Need at least one buffer");
+        }
+        this.pool = pool;
+        this.maxBuffersPerDirection = maxBuffersPerDirection;
+        this.budget = budget;
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.budget.addReleaseListener(this.budgetReleased);
+        new DaemonThreadFactory("P2P-Relay").newThread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }).start();
+    }
+
+    /**
+     * Relays between the given socket and a new connection to the given
+     * address until either side closes.
+     *
+     * @param sock The socket, typically a P2P socket.
+     * @param address The address to relay to, typically the local HTTP
+     * server.
+     * @throws IOException If we can't connect to the address, or the
+     * socket has no channel and this relay has no executor to pump it.
+     */
+    public void relay(final Socket sock, final InetSocketAddress address)
+        throws IOException {
+        if (sock.getChannel() == null && this.executor == null) {
+            throw new IOException("No executor to pump socket without "+
+                "channel: " + sock);
+        }
+        final SocketChannel local = SocketChannel.open(address);
+        if (sock.getChannel() != null) {
+            relay(sock.getChannel(), local);
+        } else {
+            pump(sock, local);
+        }
+    }
+
+    /**
+     * Relays between two connected channels until either side closes.
+     * Each side's output is shut down once the other side's input ends,
+     * and both are closed when both directions are done.
+     *
+     * @param first One channel.
+     * @param second The other channel.
+     * @throws IOException If the channels can't be made non-blocking.
+     */
+    public void relay(final SocketChannel first, final SocketChannel second)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Relay closed");
+        }
+        first.configureBlocking(false);
+        second.configureBlocking(false);
+        this.connections.incrementAndGet();
+        this.pending.add(new Runnable() {
+            public void run() {
+                new Connection(first, second);
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    /**
+     * Connects to the given address and relays between the connection and
+     * a target that takes whole messages, until the connection closes or
+     * the feed is ended or closed. Data from the connection goes to the
+     * target in arrays of at most the pool's buffer size.
+     *
+     * @param address The address to connect to, typically the local HTTP
+     * server.
+     * @param target Where data read from the connection goes.
+     * @return The feed to offer data for the connection to.
+     * @throws IOException If we can't connect to the address.
+     */
+    public Feed feed(final InetSocketAddress address,
+        final FeedTarget target) throws IOException {
+        if (this.closed) {
+            throw new IOException("Relay closed");
+        }
+        final SocketChannel channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+        this.connections.incrementAndGet();
+        final Feed feed = new Feed(channel, target);
+        this.pending.add(new Runnable() {
+            public void run() {
+                feed.register();
+            }
+        });
+        this.selector.wakeup();
+        return feed;
+    }
+
+    /**
+     * Returns the total bytes relayed in both directions.
+     *
+     * @return The bytes relayed.
+     */
+    public long getBytesRelayed() {
+        return this.bytesRelayed.get();
+    }
+
+    /**
+     * Returns the bytes currently buffered by this relay, waiting to be
+     * written on.
+     *
+     * @return The buffered bytes.
+     */
+    public long getBufferedBytes() {
+        return this.bufferedBytes.get();
+    }
+
+    /**
+     * Returns the budget this relay draws its buffers from.
+     *
+     * @return The budget.
+     */
+    public ByteBudget getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Returns the number of connections currently being relayed.
+     *
+     * @return The number of connections.
+     */
+    public int getConnectionCount() {
+        return this.connections.get();
+    }
+
+    /**
+     * Stops the relay and closes all channel connections. Pumped sockets
+     * close when either side does.
+     */
+    public void close() {
+        this.closed = true;
+        this.budget.removeReleaseListener(this.budgetReleased);
+        this.selector.wakeup();
+    }
+
+    private void select() {
+        this.selectorThread = Thread.currentThread();
+        try {
+            while (!this.closed) {
+                this.selector.select();
+                Runnable task;
+                while ((task = this.pending.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys =
+                    this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Relayed relayed = (Relayed) key.attachment();
+                    try {
+                        relayed.selected(key);
+                    } catch (final IOException e) {
+                        log.debug("Relay connection failed", e);
+                        relayed.close();
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("Relay selector failed", e);
+        } catch (final ClosedSelectorException e) {
+            log.debug("Relay selector closed");
+        } finally {
+            for (final SelectionKey key : this.selector.keys()) {
+                ((Relayed) key.attachment()).close();
+            }
+            try {
+                this.selector.close();
+            } catch (final IOException e) {
+                log.debug("Error closing selector", e);
+            }
+        }
+    }
+
+    private void pump(final Socket sock, final SocketChannel local)
+        throws IOException {
+        final InputStream in = sock.getInputStream();
+        final OutputStream out = sock.getOutputStream();
+        final int size = this.pool.getBufferSize();
+        final AtomicInteger open = new AtomicInteger(2);
+        this.connections.incrementAndGet();
+        final Runnable done = new Runnable() {
+            public void run() {
+                if (open.decrementAndGet() == 0) {
+                    connections.decrementAndGet();
+                    closeQuietly(sock);
+                    closeQuietly(local);
+                }
+            }
+        };
+        this.executor.execute(new Runnable() {
+            public void run() {
+                if (!reserve(size)) {
+                    done.run();
+                    return;
+                }
+                final byte[] buf = new byte[size];
+                final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+                try {
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        wrapped.clear().limit(n);
+                        while (wrapped.hasRemaining()) {
+                            local.write(wrapped);
+                        }
+                        bytesRelayed.addAndGet(n);
+                    }
+                    local.socket().shutdownOutput();
+                } catch (final IOException e) {
+                    log.debug("Error relaying to local server", e);
+                    closeQuietly(sock);
+                    closeQuietly(local);
+                } finally {
+                    unreserve(size);
+                    done.run();
+                }
+            }
+        });
+        this.executor.execute(new Runnable() {
+            public void run() {
+                if (!reserve(size)) {
+                    done.run();
+                    return;
+                }
+                final ByteBuffer buf = ByteBuffer.allocate(size);
+                try {
+                    int n;
+                    while ((n = local.read(buf)) != -1) {
+                        out.write(buf.array(), 0, n);
+                        out.flush();
+                        buf.clear();
+                        bytesRelayed.addAndGet(n);
+                    }
+                    sock.shutdownOutput();
+                } catch (final IOException e) {
+                    log.debug("Error relaying to peer", e);
+                    closeQuietly(sock);
+                    closeQuietly(local);
+                } finally {
+                    unreserve(size);
+                    done.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a pump thread's buffer out of the budget, waiting for room.
+     * Each pump holds one buffer per direction for its whole life.
+     *
+     * @return <code>false</code> if we were interrupted, in which case
+     * the connection is closed.
+     */
+    private boolean reserve(final int size) {
+        try {
+            this.budget.acquire(size);
+            this.bufferedBytes.addAndGet(size);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void unreserve(final int size) {
+        this.bufferedBytes.addAndGet(-size);
+        this.budget.release(size);
+    }
+
+    private static void closeQuietly(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            log.debug("Error closing socket", e);
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.debug("Error closing channel", e);
+        }
+    }
+
+    /**
+     * Data flowing one way through a connection.
+     */
+    private static final class Direction {
+        private final SocketChannel from;
+        private final SocketChannel to;
+        private final LinkedList<ByteBuffer> queue =
+            new LinkedList<ByteBuffer>();
+        private boolean ended = false;
+        private boolean done = false;
+        private boolean starved = false;
+
+        private Direction(final SocketChannel from, final SocketChannel to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * One channel of a connection.
+     */
+    private static final class Side {
+        private final Direction inbound;
+        private final Direction outbound;
+        private SelectionKey key;
+
+        private Side(final Direction inbound, final Direction outbound) {
+            this.inbound = inbound;
+            this.outbound = outbound;
+        }
+    }
+
+    /**
+     * Something being relayed on the selector thread, attached to the
+     * selection keys of its channels.
+     */
+    private interface Relayed {
+
+        /**
+         * Reads and writes whatever one of its keys is ready for.
+         */
+        void selected(SelectionKey key) throws IOException;
+
+        /**
+         * Starts reading again after the budget freed up.
+         */
+        void resume();
+
+        void close();
+    }
+
+    /**
+     * A pair of channels being relayed. Only touched on the selector
+     * thread.
+     */
+    private final class Connection implements Relayed {
+        private final Direction forward;
+        private final Direction backward;
+        private final Side first;
+        private final Side second;
+        private boolean closed = false;
+
+        private Connection(final SocketChannel a, final SocketChannel b) {
+            this.forward = new Direction(a, b);
+            this.backward = new Direction(b, a);
+            this.first = new Side(this.forward, this.backward);
+            this.second = new Side(this.backward, this.forward);
+            try {
+                this.first.key = a.register(selector, 0, this);
+                this.second.key = b.register(selector, 0, this);
+                updateInterest();
+            } catch (final IOException e) {
+                log.debug("Could not register relay channels", e);
+                close();
+            }
+        }
+
+        public void selected(final SelectionKey key) throws IOException {
+            final Side side = key == this.first.key ? this.first : this.second;
+            if (key.isValid() && key.isReadable()) {
+                read(side.inbound);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(side.outbound);
+            }
+            updateInterest();
+        }
+
+        private void read(final Direction dir) throws IOException {
+            final int size = pool.getBufferSize();
+            while (!dir.ended && dir.queue.size() < maxBuffersPerDirection) {
+                if (!budget.tryAcquire(size)) {
+                    // Out of memory budget -- stop reading until some is
+                    // released.
+                    if (!dir.starved) {
+                        dir.starved = true;
+                        starved.add(this);
+                    }
+                    break;
+                }
+                final ByteBuffer buf = pool.acquire();
+                final int n = dir.from.read(buf);
+                if (n <= 0) {
+                    free(buf);
+                    if (n < 0) {
+                        dir.ended = true;
+                    }
+                    break;
+                }
+                buf.flip();
+                bufferedBytes.addAndGet(size);
+                dir.queue.add(buf);
+            }
+            // Try to pass it on right away -- usually the other side can
+            // take it and we never need to wait for writability.
+            flush(dir);
+        }
+
+        private void flush(final Direction dir) throws IOException {
+            if (!dir.queue.isEmpty()) {
+                final ByteBuffer[] bufs =
+                    dir.queue.toArray(new ByteBuffer[dir.queue.size()]);
+                final long n = dir.to.write(bufs);
+                bytesRelayed.addAndGet(n);
+                while (!dir.queue.isEmpty() &&
+                    !dir.queue.getFirst().hasRemaining()) {
+                    bufferedBytes.addAndGet(-pool.getBufferSize());
+                    free(dir.queue.removeFirst());
+                }
+            }
+            if (dir.ended && dir.queue.isEmpty() && !dir.done) {
+                dir.done = true;
+                dir.to.socket().shutdownOutput();
+                if (this.forward.done && this.backward.done) {
+                    close();
+                }
+            }
+        }
+
+        public void resume() {
+            this.forward.starved = false;
+            this.backward.starved = false;
+            updateInterest();
+        }
+
+        private void free(final ByteBuffer buf) {
+            pool.release(buf);
+            budget.release(pool.getBufferSize());
+        }
+
+        private void updateInterest() {
+            if (this.closed) {
+                return;
+            }
+            this.first.key.interestOps(interest(this.first));
+            this.second.key.interestOps(interest(this.second));
+        }
+
+        private int interest(final Side side) {
+            int ops = 0;
+            if (!side.inbound.ended && !side.inbound.starved &&
+                side.inbound.queue.size() < maxBuffersPerDirection) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!side.outbound.queue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            connections.decrementAndGet();
+            for (final Direction dir : new Direction[] {forward, backward}) {
+                for (final ByteBuffer buf : dir.queue) {
+                    bufferedBytes.addAndGet(-pool.getBufferSize());
+                    free(buf);
+                }
+                dir.queue.clear();
+                closeQuietly(dir.from);
+            }
+        }
+    }
+
+    /**
+     * The message side of a {@link Feed}, such as a peer relayed to us
+     * through a TURN server.
+     */
+    public interface FeedTarget {
+
+        /**
+         * Sends data read from the feed's connection.
+         *
+         * @param data The data, which the target may keep.
+         * @param sent To run once the data has been written out, which
+         * gives its bytes back to the budget. It may run on any thread.
+         */
+        void send(byte[] data, Runnable sent);
+
+        /**
+         * Called when the target should stop offering data, because more
+         * than the relay's per direction limit is waiting to be written or
+         * the budget has run out. {@link #resume()} follows.
+         */
+        void hold();
+
+        /**
+         * Called when the feed can take data again after
+         * {@link #hold()}, or when it closes while holding.
+         */
+        void resume();
+
+        /**
+         * Called once the feed's connection has closed.
+         */
+        void closed();
+    }
+
+    /**
+     * A connection relayed to a {@link FeedTarget}. Data offered to it is
+     * taken from the budget and written on the selector thread.
+     */
+    public final class Feed implements Relayed {
+
+        private final SocketChannel channel;
+
+        private final FeedTarget target;
+
+        /**
+         * Data offered that hasn't been taken from the budget yet.
+         */
+        private final Queue<byte[]> incoming =
+            new ConcurrentLinkedQueue<byte[]>();
+
+        /**
+         * Bytes offered that haven't been written to the connection.
+         */
+        private final AtomicLong unwritten = new AtomicLong();
+
+        /**
+         * Bytes sent to the target that it hasn't written out yet.
+         */
+        private final AtomicLong unsent = new AtomicLong();
+
+        private final AtomicBoolean holding = new AtomicBoolean();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final Runnable update = new Runnable() {
+            public void run() {
+                scheduled.set(false);
+                admit();
+            }
+        };
+
+        private volatile boolean ending = false;
+
+        private volatile boolean closed = false;
+
+        // Only touched on the selector thread.
+        private final LinkedList<ByteBuffer> queue =
+            new LinkedList<ByteBuffer>();
+        private SelectionKey key;
+        private boolean ended = false;
+        private boolean starved = false;
+
+        private Feed(final SocketChannel channel, final FeedTarget target) {
+            this.channel = channel;
+            this.target = target;
+        }
+
+        /**
+         * Queues data to write to the connection. Data offered while the
+         * target is held is still written, but waits outside the budget
+         * until there's room, so that's only what was already on its way.
+         *
+         * @param data The data.
+         */
+        public void offer(final byte[] data) {
+            if (this.closed) {
+                log.debug("Dropping data for closed feed");
+                return;
+            }
+            this.incoming.add(data);
+            if (this.unwritten.addAndGet(data.length) > limit()) {
+                hold();
+            }
+            schedule();
+        }
+
+        /**
+         * Closes the connection once everything offered has been written.
+         */
+        public void end() {
+            this.ending = true;
+            schedule();
+        }
+
+        /**
+         * Closes the connection, dropping anything not yet written.
+         */
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            if (Thread.currentThread() == selectorThread) {
+                closeNow();
+                return;
+            }
+            pending.add(new Runnable() {
+                public void run() {
+                    closeNow();
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Returns whether this feed relays to the given target.
+         *
+         * @param target The target.
+         * @return <code>true</code> if it's this feed's target.
+         */
+        public boolean isFor(final FeedTarget target) {
+            return this.target == target;
+        }
+
+        private long limit() {
+            return (long) maxBuffersPerDirection * pool.getBufferSize();
+        }
+
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                pending.add(this.update);
+                selector.wakeup();
+            }
+        }
+
+        private void register() {
+            try {
+                this.key = this.channel.register(selector, 0, this);
+            } catch (final IOException e) {
+                log.debug("Could not register feed channel", e);
+                closeNow();
+                return;
+            }
+            admit();
+        }
+
+        public void selected(final SelectionKey key) throws IOException {
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            updateInterest();
+        }
+
+        public void resume() {
+            this.starved = false;
+            admit();
+        }
+
+        /**
+         * Takes offered data from the budget in order, for as long as
+         * there's room, and writes what it can.
+         */
+        private void admit() {
+            if (this.closed || this.key == null) {
+                return;
+            }
+            byte[] data;
+            while (!this.starved && (data = this.incoming.peek()) != null) {
+                if (!budget.tryAcquire(data.length)) {
+                    starve();
+                    hold();
+                    break;
+                }
+                this.incoming.poll();
+                bufferedBytes.addAndGet(data.length);
+                this.queue.add(ByteBuffer.wrap(data));
+            }
+            try {
+                flush();
+                updateInterest();
+            } catch (final IOException e) {
+                log.debug("Feed connection failed", e);
+                closeNow();
+            }
+        }
+
+        private void read() throws IOException {
+            final int size = pool.getBufferSize();
+            while (!this.ended && this.unsent.get() < limit()) {
+                if (!budget.tryAcquire(size)) {
+                    starve();
+                    break;
+                }
+                final ByteBuffer buf = ByteBuffer.allocate(size);
+                final int n;
+                try {
+                    n = this.channel.read(buf);
+                } catch (final IOException e) {
+                    budget.release(size);
+                    throw e;
+                }
+                if (n <= 0) {
+                    budget.release(size);
+                    if (n < 0) {
+                        this.ended = true;
+                    }
+                    break;
+                }
+                // Keep only what we read out of the budget until it's sent.
+                budget.release(size - n);
+                bufferedBytes.addAndGet(n);
+                bytesRelayed.addAndGet(n);
+                this.unsent.addAndGet(n);
+                this.target.send(n == size ? buf.array() :
+                    Arrays.copyOf(buf.array(), n), new Runnable() {
+                        public void run() {
+                            sent(n);
+                        }
+                    });
+            }
+            if (this.ended) {
+                // The local server is done with the connection. Anything
+                // the peer sends after this goes over a new one.
+                flush();
+            }
+        }
+
+        private void sent(final int bytes) {
+            bufferedBytes.addAndGet(-bytes);
+            final long left = this.unsent.addAndGet(-bytes);
+            budget.release(bytes);
+            if (left + bytes >= limit()) {
+                // We may have stopped reading for it.
+                schedule();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!this.queue.isEmpty()) {
+                final ByteBuffer[] bufs =
+                    this.queue.toArray(new ByteBuffer[this.queue.size()]);
+                final long n = this.channel.write(bufs);
+                bytesRelayed.addAndGet(n);
+                while (!this.queue.isEmpty() &&
+                    !this.queue.getFirst().hasRemaining()) {
+                    final int length = this.queue.removeFirst().capacity();
+                    bufferedBytes.addAndGet(-length);
+                    budget.release(length);
+                    this.unwritten.addAndGet(-length);
+                }
+            }
+            if (this.unwritten.get() <= limit() && this.incoming.isEmpty() &&
+                this.holding.compareAndSet(true, false)) {
+                this.target.resume();
+            }
+            if ((this.ending || this.ended) && this.queue.isEmpty() &&
+                this.incoming.isEmpty()) {
+                closeNow();
+            }
+        }
+
+        private void hold() {
+            if (this.holding.compareAndSet(false, true)) {
+                this.target.hold();
+            }
+        }
+
+        private void starve() {
+            if (!this.starved) {
+                this.starved = true;
+                NioRelay.this.starved.add(this);
+            }
+        }
+
+        private void updateInterest() {
+            if (this.closed) {
+                return;
+            }
+            int ops = 0;
+            if (!this.ended && !this.starved && this.unsent.get() < limit()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!this.queue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            this.key.interestOps(ops);
+        }
+
+        private void closeNow() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            connections.decrementAndGet();
+            for (final ByteBuffer buf : this.queue) {
+                bufferedBytes.addAndGet(-buf.capacity());
+                budget.release(buf.capacity());
+            }
+            this.queue.clear();
+            this.incoming.clear();
+            closeQuietly(this.channel);
+            if (this.holding.compareAndSet(true, false)) {
+                this.target.resume();
+            }
+            this.target.closed();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.littleshoot.p2p;
+
+/**
+ * Metrics implementation that ignores everything. This is the default, and
+ * clients using it skip the bookkeeping metrics would otherwise need.
+ */
+public class NoopP2PMetrics implements P2PMetrics {
+
+    public void connectionAttempt(final Transport transport,
+        final long elapsedNanos, final boolean success) {
+    }
+
+    public void connectionEstablished(final Transport transport,
+        final long setupNanos) {
+    }
+
+    public void connectionFailed(final long setupNanos) {
+    }
+
+    public void bytesTransferred(final Transport transport,
+        final long bytesRead, final long bytesWritten,
+        final long durationNanos) {
+    }
+
+    public void byteBudget(final ByteBudget budget) {
+    }
+}
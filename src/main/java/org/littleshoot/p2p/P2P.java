@@ -1,10 +1,9 @@
 package org.littleshoot.p2p;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
 
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
@@ -13,19 +12,10 @@ import javax.net.ssl.SSLSocketFactory;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.commons.lang.StringUtils;
-import org.lastbamboo.common.ice.BarchartUdtSocketFactory;
-import org.lastbamboo.common.ice.IceMediaStreamFactory;
-import org.lastbamboo.common.ice.IceMediaStreamFactoryImpl;
-import org.lastbamboo.common.ice.IceOfferAnswerFactory;
 import org.lastbamboo.common.ice.MappedServerSocket;
-import org.lastbamboo.common.ice.MappedTcpAnswererServer;
-import org.lastbamboo.common.ice.MappedTcpOffererServerPool;
-import org.lastbamboo.common.ice.UdpSocketFactory;
 import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
 import org.lastbamboo.common.p2p.P2PClient;
 import org.lastbamboo.common.portmapping.NatPmpService;
-import org.lastbamboo.common.portmapping.PortMapListener;
-import org.lastbamboo.common.portmapping.PortMappingProtocol;
 import org.lastbamboo.common.portmapping.UpnpService;
 /*
 import org.lastbamboo.common.sip.bootstrap.ProxyRegistrarFactory;
@@ -50,22 +40,14 @@ import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
 import org.lastbamboo.common.sip.stack.util.UriUtils;
 import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
 */
-import org.lastbamboo.common.stun.client.PublicIpAddress;
-import org.lastbamboo.common.stun.client.StunServerRepository;
-import org.lastbamboo.common.turn.client.TurnClientListener;
-import org.lastbamboo.common.turn.http.server.ServerDataFeeder;
 import org.littleshoot.commom.xmpp.ControlXmppP2PClient;
 import org.littleshoot.commom.xmpp.DefaultXmppUriFactory;
 import org.littleshoot.commom.xmpp.XmppP2PClient;
 import org.littleshoot.commom.xmpp.XmppProtocolSocketFactory;
-import org.littleshoot.util.CandidateProvider;
-import org.littleshoot.util.CommonUtils;
-import org.littleshoot.util.DnsSrvCandidateProvider;
 import org.littleshoot.util.SessionSocketListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.barchart.udt.ResourceUDT;
 
 /**
  * Class that builds all the elements of the LittleShoot P2P platform.
@@ -77,24 +59,6 @@ public class P2P {
      */
     private final static Logger log = LoggerFactory.getLogger(P2P.class);
     
-    /**
-     * Note that in cases where we're not using a relay, this is relay just
-     * the time to wait for the P2P socket to resolve, in seconds.
-     */
-    private static final int DEFAULT_RELAY_WAIT_TIME = 30;
-    
-    static {
-        // Use Google Public DNS.
-        System.setProperty("sun.net.spi.nameservice.nameservers", 
-            "8.8.8.8,8.8.4.4");
-        
-        // We need to set the System property for Barchart UDT to extract
-        // its libraries to a place where we always have permission to write 
-        // to.
-        System.setProperty(ResourceUDT.PROPERTY_LIBRARY_EXTRACT_LOCATION, 
-            CommonUtils.getLittleShootDir().getAbsolutePath());
-    }
-    
     /**
      * Creates a new LittleShoot P2P instance with all the default settings,
      * with TCP, UDP, and TURN relay transports all turned on and using HTTP
@@ -127,8 +91,8 @@ public class P2P {
     public static P2PClient newSipP2PClient(
         final InetSocketAddress serverAddress,
         final SessionSocketListener callSocketListener) throws IOException {
-        return newSipP2PClient("shoot", emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress, callSocketListener);
+        return newSipP2PClient("shoot", defaultNatPmpService(),
+            defaultUpnpService(), serverAddress, callSocketListener);
     }
     
     /**
@@ -144,8 +108,8 @@ public class P2P {
     public static P2PClient newSipP2PClient(final String protocol,
         final InetSocketAddress serverAddress,
         final SessionSocketListener callSocketListener) throws IOException {
-        return newSipP2PClient(protocol, emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress, callSocketListener);
+        return newSipP2PClient(protocol, defaultNatPmpService(),
+            defaultUpnpService(), serverAddress, callSocketListener);
     }
     
     /**
@@ -230,8 +194,8 @@ public class P2P {
      */
     public static XmppP2PClient newXmppP2PHttpClient(
         final InetSocketAddress serverAddress) throws IOException {
-        return newXmppP2PHttpClient("shoot", emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress);
+        return newXmppP2PHttpClient("shoot", defaultNatPmpService(),
+            defaultUpnpService(), serverAddress);
     }
     
     /**
@@ -245,8 +209,8 @@ public class P2P {
      */
     public static P2PClient newXmppP2PHttpClient(final String protocol,
         final InetSocketAddress serverAddress) throws IOException {
-        return newXmppP2PHttpClient(protocol, emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress);
+        return newXmppP2PHttpClient(protocol, defaultNatPmpService(),
+            defaultUpnpService(), serverAddress);
     }
     
     public static XmppP2PClient newXmppP2PHttpClient(
@@ -325,12 +289,23 @@ public class P2P {
         final SessionSocketListener callSocketListener,
         final boolean useRelay) throws IOException {
         log.info("Creating XMPP P2P instance");
-        final MappedTcpAnswererServer answererServer =
-            new MappedTcpAnswererServer(natPmpService, upnpService, 
-                serverAddress);
-        return newXmppP2PHttpClient(protocol, natPmpService, upnpService, 
-            answererServer, socketFactory, serverSocketFactory, 
-            plainTextRelayAddress, callSocketListener, useRelay);
+        final IceInfrastructure infrastructure = IceInfrastructure.acquire(
+            natPmpService, upnpService, socketFactory, serverSocketFactory, 
+            useRelay);
+        boolean built = false;
+        try {
+            final XmppP2PClient client = newXmppP2PHttpClient(protocol,
+                infrastructure,
+                infrastructure.getAnswererServer(serverAddress),
+                plainTextRelayAddress, callSocketListener, new P2PConfig());
+            infrastructure.adopt(client);
+            built = true;
+            return client;
+        } finally {
+            if (!built) {
+                infrastructure.release();
+            }
+        }
     }
     
     /**
@@ -356,24 +331,103 @@ public class P2P {
         final SessionSocketListener callSocketListener,
         final boolean useRelay) throws IOException {
         log.info("Creating XMPP P2P instance");
-        
+        final IceInfrastructure infrastructure = IceInfrastructure.acquire(
+            natPmpService, upnpService, socketFactory, serverSocketFactory, 
+            useRelay);
+        boolean built = false;
+        try {
+            final XmppP2PClient client = newXmppP2PHttpClient(protocol,
+                infrastructure, mappedServer, plainTextRelayAddress,
+                callSocketListener, new P2PConfig());
+            infrastructure.adopt(client);
+            built = true;
+            return client;
+        } finally {
+            if (!built) {
+                infrastructure.release();
+            }
+        }
+    }
+    
+    /**
+     * Creates a new LittleShoot P2P instance using ICE infrastructure the
+     * caller has acquired and will release when it's done with the client.
+     * 
+     * @param protocol The name of the protocol that should trigger P2P 
+     * connections.
+     * @param infrastructure The shared ICE infrastructure to build on.
+     * @param mappedServer The server accepting incoming connections.
+     * @param plainTextRelayAddress The address of the local server to relay
+     * incoming data to.
+     * @param callSocketListener The listener for incoming sockets.
+     * @param config The settings for this client.
+     * @throws IOException If any of the necessary network configurations 
+     * cannot be established.
+     */
+    public static XmppP2PClient newXmppP2PHttpClient(final String protocol, 
+        final IceInfrastructure infrastructure,
+        final MappedServerSocket mappedServer,
+        final InetSocketAddress plainTextRelayAddress,
+        final SessionSocketListener callSocketListener,
+        final P2PConfig config) throws IOException {
         final OfferAnswerFactory offerAnswerFactory = 
-            newIceOfferAnswerFactory(natPmpService, upnpService,
-                mappedServer, socketFactory, serverSocketFactory, useRelay);
+            infrastructure.newSocketOfferAnswerFactory(mappedServer);
+
+        // Let the metrics watch the memory incoming data is buffered in.
+        config.getMetrics().byteBudget(infrastructure.getAnswererBudget());
+
+        if (config.getNetworkCache() != null) {
+            // Learn how our NAT behaves in the background, unless we
+            // already know from an earlier run on this network. Besides
+            // the racing connector, the client's public address lookup
+            // answers from what we learn.
+            config.getNetworkCache().discoverAsync(
+                infrastructure.getStunCandidateProvider(), 
+                config.getExecutor());
+        }
 
         // Now construct all the XMPP classes and link them to HTTP client.
-        final XmppP2PClient client = 
+        // Sockets from the client, and from the socket factory for our
+        // protocol, race a direct connection against the relayed one.
+        final XmppP2PClient client = RacingConnector.newRacingClient(
+            XmppP2PClient.class,
             ControlXmppP2PClient.newGoogleTalkDirectClient(offerAnswerFactory,
-                plainTextRelayAddress, callSocketListener, 
-                DEFAULT_RELAY_WAIT_TIME, new PublicIpAddress(), 
-                socketFactory);
+                plainTextRelayAddress, 
+                config.sessionListener(callSocketListener), 
+                config.getRelayDeadline().getRelayWaitSeconds(),
+                infrastructure.getPublicIpAddress(config.getNetworkCache()),
+                infrastructure.getSocketFactory()), config,
+            infrastructure.getRelayCandidateProvider());
         
         if (StringUtils.isNotBlank(protocol)) {
-            final ProtocolSocketFactory sf = 
+            // The racing client already meters the sockets it makes.
+            final ProtocolSocketFactory xmppFactory =
                 new XmppProtocolSocketFactory(client, 
                     new DefaultXmppUriFactory());
+            final ProtocolSocketFactory sf;
+            if (config.getMaxSocketsPerPeer() > 0) {
+                // Keep traversed sockets around for repeat requests.
+                final PooledProtocolSocketFactory pooled =
+                    new PooledProtocolSocketFactory(xmppFactory,
+                        config.getMaxSocketsPerPeer(),
+                        config.getSocketIdleTimeoutMillis(),
+                        config.getExecutor());
+                if (infrastructure.getRelayPool() != null) {
+                    // Don't hand out sockets through relays that died.
+                    pooled.watch(infrastructure.getRelayPool());
+                }
+                sf = pooled;
+            } else {
+                sf = xmppFactory;
+            }
             final Protocol sipProtocol = new Protocol(protocol, sf, 80);
             Protocol.registerProtocol(protocol, sipProtocol);
+            if (sf instanceof Closeable) {
+                IceInfrastructure.track(client, protocol, sipProtocol,
+                    (Closeable) sf);
+            } else {
+                IceInfrastructure.track(client, protocol, sipProtocol);
+            }
         }
         return client;
     }
@@ -403,106 +457,57 @@ public class P2P {
         final String serviceName) throws IOException {
         log.info("Creating XMPP P2P instance");
         
-        final MappedTcpAnswererServer mappedServer =
-            new MappedTcpAnswererServer(natPmpService, upnpService, 
-                serverAddress);
-        final OfferAnswerFactory offerAnswerFactory = 
-            newIceOfferAnswerFactory(natPmpService, upnpService,
-                mappedServer, socketFactory, serverSocketFactory, useRelay);
+        final IceInfrastructure infrastructure = IceInfrastructure.acquire(
+            natPmpService, upnpService, socketFactory, serverSocketFactory, 
+            useRelay);
+        boolean built = false;
+        try {
+            final MappedServerSocket mappedServer =
+                infrastructure.getAnswererServer(serverAddress);
+            final OfferAnswerFactory offerAnswerFactory =
+                infrastructure.newSocketOfferAnswerFactory(mappedServer);
+            final P2PConfig config = new P2PConfig();
 
-        // Now construct all the XMPP classes and link them to HTTP client.
-        final XmppP2PClient client = 
-            ControlXmppP2PClient.newClient(offerAnswerFactory,
-                plainTextRelayAddress, callSocketListener, 
-                DEFAULT_RELAY_WAIT_TIME, new PublicIpAddress(), 
-                socketFactory, host, port, serviceName);
-        
-        if (StringUtils.isNotBlank(protocol)) {
-            final ProtocolSocketFactory sf = 
-                new XmppProtocolSocketFactory(client, 
-                    new DefaultXmppUriFactory());
-            final Protocol sipProtocol = new Protocol(protocol, sf, 80);
-            Protocol.registerProtocol(protocol, sipProtocol);
-        }
-        return client;
-    }
-    
-    private static OfferAnswerFactory newIceOfferAnswerFactory(
-        final NatPmpService natPmpService, final UpnpService upnpService, 
-        final InetSocketAddress serverAddress, 
-        final SocketFactory socketFactory, 
-        final ServerSocketFactory serverSocketFactory,
-        final boolean useRelay) throws IOException {
-        
-        final MappedServerSocket answererServer =
-            new MappedTcpAnswererServer(natPmpService, upnpService, 
-                serverAddress);
-        
-        return newIceOfferAnswerFactory(natPmpService, upnpService, 
-            answererServer, socketFactory, serverSocketFactory, useRelay);
-    }
-
-    private static OfferAnswerFactory newIceOfferAnswerFactory(
-        final NatPmpService natPmpService, final UpnpService upnpService, 
-        final MappedServerSocket answererServer, 
-        final SocketFactory socketFactory, 
-        final ServerSocketFactory serverSocketFactory,
-        final boolean useRelay) {
-        
-        // We hard-code this instead of looking it up to avoid the DNS
-        // control point.
-        final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-            new CandidateProvider<InetSocketAddress>() {
-
-                public Collection<InetSocketAddress> getCandidates() {
-                    return StunServerRepository.getServers();
-                }
+            // Now construct all the XMPP classes and link them to HTTP client.
+            final XmppP2PClient client = RacingConnector.newRacingClient(
+                XmppP2PClient.class,
+                ControlXmppP2PClient.newClient(offerAnswerFactory,
+                    plainTextRelayAddress, callSocketListener,
+                    config.getRelayDeadline().getRelayWaitSeconds(),
+                    infrastructure.getPublicIpAddress(),
+                    socketFactory, host, port, serviceName), config,
+                infrastructure.getRelayCandidateProvider());
 
-                public InetSocketAddress getCandidate() {
-                    return getCandidates().iterator().next();
-                }
-            };
-        //final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-        //    new DnsSrvCandidateProvider("_stun._udp.littleshoot.org");
-        final CandidateProvider<InetSocketAddress> turnCandidateProvider;
-        if (useRelay) {
-            turnCandidateProvider =
-                new DnsSrvCandidateProvider("_turn._tcp.littleshoot.org");
-        } else {
-            turnCandidateProvider = new CandidateProvider<InetSocketAddress>() {
-                @Override
-                public Collection<InetSocketAddress> getCandidates() {
-                    return new ArrayList<InetSocketAddress>(0);
-                }
-                @Override
-                public InetSocketAddress getCandidate() {
-                    return null;
-                }
-            };
+            if (StringUtils.isNotBlank(protocol)) {
+                final ProtocolSocketFactory sf =
+                    new XmppProtocolSocketFactory(client,
+                        new DefaultXmppUriFactory());
+                final Protocol sipProtocol = new Protocol(protocol, sf, 80);
+                Protocol.registerProtocol(protocol, sipProtocol);
+                IceInfrastructure.track(client, protocol, sipProtocol);
+            }
+            infrastructure.adopt(client);
+            built = true;
+            return client;
+        } finally {
+            if (!built) {
+                infrastructure.release();
+            }
         }
-    
-        final IceMediaStreamFactory mediaStreamFactory = 
-            new IceMediaStreamFactoryImpl(stunCandidateProvider);
-        //final UdpSocketFactory udpSocketFactory = new UdtSocketFactory();
-        final UdpSocketFactory udpSocketFactory = 
-            new BarchartUdtSocketFactory(socketFactory);
-        
-        //final MappedTcpAnswererServer answererServer =
-          //  new MappedTcpAnswererServer(natPmpService, upnpService, 
-            //    serverAddress);
-        
-        final MappedTcpOffererServerPool offererServer =
-            new MappedTcpOffererServerPool(natPmpService, upnpService,
-                serverSocketFactory);
-
-        final TurnClientListener clientListener =
-            new ServerDataFeeder(answererServer.getHostAddress());
-        
-        return new IceOfferAnswerFactory(mediaStreamFactory, udpSocketFactory, 
-            turnCandidateProvider, answererServer, clientListener, 
-            stunCandidateProvider, offererServer, socketFactory);
     }
 
+    /**
+     * Releases everything a client made by this class holds, including its
+     * share of the ICE infrastructure and the protocol registered for it.
+     * Call this once the client is shut down.
+     *
+     * @param client The client.
+     * @see IceInfrastructure#releaseClient(Object)
+     */
+    public static void release(final P2PClient client) {
+        IceInfrastructure.releaseClient(client);
+    }
+    
     /*
     private static SipClientLauncher newSipClientLauncher(
         final SipClientTracker sipClientTracker, 
@@ -555,42 +560,11 @@ public class P2P {
     }
     */
     
-    private static NatPmpService emptyNatPmpService() {
-        return new NatPmpService() {
-
-            public void removeNatPmpMapping(final int mappingIndex) {
-            }
-
-            public int addNatPmpMapping(final PortMappingProtocol protocol,
-                    final int localPort, final int externalPortRequested,
-                    final PortMapListener portMapListener) {
-                return 0;
-            }
-
-            @Override
-            public void shutdown() {
-                
-            }
-        };
+    private static NatPmpService defaultNatPmpService() {
+        return IceInfrastructure.defaultNatPmpService();
     }
 
-    private static UpnpService emptyUpnpService() {
-        return new UpnpService() {
-
-            public void removeUpnpMapping(final int mappingIndex) {
-            }
-
-            public int addUpnpMapping(final PortMappingProtocol protocol,
-                    final int localPort, final int externalPortRequested,
-                    final PortMapListener portMapListener) {
-                return 0;
-            }
-
-            @Override
-            public void shutdown() {
-                // TODO Auto-generated method stub
-                
-            }
-        };
+    private static UpnpService defaultUpnpService() {
+        return IceInfrastructure.defaultUpnpService();
     }
 }
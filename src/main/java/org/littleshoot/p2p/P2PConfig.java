@@ -0,0 +1,400 @@
+package org.littleshoot.p2p;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.util.SessionSocketListener;
+
+/**
+ * Per-client settings for the clients created by {@link P2P}, 
+ * {@link P2PSockets} and {@link P2PEndpoints}. The defaults match the
+ * behavior of the builder methods that don't take a configuration.
+ */
+public class P2PConfig {
+
+    /**
+     * Shared executor for clients that don't supply their own.
+     */
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * Shared session executor for clients that use virtual threads.
+     */
+    private static ExecutorService virtualExecutor;
+
+    private RelayDeadline relayDeadline = new RelayDeadline();
+
+    private ExecutorService executor;
+
+    private ExecutorService sessionExecutor;
+
+    private boolean virtualSessions = false;
+
+    private int maxSocketsPerPeer = 0;
+
+    private long socketIdleTimeoutMillis = 60 * 1000;
+
+    private P2PMetrics metrics = new NoopP2PMetrics();
+
+    private NetworkCache networkCache;
+
+    private boolean eagerRelay = false;
+
+    private boolean portMapping = false;
+
+    private UdtProfile udtProfile;
+
+    private ConnectionRace.Closer<Object> closer =
+        ConnectionRace.DEFAULT_CLOSER;
+
+    /**
+     * Returns the deadline for falling back to a relay.
+     * 
+     * @return The relay deadline.
+     */
+    public RelayDeadline getRelayDeadline() {
+        return relayDeadline;
+    }
+
+    /**
+     * Sets the deadline for falling back to a relay. The maximum of the 
+     * deadline is the time the client waits for a P2P socket of any kind.
+     * 
+     * @param relayDeadline The relay deadline.
+     * @return This configuration.
+     */
+    public P2PConfig setRelayDeadline(final RelayDeadline relayDeadline) {
+        this.relayDeadline = relayDeadline;
+        return this;
+    }
+
+    /**
+     * Returns the executor for connection attempts and other background
+     * work done on behalf of the client.
+     * 
+     * @return The executor.
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            return sharedDefaultExecutor();
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor for connection attempts and other background work
+     * done on behalf of the client.
+     * 
+     * @param executor The executor.
+     * @return This configuration.
+     */
+    public synchronized P2PConfig setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the executor incoming sessions are handled on, or 
+     * <code>null</code> if they're handled on the thread that accepted 
+     * them.
+     * 
+     * @return The session executor.
+     */
+    public synchronized ExecutorService getSessionExecutor() {
+        return sessionExecutor;
+    }
+
+    /**
+     * Sets the executor incoming sessions are handled on. With an executor
+     * the call socket listener is called on it, so a listener that serves
+     * the socket in place holds one of its threads per session instead of
+     * holding up the thread that accepted the socket.
+     * 
+     * @param sessionExecutor The session executor, or <code>null</code> to
+     * call the listener on the accepting thread.
+     * @return This configuration.
+     */
+    public synchronized P2PConfig setSessionExecutor(
+        final ExecutorService sessionExecutor) {
+        this.sessionExecutor = sessionExecutor;
+        this.virtualSessions = false;
+        return this;
+    }
+
+    /**
+     * Handles incoming TCP and TURN sessions on virtual threads where the
+     * JVM supports them, so each blocking session costs next to nothing.
+     * On older JVMs this falls back to pooled daemon threads.
+     * <p>
+     * UDT sessions still run on the platform threads of the executor,
+     * since every UDT read and write blocks in native code and would pin a
+     * virtual thread's carrier. Connection attempts stay there too, as the
+     * ICE library connects UDT sockets on the attempt's thread. Accepting
+     * doesn't hold a thread per connection to begin with; see
+     * {@link NioAnswererServer}.
+     * <p>
+     * Every configuration that calls this shares one executor, which is
+     * never shut down. It holds no idle virtual threads, and the fallback
+     * pool's threads are daemons that exit once idle.
+     * 
+     * @return This configuration.
+     * @see P2PExecutors#newVirtualThreadExecutor(String)
+     */
+    public synchronized P2PConfig useVirtualThreads() {
+        this.sessionExecutor = sharedVirtualExecutor();
+        this.virtualSessions = true;
+        return this;
+    }
+
+    /**
+     * Returns the most pooled sockets to keep open to any one peer, or 0
+     * if sockets created for the client's protocol aren't pooled.
+     * 
+     * @return The maximum number of sockets per peer.
+     */
+    public int getMaxSocketsPerPeer() {
+        return maxSocketsPerPeer;
+    }
+
+    /**
+     * Sets the most pooled sockets to keep open to any one peer. Setting 
+     * this above 0 pools the sockets created for the client's protocol
+     * with a {@link PooledProtocolSocketFactory}, so repeat requests to the
+     * same peer can reuse an already traversed socket. Closed sockets
+     * aren't reused; see the factory for how sockets go back in the pool.
+     * 
+     * @param maxSocketsPerPeer The maximum number of sockets per peer, or 0
+     * to turn off pooling.
+     * @return This configuration.
+     */
+    public P2PConfig setMaxSocketsPerPeer(final int maxSocketsPerPeer) {
+        this.maxSocketsPerPeer = maxSocketsPerPeer;
+        return this;
+    }
+
+    /**
+     * Returns how long a pooled socket can sit idle before it's closed.
+     * 
+     * @return The idle timeout, in milliseconds.
+     */
+    public long getSocketIdleTimeoutMillis() {
+        return socketIdleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a pooled socket can sit idle before it's closed.
+     * 
+     * @param socketIdleTimeoutMillis The idle timeout, in milliseconds.
+     * @return This configuration.
+     */
+    public P2PConfig setSocketIdleTimeoutMillis(
+        final long socketIdleTimeoutMillis) {
+        this.socketIdleTimeoutMillis = socketIdleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Returns the metrics connection setup and transfers are reported to.
+     * 
+     * @return The metrics.
+     */
+    public P2PMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics connection setup and transfers are reported to.
+     * 
+     * @param metrics The metrics.
+     * @return This configuration.
+     */
+    public P2PConfig setMetrics(final P2PMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Returns the cache of NAT behavior and known-good paths to peers.
+     * 
+     * @return The cache, or <code>null</code> if there isn't one.
+     */
+    public NetworkCache getNetworkCache() {
+        return networkCache;
+    }
+
+    /**
+     * Sets the cache of NAT behavior and known-good paths to peers. With a
+     * cache, NAT behavior and our public address are discovered once per
+     * network, the client's public address lookup answers from the cache,
+     * and connections to peers that last needed a relay start the relayed
+     * attempt right away. The known-good pairs only decide that: the ICE
+     * library takes no hints about which pairs to check first. There's no
+     * cache by default.
+     * 
+     * @param networkCache The cache.
+     * @return This configuration.
+     */
+    public P2PConfig setNetworkCache(final NetworkCache networkCache) {
+        this.networkCache = networkCache;
+        return this;
+    }
+
+    /**
+     * Returns whether the relayed attempt starts alongside the direct one.
+     * 
+     * @return <code>true</code> if the relay is allocated eagerly.
+     */
+    public boolean isEagerRelay() {
+        return eagerRelay;
+    }
+
+    /**
+     * Sets whether to start the relayed attempt alongside the direct one.
+     * With an eager relay, the offer with only host and server reflexive
+     * candidates and the offer that also allocates a relay go out
+     * together, so checks on the direct pairs start without waiting on the
+     * relay and the relay is ready the moment the direct pairs fail. Each
+     * offer still carries all of its candidates at once; this isn't trickle
+     * ICE, which the ICE library doesn't support. Peers we last reached
+     * directly still wait for the relay deadline, since they rarely need
+     * the relay.
+     * <p>
+     * This is opt-in, and it isn't free. For most connections it makes
+     * two full offer/answer exchanges instead of one, which doubles the
+     * signaling messages and the ICE sessions the remote peer sets up for
+     * us, and it allocates a TURN relay even when the direct pairs win.
+     * Only turn it on when connection setup time matters more than that
+     * load on the signaling server, the peer and the relay.
+     * 
+     * @param eagerRelay Whether to allocate the relay eagerly.
+     * @return This configuration.
+     */
+    public P2PConfig setEagerRelay(final boolean eagerRelay) {
+        this.eagerRelay = eagerRelay;
+        return this;
+    }
+
+    /**
+     * Returns whether ports are mapped on this host's default gateway.
+     *
+     * @return <code>true</code> if ports are mapped.
+     */
+    public boolean isPortMapping() {
+        return portMapping;
+    }
+
+    /**
+     * Sets whether to map the answerer and offerer servers' ports on this
+     * host's default gateway with NAT-PMP, so peers can reach us directly.
+     * Off by default, since it asks the gateway to open ports to the
+     * internet: once on, the servers map every port they bind without
+     * further asking, and renew the leases until the infrastructure is
+     * released. Routers that only speak UPnP IGD aren't supported.
+     * <p>
+     * This takes effect through
+     * {@link IceInfrastructure#acquire(P2PConfig, javax.net.SocketFactory,
+     * javax.net.ServerSocketFactory, boolean)}. Builders that take NAT PMP
+     * and UPnP services use the ones they're given, and those that take
+     * neither don't map ports.
+     *
+     * @param portMapping Whether to map ports.
+     * @return This configuration.
+     */
+    public P2PConfig setPortMapping(final boolean portMapping) {
+        this.portMapping = portMapping;
+        return this;
+    }
+
+    /**
+     * Returns the settings for UDT sessions.
+     *
+     * @return The profile, or <code>null</code> for UDT's defaults.
+     */
+    public UdtProfile getUdtProfile() {
+        return udtProfile;
+    }
+
+    /**
+     * Sets the settings for UDT sessions. UDT's defaults are used if
+     * there's no profile, which is the default.
+     * <p>
+     * Like port mapping, this takes effect through
+     * {@link IceInfrastructure#acquire(P2PConfig, javax.net.SocketFactory,
+     * javax.net.ServerSocketFactory, boolean)}, which builds the UDT socket
+     * factory. Clients sharing infrastructure share its profile, so
+     * clients with different profiles get infrastructure of their own.
+     *
+     * @param udtProfile The profile.
+     * @return This configuration.
+     */
+    public P2PConfig setUdtProfile(final UdtProfile udtProfile) {
+        this.udtProfile = udtProfile;
+        return this;
+    }
+
+    /**
+     * Returns what closes connections that lose a race or arrive after
+     * the caller has given up on them.
+     *
+     * @return The closer.
+     */
+    public ConnectionRace.Closer<Object> getCloser() {
+        return closer;
+    }
+
+    /**
+     * Sets what closes connections that lose a race or arrive after the
+     * caller has given up on them. The default closes sockets and anything
+     * {@link java.io.Closeable}. Clients of {@link P2PEndpoints} hand out
+     * {@link org.littleshoot.util.FiveTuple} endpoints, which aren't
+     * closeable themselves, so set a closer that releases whatever is
+     * bound to a losing endpoint, such as a UDT socket, and passes
+     * anything else to {@link ConnectionRace#DEFAULT_CLOSER}.
+     *
+     * @param closer The closer.
+     * @return This configuration.
+     */
+    public P2PConfig setCloser(final ConnectionRace.Closer<Object> closer) {
+        this.closer = closer;
+        return this;
+    }
+
+    /**
+     * Wraps the given call socket listener so it's called on the session
+     * executor, if there is one. With virtual session threads, UDT sockets
+     * go to the executor instead.
+     * 
+     * @param listener The listener.
+     * @return The listener to hand to the client.
+     */
+    SessionSocketListener sessionListener(
+        final SessionSocketListener listener) {
+        final ExecutorService sessions = getSessionExecutor();
+        if (sessions == null) {
+            return listener;
+        }
+        synchronized (this) {
+            if (this.virtualSessions) {
+                return new ExecutingSessionSocketListener(listener, sessions,
+                    getExecutor());
+            }
+        }
+        return new ExecutingSessionSocketListener(listener, sessions);
+    }
+
+    private static synchronized ExecutorService sharedVirtualExecutor() {
+        if (virtualExecutor == null) {
+            virtualExecutor =
+                P2PExecutors.newVirtualThreadExecutor("P2P-Session");
+        }
+        return virtualExecutor;
+    }
+
+    private static synchronized ExecutorService sharedDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(
+                new DaemonThreadFactory("P2P-Worker"));
+        }
+        return defaultExecutor;
+    }
+}
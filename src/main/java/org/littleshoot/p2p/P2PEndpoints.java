@@ -3,44 +3,24 @@ package org.littleshoot.p2p;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
 
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
-import org.lastbamboo.common.ice.BarchartUdtSocketFactory;
-import org.lastbamboo.common.ice.EndpointFactory;
-import org.lastbamboo.common.ice.IceMediaStreamFactory;
-import org.lastbamboo.common.ice.IceMediaStreamFactoryImpl;
-import org.lastbamboo.common.ice.IceOfferAnswerFactory;
 import org.lastbamboo.common.ice.MappedServerSocket;
-import org.lastbamboo.common.ice.MappedTcpAnswererServer;
-import org.lastbamboo.common.ice.MappedTcpOffererServerPool;
-import org.lastbamboo.common.ice.UdpSocketFactory;
 import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.lastbamboo.common.p2p.P2PClient;
 import org.lastbamboo.common.portmapping.NatPmpService;
-import org.lastbamboo.common.portmapping.PortMapListener;
-import org.lastbamboo.common.portmapping.PortMappingProtocol;
 import org.lastbamboo.common.portmapping.UpnpService;
-import org.lastbamboo.common.stun.client.PublicIpAddress;
-import org.lastbamboo.common.stun.client.StunServerRepository;
-import org.lastbamboo.common.turn.client.TurnClientListener;
-import org.lastbamboo.common.turn.http.server.ServerDataFeeder;
 import org.littleshoot.commom.xmpp.ControlEndpointXmppP2PClient;
 import org.littleshoot.commom.xmpp.XmppP2PClient;
-import org.littleshoot.util.CandidateProvider;
-import org.littleshoot.util.CommonUtils;
-import org.littleshoot.util.DnsSrvCandidateProvider;
 import org.littleshoot.util.FiveTuple;
 import org.littleshoot.util.SessionSocketListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.barchart.udt.ResourceUDT;
 
 /**
  * Class that builds all the elements of the LittleShoot P2P platform.
@@ -52,24 +32,6 @@ public class P2PEndpoints {
      */
     private final static Logger log = LoggerFactory.getLogger(P2PEndpoints.class);
     
-    /**
-     * Note that in cases where we're not using a relay, this is relay just
-     * the time to wait for the P2P socket to resolve, in seconds.
-     */
-    private static final int DEFAULT_RELAY_WAIT_TIME = 30;
-    
-    static {
-        // Use Google Public DNS.
-        System.setProperty("sun.net.spi.nameservice.nameservers", 
-            "8.8.8.8,8.8.4.4");
-        
-        // We need to set the System property for Barchart UDT to extract
-        // its libraries to a place where we always have permission to write 
-        // to.
-        System.setProperty(ResourceUDT.PROPERTY_LIBRARY_EXTRACT_LOCATION, 
-            CommonUtils.getLittleShootDir().getAbsolutePath());
-    }
-    
     /**
      * Creates a new LittleShoot P2P instance with a custom configuration file
      * and allowing custom classes for NAT PMP and UPnP mappings. 
@@ -82,8 +44,8 @@ public class P2PEndpoints {
     public static XmppP2PClient<FiveTuple> newXmppP2PHttpClient(
         final InetSocketAddress serverAddress,
         final OfferAnswerListener<FiveTuple> answererListener) throws IOException {
-        return newXmppP2PHttpClient("shoot", emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress, answererListener);
+        return newXmppP2PHttpClient("shoot", defaultNatPmpService(),
+            defaultUpnpService(), serverAddress, answererListener);
     }
     
     /**
@@ -98,8 +60,8 @@ public class P2PEndpoints {
     public static P2PClient<FiveTuple> newXmppP2PHttpClient(final String protocol,
         final InetSocketAddress serverAddress,
         final OfferAnswerListener<FiveTuple> answererListener) throws IOException {
-        return newXmppP2PHttpClient(protocol, emptyNatPmpService(), 
-            emptyUpnpService(), serverAddress, answererListener);
+        return newXmppP2PHttpClient(protocol, defaultNatPmpService(),
+            defaultUpnpService(), serverAddress, answererListener);
     }
     
     public static XmppP2PClient<FiveTuple> newXmppP2PHttpClient(
@@ -182,13 +144,24 @@ public class P2PEndpoints {
         final boolean useRelay,
         final OfferAnswerListener<FiveTuple> answererListener) throws IOException {
         log.info("Creating XMPP P2P instance");
-        final MappedTcpAnswererServer answererServer =
-            new MappedTcpAnswererServer(natPmpService, upnpService, 
-                serverAddress);
-        return newXmppP2PHttpClient(protocol, natPmpService, upnpService, 
-            answererServer, socketFactory, serverSocketFactory, 
-            plainTextRelayAddress, callSocketListener, useRelay,
-            answererListener);
+        final IceInfrastructure infrastructure = IceInfrastructure.acquire(
+            natPmpService, upnpService, socketFactory, serverSocketFactory, 
+            useRelay);
+        boolean built = false;
+        try {
+            final XmppP2PClient<FiveTuple> client = newXmppP2PHttpClient(
+                infrastructure,
+                infrastructure.getAnswererServer(serverAddress),
+                plainTextRelayAddress, callSocketListener, answererListener,
+                new P2PConfig());
+            infrastructure.adopt(client);
+            built = true;
+            return client;
+        } finally {
+            if (!built) {
+                infrastructure.release();
+            }
+        }
     }
     
     /**
@@ -217,238 +190,140 @@ public class P2PEndpoints {
         final OfferAnswerListener<FiveTuple> answererListener) 
             throws IOException {
         log.debug("Creating XMPP P2P instance");
-        
-        final OfferAnswerFactory<FiveTuple> offerAnswerFactory = 
-            newIceOfferAnswerFactory(natPmpService, upnpService,
-                mappedServer, socketFactory, serverSocketFactory, useRelay);
-        
-        // We use this to create a control socket that all future NAT traversals
-        // with a given client will use.
-        final OfferAnswerFactory<Socket> socketOfferAnswerFactory = 
-                newIceSocketOfferAnswerFactory(natPmpService, upnpService,
-                    mappedServer, socketFactory, serverSocketFactory, useRelay);
-
-        final XmppP2PClient<FiveTuple> client = 
-            ControlEndpointXmppP2PClient.newGoogleTalkDirectClient(
-                offerAnswerFactory, socketOfferAnswerFactory,
-                plainTextRelayAddress, callSocketListener, 
-                DEFAULT_RELAY_WAIT_TIME, new PublicIpAddress(), 
-                socketFactory, answererListener);
-        return client;
+        final IceInfrastructure infrastructure = IceInfrastructure.acquire(
+            natPmpService, upnpService, socketFactory, serverSocketFactory, 
+            useRelay);
+        boolean built = false;
+        try {
+            final XmppP2PClient<FiveTuple> client = newXmppP2PHttpClient(
+                infrastructure, mappedServer, plainTextRelayAddress,
+                callSocketListener, answererListener, new P2PConfig());
+            infrastructure.adopt(client);
+            built = true;
+            return client;
+        } finally {
+            if (!built) {
+                infrastructure.release();
+            }
+        }
     }
     
     /**
-     * Creates a new LittleShoot P2P instance with a custom configuration file
-     * and allowing custom classes for NAT PMP and UPnP mappings. 
+     * Creates a new LittleShoot P2P instance using ICE infrastructure the
+     * caller has acquired and will release when it's done with the client.
+     * Both the endpoint and the control socket offer/answer factories are
+     * built on the same infrastructure.
      * 
-     * @param streamDesc A configuration class allowing the caller to specify
-     * things like whether or not the use TCP, UDP, and TURN relay connections.
-     * @param natPmpService The NAT PMP implementation.
-     * @param upnpService The UPnP implementation.
-     * @param socketFactory The factory for creating plain TCP sockets. This
-     * could be an SSL socket factory, for example, to create SSL connections
-     * to peers when connecting over TCP.
+     * @param infrastructure The shared ICE infrastructure to build on.
+     * @param mappedServer The server accepting incoming connections.
+     * @param plainTextRelayAddress The address of the local server to relay
+     * incoming data to.
+     * @param callSocketListener The listener for incoming sockets.
+     * @param answererListener The listener for endpoints created when 
+     * answering.
+     * @param config The settings for this client.
      * @throws IOException If any of the necessary network configurations 
      * cannot be established.
      */
-    /*
     public static XmppP2PClient<FiveTuple> newXmppP2PHttpClient(
-        final String protocol, 
-        final NatPmpService natPmpService, final UpnpService upnpService,
-        final InetSocketAddress serverAddress,
-        final SocketFactory socketFactory,
-        final ServerSocketFactory serverSocketFactory,
+        final IceInfrastructure infrastructure,
+        final MappedServerSocket mappedServer,
         final InetSocketAddress plainTextRelayAddress,
         final SessionSocketListener callSocketListener,
-        final boolean useRelay, final String host, final int port, 
-        final String serviceName,
-        final OfferAnswerListener<FiveTuple> answererListener) throws IOException {
-        log.debug("Creating XMPP P2P instance");
-        
-        final MappedTcpAnswererServer mappedServer =
-            new MappedTcpAnswererServer(natPmpService, upnpService, 
-                serverAddress);
+        final OfferAnswerListener<FiveTuple> answererListener,
+        final P2PConfig config) throws IOException {
         final OfferAnswerFactory<FiveTuple> offerAnswerFactory = 
-            newIceOfferAnswerFactory(natPmpService, upnpService,
-                mappedServer, socketFactory, serverSocketFactory, useRelay);
-        
+            infrastructure.newEndpointOfferAnswerFactory(mappedServer);
         
+        // We use this to create a control socket that all future NAT traversals
+        // with a given client will use.
         final OfferAnswerFactory<Socket> socketOfferAnswerFactory = 
-                newIceSocketOfferAnswerFactory(natPmpService, upnpService,
-                    mappedServer, socketFactory, serverSocketFactory, useRelay);
+            infrastructure.newSocketOfferAnswerFactory(mappedServer);
 
-        // Now construct all the XMPP classes and link them to HTTP client.
-        final XmppP2PClient<FiveTuple> client = 
-            ControlEndpointXmppP2PClient.newClient(offerAnswerFactory,
-                    socketOfferAnswerFactory,
-                plainTextRelayAddress, callSocketListener, 
-                DEFAULT_RELAY_WAIT_TIME, new PublicIpAddress(), 
-                socketFactory, host, port, serviceName, answererListener);
+        // Let the metrics watch the memory incoming data is buffered in.
+        config.getMetrics().byteBudget(infrastructure.getAnswererBudget());
 
-        return client;
-    }
-    */
-    
-
-    private static OfferAnswerFactory<Socket> newIceSocketOfferAnswerFactory(
-        final NatPmpService natPmpService, final UpnpService upnpService, 
-        final MappedServerSocket answererServer, 
-        final SocketFactory socketFactory, 
-        final ServerSocketFactory serverSocketFactory,
-        final boolean useRelay) {
-        
-        // We hard-code this instead of looking it up to avoid the DNS
-        // control point.
-        final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-            new CandidateProvider<InetSocketAddress>() {
-
-                public Collection<InetSocketAddress> getCandidates() {
-                    return StunServerRepository.getServers();
-                }
-
-                public InetSocketAddress getCandidate() {
-                    return getCandidates().iterator().next();
-                }
-            };
-        //final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-        //    new DnsSrvCandidateProvider("_stun._udp.littleshoot.org");
-        final CandidateProvider<InetSocketAddress> turnCandidateProvider;
-        if (useRelay) {
-            turnCandidateProvider =
-                new DnsSrvCandidateProvider("_turn._tcp.littleshoot.org");
-        } else {
-            turnCandidateProvider = new CandidateProvider<InetSocketAddress>() {
-                @Override
-                public Collection<InetSocketAddress> getCandidates() {
-                    return new ArrayList<InetSocketAddress>(0);
-                }
-                @Override
-                public InetSocketAddress getCandidate() {
-                    return null;
-                }
-            };
+        if (config.getNetworkCache() != null) {
+            // Learn how our NAT behaves in the background, unless we
+            // already know from an earlier run on this network. Besides
+            // the racing connector, the client's public address lookup
+            // answers from what we learn.
+            config.getNetworkCache().discoverAsync(
+                infrastructure.getStunCandidateProvider(), 
+                config.getExecutor());
         }
-    
-        final IceMediaStreamFactory mediaStreamFactory = 
-            new IceMediaStreamFactoryImpl(stunCandidateProvider);
-        //final UdpSocketFactory udpSocketFactory = new UdtSocketFactory();
-        final UdpSocketFactory<Socket> udpSocketFactory = 
-            new BarchartUdtSocketFactory(socketFactory);
-        
-        //final MappedTcpAnswererServer answererServer =
-          //  new MappedTcpAnswererServer(natPmpService, upnpService, 
-            //    serverAddress);
-        
-        final MappedTcpOffererServerPool offererServer =
-            new MappedTcpOffererServerPool(natPmpService, upnpService,
-                serverSocketFactory);
 
-        final TurnClientListener clientListener =
-            new ServerDataFeeder(answererServer.getHostAddress());
-        
-        return new IceOfferAnswerFactory<Socket>(mediaStreamFactory, 
-            udpSocketFactory, turnCandidateProvider, answererServer, 
-            clientListener, stunCandidateProvider, offererServer, socketFactory);
+        // Endpoints from the client race a direct connection against the
+        // relayed one.
+        final XmppP2PClient<FiveTuple> client = 
+            ControlEndpointXmppP2PClient.newGoogleTalkDirectClient(
+                offerAnswerFactory, socketOfferAnswerFactory,
+                plainTextRelayAddress, 
+                config.sessionListener(callSocketListener), 
+                config.getRelayDeadline().getRelayWaitSeconds(),
+                infrastructure.getPublicIpAddress(config.getNetworkCache()),
+                infrastructure.getSocketFactory(), answererListener);
+        @SuppressWarnings("unchecked")
+        final XmppP2PClient<FiveTuple> racing =
+            RacingConnector.newRacingClient(XmppP2PClient.class, client,
+                config, infrastructure.getRelayCandidateProvider());
+        return racing;
     }
-
-    private static OfferAnswerFactory<FiveTuple> newIceOfferAnswerFactory(
-        final NatPmpService natPmpService, final UpnpService upnpService, 
-        final MappedServerSocket answererServer, 
-        final SocketFactory socketFactory, 
-        final ServerSocketFactory serverSocketFactory,
-        final boolean useRelay) {
-        
-        // We hard-code this instead of looking it up to avoid the DNS
-        // control point.
-        final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-            new CandidateProvider<InetSocketAddress>() {
-
-                public Collection<InetSocketAddress> getCandidates() {
-                    return StunServerRepository.getServers();
-                }
-
-                public InetSocketAddress getCandidate() {
-                    return getCandidates().iterator().next();
-                }
-            };
-        //final CandidateProvider<InetSocketAddress> stunCandidateProvider =
-        //    new DnsSrvCandidateProvider("_stun._udp.littleshoot.org");
-        final CandidateProvider<InetSocketAddress> turnCandidateProvider;
-        if (useRelay) {
-            turnCandidateProvider =
-                new DnsSrvCandidateProvider("_turn._tcp.littleshoot.org");
-        } else {
-            turnCandidateProvider = new CandidateProvider<InetSocketAddress>() {
-                @Override
-                public Collection<InetSocketAddress> getCandidates() {
-                    return new ArrayList<InetSocketAddress>(0);
-                }
-                @Override
-                public InetSocketAddress getCandidate() {
-                    return null;
-                }
-            };
-        }
     
-        final IceMediaStreamFactory mediaStreamFactory = 
-            new IceMediaStreamFactoryImpl(stunCandidateProvider);
-        //final UdpSocketFactory udpSocketFactory = new UdtSocketFactory();
-        final UdpSocketFactory<FiveTuple> endpointFactory =
-                new EndpointFactory();
-            //new BarchartUdtSocketFactory(socketFactory);
-        
-        //final MappedTcpAnswererServer answererServer =
-          //  new MappedTcpAnswererServer(natPmpService, upnpService, 
-            //    serverAddress);
-        
-        final MappedTcpOffererServerPool offererServer =
-            new MappedTcpOffererServerPool(natPmpService, upnpService,
-                serverSocketFactory);
-
-        final TurnClientListener clientListener =
-            new ServerDataFeeder(answererServer.getHostAddress());
-        
-        return new IceOfferAnswerFactory<FiveTuple>(mediaStreamFactory, endpointFactory, 
-            turnCandidateProvider, answererServer, clientListener, 
-            stunCandidateProvider, offererServer, socketFactory);
+    /**
+     * Creates a new LittleShoot P2P instance using ICE infrastructure the
+     * caller has acquired, multiplexing every socket a peer opens to us
+     * with the given listener. Streams peers open go to the listener's
+     * stream listener, and the listener's multiplexers are closed when the
+     * client is released.
+     * <p>
+     * The client's own control socket carries the ICE library's offer and
+     * answer exchange, so it isn't multiplexed. Peers reach the listener
+     * with a P2P socket, from {@link MultiplexingSessionSocketListener#connect}
+     * for example.
+     *
+     * @param infrastructure The shared ICE infrastructure to build on.
+     * @param mappedServer The server accepting incoming connections.
+     * @param plainTextRelayAddress The address of the local server to relay
+     * incoming data to.
+     * @param multiplexer The listener that multiplexes incoming sockets.
+     * @param answererListener The listener for endpoints created when
+     * answering.
+     * @param config The settings for this client.
+     * @throws IOException If any of the necessary network configurations
+     * cannot be established.
+     */
+    public static XmppP2PClient<FiveTuple> newMultiplexingXmppP2PClient(
+        final IceInfrastructure infrastructure,
+        final MappedServerSocket mappedServer,
+        final InetSocketAddress plainTextRelayAddress,
+        final MultiplexingSessionSocketListener multiplexer,
+        final OfferAnswerListener<FiveTuple> answererListener,
+        final P2PConfig config) throws IOException {
+        final XmppP2PClient<FiveTuple> client = newXmppP2PHttpClient(
+            infrastructure, mappedServer, plainTextRelayAddress, multiplexer,
+            answererListener, config);
+        IceInfrastructure.track(client, null, null, multiplexer);
+        return client;
     }
-    
-    private static NatPmpService emptyNatPmpService() {
-        return new NatPmpService() {
 
-            public void removeNatPmpMapping(final int mappingIndex) {
-            }
-
-            public int addNatPmpMapping(final PortMappingProtocol protocol,
-                    final int localPort, final int externalPortRequested,
-                    final PortMapListener portMapListener) {
-                return 0;
-            }
-
-            @Override
-            public void shutdown() {
-                
-            }
-        };
+    /**
+     * Releases everything a client made by this class holds, including its
+     * share of the ICE infrastructure. Call this once the client is shut
+     * down.
+     *
+     * @param client The client.
+     * @see IceInfrastructure#releaseClient(Object)
+     */
+    public static void release(final P2PClient<FiveTuple> client) {
+        IceInfrastructure.releaseClient(client);
     }
 
-    private static UpnpService emptyUpnpService() {
-        return new UpnpService() {
-
-            public void removeUpnpMapping(final int mappingIndex) {
-            }
-
-            public int addUpnpMapping(final PortMappingProtocol protocol,
-                    final int localPort, final int externalPortRequested,
-                    final PortMapListener portMapListener) {
-                return 0;
-            }
+    private static NatPmpService defaultNatPmpService() {
+        return IceInfrastructure.defaultNatPmpService();
+    }
 
-            @Override
-            public void shutdown() {
-                // TODO Auto-generated method stub
-                
-            }
-        };
+    private static UpnpService defaultUpnpService() {
+        return IceInfrastructure.defaultUpnpService();
     }
 }
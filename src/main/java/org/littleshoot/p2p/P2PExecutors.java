@@ -0,0 +1,84 @@
+package org.littleshoot.p2p;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors for running blocking P2P sessions. Every P2P socket is a
+ * blocking socket, so each session holds a thread for as long as it's
+ * open. On a JVM with virtual threads those threads cost almost nothing,
+ * and a node can handle tens of thousands of concurrent peers instead of
+ * a few thousand.
+ * <p>
+ * That only holds for TCP and TURN sessions. UDT sockets block in native
+ * code, which pins a virtual thread to its carrier for the whole call, so
+ * UDT sessions on virtual threads would use up the carriers. See
+ * {@link P2PConfig#useVirtualThreads()} for how the two are kept apart.
+ */
+public final class P2PExecutors {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(P2PExecutors.class);
+
+    /**
+     * <code>Executors.newVirtualThreadPerTaskExecutor()</code>, or
+     * <code>null</code> if this JVM doesn't have virtual threads. We look
+     * it up reflectively so we still run on older JVMs.
+     */
+    private static final Method newVirtualThreadPerTaskExecutor;
+
+    static {
+        Method method = null;
+        try {
+            method = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException e) {
+            log.debug("No virtual threads on this JVM");
+        }
+        newVirtualThreadPerTaskExecutor = method;
+    }
+
+    private P2PExecutors() {
+        // Not instantiable.
+    }
+
+    /**
+     * Returns whether this JVM supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads are available.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread,
+     * or on a pooled daemon thread if this JVM doesn't support virtual
+     * threads.
+     *
+     * @param name The base name for threads in the fallback pool.
+     * @return The new executor.
+     */
+    public static ExecutorService newVirtualThreadExecutor(final String name) {
+        if (newVirtualThreadPerTaskExecutor != null) {
+            try {
+                return (ExecutorService)
+                    newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (final IllegalAccessException e) {
+                log.warn("Could not create virtual thread executor", e);
+            } catch (final InvocationTargetException e) {
+                log.warn("Could not create virtual thread executor",
+                    e.getCause());
+            }
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+    }
+}
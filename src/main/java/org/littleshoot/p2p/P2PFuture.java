@@ -0,0 +1,269 @@
+package org.littleshoot.p2p;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending result of an asynchronous connection. Callers can block on
+ * it like any other {@link Future}, but the point is not to: add a
+ * {@link ConnectListener} and the thread that asked for the connection is
+ * free while NAT traversal runs.
+ * <p>
+ * A connection that arrives after the future was cancelled or timed out is
+ * closed, so nothing leaks when callers give up.
+ *
+ * @param <T> The type of connection, such as a socket.
+ */
+public class P2PFuture<T> implements Future<T> {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(P2PFuture.class);
+
+    private final List<ConnectListener<T>> listeners =
+        new ArrayList<ConnectListener<T>>(2);
+
+    private boolean done = false;
+
+    private T connection;
+
+    private Throwable cause;
+
+    private Future<?> task;
+
+    private boolean interrupt = true;
+
+    private final ConnectionRace.Closer<? super T> closer;
+
+    /**
+     * Creates a future that closes connections nobody collects with
+     * {@link ConnectionRace#DEFAULT_CLOSER}.
+     */
+    public P2PFuture() {
+        this(ConnectionRace.DEFAULT_CLOSER);
+    }
+
+    /**
+     * Creates a future.
+     *
+     * @param closer Closes connections that arrive after the future is
+     * done.
+     */
+    public P2PFuture(final ConnectionRace.Closer<? super T> closer) {
+        this.closer = closer;
+    }
+
+    /**
+     * Adds a listener for the outcome. If the future is already done the
+     * listener is called right away on the calling thread. Otherwise it's
+     * called on the thread that completes the future.
+     *
+     * @param listener The listener.
+     * @return This future.
+     */
+    public P2PFuture<T> addListener(final ConnectListener<T> listener) {
+        synchronized (this) {
+            if (!this.done) {
+                this.listeners.add(listener);
+                return this;
+            }
+        }
+        notify(listener);
+        return this;
+    }
+
+    /**
+     * Cancels the connection. A connection that arrives anyway is closed.
+     *
+     * @param mayInterruptIfRunning Whether to interrupt the attempts still
+     * running. If not, they run to the end, holding their threads, and
+     * whatever they connect is closed.
+     * @return <code>true</code> if the future was cancelled,
+     * <code>false</code> if it had already completed.
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return fail(new CancellationException("Connection cancelled"),
+            mayInterruptIfRunning);
+    }
+
+    public synchronized boolean isCancelled() {
+        return this.cause instanceof CancellationException;
+    }
+
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    public synchronized T get()
+        throws InterruptedException, ExecutionException {
+        while (!this.done) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized T get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * Returns the connection if the future completed successfully.
+     *
+     * @return The connection, or <code>null</code> if the future isn't
+     * done or failed.
+     */
+    public synchronized T getNow() {
+        return this.connection;
+    }
+
+    /**
+     * Returns why the future failed.
+     *
+     * @return The cause, or <code>null</code> if the future isn't done or
+     * succeeded.
+     */
+    public synchronized Throwable getCause() {
+        return this.cause;
+    }
+
+    /**
+     * Sets the task producing the connection, so it can be interrupted on
+     * cancellation or timeout.
+     *
+     * @param task The task.
+     */
+    void setTask(final Future<?> task) {
+        final boolean cancel;
+        synchronized (this) {
+            this.task = task;
+            cancel = this.done && this.cause != null && this.interrupt;
+        }
+        if (cancel) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Completes the future with a connection.
+     *
+     * @param conn The connection.
+     * @return <code>true</code> if this completed the future,
+     * <code>false</code> if it was already done, in which case the
+     * connection has been closed.
+     */
+    boolean succeed(final T conn) {
+        final List<ConnectListener<T>> toNotify;
+        synchronized (this) {
+            if (this.done) {
+                ConnectionRace.closeQuietly(this.closer, conn);
+                return false;
+            }
+            this.done = true;
+            this.connection = conn;
+            toNotify = drainListeners();
+        }
+        for (final ConnectListener<T> listener : toNotify) {
+            notify(listener);
+        }
+        return true;
+    }
+
+    /**
+     * Closes a connection from this future that nobody will use.
+     *
+     * @param conn The connection, or <code>null</code>.
+     */
+    void discard(final T conn) {
+        ConnectionRace.closeQuietly(this.closer, conn);
+    }
+
+    /**
+     * Completes the future with a failure and interrupts the task if it's
+     * still running.
+     *
+     * @param failure The reason for the failure.
+     * @return <code>true</code> if this completed the future,
+     * <code>false</code> if it was already done.
+     */
+    boolean fail(final Throwable failure) {
+        return fail(failure, true);
+    }
+
+    private boolean fail(final Throwable failure,
+        final boolean mayInterrupt) {
+        final List<ConnectListener<T>> toNotify;
+        final Future<?> running;
+        synchronized (this) {
+            if (this.done) {
+                return false;
+            }
+            this.done = true;
+            this.cause = failure;
+            this.interrupt = mayInterrupt;
+            running = this.task;
+            toNotify = drainListeners();
+        }
+        if (running != null && mayInterrupt) {
+            running.cancel(true);
+        }
+        for (final ConnectListener<T> listener : toNotify) {
+            notify(listener);
+        }
+        return true;
+    }
+
+    private List<ConnectListener<T>> drainListeners() {
+        notifyAll();
+        final List<ConnectListener<T>> drained =
+            new ArrayList<ConnectListener<T>>(this.listeners);
+        this.listeners.clear();
+        return drained;
+    }
+
+    private T result() throws ExecutionException {
+        if (this.cause instanceof CancellationException) {
+            throw (CancellationException) this.cause;
+        }
+        if (this.cause != null) {
+            throw new ExecutionException(this.cause);
+        }
+        return this.connection;
+    }
+
+    private void notify(final ConnectListener<T> listener) {
+        final T conn;
+        final Throwable failure;
+        synchronized (this) {
+            conn = this.connection;
+            failure = this.cause;
+        }
+        try {
+            if (failure == null) {
+                listener.onConnect(conn);
+            } else {
+                listener.onFailure(failure);
+            }
+        } catch (final RuntimeException e) {
+            log.warn("Connect listener threw", e);
+        }
+    }
+}
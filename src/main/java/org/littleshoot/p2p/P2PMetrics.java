@@ -0,0 +1,76 @@
+package org.littleshoot.p2p;
+
+/**
+ * Receives measurements of connection setup and transfer from the clients
+ * created by {@link P2P}, {@link P2PSockets} and {@link P2PEndpoints}.
+ * Set an implementation with {@link P2PConfig#setMetrics(P2PMetrics)}.
+ * <p>
+ * Implementations are called on the threads doing the work, so they should
+ * be thread safe and return quickly. {@link NoopP2PMetrics} is the default,
+ * and {@link TaggedP2PMetrics} adapts these calls to named, tagged meters
+ * like the ones in Micrometer.
+ * <p>
+ * Connection setup is measured in {@link RacingConnector}, which the
+ * clients the builders return connect through, and transfers in the
+ * sockets made for the client's protocol. The memory the answerer servers
+ * and TURN feeders buffer relayed data in is handed over once as a
+ * {@link ByteBudget}.
+ * Candidate gathering, the STUN bindings and TURN allocations behind it, and
+ * the connectivity checks on each candidate pair all happen inside the ICE
+ * library, which has no hooks for them, so they aren't reported.
+ */
+public interface P2PMetrics {
+
+    /**
+     * Called when one of the attempts {@link RacingConnector} races, the
+     * direct one or the one that can use a relay, finishes, whether or not
+     * it wins. Each attempt covers a whole offer/answer exchange and the
+     * checks the ICE library runs on its pairs.
+     *
+     * @param transport The transport the attempt connected with, or
+     * <code>null</code> if it failed.
+     * @param elapsedNanos How long the attempt took.
+     * @param success Whether the attempt connected.
+     */
+    void connectionAttempt(Transport transport, long elapsedNanos,
+        boolean success);
+
+    /**
+     * Called when a connection to a peer is established. Connections over
+     * {@link Transport#TURN} are relay fallbacks, so the fallback rate is
+     * their share of all established connections.
+     *
+     * @param transport The transport that won.
+     * @param setupNanos How long the whole setup took.
+     */
+    void connectionEstablished(Transport transport, long setupNanos);
+
+    /**
+     * Called when no connection to a peer could be established.
+     *
+     * @param setupNanos How long we tried for.
+     */
+    void connectionFailed(long setupNanos);
+
+    /**
+     * Called when a connection closes with the bytes it carried.
+     *
+     * @param transport The transport of the connection.
+     * @param bytesRead The bytes read from the peer.
+     * @param bytesWritten The bytes written to the peer.
+     * @param durationNanos How long the connection was open, for working
+     * out throughput.
+     */
+    void bytesTransferred(Transport transport, long bytesRead,
+        long bytesWritten, long durationNanos);
+
+    /**
+     * Called when a client is built with the budget its answerer servers
+     * buffer incoming data within, so its used, peak and throttled bytes
+     * can be registered as gauges. Clients sharing infrastructure share the
+     * budget, so this can be called more than once with the same one.
+     *
+     * @param budget The budget.
+     */
+    void byteBudget(ByteBudget budget);
+}
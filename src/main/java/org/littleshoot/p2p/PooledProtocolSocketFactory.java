@@ -0,0 +1,440 @@
+package org.littleshoot.p2p;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Protocol socket factory that keeps live P2P sockets to each peer so that
+ * repeat requests to the same peer skip the offer/answer exchange and NAT
+ * traversal entirely. Peers are keyed by the host part of the request URI,
+ * which for P2P protocols identifies the remote user rather than a machine.
+ * <p>
+ * Closing a socket from this factory returns it to the pool, since
+ * HttpClient never hands sockets back any other way. A socket goes back
+ * only if no I/O error or half close was seen on it and nothing is left
+ * unread, and it's health checked again before it's handed out, so one
+ * closed after an aborted request or a <code>Connection: close</code> is
+ * dropped rather than reused. {@link #release(Socket)} does the same for
+ * callers holding the socket directly.
+ * <p>
+ * Released sockets are health checked before they're handed out again,
+ * evicted after sitting idle too long, and capped per peer. Callers can
+ * pre-warm the pool for peers they expect to talk to with
+ * {@link #prewarm(String, int, int)}. Idle sockets relayed through a relay
+ * that goes down are closed rather than handed out; see
+ * {@link #watch(RelayPool)}.
+ */
+public class PooledProtocolSocketFactory implements ProtocolSocketFactory,
+    Closeable, RelayListener {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(PooledProtocolSocketFactory.class);
+
+    private final ProtocolSocketFactory delegate;
+
+    private final int maxPerPeer;
+
+    private final long idleTimeoutMillis;
+
+    private final Executor executor;
+
+    private final Map<String, PeerPool> peers =
+        new HashMap<String, PeerPool>();
+
+    private final ScheduledExecutorService evictor =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("P2P-Socket-Evictor"));
+
+    /**
+     * The longest to wait for a socket to a peer at its limit when the
+     * caller doesn't give a connection timeout.
+     */
+    public static final long DEFAULT_WAIT_MILLIS = 30 * 1000;
+
+    private boolean closed = false;
+
+    private RelayPool relays;
+
+    /**
+     * Creates a new pooling factory.
+     *
+     * @param delegate The factory that creates new P2P sockets.
+     * @param maxPerPeer The most sockets to keep open to any one peer,
+     * whether idle or in use.
+     * @param idleTimeoutMillis How long a socket can sit idle before it's
+     * closed.
+     * @param executor The executor for pre-warming sockets.
+     */
+    public PooledProtocolSocketFactory(final ProtocolSocketFactory delegate,
+        final int maxPerPeer, final long idleTimeoutMillis,
+        final Executor executor) {
+        if (maxPerPeer < 1) {
+            throw new IllegalArgumentException("Need at least one per peer");
+        }
+        this.delegate = delegate;
+        this.maxPerPeer = maxPerPeer;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.executor = executor;
+        final long period = Math.max(1000, idleTimeoutMillis / 2);
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Socket createSocket(final String host, final int port)
+        throws IOException, UnknownHostException {
+        return createSocket(host, port, 0, new Connector() {
+            public Socket connect() throws IOException {
+                return delegate.createSocket(host, port);
+            }
+        });
+    }
+
+    public Socket createSocket(final String host, final int port,
+        final InetAddress localAddress, final int localPort)
+        throws IOException, UnknownHostException {
+        return createSocket(host, port, 0, new Connector() {
+            public Socket connect() throws IOException {
+                return delegate.createSocket(host, port, localAddress,
+                    localPort);
+            }
+        });
+    }
+
+    public Socket createSocket(final String host, final int port,
+        final InetAddress localAddress, final int localPort,
+        final HttpConnectionParams params)
+        throws IOException, UnknownHostException, ConnectTimeoutException {
+        final int timeout = params == null ? 0 : params.getConnectionTimeout();
+        return createSocket(host, port, timeout, new Connector() {
+            public Socket connect() throws IOException {
+                return delegate.createSocket(host, port, localAddress,
+                    localPort, params);
+            }
+        });
+    }
+
+    /**
+     * Opens sockets to the given peer in the background until it has the
+     * given number of idle sockets or reaches the per peer limit.
+     *
+     * @param host The peer, as it appears in request URIs.
+     * @param port The port, as it appears in request URIs.
+     * @param count The number of idle sockets to have ready.
+     */
+    public void prewarm(final String host, final int port, final int count) {
+        for (int i = 0; i < count; i++) {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    final PeerPool pool;
+                    synchronized (PooledProtocolSocketFactory.this) {
+                        pool = peerPool(host);
+                        if (closed || pool.idle.size() >= count ||
+                            pool.total() >= maxPerPeer) {
+                            return;
+                        }
+                        pool.connecting++;
+                    }
+                    Socket sock = null;
+                    try {
+                        sock = delegate.createSocket(host, port);
+                    } catch (final IOException e) {
+                        log.debug("Could not pre-warm socket to "+host, e);
+                    } finally {
+                        synchronized (PooledProtocolSocketFactory.this) {
+                            pool.connecting--;
+                            if (sock != null) {
+                                if (closed) {
+                                    closeQuietly(sock);
+                                } else {
+                                    pool.idle.addFirst(new IdleSocket(sock));
+                                }
+                            }
+                            PooledProtocolSocketFactory.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a socket this factory created to the pool, for the next
+     * request to the same peer, just as closing it does. Only release a
+     * socket once everything sent on it has been answered and every answer
+     * read to the end, since the next user starts reading wherever this
+     * one stopped. The socket can't be used by the caller afterwards.
+     *
+     * @param socket The socket.
+     * @throws IllegalArgumentException If the socket didn't come from this
+     * factory.
+     */
+    public void release(final Socket socket) {
+        if (!(socket instanceof PooledSocket) ||
+            !((PooledSocket) socket).isFrom(this)) {
+            throw new IllegalArgumentException("Not from this pool: "+socket);
+        }
+        ((PooledSocket) socket).returnToPool();
+    }
+
+    /**
+     * Listens for relays in the given pool going down, so idle sockets
+     * relayed through them are closed instead of handed out. Stops
+     * listening when this factory is closed.
+     *
+     * @param pool The relay pool.
+     */
+    public synchronized void watch(final RelayPool pool) {
+        if (this.closed) {
+            return;
+        }
+        if (this.relays != null) {
+            this.relays.removeListener(this);
+        }
+        this.relays = pool;
+        pool.addListener(this);
+    }
+
+    public synchronized void onRelayDown(final InetSocketAddress relay) {
+        for (final PeerPool pool : this.peers.values()) {
+            for (final Iterator<IdleSocket> it = pool.idle.iterator();
+                it.hasNext();) {
+                final IdleSocket idle = it.next();
+                if (relay.getAddress() != null && relay.getAddress().equals(
+                    idle.socket.getInetAddress())) {
+                    log.debug("Closing idle socket through {}", relay);
+                    it.remove();
+                    closeQuietly(idle.socket);
+                }
+            }
+        }
+    }
+
+    public void onRelayUp(final InetSocketAddress relay) {
+    }
+
+    /**
+     * Closes all idle sockets and stops pooling. Sockets currently in use
+     * are closed when they're closed or released.
+     */
+    public void close() {
+        this.evictor.shutdownNow();
+        synchronized (this) {
+            if (this.relays != null) {
+                this.relays.removeListener(this);
+                this.relays = null;
+            }
+            this.closed = true;
+            for (final PeerPool pool : this.peers.values()) {
+                for (final IdleSocket idle : pool.idle) {
+                    closeQuietly(idle.socket);
+                }
+                pool.idle.clear();
+            }
+            notifyAll();
+        }
+    }
+
+    private Socket createSocket(final String host, final int port,
+        final int timeoutMillis, final Connector connector)
+        throws IOException {
+        final long deadline = System.currentTimeMillis() +
+            (timeoutMillis > 0 ? timeoutMillis : DEFAULT_WAIT_MILLIS);
+        while (true) {
+            final PeerPool pool;
+            final Socket idle;
+            synchronized (this) {
+                pool = reserve(host, deadline);
+                idle = pool == null || pool.idle.isEmpty() ?
+                    null : pool.idle.removeFirst().socket;
+                if (idle != null) {
+                    pool.leased++;
+                } else if (pool != null) {
+                    pool.connecting++;
+                }
+            }
+            if (idle == null) {
+                return connect(host, pool, connector);
+            }
+            // Check the socket outside the lock, since the check itself
+            // waits on the socket.
+            if (PooledSocket.isHealthy(idle)) {
+                log.debug("Reusing pooled socket to {}", host);
+                return wrap(idle, host);
+            }
+            log.debug("Discarding dead pooled socket");
+            returned(host, idle, false);
+        }
+    }
+
+    /**
+     * Waits until the peer has an idle socket or room for a new one.
+     *
+     * @return The peer's pool, or <code>null</code> if the factory is
+     * closed.
+     */
+    private PeerPool reserve(final String host, final long deadline)
+        throws IOException {
+        while (true) {
+            if (this.closed) {
+                return null;
+            }
+            // Look the pool up on every pass since it may have been
+            // evicted while we waited. It can't be evicted while we're
+            // connecting or leasing.
+            final PeerPool current = peerPool(host);
+            if (!current.idle.isEmpty() ||
+                current.total() < this.maxPerPeer) {
+                return current;
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new ConnectTimeoutException(
+                    "Timed out waiting for a pooled socket to "+host);
+            }
+            try {
+                wait(Math.min(remaining, this.idleTimeoutMillis));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for socket");
+            }
+        }
+    }
+
+    private Socket connect(final String host, final PeerPool pool,
+        final Connector connector) throws IOException {
+        if (pool == null) {
+            return connector.connect();
+        }
+        Socket sock = null;
+        try {
+            sock = connector.connect();
+        } finally {
+            synchronized (this) {
+                pool.connecting--;
+                if (sock != null) {
+                    pool.leased++;
+                }
+                notifyAll();
+            }
+        }
+        return wrap(sock, host);
+    }
+
+    private Socket wrap(final Socket sock, final String host)
+        throws IOException {
+        try {
+            return new PooledSocket(sock, host, this);
+        } catch (final IOException e) {
+            returned(host, sock, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Called when a leased socket is closed or released by its user.
+     *
+     * @param host The peer the socket connects to.
+     * @param sock The underlying socket.
+     * @param reuse Whether the socket can go back in the pool.
+     */
+    void returned(final String host, final Socket sock, final boolean reuse) {
+        synchronized (this) {
+            final PeerPool pool = peerPool(host);
+            pool.leased--;
+            if (this.closed || !reuse || sock.isClosed()) {
+                closeQuietly(sock);
+            } else {
+                pool.idle.addFirst(new IdleSocket(sock));
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void evictIdle() {
+        final long cutoff =
+            System.currentTimeMillis() - this.idleTimeoutMillis;
+        for (final Iterator<PeerPool> pools = this.peers.values().iterator();
+            pools.hasNext();) {
+            final PeerPool pool = pools.next();
+            for (final Iterator<IdleSocket> it = pool.idle.iterator();
+                it.hasNext();) {
+                final IdleSocket idle = it.next();
+                if (idle.since < cutoff) {
+                    it.remove();
+                    closeQuietly(idle.socket);
+                }
+            }
+            if (pool.total() == 0) {
+                pools.remove();
+            }
+        }
+    }
+
+    private synchronized PeerPool peerPool(final String host) {
+        PeerPool pool = this.peers.get(host);
+        if (pool == null) {
+            pool = new PeerPool();
+            this.peers.put(host, pool);
+        }
+        return pool;
+    }
+
+    private static void closeQuietly(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            log.debug("Error closing socket", e);
+        }
+    }
+
+    private interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private static final class IdleSocket {
+        private final Socket socket;
+        private final long since = System.currentTimeMillis();
+
+        private IdleSocket(final Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * The sockets for a single peer. Guarded by the factory's lock.
+     */
+    private static final class PeerPool {
+        private final LinkedList<IdleSocket> idle =
+            new LinkedList<IdleSocket>();
+        private int leased = 0;
+        private int connecting = 0;
+
+        private int total() {
+            return idle.size() + leased + connecting;
+        }
+    }
+}
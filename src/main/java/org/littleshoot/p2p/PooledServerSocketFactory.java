@@ -0,0 +1,572 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+
+import org.lastbamboo.common.portmapping.NatPmpService;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server socket factory that keeps listeners bound, and optionally port
+ * mapped, ahead of time, so the TCP candidates of an offer don't wait on
+ * binding or on the gateway. Requests for an ephemeral port are served
+ * from the pool. When a pooled listener is closed its port is bound again
+ * and goes back to the pool with its mapping, so the next session reuses
+ * both. Requests for a specific port go straight to the underlying
+ * factory.
+ * <p>
+ * At most a maximum number of pooled listeners are out at once. Past that,
+ * a request waits a short time for one to come back and then gets a fresh
+ * listener from the underlying factory. Idle listeners beyond the minimum
+ * are closed after the idle timeout.
+ */
+public class PooledServerSocketFactory extends ServerSocketFactory {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(PooledServerSocketFactory.class);
+
+    private final ServerSocketFactory delegate;
+
+    private final NatPmpService mapper;
+
+    private final int minIdle;
+
+    private final int maxListeners;
+
+    private final long idleMillis;
+
+    private final long maxWaitMillis;
+
+    private final LinkedList<Listener> idle = new LinkedList<Listener>();
+
+    private final Set<Listener> lent = new HashSet<Listener>();
+
+    private final ScheduledExecutorService maintainer =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("Server-Socket-Pool"));
+
+    private int outstanding = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long waits = 0;
+
+    private long totalWaitMillis = 0;
+
+    private long maxWaitObservedMillis = 0;
+
+    private boolean shutdown = false;
+
+    /**
+     * Creates a new pool and starts binding its minimum listeners.
+     *
+     * @param delegate The factory that creates the actual listeners.
+     * @param mapper The service to map pooled ports with ahead of time, or
+     * <code>null</code> to leave mapping to the caller. This pays off when
+     * it's the same {@link PortMappingManager} the offerer pool maps with,
+     * since that then finds the mapping already made. The infrastructure
+     * only passes one when its NAT-PMP service is a
+     * {@link PortMappingManager}, which it is for clients that turn on
+     * {@link P2PConfig#setPortMapping(boolean)} when a gateway is found;
+     * without one nothing is mapped ahead of time.
+     * @param minIdle The number of listeners to keep ready.
+     * @param maxListeners The most pooled listeners out at once.
+     * @param idleMillis How long an idle listener beyond the minimum is
+     * kept.
+     * @param maxWaitMillis How long a request waits for a listener when
+     * all of them are out.
+     */
+    public PooledServerSocketFactory(final ServerSocketFactory delegate,
+        final NatPmpService mapper, final int minIdle,
+        final int maxListeners, final long idleMillis,
+        final long maxWaitMillis) {
+        if (minIdle > maxListeners) {
+            throw new IllegalArgumentException("Min above max");
+        }
+        this.delegate = delegate;
+        this.mapper = mapper;
+        this.minIdle = minIdle;
+        this.maxListeners = maxListeners;
+        this.idleMillis = idleMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        final long period = Math.max(1000, idleMillis / 2);
+        this.maintainer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    maintain();
+                } catch (final RuntimeException e) {
+                    log.warn("Error maintaining server socket pool", e);
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ServerSocket createServerSocket() throws IOException {
+        return take();
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port)
+        throws IOException {
+        if (port == 0) {
+            return take();
+        }
+        return this.delegate.createServerSocket(port);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port, final int backlog)
+        throws IOException {
+        if (port == 0) {
+            return take();
+        }
+        return this.delegate.createServerSocket(port, backlog);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port, final int backlog,
+        final InetAddress ifAddress) throws IOException {
+        if (port == 0 && ifAddress == null) {
+            return take();
+        }
+        return this.delegate.createServerSocket(port, backlog, ifAddress);
+    }
+
+    /**
+     * Closes every pooled listener, idle or still out, and removes its
+     * mapping. Listeners the underlying factory made past the cap belong
+     * to their callers and are left alone.
+     */
+    public void shutdown() {
+        this.maintainer.shutdownNow();
+        final LinkedList<Listener> closing;
+        final LinkedList<Listener> taken;
+        synchronized (this) {
+            this.shutdown = true;
+            closing = new LinkedList<Listener>(this.idle);
+            this.idle.clear();
+            taken = new LinkedList<Listener>(this.lent);
+            notifyAll();
+        }
+        for (final Listener listener : closing) {
+            listener.discard();
+        }
+        for (final Listener listener : taken) {
+            // Comes back through returned(), which unmaps it.
+            listener.socket.closeQuietly();
+        }
+    }
+
+    /**
+     * @return The number of requests served from the pool.
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return The number of requests that had to bind a new listener.
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return The average time requests waited for a listener, counting
+     * only requests that waited, in milliseconds.
+     */
+    public synchronized double getAverageWaitMillis() {
+        return this.waits == 0 ? 0 : (double) this.totalWaitMillis / waits;
+    }
+
+    /**
+     * @return The longest any request waited for a listener, in
+     * milliseconds.
+     */
+    public synchronized long getMaxWaitMillis() {
+        return this.maxWaitObservedMillis;
+    }
+
+    /**
+     * @return The number of listeners ready in the pool.
+     */
+    public synchronized int getIdleCount() {
+        return this.idle.size();
+    }
+
+    /**
+     * @return The number of pooled listeners currently in use.
+     */
+    public synchronized int getOutstandingCount() {
+        return this.outstanding;
+    }
+
+    private ServerSocket take() throws IOException {
+        synchronized (this) {
+            if (this.outstanding >= this.maxListeners && !this.shutdown) {
+                final long start = System.currentTimeMillis();
+                final long deadline = start + this.maxWaitMillis;
+                long now = start;
+                while (this.outstanding >= this.maxListeners &&
+                    !this.shutdown && now < deadline) {
+                    try {
+                        wait(deadline - now);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    now = System.currentTimeMillis();
+                }
+                final long waited = now - start;
+                this.waits++;
+                this.totalWaitMillis += waited;
+                this.maxWaitObservedMillis =
+                    Math.max(this.maxWaitObservedMillis, waited);
+            }
+            if (this.shutdown || this.outstanding >= this.maxListeners) {
+                // Over the cap -- this one isn't pooled.
+                this.misses++;
+                return this.delegate.createServerSocket();
+            }
+            final Listener listener = this.idle.pollLast();
+            this.outstanding++;
+            if (listener != null) {
+                this.hits++;
+                listener.lastUsed = System.currentTimeMillis();
+                this.lent.add(listener);
+                return listener.socket;
+            }
+            this.misses++;
+        }
+        try {
+            final Listener listener = newListener(0);
+            synchronized (this) {
+                this.lent.add(listener);
+            }
+            return listener.socket;
+        } catch (final IOException e) {
+            synchronized (this) {
+                this.outstanding--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Binds fresh listeners up to the minimum and closes ones that have
+     * been idle too long.
+     */
+    private void maintain() {
+        final LinkedList<Listener> expired = new LinkedList<Listener>();
+        int missing;
+        synchronized (this) {
+            final long cutoff = System.currentTimeMillis() - this.idleMillis;
+            final Iterator<Listener> it = this.idle.iterator();
+            while (it.hasNext() && this.idle.size() > this.minIdle) {
+                final Listener listener = it.next();
+                if (listener.lastUsed < cutoff) {
+                    it.remove();
+                    expired.add(listener);
+                }
+            }
+            missing = Math.min(this.minIdle - this.idle.size(),
+                this.maxListeners - this.outstanding - this.idle.size());
+        }
+        for (final Listener listener : expired) {
+            listener.discard();
+        }
+        while (missing-- > 0) {
+            try {
+                offer(newListener(0));
+            } catch (final IOException e) {
+                log.warn("Could not pre-bind listener", e);
+                return;
+            }
+        }
+    }
+
+    private Listener newListener(final int port) throws IOException {
+        final ServerSocket socket = bind(port);
+        final Listener listener = new Listener(new PooledServerSocket(socket));
+        listener.mappingIndex = map(socket.getLocalPort());
+        return listener;
+    }
+
+    private ServerSocket bind(final int port) throws IOException {
+        final ServerSocket socket = this.delegate.createServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+            return socket;
+        } catch (final IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private int map(final int port) {
+        if (this.mapper == null) {
+            return -1;
+        }
+        return this.mapper.addNatPmpMapping(PortMappingProtocol.TCP, port,
+            port, new PortMapListener() {
+                public void onPortMap(final int externalPort) {
+                    log.debug("Pre-mapped port {} to {}", port, externalPort);
+                }
+                public void onPortMapError() {
+                    log.debug("Could not pre-map port {}", port);
+                }
+            });
+    }
+
+    private void offer(final Listener listener) {
+        synchronized (this) {
+            if (!this.shutdown) {
+                listener.lastUsed = System.currentTimeMillis();
+                this.idle.addLast(listener);
+                return;
+            }
+        }
+        listener.discard();
+    }
+
+    /**
+     * Called when a pooled listener is closed by its user. The port is
+     * bound again and goes back to the pool with its mapping, unless the
+     * pool is already full.
+     */
+    private void returned(final Listener listener) {
+        final boolean keep;
+        synchronized (this) {
+            this.outstanding--;
+            this.lent.remove(listener);
+            notifyAll();
+            keep = !this.shutdown &&
+                this.idle.size() + this.outstanding < this.maxListeners;
+        }
+        if (!keep) {
+            listener.unmap();
+            return;
+        }
+        try {
+            listener.attach(new PooledServerSocket(
+                bind(listener.socket.getLocalPort())));
+            offer(listener);
+        } catch (final IOException e) {
+            log.debug("Could not rebind port for reuse", e);
+            listener.unmap();
+        }
+    }
+
+    /**
+     * A pooled port with its mapping.
+     */
+    private final class Listener {
+        private volatile PooledServerSocket socket;
+        private int mappingIndex = -1;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Listener(final PooledServerSocket socket) {
+            attach(socket);
+        }
+
+        private void attach(final PooledServerSocket pooled) {
+            this.socket = pooled;
+            pooled.listener = this;
+        }
+
+        private void discard() {
+            closeQuietly();
+            unmap();
+        }
+
+        private void unmap() {
+            if (this.mappingIndex != -1 && mapper != null) {
+                mapper.removeNatPmpMapping(this.mappingIndex);
+                this.mappingIndex = -1;
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                this.socket.inner.close();
+            } catch (final IOException e) {
+                log.debug("Error closing listener", e);
+            }
+        }
+    }
+
+    /**
+     * A listener already bound by the pool to the wildcard address.
+     * Binding it again to an ephemeral port or the port it already has, on
+     * the wildcard address or the address it's bound to, is accepted and
+     * does nothing, so callers written for unbound sockets work unchanged.
+     * Binding it anywhere else fails, since the listener can't move.
+     */
+    private final class PooledServerSocket extends ServerSocket {
+
+        private final ServerSocket inner;
+
+        private volatile Listener listener;
+
+        private boolean closed = false;
+
+        private PooledServerSocket(final ServerSocket inner)
+            throws IOException {
+            this.inner = inner;
+        }
+
+        @Override
+        public void bind(final SocketAddress endpoint) throws IOException {
+            bind(endpoint, 50);
+        }
+
+        @Override
+        public void bind(final SocketAddress endpoint, final int backlog)
+            throws IOException {
+            if (isClosed()) {
+                throw new SocketException("Socket is closed");
+            }
+            if (endpoint == null) {
+                return;
+            }
+            if (!(endpoint instanceof InetSocketAddress)) {
+                throw new IllegalArgumentException("Unsupported address "+
+                    "type: " + endpoint);
+            }
+            final InetSocketAddress address = (InetSocketAddress) endpoint;
+            if (address.isUnresolved()) {
+                throw new SocketException("Unresolved address: " + address);
+            }
+            final int port = address.getPort();
+            final InetAddress host = address.getAddress();
+            if ((port != 0 && port != this.inner.getLocalPort()) ||
+                (!host.isAnyLocalAddress() &&
+                    !host.equals(this.inner.getInetAddress()))) {
+                throw new SocketException("Pooled listener already "+
+                    "bound to " + this.inner.getLocalSocketAddress() +
+                    ", not " + address);
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (final IOException e) {
+                log.debug("Error closing listener", e);
+            }
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            return this.inner.accept();
+        }
+
+        @Override
+        public void close() throws IOException {
+            final Listener owner;
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                owner = this.listener;
+            }
+            this.inner.close();
+            if (owner != null) {
+                returned(owner);
+            }
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return this.inner.getInetAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.inner.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return this.inner.getLocalSocketAddress();
+        }
+
+        @Override
+        public ServerSocketChannel getChannel() {
+            return this.inner.getChannel();
+        }
+
+        @Override
+        public boolean isBound() {
+            return this.inner.isBound();
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return this.closed;
+        }
+
+        @Override
+        public void setSoTimeout(final int timeout) throws SocketException {
+            this.inner.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws IOException {
+            return this.inner.getSoTimeout();
+        }
+
+        @Override
+        public void setReuseAddress(final boolean on) throws SocketException {
+            this.inner.setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException {
+            return this.inner.getReuseAddress();
+        }
+
+        @Override
+        public void setReceiveBufferSize(final int size)
+            throws SocketException {
+            this.inner.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return this.inner.getReceiveBufferSize();
+        }
+
+        @Override
+        public String toString() {
+            return "Pooled" + this.inner;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.littleshoot.p2p;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Socket handed out by {@link PooledProtocolSocketFactory}. Closing it, or
+ * either of its streams, returns the underlying P2P socket to the pool,
+ * as does {@link PooledProtocolSocketFactory#release(Socket)}. Sockets
+ * with an I/O error, a half close or unread data are closed instead.
+ */
+class PooledSocket extends DelegatingSocket {
+
+    private final String peer;
+
+    private final PooledProtocolSocketFactory pool;
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private volatile boolean failed = false;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    PooledSocket(final Socket socket, final String peer,
+        final PooledProtocolSocketFactory pool) throws IOException {
+        super(socket);
+        this.peer = peer;
+        this.pool = pool;
+        this.in = new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (final IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (final IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            @Override
+            public void close() {
+                finish(true);
+            }
+        };
+        this.out = new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(final int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (final IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (final IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (final IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            @Override
+            public void close() {
+                finish(true);
+            }
+        };
+    }
+
+    /**
+     * Checks whether an idle socket can be reused. The remote side may have
+     * closed it, or sent data nobody asked for, while it sat in the pool.
+     * This only sees what has already arrived, and data still in flight on
+     * a UDT or relayed socket can show up after the check, which is why
+     * sockets only go back in the pool when their user says the exchange
+     * on them is complete.
+     *
+     * @param socket The idle socket.
+     * @return <code>true</code> if the socket looks usable.
+     */
+    static boolean isHealthy(final Socket socket) {
+        if (socket.isClosed() || !socket.isConnected() ||
+            socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            if (socket.getInputStream().available() > 0) {
+                return false;
+            }
+            final int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                // Any byte or EOF here means the socket can't be reused.
+                socket.getInputStream().read();
+                return false;
+            } catch (final SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the underlying socket to the pool it came from, unless an
+     * I/O error was seen on it or data is waiting to be read.
+     */
+    void returnToPool() {
+        finish(true);
+    }
+
+    boolean isFrom(final PooledProtocolSocketFactory factory) {
+        return this.pool == factory;
+    }
+
+    private void finish(final boolean reuse) {
+        if (this.released.compareAndSet(false, true)) {
+            this.pool.returned(this.peer, this.socket,
+                reuse && !this.failed && !hasUnread());
+        }
+    }
+
+    /**
+     * Returns whether data has arrived that the user didn't read, such as
+     * the rest of a response body HttpClient gave up on. The next user
+     * would read it as the start of its own response.
+     */
+    private boolean hasUnread() {
+        try {
+            return this.socket.getInputStream().available() > 0;
+        } catch (final IOException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return this.out;
+    }
+
+    @Override
+    public void close() {
+        finish(true);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.released.get() || this.socket.isClosed();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        // A half closed socket can't go back in the pool.
+        this.failed = true;
+        this.socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.failed = true;
+        this.socket.shutdownOutput();
+    }
+
+    private void checkOpen() throws SocketException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledSocket [peer=" + peer + ", socket=" + socket + "]";
+    }
+}
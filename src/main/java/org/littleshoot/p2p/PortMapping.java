@@ -0,0 +1,70 @@
+package org.littleshoot.p2p;
+
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+
+/**
+ * A port mapping granted by a gateway.
+ */
+public class PortMapping {
+
+    private final PortMappingProtocol protocol;
+
+    private final int internalPort;
+
+    private final int externalPort;
+
+    private final int lifetimeSeconds;
+
+    /**
+     * Creates a new mapping.
+     *
+     * @param protocol The protocol mapped.
+     * @param internalPort The local port.
+     * @param externalPort The port on the gateway's public address.
+     * @param lifetimeSeconds How long the gateway keeps the mapping unless
+     * it's renewed.
+     */
+    public PortMapping(final PortMappingProtocol protocol,
+        final int internalPort, final int externalPort,
+        final int lifetimeSeconds) {
+        this.protocol = protocol;
+        this.internalPort = internalPort;
+        this.externalPort = externalPort;
+        this.lifetimeSeconds = lifetimeSeconds;
+    }
+
+    /**
+     * @return The protocol mapped.
+     */
+    public PortMappingProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return The local port.
+     */
+    public int getInternalPort() {
+        return internalPort;
+    }
+
+    /**
+     * @return The port on the gateway's public address.
+     */
+    public int getExternalPort() {
+        return externalPort;
+    }
+
+    /**
+     * @return How long the gateway keeps the mapping unless it's renewed.
+     */
+    public int getLifetimeSeconds() {
+        return lifetimeSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "PortMapping [protocol=" + protocol + ", internalPort=" +
+            internalPort + ", externalPort=" + externalPort +
+            ", lifetimeSeconds=" + lifetimeSeconds + "]";
+    }
+}
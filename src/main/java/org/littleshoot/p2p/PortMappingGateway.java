@@ -0,0 +1,37 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+
+/**
+ * A gateway that can map ports on its public address to ports on this
+ * host, such as a home router speaking NAT-PMP. Calls block until the
+ * gateway answers.
+ */
+public interface PortMappingGateway {
+
+    /**
+     * Creates or renews a mapping.
+     *
+     * @param protocol The protocol to map.
+     * @param internalPort The local port.
+     * @param suggestedExternalPort The external port we'd like, or 0 for
+     * any. The gateway may grant a different one.
+     * @param lifetimeSeconds How long we'd like the mapping to last.
+     * @return The mapping the gateway granted.
+     * @throws IOException If the gateway doesn't answer or refuses.
+     */
+    PortMapping map(PortMappingProtocol protocol, int internalPort,
+        int suggestedExternalPort, int lifetimeSeconds) throws IOException;
+
+    /**
+     * Removes a mapping.
+     *
+     * @param protocol The protocol mapped.
+     * @param internalPort The local port.
+     * @throws IOException If the gateway doesn't answer or refuses.
+     */
+    void unmap(PortMappingProtocol protocol, int internalPort)
+        throws IOException;
+}
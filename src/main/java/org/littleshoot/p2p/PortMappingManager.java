@@ -0,0 +1,442 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.portmapping.NatPmpService;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps ports on a gateway on behalf of the answerer and offerer servers,
+ * so peers can reach us directly instead of through hole punching or a
+ * relay. Pass it as the NAT PMP service. Requests for the same local port
+ * share one mapping however many times they're made.
+ * <p>
+ * There's no UPnP client here, so a router that only speaks UPnP IGD gets
+ * nothing mapped.
+ * <p>
+ * Requests are handled in batches on a single thread, so a burst of them
+ * goes to the gateway back to back. Mappings are renewed at half their
+ * lease, and a mapping that's no longer used is kept for a while in case
+ * its port is asked for again, which makes the next request for it
+ * immediate. {@link #premap(PortMappingProtocol, int)} maps ports ahead of
+ * time and keeps them until shutdown, retrying for as long as the gateway
+ * refuses them.
+ */
+public class PortMappingManager implements NatPmpService {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(PortMappingManager.class);
+
+    private static final long MAX_RETRY_MILLIS = 30 * 1000;
+
+    private final PortMappingGateway gateway;
+
+    private final int leaseSeconds;
+
+    private final long keepMillis;
+
+    private final long retryMillis;
+
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("P2P-Port-Mapping"));
+
+    private final Map<String, Mapping> mappings =
+        new HashMap<String, Mapping>();
+
+    private final Map<Integer, Mapping> byIndex =
+        new HashMap<Integer, Mapping>();
+
+    private final Set<Mapping> queued = new LinkedHashSet<Mapping>();
+
+    private int nextIndex = 1;
+
+    private boolean draining = false;
+
+    private boolean shutdown = false;
+
+    private long requests = 0;
+
+    private long failures = 0;
+
+    private long totalLatencyNanos = 0;
+
+    private long maxLatencyNanos = 0;
+
+    /**
+     * Creates a new manager.
+     *
+     * @param gateway The gateway to map ports on.
+     * @param leaseSeconds The lease to ask for on each mapping.
+     * @param keepMillis How long to keep a mapping no one is using.
+     */
+    public PortMappingManager(final PortMappingGateway gateway,
+        final int leaseSeconds, final long keepMillis) {
+        this(gateway, leaseSeconds, keepMillis, MAX_RETRY_MILLIS);
+    }
+
+    /**
+     * Creates a new manager that retries failed requests at most the given
+     * time apart.
+     *
+     * @param gateway The gateway to map ports on.
+     * @param leaseSeconds The lease to ask for on each mapping.
+     * @param keepMillis How long to keep a mapping no one is using.
+     * @param retryMillis The longest wait before retrying a failed request.
+     */
+    PortMappingManager(final PortMappingGateway gateway,
+        final int leaseSeconds, final long keepMillis,
+        final long retryMillis) {
+        if (leaseSeconds < 2) {
+            throw new IllegalArgumentException("Lease too short to renew");
+        }
+        this.gateway = gateway;
+        this.leaseSeconds = leaseSeconds;
+        this.keepMillis = keepMillis;
+        this.retryMillis = retryMillis;
+    }
+
+    public int addNatPmpMapping(final PortMappingProtocol protocol,
+        final int localPort, final int externalPortRequested,
+        final PortMapListener portMapListener) {
+        return add(protocol, localPort, externalPortRequested,
+            portMapListener);
+    }
+
+    public void removeNatPmpMapping(final int mappingIndex) {
+        remove(mappingIndex);
+    }
+
+    /**
+     * Maps the given local port ahead of time and keeps the mapping until
+     * shutdown, so later requests for it don't wait on the gateway.
+     *
+     * @param protocol The protocol to map.
+     * @param localPort The local port.
+     */
+    public synchronized void premap(final PortMappingProtocol protocol,
+        final int localPort) {
+        if (this.shutdown) {
+            return;
+        }
+        final Mapping mapping = mapping(protocol, localPort, 0);
+        mapping.pinned = true;
+        if (mapping.release != null) {
+            mapping.release.cancel(false);
+            mapping.release = null;
+        }
+    }
+
+    /**
+     * Returns the number of requests sent to the gateway, including
+     * renewals.
+     *
+     * @return The number of requests.
+     */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * Returns the number of requests the gateway refused or didn't answer.
+     *
+     * @return The number of failures.
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Returns the average time the gateway took to answer, in milliseconds.
+     *
+     * @return The average latency.
+     */
+    public synchronized double getAverageLatencyMillis() {
+        if (requests == 0) {
+            return 0;
+        }
+        return totalLatencyNanos / (requests * 1000000.0);
+    }
+
+    /**
+     * Returns the longest time the gateway took to answer, in milliseconds.
+     *
+     * @return The maximum latency.
+     */
+    public synchronized long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos);
+    }
+
+    /**
+     * Removes every mapping from the gateway and stops renewing. Calling
+     * this more than once, as happens when one instance is both the NAT
+     * PMP and UPnP service, is harmless.
+     */
+    public void shutdown() {
+        final List<Mapping> active;
+        synchronized (this) {
+            if (this.shutdown) {
+                return;
+            }
+            this.shutdown = true;
+            active = new ArrayList<Mapping>(this.mappings.values());
+            this.mappings.clear();
+            this.byIndex.clear();
+            this.queued.clear();
+        }
+        this.scheduler.shutdownNow();
+        for (final Mapping mapping : active) {
+            if (mapping.externalPort > 0) {
+                try {
+                    this.gateway.unmap(mapping.protocol, mapping.localPort);
+                } catch (final IOException e) {
+                    log.debug("Could not remove mapping", e);
+                }
+            }
+        }
+    }
+
+    private int add(final PortMappingProtocol protocol, final int localPort,
+        final int externalPortRequested, final PortMapListener listener) {
+        final int index;
+        final int mapped;
+        final boolean failed;
+        synchronized (this) {
+            if (this.shutdown) {
+                return 0;
+            }
+            index = this.nextIndex++;
+            final Mapping mapping =
+                mapping(protocol, localPort, externalPortRequested);
+            mapping.listeners.put(index, listener);
+            if (mapping.release != null) {
+                mapping.release.cancel(false);
+                mapping.release = null;
+            }
+            this.byIndex.put(index, mapping);
+            mapped = mapping.externalPort;
+            failed = mapped == 0 && mapping.reported;
+        }
+        if (mapped > 0) {
+            listener.onPortMap(mapped);
+        } else if (failed) {
+            // We're still retrying, but let the caller get on without it.
+            listener.onPortMapError();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the mapping for the given port, queuing a request for it if
+     * it's new. Called with the lock held.
+     */
+    private Mapping mapping(final PortMappingProtocol protocol,
+        final int localPort, final int externalPortRequested) {
+        final String key = protocol + ":" + localPort;
+        Mapping mapping = this.mappings.get(key);
+        if (mapping == null) {
+            mapping = new Mapping(protocol, localPort, externalPortRequested);
+            this.mappings.put(key, mapping);
+            this.queued.add(mapping);
+            if (!this.draining) {
+                this.draining = true;
+                this.scheduler.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            }
+        }
+        return mapping;
+    }
+
+    private void remove(final int index) {
+        synchronized (this) {
+            final Mapping mapping = this.byIndex.remove(index);
+            if (mapping == null) {
+                return;
+            }
+            mapping.listeners.remove(index);
+            if (!mapping.listeners.isEmpty() || mapping.pinned ||
+                this.shutdown) {
+                return;
+            }
+            mapping.release = this.scheduler.schedule(new Runnable() {
+                public void run() {
+                    release(mapping);
+                }
+            }, this.keepMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void release(final Mapping mapping) {
+        synchronized (this) {
+            if (!mapping.listeners.isEmpty() || this.shutdown) {
+                return;
+            }
+            this.mappings.remove(mapping.protocol + ":" + mapping.localPort);
+            this.queued.remove(mapping);
+            if (mapping.renewal != null) {
+                mapping.renewal.cancel(false);
+            }
+        }
+        if (mapping.externalPort > 0) {
+            log.debug("Removing unused mapping for port {}",
+                mapping.localPort);
+            try {
+                this.gateway.unmap(mapping.protocol, mapping.localPort);
+            } catch (final IOException e) {
+                log.debug("Could not remove mapping", e);
+            }
+        }
+    }
+
+    /**
+     * Sends every queued request to the gateway, including any that arrive
+     * while we're at it. Runs on the scheduler thread.
+     */
+    private void drain() {
+        while (true) {
+            final Mapping mapping;
+            synchronized (this) {
+                if (this.queued.isEmpty() || this.shutdown) {
+                    this.draining = false;
+                    return;
+                }
+                mapping = this.queued.iterator().next();
+                this.queued.remove(mapping);
+            }
+            request(mapping);
+        }
+    }
+
+    /**
+     * Creates or renews a mapping. Runs on the scheduler thread.
+     */
+    private void request(final Mapping mapping) {
+        final int suggested = mapping.externalPort > 0 ?
+            mapping.externalPort : mapping.externalPortRequested;
+        final long start = System.nanoTime();
+        PortMapping granted = null;
+        IOException error = null;
+        try {
+            granted = this.gateway.map(mapping.protocol, mapping.localPort,
+                suggested, this.leaseSeconds);
+        } catch (final IOException e) {
+            error = e;
+        }
+        final long latency = System.nanoTime() - start;
+        final List<PortMapListener> listeners;
+        final boolean changed;
+        synchronized (this) {
+            this.requests++;
+            this.totalLatencyNanos += latency;
+            this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latency);
+            if (this.shutdown ||
+                this.mappings.get(mapping.protocol + ":" +
+                    mapping.localPort) != mapping) {
+                // Released or shut down while we were asking.
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (granted != null) {
+                changed = granted.getExternalPort() != mapping.externalPort;
+                mapping.externalPort = granted.getExternalPort();
+                mapping.expires = now + granted.getLifetimeSeconds() * 1000L;
+                scheduleRenewal(mapping,
+                    granted.getLifetimeSeconds() * 1000L / 2);
+            } else {
+                this.failures++;
+                log.debug("Could not map port "+mapping.localPort, error);
+                // Keep trying while the old lease lasts, and report the
+                // failure once it has run out.
+                final long remaining = mapping.expires - now;
+                changed = mapping.externalPort > 0 && remaining <= 0;
+                if (remaining > 0) {
+                    scheduleRenewal(mapping,
+                        Math.min(this.retryMillis, remaining / 2));
+                } else {
+                    mapping.externalPort = 0;
+                    // Premapped ports are kept until shutdown, so keep
+                    // asking for them as for ports someone's waiting on.
+                    if (mapping.listeners.isEmpty() && !mapping.pinned) {
+                        this.mappings.remove(
+                            mapping.protocol + ":" + mapping.localPort);
+                    } else {
+                        scheduleRenewal(mapping, this.retryMillis);
+                    }
+                }
+            }
+            if (!changed && mapping.reported) {
+                return;
+            }
+            mapping.reported = true;
+            listeners =
+                new ArrayList<PortMapListener>(mapping.listeners.values());
+        }
+        for (final PortMapListener listener : listeners) {
+            try {
+                if (granted != null) {
+                    listener.onPortMap(granted.getExternalPort());
+                } else {
+                    listener.onPortMapError();
+                }
+            } catch (final RuntimeException e) {
+                log.warn("Port map listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void scheduleRenewal(final Mapping mapping, final long delay) {
+        mapping.renewal = this.scheduler.schedule(new Runnable() {
+            public void run() {
+                request(mapping);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A mapping for one local port, shared by every request for it.
+     * Guarded by the manager.
+     */
+    private static final class Mapping {
+        private final PortMappingProtocol protocol;
+        private final int localPort;
+        private final int externalPortRequested;
+        private final Map<Integer, PortMapListener> listeners =
+            new LinkedHashMap<Integer, PortMapListener>();
+        private int externalPort = 0;
+        private long expires = 0;
+        private boolean pinned = false;
+        private boolean reported = false;
+        private ScheduledFuture<?> renewal;
+        private ScheduledFuture<?> release;
+
+        private Mapping(final PortMappingProtocol protocol,
+            final int localPort, final int externalPortRequested) {
+            this.protocol = protocol;
+            this.localPort = localPort;
+            this.externalPortRequested = externalPortRequested;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Candidate provider that probes all the servers from another provider
+ * concurrently and ranks them by measured round trip time and loss. The
+ * ranking is refreshed in the background, so {@link #getCandidate()} never
+ * blocks on the network. Before the first round completes the servers are
+ * returned in the order of the underlying provider.
+ * <p>
+ * To spread load, {@link #getCandidate()} picks randomly among the servers
+ * scoring within {@link #NEAR_BEST_FACTOR} of the best one.
+ * <p>
+ * With {@link #startOnFirstUse()} probing waits until the servers are
+ * first asked for, so nothing goes out for a process that never uses them.
+ */
+public class ProbingCandidateProvider
+    implements CandidateProvider<InetSocketAddress> {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log = 
+        LoggerFactory.getLogger(ProbingCandidateProvider.class);
+
+    /**
+     * Servers scoring within this factor of the best server are considered
+     * equally good.
+     */
+    public static final double NEAR_BEST_FACTOR = 1.25;
+
+    /**
+     * Weight of the newest sample in the smoothed round trip time and loss.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final CandidateProvider<InetSocketAddress> servers;
+
+    private final ServerProbe probe;
+
+    private final int probesPerRound;
+
+    private final long refreshMillis;
+
+    private final Map<InetSocketAddress, ServerStats> stats =
+        new HashMap<InetSocketAddress, ServerStats>();
+
+    private volatile List<ServerStats> ranking =
+        Collections.emptyList();
+
+    private final Random random = new Random();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService probeExecutor;
+
+    private volatile Runnable refreshListener;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private volatile boolean startOnFirstUse = false;
+
+    /**
+     * Creates a new provider. Call {@link #start()} to begin probing.
+     *
+     * @param servers The provider for the servers to rank.
+     * @param probe The probe for measuring each server.
+     * @param probesPerRound The number of probes to send to each server in
+     * each round, used to measure loss.
+     * @param refreshMillis The time between probing rounds.
+     */
+    public ProbingCandidateProvider(
+        final CandidateProvider<InetSocketAddress> servers,
+        final ServerProbe probe, final int probesPerRound,
+        final long refreshMillis) {
+        this.servers = servers;
+        this.probe = probe;
+        this.probesPerRound = probesPerRound;
+        this.refreshMillis = refreshMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("Server-Ranking"));
+        this.probeExecutor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Server-Probe"));
+    }
+
+    /**
+     * Starts probing servers in the background. Starting again, or after
+     * {@link #stop()}, does nothing.
+     */
+    public void start() {
+        if (!this.started.compareAndSet(false, true)) {
+            return;
+        }
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (final RuntimeException e) {
+                    log.warn("Error ranking servers", e);
+                }
+            }
+        }, 0, this.refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts probing on the first call to {@link #getCandidates()} or
+     * {@link #getCandidate()} instead of right away. The first call
+     * returns the servers unranked.
+     */
+    public void startOnFirstUse() {
+        this.startOnFirstUse = true;
+    }
+
+    /**
+     * Starts probing if it's meant to start on first use.
+     */
+    void used() {
+        if (this.startOnFirstUse) {
+            start();
+        }
+    }
+
+    /**
+     * Returns whether probing has started.
+     *
+     * @return <code>true</code> if probing has started or been stopped.
+     */
+    public boolean isStarted() {
+        return this.started.get();
+    }
+
+    /**
+     * Stops all background probing.
+     */
+    public void stop() {
+        this.started.set(true);
+        this.scheduler.shutdownNow();
+        this.probeExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs a single round of probes against all servers concurrently and
+     * updates the ranking.
+     */
+    public void refresh() {
+        final Collection<InetSocketAddress> candidates =
+            this.servers.getCandidates();
+        if (candidates == null || candidates.isEmpty()) {
+            log.debug("No servers to probe");
+            return;
+        }
+        final Map<InetSocketAddress, Future<long[]>> results =
+            new HashMap<InetSocketAddress, Future<long[]>>();
+        try {
+            for (final InetSocketAddress server : candidates) {
+                results.put(server, this.probeExecutor.submit(
+                    new Callable<long[]>() {
+                        public long[] call() {
+                            return probeServer(server);
+                        }
+                    }));
+            }
+        } catch (final RejectedExecutionException e) {
+            // Stopped while this round was starting.
+            for (final Future<long[]> future : results.values()) {
+                future.cancel(true);
+            }
+            return;
+        }
+        final List<ServerStats> updated = new ArrayList<ServerStats>();
+        for (final Map.Entry<InetSocketAddress, Future<long[]>> entry :
+            results.entrySet()) {
+            long[] rtts;
+            try {
+                rtts = entry.getValue().get(this.refreshMillis,
+                    TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ExecutionException e) {
+                log.debug("Probe failed", e);
+                rtts = new long[0];
+            } catch (final TimeoutException e) {
+                entry.getValue().cancel(true);
+                rtts = new long[0];
+            }
+            updated.add(record(entry.getKey(), rtts));
+        }
+        Collections.sort(updated, new Comparator<ServerStats>() {
+            public int compare(final ServerStats s1, final ServerStats s2) {
+                return Double.compare(s1.score(), s2.score());
+            }
+        });
+        log.debug("Server ranking: {}", updated);
+        this.ranking = Collections.unmodifiableList(updated);
+        final Runnable listener = this.refreshListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets a task to run after each probing round.
+     *
+     * @param listener The task.
+     */
+    void setRefreshListener(final Runnable listener) {
+        this.refreshListener = listener;
+    }
+
+    /**
+     * Returns the score of a server, lower being better.
+     *
+     * @param server The server.
+     * @return The score, {@link Double#MAX_VALUE} if the server stopped
+     * answering, or -1 if it hasn't been probed yet.
+     */
+    double getScore(final InetSocketAddress server) {
+        synchronized (this.stats) {
+            final ServerStats serverStats = this.stats.get(server);
+            return serverStats == null ? -1 : serverStats.score();
+        }
+    }
+
+    private long[] probeServer(final InetSocketAddress server) {
+        final long[] rtts = new long[this.probesPerRound];
+        for (int i = 0; i < this.probesPerRound; i++) {
+            try {
+                rtts[i] = this.probe.probe(server);
+            } catch (final IOException e) {
+                log.debug("Could not probe "+server, e);
+                rtts[i] = -1;
+            }
+        }
+        return rtts;
+    }
+
+    private ServerStats record(final InetSocketAddress server,
+        final long[] rtts) {
+        synchronized (this.stats) {
+            ServerStats serverStats = this.stats.get(server);
+            if (serverStats == null) {
+                serverStats = new ServerStats(server);
+                this.stats.put(server, serverStats);
+            }
+            serverStats.update(rtts, this.probesPerRound);
+            return serverStats;
+        }
+    }
+
+    /**
+     * Returns the servers ordered from best to worst. Servers we haven't
+     * ranked yet come after the ranked ones, in the underlying provider's
+     * order. Servers the underlying provider no longer returns are left
+     * out, so this is empty when it returns nothing.
+     */
+    public Collection<InetSocketAddress> getCandidates() {
+        used();
+        final List<ServerStats> ranked = this.ranking;
+        final Collection<InetSocketAddress> all =
+            this.servers.getCandidates();
+        if (all == null) {
+            return new ArrayList<InetSocketAddress>(0);
+        }
+        final List<InetSocketAddress> candidates =
+            new ArrayList<InetSocketAddress>(all.size());
+        for (final ServerStats serverStats : ranked) {
+            if (all.contains(serverStats.server)) {
+                candidates.add(serverStats.server);
+            }
+        }
+        for (final InetSocketAddress server : all) {
+            if (!candidates.contains(server)) {
+                candidates.add(server);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns one of the best servers from the latest ranking.
+     */
+    public InetSocketAddress getCandidate() {
+        used();
+        final List<ServerStats> ranked = this.ranking;
+        if (ranked.isEmpty() || !ranked.get(0).isReachable()) {
+            final Collection<InetSocketAddress> all =
+                this.servers.getCandidates();
+            if (all == null || all.isEmpty()) {
+                return null;
+            }
+            return all.iterator().next();
+        }
+        final double cutoff = ranked.get(0).score() * NEAR_BEST_FACTOR;
+        int nearBest = 1;
+        while (nearBest < ranked.size() &&
+            ranked.get(nearBest).score() <= cutoff) {
+            nearBest++;
+        }
+        return ranked.get(this.random.nextInt(nearBest)).server;
+    }
+
+    /**
+     * Smoothed measurements for a single server.
+     */
+    private static final class ServerStats {
+
+        private final InetSocketAddress server;
+
+        private volatile double rttMillis = Double.NaN;
+
+        private volatile double loss = 0.0;
+
+        private ServerStats(final InetSocketAddress server) {
+            this.server = server;
+        }
+
+        private void update(final long[] rtts, final int sent) {
+            int received = 0;
+            long total = 0;
+            for (final long rtt : rtts) {
+                if (rtt >= 0) {
+                    received++;
+                    total += rtt;
+                }
+            }
+            final double roundLoss =
+                sent == 0 ? 1.0 : 1.0 - (double) received / sent;
+            this.loss = SMOOTHING * roundLoss + (1 - SMOOTHING) * this.loss;
+            if (received > 0) {
+                final double roundRtt = total / (double) received / 1000000.0;
+                if (Double.isNaN(this.rttMillis)) {
+                    this.rttMillis = roundRtt;
+                } else {
+                    this.rttMillis =
+                        SMOOTHING * roundRtt + (1 - SMOOTHING) * this.rttMillis;
+                }
+            } else if (roundLoss >= 1.0) {
+                // Nothing came back this round, so don't trust the old RTT.
+                this.rttMillis = Double.NaN;
+            }
+        }
+
+        private boolean isReachable() {
+            return !Double.isNaN(this.rttMillis);
+        }
+
+        /**
+         * Lower is better. Loss is weighted heavily since every lost
+         * request costs a full retransmission timeout.
+         */
+        private double score() {
+            if (!isReachable()) {
+                return Double.MAX_VALUE;
+            }
+            return this.rttMillis * (1.0 + 4.0 * this.loss);
+        }
+
+        @Override
+        public String toString() {
+            return server + " rtt=" + rttMillis + "ms loss=" + loss;
+        }
+    }
+}
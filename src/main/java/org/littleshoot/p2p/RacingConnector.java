@@ -0,0 +1,385 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.lastbamboo.common.p2p.P2PClient;
+import org.littleshoot.util.CandidateProvider;
+import org.littleshoot.util.FiveTuple;
+
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * Creates connections to peers by racing a direct connection against a
+ * relayed one. The direct attempt starts immediately, and the full attempt
+ * that can fall back to a TURN relay starts once the adaptive 
+ * {@link RelayDeadline} passes or the direct attempt fails, whichever comes
+ * first. The first connection to succeed wins.
+ * <p>
+ * With a {@link NetworkCache}, the relayed attempt starts right away when
+ * the last connection to the peer needed a relay or our NAT maps each
+ * destination to a different port, since waiting on the direct attempt
+ * would only delay the relay. Winning paths are recorded in the cache.
+ * <p>
+ * With an eager relay, set with {@link P2PConfig#setEagerRelay(boolean)},
+ * both attempts start together, so the relay allocation no longer holds up
+ * the checks on the direct pairs or waits on them. That costs a second
+ * offer/answer exchange and a second session on the remote peer for each
+ * such connection, so it's off by default.
+ * <p>
+ * Unless the metrics are the no-op ones, winning sockets come wrapped in a
+ * {@link MeteredSocket} that reports the bytes they carry under the
+ * transport they were made with.
+ * <p>
+ * The builders in {@link P2P}, {@link P2PSockets} and {@link P2PEndpoints}
+ * return clients made by {@link #newRacingClient}, so both their
+ * <code>newSocket</code> and the socket factory they register for their
+ * protocol go through the race.
+ * 
+ * @param <T> The type of connection, such as a socket.
+ */
+public class RacingConnector<T> {
+
+    /**
+     * The name of the attempt using only direct TCP or UDT paths.
+     */
+    public static final String DIRECT = "direct";
+
+    /**
+     * The name of the attempt that can also use a TURN relay.
+     */
+    public static final String RELAYED = "relayed";
+
+    private final P2PClient<T> client;
+
+    private final P2PConfig config;
+
+    private final CandidateProvider<InetSocketAddress> relays;
+
+    /**
+     * Creates a new connector. Unless the client is a racing client that
+     * knows its relays, connections through a relay are reported as
+     * {@link Transport#TCP}.
+     * 
+     * @param client The client to create connections with.
+     * @param config The client's configuration.
+     */
+    public RacingConnector(final P2PClient<T> client, final P2PConfig config) {
+        this(client, config, null);
+    }
+
+    /**
+     * Creates a new connector that knows the relays the client allocates
+     * on, so it can tell relayed connections from direct ones.
+     *
+     * @param client The client to create connections with.
+     * @param config The client's configuration.
+     * @param relays The TURN servers the client uses, or <code>null</code>
+     * if they aren't known.
+     */
+    public RacingConnector(final P2PClient<T> client, final P2PConfig config,
+        final CandidateProvider<InetSocketAddress> relays) {
+        this.client = unwrap(client);
+        this.config = config;
+        this.relays = relays == null ? relays(client) : relays;
+    }
+
+    /**
+     * Returns a client that behaves exactly like the given one except that
+     * {@link P2PClient#newSocket(URI)} races a direct attempt against the
+     * relayed one. Every other method, including
+     * {@link P2PClient#newUnrelayedSocket(URI)}, goes straight to the
+     * client.
+     *
+     * @param <C> The type of client.
+     * @param type The client interface the returned client implements.
+     * @param client The client to create connections with.
+     * @param config The client's configuration.
+     * @return The racing client.
+     */
+    public static <C extends P2PClient<?>> C newRacingClient(
+        final Class<C> type, final C client, final P2PConfig config) {
+        return newRacingClient(type, client, config, null);
+    }
+
+    /**
+     * Returns a racing client, like
+     * {@link #newRacingClient(Class, P2PClient, P2PConfig)}, that knows the
+     * relays the client allocates on.
+     *
+     * @param <C> The type of client.
+     * @param type The client interface the returned client implements.
+     * @param client The client to create connections with.
+     * @param config The client's configuration.
+     * @param relays The TURN servers the client uses, or <code>null</code>
+     * if they aren't known.
+     * @return The racing client.
+     */
+    public static <C extends P2PClient<?>> C newRacingClient(
+        final Class<C> type, final C client, final P2PConfig config,
+        final CandidateProvider<InetSocketAddress> relays) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+            new Class<?>[] {type}, new Racing(client, config, relays)));
+    }
+
+    /**
+     * Returns the client behind a racing client, so a connector built on
+     * one doesn't race each of its attempts again.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> P2PClient<T> unwrap(final P2PClient<T> client) {
+        final Racing racing = racing(client);
+        return racing == null ? client : (P2PClient<T>) racing.client;
+    }
+
+    private static CandidateProvider<InetSocketAddress> relays(
+        final P2PClient<?> client) {
+        final Racing racing = racing(client);
+        return racing == null ? null : racing.connector.relays;
+    }
+
+    private static Racing racing(final P2PClient<?> client) {
+        if (Proxy.isProxyClass(client.getClass())) {
+            final InvocationHandler handler =
+                Proxy.getInvocationHandler(client);
+            if (handler instanceof Racing) {
+                return (Racing) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connects to the given peer.
+     * 
+     * @param uri The URI of the peer.
+     * @return The winning connection and how it was made.
+     * @throws IOException If no connection could be established before the
+     * maximum relay deadline.
+     */
+    public ConnectionRace.Result<T> connect(final URI uri) throws IOException {
+        final RelayDeadline deadline = this.config.getRelayDeadline();
+        final P2PMetrics metrics = this.config.getMetrics();
+        final NetworkCache cache = this.config.getNetworkCache();
+        final String peer = uri.toString();
+        final long start = System.nanoTime();
+        final List<ConnectionRace.Attempt<T>> attempts = 
+            new ArrayList<ConnectionRace.Attempt<T>>(2);
+        attempts.add(new ConnectionRace.Attempt<T>(DIRECT, 0, 
+            new Callable<T>() {
+                public T call() throws Exception {
+                    final long started = System.nanoTime();
+                    try {
+                        final T conn = client.newUnrelayedSocket(uri);
+                        metrics.connectionAttempt(transport(conn, false),
+                            System.nanoTime() - started, true);
+                        return conn;
+                    } catch (final Exception e) {
+                        metrics.connectionAttempt(null,
+                            System.nanoTime() - started, false);
+                        throw e;
+                    }
+                }
+            }));
+        attempts.add(new ConnectionRace.Attempt<T>(RELAYED, 
+            relayDelayMillis(cache, peer, deadline,
+                this.config.isEagerRelay()),
+            new Callable<T>() {
+                public T call() throws Exception {
+                    final long started = System.nanoTime();
+                    try {
+                        final T conn = client.newSocket(uri);
+                        metrics.connectionAttempt(transport(conn, true),
+                            System.nanoTime() - started, true);
+                        return conn;
+                    } catch (final Exception e) {
+                        metrics.connectionAttempt(null,
+                            System.nanoTime() - started, false);
+                        throw e;
+                    }
+                }
+            }));
+        final ConnectionRace.Result<T> result;
+        try {
+            result = new ConnectionRace<T>(this.config.getExecutor(),
+                this.config.getCloser()).race(attempts,
+                deadline.getMaxMillis());
+        } catch (final IOException e) {
+            metrics.connectionFailed(System.nanoTime() - start);
+            throw e;
+        }
+        final boolean direct = DIRECT.equals(result.getName());
+        if (direct) {
+            deadline.recordDirectSuccess(result.getElapsedMillis());
+        }
+        final Transport transport =
+            transport(result.getConnection(), !direct);
+        metrics.connectionEstablished(transport, System.nanoTime() - start);
+        if (cache != null) {
+            record(cache, peer, transport, result.getConnection());
+        }
+        if (result.getConnection() instanceof Socket &&
+            !(metrics instanceof NoopP2PMetrics)) {
+            return result.withConnection(
+                metered(result.getConnection(), transport, metrics));
+        }
+        return result;
+    }
+
+    /**
+     * Wraps a socket so the bytes it carries are reported under its
+     * transport.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T metered(final T conn, final Transport transport,
+        final P2PMetrics metrics) throws IOException {
+        final Socket sock = (Socket) conn;
+        try {
+            return (T) new MeteredSocket(sock, transport, metrics);
+        } catch (final IOException e) {
+            sock.close();
+            throw e;
+        }
+    }
+
+    private static long relayDelayMillis(final NetworkCache cache,
+        final String peer, final RelayDeadline deadline,
+        final boolean eagerRelay) {
+        if (cache == null) {
+            return eagerRelay ? 0 : deadline.getDeadlineMillis();
+        }
+        final List<NetworkCache.KnownPair> pairs = cache.getKnownPairs(peer);
+        if (eagerRelay) {
+            // Only hold the relay back for peers we know we reach directly.
+            return !pairs.isEmpty() &&
+                pairs.get(0).getTransport() != Transport.TURN ?
+                deadline.getDeadlineMillis() : 0;
+        }
+        if (!pairs.isEmpty() && 
+            pairs.get(0).getTransport() == Transport.TURN) {
+            return 0;
+        }
+        final NatBehaviorDiscovery.Result profile = cache.getProfile();
+        if (pairs.isEmpty() && profile != null && 
+            profile.getMapping() == NatBehavior.ADDRESS_AND_PORT_DEPENDENT) {
+            return 0;
+        }
+        return deadline.getDeadlineMillis();
+    }
+
+    private static void record(final NetworkCache cache, final String peer,
+        final Transport transport, final Object conn) {
+        if (conn instanceof Socket) {
+            final Socket sock = (Socket) conn;
+            cache.recordSuccess(peer, transport, 
+                address(sock.getLocalSocketAddress()),
+                address(sock.getRemoteSocketAddress()));
+        } else {
+            cache.recordSuccess(peer, transport, null, null);
+        }
+    }
+
+    private static InetSocketAddress address(final SocketAddress address) {
+        return address instanceof InetSocketAddress ? 
+            (InetSocketAddress) address : null;
+    }
+
+    /**
+     * Works out the transport of a connection. The direct attempt never
+     * uses a relay, but the relayed attempt usually still nominates a
+     * direct pair, so its connections only count as relayed when the peer
+     * end is on one of our TURN servers. UDT sockets are barchart's own
+     * class. Other sockets are TCP, and endpoints are UDT since that's what
+     * runs over them.
+     */
+    private Transport transport(final Object conn, final boolean relayed) {
+        final InetSocketAddress remote;
+        if (conn instanceof NetSocketUDT) {
+            return Transport.UDT;
+        } else if (conn instanceof Socket) {
+            remote = address(((Socket) conn).getRemoteSocketAddress());
+        } else if (conn instanceof FiveTuple) {
+            remote = ((FiveTuple) conn).getRemote();
+        } else {
+            remote = null;
+        }
+        if (relayed && isRelay(remote)) {
+            return Transport.TURN;
+        }
+        return conn instanceof Socket ? Transport.TCP : Transport.UDT;
+    }
+
+    private boolean isRelay(final InetSocketAddress remote) {
+        if (remote == null || remote.getAddress() == null ||
+            this.relays == null) {
+            return false;
+        }
+        // Allocations are on the relay's host, but not on its port.
+        final Collection<InetSocketAddress> servers =
+            this.relays.getCandidates();
+        if (servers == null) {
+            return false;
+        }
+        for (final InetSocketAddress server : servers) {
+            if (remote.getAddress().equals(server.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends <code>newSocket</code> calls on a racing client through a
+     * {@link RacingConnector} and everything else to the client.
+     */
+    private static final class Racing implements InvocationHandler {
+
+        private final Object client;
+
+        private final RacingConnector<Object> connector;
+
+        @SuppressWarnings("unchecked")
+        private Racing(final P2PClient<?> client, final P2PConfig config,
+            final CandidateProvider<InetSocketAddress> relays) {
+            this.client = client;
+            this.connector = new RacingConnector<Object>(
+                (P2PClient<Object>) client, config, relays);
+        }
+
+        public Object invoke(final Object proxy, final Method method,
+            final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                final String name = method.getName();
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("toString")) {
+                    return "Racing " + this.client;
+                }
+            }
+            if (method.getName().equals("newSocket") && args != null &&
+                args.length == 1 && args[0] instanceof URI) {
+                return this.connector.connect((URI) args[0]).getConnection();
+            }
+            try {
+                return method.invoke(this.client, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.littleshoot.p2p;
+
+import java.util.Arrays;
+
+/**
+ * Adaptive deadline for falling back to a relay. The deadline tracks how
+ * long direct connections actually take to succeed, so peers that connect
+ * directly in a few hundred milliseconds don't wait half a minute before
+ * trying the relay when the direct path is blocked.
+ * <p>
+ * The deadline is a multiple of a high percentile of recent successful
+ * direct connection times, clamped between a minimum and a maximum. Until
+ * there are enough samples the initial deadline is used.
+ */
+public class RelayDeadline {
+
+    /**
+     * The number of recent direct connection times we keep.
+     */
+    private static final int WINDOW = 32;
+
+    /**
+     * The number of samples needed before we trust the percentile.
+     */
+    private static final int MIN_SAMPLES = 4;
+
+    /**
+     * The percentile of direct connection times we base the deadline on.
+     */
+    private static final double PERCENTILE = 0.9;
+
+    /**
+     * Head room on top of the percentile.
+     */
+    private static final double MULTIPLIER = 1.5;
+
+    private final long minMillis;
+
+    private final long maxMillis;
+
+    private final long initialMillis;
+
+    private final long[] samples = new long[WINDOW];
+
+    private int sampleCount = 0;
+
+    private int next = 0;
+
+    /**
+     * Creates a deadline starting at 5 seconds and adapting between 1 and 30
+     * seconds.
+     */
+    public RelayDeadline() {
+        this(1000, 30 * 1000, 5000);
+    }
+
+    /**
+     * Creates a new deadline.
+     *
+     * @param minMillis The shortest deadline to use.
+     * @param maxMillis The longest deadline to use. This is also the total
+     * time to wait for a connection of any kind.
+     * @param initialMillis The deadline to use until we've measured enough
+     * direct connections.
+     */
+    public RelayDeadline(final long minMillis, final long maxMillis,
+        final long initialMillis) {
+        if (minMillis > maxMillis) {
+            throw new IllegalArgumentException("Min above max");
+        }
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.initialMillis = clamp(initialMillis);
+    }
+
+    /**
+     * Creates a deadline that doesn't adapt.
+     *
+     * @param millis The fixed deadline.
+     * @return The new deadline.
+     */
+    public static RelayDeadline fixed(final long millis) {
+        return new RelayDeadline(millis, millis, millis);
+    }
+
+    /**
+     * Records the time a successful direct connection took.
+     *
+     * @param millis The connection time.
+     */
+    public synchronized void recordDirectSuccess(final long millis) {
+        this.samples[this.next] = millis;
+        this.next = (this.next + 1) % WINDOW;
+        if (this.sampleCount < WINDOW) {
+            this.sampleCount++;
+        }
+    }
+
+    /**
+     * Returns how long to wait for a direct connection before starting the
+     * relay attempt.
+     *
+     * @return The current deadline, in milliseconds.
+     */
+    public synchronized long getDeadlineMillis() {
+        if (this.sampleCount < MIN_SAMPLES) {
+            return this.initialMillis;
+        }
+        final long[] sorted = Arrays.copyOf(this.samples, this.sampleCount);
+        Arrays.sort(sorted);
+        final int index = Math.min(sorted.length - 1,
+            (int) Math.ceil(PERCENTILE * sorted.length) - 1);
+        return clamp((long) (sorted[Math.max(0, index)] * MULTIPLIER));
+    }
+
+    /**
+     * Returns the longest we'll wait for any connection.
+     *
+     * @return The maximum deadline, in milliseconds.
+     */
+    public long getMaxMillis() {
+        return this.maxMillis;
+    }
+
+    /**
+     * Returns the maximum deadline in whole seconds, rounded up.
+     *
+     * @return The maximum deadline, in seconds.
+     */
+    public int getMaxSeconds() {
+        return (int) ((this.maxMillis + 999) / 1000);
+    }
+
+    /**
+     * Returns the relay wait time for the XMPP clients, in whole seconds
+     * rounded up: the current deadline for direct paths, and as long again
+     * for the relay, up to the maximum. The clients take the wait when
+     * they're built, so clients built on a deadline that has already
+     * learned from earlier connections, such as one shared through
+     * {@link P2PConfig}, get the learned wait.
+     *
+     * @return The relay wait, in seconds.
+     */
+    public int getRelayWaitSeconds() {
+        final long millis = Math.min(this.maxMillis, 2 * getDeadlineMillis());
+        return (int) ((millis + 999) / 1000);
+    }
+
+    private long clamp(final long millis) {
+        return Math.max(this.minMillis, Math.min(this.maxMillis, millis));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RelayDeadline [min=" + minMillis + ", max=" + maxMillis +
+            ", samples=" + sampleCount + "]";
+    }
+}
@@ -0,0 +1,28 @@
+package org.littleshoot.p2p;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Listener for relays in a {@link RelayPool} going out of and back into
+ * service.
+ */
+public interface RelayListener {
+
+    /**
+     * Called when a relay stops answering. New allocations avoid it, and
+     * sessions relayed through it should reconnect to move to another
+     * relay. Relays that answer but are much slower than the others are
+     * only degraded, which doesn't call this.
+     *
+     * @param relay The relay.
+     */
+    void onRelayDown(InetSocketAddress relay);
+
+    /**
+     * Called when a relay that was down is healthy again, for example
+     * after a restart.
+     *
+     * @param relay The relay.
+     */
+    void onRelayUp(InetSocketAddress relay);
+}
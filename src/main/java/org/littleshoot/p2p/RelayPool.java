@@ -0,0 +1,376 @@
+package org.littleshoot.p2p;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of TURN relays that hands out the relay for each new allocation by
+ * measured round trip time and current load instead of always using the
+ * first one DNS returns. Relays are probed in the background. Relays that
+ * fall far behind the best one are degraded and only used after the
+ * healthy ones, and relays that stop answering are down and used last,
+ * until they recover. {@link RelayListener}s hear about relays going down
+ * and coming back so sessions relayed through them can move.
+ * <p>
+ * Load is the number of peers currently relayed to us through each relay,
+ * as reported by the TURN client listener the infrastructure wraps with
+ * {@link RelaySessionTracker}. Looking a relay up doesn't count as an
+ * allocation, since the ICE library asks for relays without always
+ * allocating on them. A relay with as many sessions as its cap isn't
+ * handed out.
+ */
+public class RelayPool implements CandidateProvider<InetSocketAddress> {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(RelayPool.class);
+
+    /**
+     * Relays scoring worse than this multiple of the best relay are
+     * treated as degraded.
+     */
+    private static final double DEGRADED_FACTOR = 4.0;
+
+    private final CandidateProvider<InetSocketAddress> servers;
+
+    private final ProbingCandidateProvider ranking;
+
+    private final int maxAllocationsPerRelay;
+
+    /**
+     * The number of peers relayed through each relay.
+     */
+    private final Map<InetSocketAddress, Integer> sessions =
+        new HashMap<InetSocketAddress, Integer>();
+
+    private final Set<InetSocketAddress> down =
+        new HashSet<InetSocketAddress>();
+
+    private final Set<InetSocketAddress> degraded =
+        new HashSet<InetSocketAddress>();
+
+    private final List<RelayListener> listeners =
+        new CopyOnWriteArrayList<RelayListener>();
+
+    /**
+     * Creates a new pool. Call {@link #start()} to begin probing.
+     *
+     * @param servers The provider for the relays.
+     * @param probe The probe for measuring each relay.
+     * @param probesPerRound The number of probes to send to each relay in
+     * each round.
+     * @param refreshMillis The time between probing rounds, which is also
+     * how quickly a failed relay is noticed.
+     * @param maxAllocationsPerRelay The most relayed sessions to place on
+     * any one relay.
+     */
+    public RelayPool(final CandidateProvider<InetSocketAddress> servers,
+        final ServerProbe probe, final int probesPerRound,
+        final long refreshMillis, final int maxAllocationsPerRelay) {
+        if (maxAllocationsPerRelay < 1) {
+            throw new IllegalArgumentException("Need at least one "+
+                "allocation per relay");
+        }
+        this.servers = servers;
+        this.ranking = new ProbingCandidateProvider(servers, probe,
+            probesPerRound, refreshMillis);
+        this.maxAllocationsPerRelay = maxAllocationsPerRelay;
+        this.ranking.setRefreshListener(new Runnable() {
+            public void run() {
+                checkHealth();
+            }
+        });
+    }
+
+    /**
+     * Starts probing relays in the background. Starting again, or after
+     * {@link #stop()}, does nothing.
+     */
+    public void start() {
+        this.ranking.start();
+    }
+
+    /**
+     * Starts probing on the first call to {@link #getCandidates()} or
+     * {@link #getCandidate()} instead of right away.
+     */
+    public void startOnFirstUse() {
+        this.ranking.startOnFirstUse();
+    }
+
+    /**
+     * Stops all background probing.
+     */
+    public void stop() {
+        this.ranking.stop();
+    }
+
+    /**
+     * Returns whether probing has started.
+     *
+     * @return <code>true</code> if probing has started or been stopped.
+     */
+    public boolean isStarted() {
+        return this.ranking.isStarted();
+    }
+
+    /**
+     * Adds a listener for relays going down and coming back.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(final RelayListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(final RelayListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Picks the relay for a new allocation.
+     *
+     * @return The relay, or <code>null</code> if there are no relays or
+     * every relay is at its cap.
+     */
+    public InetSocketAddress getCandidate() {
+        this.ranking.used();
+        synchronized (this.sessions) {
+            final List<InetSocketAddress> ordered = rank();
+            if (ordered.isEmpty()) {
+                log.warn("Every relay is at its cap of {} sessions",
+                    this.maxAllocationsPerRelay);
+                return null;
+            }
+            return ordered.get(0);
+        }
+    }
+
+    /**
+     * Returns the relays with room for another session, best first.
+     * Degraded relays come after healthy ones, and relays that are down
+     * come last.
+     */
+    public Collection<InetSocketAddress> getCandidates() {
+        this.ranking.used();
+        synchronized (this.sessions) {
+            return rank();
+        }
+    }
+
+    /**
+     * Returns the number of peers currently relayed through a relay.
+     *
+     * @param relay The relay.
+     * @return The number of sessions.
+     */
+    public int getLoad(final InetSocketAddress relay) {
+        synchronized (this.sessions) {
+            return load(relay);
+        }
+    }
+
+    /**
+     * Returns whether a relay has stopped answering.
+     *
+     * @param relay The relay.
+     * @return <code>true</code> if the relay is down.
+     */
+    public boolean isDown(final InetSocketAddress relay) {
+        synchronized (this.sessions) {
+            return this.down.contains(relay);
+        }
+    }
+
+    /**
+     * Returns whether a relay answers, but far more slowly than the best
+     * one.
+     *
+     * @param relay The relay.
+     * @return <code>true</code> if the relay is degraded.
+     */
+    public boolean isDegraded(final InetSocketAddress relay) {
+        synchronized (this.sessions) {
+            return this.degraded.contains(relay);
+        }
+    }
+
+    /**
+     * Returns whether the given address is one of the relays.
+     *
+     * @param address The address.
+     * @return <code>true</code> if it's a relay.
+     */
+    boolean isRelay(final InetSocketAddress address) {
+        final Collection<InetSocketAddress> all = this.servers.getCandidates();
+        return all != null && all.contains(address);
+    }
+
+    /**
+     * Counts a peer newly relayed to us through the given relay.
+     *
+     * @param relay The relay.
+     */
+    void sessionStarted(final InetSocketAddress relay) {
+        synchronized (this.sessions) {
+            this.sessions.put(relay, Integer.valueOf(load(relay) + 1));
+        }
+    }
+
+    /**
+     * Stops counting a peer relayed through the given relay.
+     *
+     * @param relay The relay.
+     */
+    void sessionEnded(final InetSocketAddress relay) {
+        synchronized (this.sessions) {
+            final int load = load(relay);
+            if (load <= 1) {
+                this.sessions.remove(relay);
+            } else {
+                this.sessions.put(relay, Integer.valueOf(load - 1));
+            }
+        }
+    }
+
+    /**
+     * Orders the relays with room to spare by score weighted by load, so
+     * traffic spreads toward idle relays as the best ones fill up. Called
+     * with the lock held.
+     */
+    private List<InetSocketAddress> rank() {
+        final Collection<InetSocketAddress> all = this.servers.getCandidates();
+        if (all == null || all.isEmpty()) {
+            return new ArrayList<InetSocketAddress>(0);
+        }
+        final Map<InetSocketAddress, Double> costs =
+            new HashMap<InetSocketAddress, Double>();
+        final List<InetSocketAddress> open =
+            new ArrayList<InetSocketAddress>(all.size());
+        for (final InetSocketAddress relay : all) {
+            final int load = load(relay);
+            if (load >= this.maxAllocationsPerRelay) {
+                continue;
+            }
+            final double score = this.ranking.getScore(relay);
+            // Relays we haven't probed yet all look equally good.
+            final double base = score < 0 ? 1.0 : score;
+            costs.put(relay, Double.valueOf(
+                base * (1.0 + (double) load / this.maxAllocationsPerRelay)));
+            open.add(relay);
+        }
+        Collections.sort(open, new Comparator<InetSocketAddress>() {
+            public int compare(final InetSocketAddress r1,
+                final InetSocketAddress r2) {
+                final int health = health(r1) - health(r2);
+                if (health != 0) {
+                    return health;
+                }
+                return costs.get(r1).compareTo(costs.get(r2));
+            }
+        });
+        return open;
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private int load(final InetSocketAddress relay) {
+        final Integer load = this.sessions.get(relay);
+        return load == null ? 0 : load.intValue();
+    }
+
+    /**
+     * Orders healthy relays before degraded ones and degraded ones before
+     * those that are down. Called with the lock held.
+     */
+    private int health(final InetSocketAddress relay) {
+        if (this.down.contains(relay)) {
+            return 2;
+        }
+        return this.degraded.contains(relay) ? 1 : 0;
+    }
+
+    /**
+     * Marks relays that stopped answering as down and relays that fell far
+     * behind the best one as degraded, and clears both once they recover.
+     */
+    private void checkHealth() {
+        final Collection<InetSocketAddress> all = this.servers.getCandidates();
+        if (all == null || all.isEmpty()) {
+            return;
+        }
+        double best = Double.MAX_VALUE;
+        for (final InetSocketAddress relay : all) {
+            final double score = this.ranking.getScore(relay);
+            if (score >= 0) {
+                best = Math.min(best, score);
+            }
+        }
+        final List<InetSocketAddress> wentDown =
+            new ArrayList<InetSocketAddress>();
+        final List<InetSocketAddress> cameUp =
+            new ArrayList<InetSocketAddress>();
+        synchronized (this.sessions) {
+            for (final InetSocketAddress relay : all) {
+                final double score = this.ranking.getScore(relay);
+                if (score < 0) {
+                    continue;
+                }
+                final boolean answering = score != Double.MAX_VALUE;
+                if (!answering && this.down.add(relay)) {
+                    wentDown.add(relay);
+                } else if (answering && this.down.remove(relay)) {
+                    cameUp.add(relay);
+                }
+                final boolean slow = answering &&
+                    score > best * DEGRADED_FACTOR;
+                if (slow && this.degraded.add(relay)) {
+                    log.info("Relay {} is degraded", relay);
+                } else if (!slow && this.degraded.remove(relay)) {
+                    log.info("Relay {} is no longer degraded", relay);
+                }
+            }
+        }
+        for (final InetSocketAddress relay : wentDown) {
+            log.info("Relay {} is down", relay);
+            for (final RelayListener listener : this.listeners) {
+                try {
+                    listener.onRelayDown(relay);
+                } catch (final RuntimeException e) {
+                    log.warn("Relay listener threw", e);
+                }
+            }
+        }
+        for (final InetSocketAddress relay : cameUp) {
+            log.info("Relay {} is back up", relay);
+            for (final RelayListener listener : this.listeners) {
+                try {
+                    listener.onRelayUp(relay);
+                } catch (final RuntimeException e) {
+                    log.warn("Relay listener threw", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.littleshoot.p2p;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lastbamboo.common.turn.client.TurnClientListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps the listener the TURN client hands relayed data to, so
+ * {@link RelayPool} learns how many peers are relayed to us through each
+ * relay. A peer's session starts with the first data from it and ends when
+ * the TURN client reports the peer closed, or when the listener itself is
+ * closed.
+ * <p>
+ * The listener is only told about remote peers, so the relay a session is
+ * on comes from the TURN client's connection passed along with the data:
+ * the argument whose remote address is one of the pool's relays. Sessions
+ * that can't be placed on a relay that way aren't counted against any.
+ * Every call is passed on to the wrapped listener unchanged.
+ */
+final class RelaySessionTracker implements InvocationHandler {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(RelaySessionTracker.class);
+
+    private final TurnClientListener listener;
+
+    private final RelayPool pool;
+
+    /**
+     * The relay each peer is relayed through, or <code>null</code> if we
+     * couldn't tell.
+     */
+    private final Map<InetSocketAddress, InetSocketAddress> peers =
+        new HashMap<InetSocketAddress, InetSocketAddress>();
+
+    /**
+     * Wraps the given listener.
+     *
+     * @param listener The listener the TURN client should call.
+     * @param pool The pool to report sessions to.
+     * @return The wrapped listener.
+     */
+    static TurnClientListener wrap(final TurnClientListener listener,
+        final RelayPool pool) {
+        return (TurnClientListener) Proxy.newProxyInstance(
+            TurnClientListener.class.getClassLoader(),
+            new Class<?>[] {TurnClientListener.class},
+            new RelaySessionTracker(listener, pool));
+    }
+
+    private RelaySessionTracker(final TurnClientListener listener,
+        final RelayPool pool) {
+        this.listener = listener;
+        this.pool = pool;
+    }
+
+    public Object invoke(final Object proxy, final Method method,
+        final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() != Object.class) {
+            final String name = method.getName();
+            if (name.equals("onData")) {
+                started(args);
+            } else if (name.equals("onRemoteAddressClosed")) {
+                ended(peer(args));
+            } else if (name.equals("close")) {
+                endAll();
+            }
+        }
+        try {
+            return method.invoke(this.listener, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void started(final Object[] args) {
+        final InetSocketAddress peer = peer(args);
+        if (peer == null) {
+            return;
+        }
+        final InetSocketAddress relay;
+        synchronized (this.peers) {
+            if (this.peers.containsKey(peer)) {
+                return;
+            }
+            relay = relay(args);
+            this.peers.put(peer, relay);
+        }
+        if (relay != null) {
+            log.debug("Peer {} relayed through {}", peer, relay);
+            this.pool.sessionStarted(relay);
+        }
+    }
+
+    private void ended(final InetSocketAddress peer) {
+        if (peer == null) {
+            return;
+        }
+        final InetSocketAddress relay;
+        synchronized (this.peers) {
+            if (!this.peers.containsKey(peer)) {
+                return;
+            }
+            relay = this.peers.remove(peer);
+        }
+        if (relay != null) {
+            this.pool.sessionEnded(relay);
+        }
+    }
+
+    private void endAll() {
+        final List<InetSocketAddress> relays;
+        synchronized (this.peers) {
+            relays = new ArrayList<InetSocketAddress>(this.peers.values());
+            this.peers.clear();
+        }
+        for (final InetSocketAddress relay : relays) {
+            if (relay != null) {
+                this.pool.sessionEnded(relay);
+            }
+        }
+    }
+
+    /**
+     * Returns the remote peer a call is about, which is its first address.
+     */
+    private static InetSocketAddress peer(final Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        for (final Object arg : args) {
+            if (arg instanceof InetSocketAddress) {
+                return (InetSocketAddress) arg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the relay of the TURN connection passed with a call, if any.
+     */
+    private InetSocketAddress relay(final Object[] args) {
+        for (final Object arg : args) {
+            if (arg == null || arg instanceof InetSocketAddress) {
+                continue;
+            }
+            final Object remote;
+            try {
+                final Method getter =
+                    arg.getClass().getMethod("getRemoteAddress");
+                // The connection's class needn't be public.
+                getter.setAccessible(true);
+                remote = getter.invoke(arg);
+            } catch (final NoSuchMethodException e) {
+                continue;
+            } catch (final Exception e) {
+                log.debug("Could not read remote address", e);
+                continue;
+            }
+            if (remote instanceof InetSocketAddress &&
+                this.pool.isRelay((InetSocketAddress) remote)) {
+                return (InetSocketAddress) remote;
+            }
+        }
+        return null;
+    }
+}
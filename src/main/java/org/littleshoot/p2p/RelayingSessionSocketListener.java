@@ -0,0 +1,43 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.littleshoot.util.SessionSocketListener;
+
+/**
+ * Session socket listener that relays every incoming P2P socket to a local
+ * server, typically the HTTP server the client serves files from, through
+ * a shared {@link NioRelay}. None of the builders use this; pass it as the
+ * call socket listener to opt in. Incoming P2P sockets are UDT or TURN
+ * sockets without channels, so the relay pumps each one on two of its
+ * executor's threads.
+ */
+public class RelayingSessionSocketListener implements SessionSocketListener {
+
+    private final InetSocketAddress serverAddress;
+
+    private final NioRelay relay;
+
+    /**
+     * Creates a new listener.
+     * 
+     * @param serverAddress The address of the local server.
+     * @param relay The relay to forward through.
+     */
+    public RelayingSessionSocketListener(
+        final InetSocketAddress serverAddress, final NioRelay relay) {
+        this.serverAddress = serverAddress;
+        this.relay = relay;
+    }
+
+    public void onSocket(final String id, final Socket sock) 
+        throws IOException {
+        this.relay.relay(sock, this.serverAddress);
+    }
+
+    public void reconnected() {
+        // Relayed sockets don't depend on the signaling connection.
+    }
+}
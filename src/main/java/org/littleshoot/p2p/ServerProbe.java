@@ -0,0 +1,20 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Measures the round trip time to a server, used to rank candidate servers.
+ */
+public interface ServerProbe {
+
+    /**
+     * Sends a single probe to the given server.
+     * 
+     * @param server The server to probe.
+     * @return The round trip time in nanoseconds, or -1 if the server didn't
+     * respond in time.
+     * @throws IOException If the probe could not be sent.
+     */
+    long probe(InetSocketAddress server) throws IOException;
+}
@@ -0,0 +1,317 @@
+package org.littleshoot.p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.lastbamboo.common.offer.answer.NoAnswerException;
+import org.lastbamboo.common.p2p.P2PClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries many logical streams over a single socket that has already been
+ * through NAT traversal, such as the control socket between two peers.
+ * Each stream has its own flow control window, so a slow reader on one
+ * stream never stalls the others, and writes are split into bounded frames
+ * so a large transfer can't hold the socket to itself.
+ * <p>
+ * Frames are a 4 byte stream ID, a 1 byte type and a 4 byte length followed
+ * by the payload. Streams opened by the side that created the socket have
+ * odd IDs and the other side's streams have even IDs, so both sides can
+ * open streams without coordinating. A peer that opens a stream with one of
+ * our IDs is broken, and the multiplexer closes.
+ */
+public class SocketMultiplexer {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(SocketMultiplexer.class);
+
+    static final byte OPEN = 0;
+    static final byte DATA = 1;
+    static final byte WINDOW = 2;
+    static final byte FIN = 3;
+    static final byte RESET = 4;
+
+    /**
+     * The largest payload in a single data frame.
+     */
+    static final int MAX_FRAME = 16 * 1024;
+
+    /**
+     * The receive window each stream starts with, in bytes.
+     */
+    static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private final MuxStreamListener listener;
+
+    private final Executor executor;
+
+    private final Map<Integer, MuxStream> streams =
+        new HashMap<Integer, MuxStream>();
+
+    private int nextStreamId;
+
+    /**
+     * The low bit of the IDs the remote side opens streams with.
+     */
+    private final int remoteParity;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new multiplexer and starts reading frames from the socket.
+     *
+     * @param socket The socket to multiplex.
+     * @param initiator Whether this side created the socket. The two sides
+     * must pass different values.
+     * @param listener The listener for streams the remote side opens.
+     * @param executor The executor for the frame reader and for listener
+     * callbacks.
+     * @throws IOException If the socket's streams can't be opened.
+     */
+    public SocketMultiplexer(final Socket socket, final boolean initiator,
+        final MuxStreamListener listener, final Executor executor)
+        throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()));
+        this.listener = listener;
+        this.executor = executor;
+        this.nextStreamId = initiator ? 1 : 2;
+        this.remoteParity = initiator ? 0 : 1;
+        executor.execute(new Runnable() {
+            public void run() {
+                readFrames();
+            }
+        });
+    }
+
+    /**
+     * Opens a P2P socket to a peer and multiplexes it as the initiator. The
+     * peer should multiplex the sockets it accepts, for example with a
+     * {@link MultiplexingSessionSocketListener}.
+     *
+     * @param client The client to open the socket with.
+     * @param uri The URI of the peer.
+     * @param listener The listener for streams the peer opens.
+     * @param executor The executor for the frame reader and for listener
+     * callbacks.
+     * @return The new multiplexer.
+     * @throws IOException If the socket can't be opened.
+     */
+    public static SocketMultiplexer connect(final P2PClient<Socket> client,
+        final URI uri, final MuxStreamListener listener,
+        final Executor executor) throws IOException {
+        final Socket sock;
+        try {
+            sock = client.newSocket(uri);
+        } catch (final NoAnswerException e) {
+            throw new IOException("No answer from "+uri);
+        }
+        try {
+            return new SocketMultiplexer(sock, true, listener, executor);
+        } catch (final IOException e) {
+            sock.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a new logical stream to the remote side.
+     *
+     * @return The new stream.
+     * @throws IOException If the multiplexer is closed.
+     */
+    public MuxStream openStream() throws IOException {
+        final MuxStream stream;
+        synchronized (this.streams) {
+            if (this.closed) {
+                throw new IOException("Multiplexer closed");
+            }
+            stream = new MuxStream(this, this.nextStreamId);
+            this.nextStreamId += 2;
+            this.streams.put(stream.getId(), stream);
+        }
+        writeFrame(stream.getId(), OPEN, null, 0, 0);
+        return stream;
+    }
+
+    /**
+     * Closes the multiplexer, the underlying socket and all streams.
+     */
+    public void close() {
+        final List<MuxStream> open;
+        synchronized (this.streams) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            open = new ArrayList<MuxStream>(this.streams.values());
+            this.streams.clear();
+        }
+        for (final MuxStream stream : open) {
+            stream.onReset();
+        }
+        try {
+            this.socket.close();
+        } catch (final IOException e) {
+            log.debug("Error closing multiplexed socket", e);
+        }
+    }
+
+    /**
+     * Returns whether the multiplexer is closed.
+     *
+     * @return <code>true</code> if the multiplexer is closed.
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Returns the number of open streams.
+     *
+     * @return The number of open streams.
+     */
+    public int getStreamCount() {
+        synchronized (this.streams) {
+            return this.streams.size();
+        }
+    }
+
+    void writeFrame(final int streamId, final byte type, final byte[] data,
+        final int offset, final int length) throws IOException {
+        if (this.closed) {
+            throw new IOException("Multiplexer closed");
+        }
+        try {
+            synchronized (this.out) {
+                this.out.writeInt(streamId);
+                this.out.writeByte(type);
+                this.out.writeInt(length);
+                if (length > 0) {
+                    this.out.write(data, offset, length);
+                }
+                this.out.flush();
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void sendWindowUpdate(final int streamId, final int credit)
+        throws IOException {
+        final byte[] payload = new byte[] {
+            (byte) (credit >>> 24), (byte) (credit >>> 16),
+            (byte) (credit >>> 8), (byte) credit
+        };
+        writeFrame(streamId, WINDOW, payload, 0, payload.length);
+    }
+
+    void removeStream(final int streamId) {
+        synchronized (this.streams) {
+            this.streams.remove(streamId);
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (!this.closed) {
+                final int streamId = this.in.readInt();
+                final byte type = this.in.readByte();
+                final int length = this.in.readInt();
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Bad frame length: "+length);
+                }
+                final byte[] payload = new byte[length];
+                this.in.readFully(payload);
+                dispatch(streamId, type, payload);
+            }
+        } catch (final EOFException e) {
+            log.debug("Multiplexed socket closed by peer");
+        } catch (final IOException e) {
+            if (!this.closed) {
+                log.debug("Error reading multiplexed socket", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void dispatch(final int streamId, final byte type,
+        final byte[] payload) throws IOException {
+        if (type == OPEN) {
+            if (streamId <= 0 || (streamId & 1) != this.remoteParity) {
+                throw new IOException("Peer opened stream "+streamId+
+                    " with our parity");
+            }
+            final MuxStream stream = new MuxStream(this, streamId);
+            synchronized (this.streams) {
+                if (this.streams.containsKey(streamId)) {
+                    throw new IOException("Duplicate stream: "+streamId);
+                }
+                this.streams.put(streamId, stream);
+            }
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    listener.onStream(stream);
+                }
+            });
+            return;
+        }
+        final MuxStream stream;
+        synchronized (this.streams) {
+            stream = this.streams.get(streamId);
+        }
+        if (stream == null) {
+            // Frames can race with a local close -- just drop them.
+            log.debug("Frame for unknown stream {}", streamId);
+            return;
+        }
+        switch (type) {
+            case DATA:
+                stream.onData(payload);
+                break;
+            case WINDOW:
+                if (payload.length != 4) {
+                    throw new IOException("Bad window update");
+                }
+                stream.onWindowUpdate(((payload[0] & 0xff) << 24) |
+                    ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) |
+                    (payload[3] & 0xff));
+                break;
+            case FIN:
+                stream.onFin();
+                break;
+            case RESET:
+                removeStream(streamId);
+                stream.onReset();
+                break;
+            default:
+                throw new IOException("Unknown frame type: "+type);
+        }
+    }
+}
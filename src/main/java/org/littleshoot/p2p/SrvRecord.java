@@ -0,0 +1,96 @@
+package org.littleshoot.p2p;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A DNS SRV record along with the address of its target, when known.
+ */
+public final class SrvRecord {
+
+    private final int priority;
+    private final int weight;
+    private final int port;
+    private final String target;
+    private final long ttlSeconds;
+    private final InetAddress address;
+
+    /**
+     * Creates a new record.
+     *
+     * @param priority The record priority. Lower values are preferred.
+     * @param weight The relative weight among records of equal priority.
+     * @param port The port of the service.
+     * @param target The host name of the target.
+     * @param ttlSeconds The time to live of the record, in seconds. If the
+     * target address came from a separate record this is the lower of the
+     * two.
+     * @param address The address of the target, or <code>null</code> if it
+     * hasn't been resolved.
+     */
+    public SrvRecord(final int priority, final int weight, final int port,
+        final String target, final long ttlSeconds,
+        final InetAddress address) {
+        this.priority = priority;
+        this.weight = weight;
+        this.port = port;
+        this.target = target;
+        this.ttlSeconds = ttlSeconds;
+        this.address = address;
+    }
+
+    /**
+     * Creates a copy of this record with the target resolved.
+     *
+     * @param resolved The address of the target.
+     * @param addressTtlSeconds The time to live of the address record.
+     * @return The new record.
+     */
+    public SrvRecord withAddress(final InetAddress resolved,
+        final long addressTtlSeconds) {
+        return new SrvRecord(priority, weight, port, target,
+            Math.min(ttlSeconds, addressTtlSeconds), resolved);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The socket address of the target, or <code>null</code> if the
+     * target hasn't been resolved.
+     */
+    public InetSocketAddress toSocketAddress() {
+        if (address == null) {
+            return null;
+        }
+        return new InetSocketAddress(address, port);
+    }
+
+    @Override
+    public String toString() {
+        return "SrvRecord [priority=" + priority + ", weight=" + weight +
+            ", port=" + port + ", target=" + target + ", ttl=" + ttlSeconds +
+            ", address=" + address + "]";
+    }
+}
@@ -0,0 +1,651 @@
+package org.littleshoot.p2p;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A socket that spreads one stream across several P2P sockets to the same
+ * peer, for bulk transfers that one connection's window and congestion
+ * control can't fill. Written data is cut into numbered chunks, and each
+ * socket takes the next chunk whenever it has room to send, so faster
+ * ones carry more. Sockets much slower than the fastest only take chunks
+ * when the faster ones are backed up, which keeps the reordering the
+ * receiver has to do bounded. The receiver puts chunks back in order.
+ * <p>
+ * This is striping over one network path, not multipath transport. The
+ * sockets from {@link P2PSockets#newStripedSocket} come from separate ICE
+ * sessions run with the same candidates at the same time, so they nearly
+ * always end up on the same candidate pair and transport. Nothing here
+ * measures paths, moves load between them beyond the pull above, or
+ * opens a replacement when one goes away.
+ * <p>
+ * Each path starts with a header naming the striped session, so the
+ * receiving {@link StripingSessionSocketListener} can group paths that
+ * arrive separately. Chunks aren't retransmitted on another path, so
+ * losing any path fails the whole stream.
+ * <p>
+ * Addresses and options come from the first path, except the read
+ * timeout, which applies to reads from the striped stream rather than to
+ * any one path.
+ */
+public class StripedSocket extends DelegatingSocket {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(StripedSocket.class);
+
+    /**
+     * Starts each path's header.
+     */
+    static final int MAGIC = 0x53545231;
+
+    /**
+     * The largest number of paths in a session.
+     */
+    static final int MAX_PATHS = 16;
+
+    /**
+     * The largest chunk we send or accept.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Marks a path's last frame, which carries the total number of chunks
+     * instead of data.
+     */
+    private static final int FIN = -1;
+
+    /**
+     * Chunks written but not yet taken by a path.
+     */
+    private static final int SEND_QUEUE = 16;
+
+    /**
+     * How far ahead of the next chunk the receiver buffers before it stops
+     * reading the path that's ahead.
+     */
+    private static final int REORDER_WINDOW = 64;
+
+    /**
+     * Paths this many times slower than the fastest hold back.
+     */
+    private static final int SLOW_FACTOR = 4;
+
+    /**
+     * How long closing waits for queued data to go out.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final Chunk END = new Chunk(-1, null, 0);
+
+    private static final Random random = new Random();
+
+    private final List<Path> paths;
+
+    private final long sessionId;
+
+    private final BlockingQueue<Chunk> sendQueue =
+        new LinkedBlockingQueue<Chunk>(SEND_QUEUE);
+
+    private final StripedOutputStream out = new StripedOutputStream();
+
+    private final StripedInputStream in = new StripedInputStream();
+
+    private final CountDownLatch writersDone;
+
+    /**
+     * Signalled when a chunk is queued or the socket closes, for paths
+     * holding back.
+     */
+    private final Object backlog = new Object();
+
+    private volatile int soTimeout = 0;
+
+    private volatile boolean closed = false;
+
+    private volatile IOException failure;
+
+    /**
+     * Opens a striped session over the given sockets, which must all be
+     * connected to the same peer.
+     *
+     * @param sockets The sockets to stripe across.
+     * @param executor The executor for the per-path reader and writer
+     * threads.
+     * @return The striped socket.
+     * @throws IOException If the session headers can't be sent.
+     */
+    public static StripedSocket connect(final List<Socket> sockets,
+        final Executor executor) throws IOException {
+        if (sockets.isEmpty() || sockets.size() > MAX_PATHS) {
+            throw new IllegalArgumentException("Bad path count: " +
+                sockets.size());
+        }
+        final long sessionId;
+        synchronized (random) {
+            sessionId = random.nextLong();
+        }
+        for (int i = 0; i < sockets.size(); i++) {
+            final DataOutputStream dos =
+                new DataOutputStream(sockets.get(i).getOutputStream());
+            dos.writeInt(MAGIC);
+            dos.writeLong(sessionId);
+            dos.writeByte(i);
+            dos.writeByte(sockets.size());
+            dos.flush();
+        }
+        return new StripedSocket(sockets, sessionId, executor);
+    }
+
+    /**
+     * Creates a striped socket over sockets whose headers have been
+     * exchanged, in path order.
+     */
+    StripedSocket(final List<Socket> sockets, final long sessionId,
+        final Executor executor) {
+        super(sockets.get(0));
+        this.sessionId = sessionId;
+        final List<Path> list = new ArrayList<Path>(sockets.size());
+        for (final Socket sock : sockets) {
+            list.add(new Path(sock));
+        }
+        this.paths = Collections.unmodifiableList(list);
+        this.writersDone = new CountDownLatch(this.paths.size());
+        for (final Path path : this.paths) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    path.write();
+                }
+            });
+            executor.execute(new Runnable() {
+                public void run() {
+                    path.read();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of paths in this session.
+     *
+     * @return The number of paths.
+     */
+    public int getPathCount() {
+        return this.paths.size();
+    }
+
+    /**
+     * Returns the recent send throughput of each path, in path order.
+     *
+     * @return The throughput of each path in bytes per second.
+     */
+    public long[] getPathThroughputs() {
+        final long[] throughputs = new long[this.paths.size()];
+        for (int i = 0; i < throughputs.length; i++) {
+            throughputs[i] = (long) this.paths.get(i).throughput;
+        }
+        return throughputs;
+    }
+
+    /**
+     * Returns the number of bytes each path has sent, in path order.
+     *
+     * @return The bytes sent on each path.
+     */
+    public long[] getPathBytesSent() {
+        final long[] sent = new long[this.paths.size()];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = this.paths.get(i).bytesSent;
+        }
+        return sent;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.out.close();
+    }
+
+    @Override
+    public void shutdownInput() {
+        this.in.close();
+    }
+
+    /**
+     * Sets how long reads from the striped stream wait for data. The paths
+     * themselves are read without a timeout.
+     */
+    @Override
+    public void setSoTimeout(final int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return this.soTimeout;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Sends whatever is still queued, waiting a bounded time for it to go
+     * out, and closes every path.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.out.close();
+            this.writersDone.await(CLOSE_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+        } catch (final IOException e) {
+            log.debug("Could not finish sending", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        abort();
+    }
+
+    private void abort() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.sendQueue.clear();
+        for (final Path path : this.paths) {
+            path.close();
+        }
+        synchronized (this.in) {
+            this.in.notifyAll();
+        }
+        synchronized (this.backlog) {
+            this.backlog.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StripedSocket [sessionId=" + Long.toHexString(sessionId) +
+            ", paths=" + paths.size() + "]";
+    }
+
+    private void fail(final IOException e) {
+        if (this.failure == null && !this.closed) {
+            log.debug("Striped path failed", e);
+            this.failure = e;
+        }
+        abort();
+    }
+
+    /**
+     * Returns the throughput of the fastest path.
+     */
+    private double bestThroughput() {
+        double best = 0;
+        for (final Path path : this.paths) {
+            best = Math.max(best, path.throughput);
+        }
+        return best;
+    }
+
+    /**
+     * A numbered piece of the stream.
+     */
+    private static final class Chunk {
+        private final long seq;
+        private final byte[] data;
+        private final int length;
+
+        private Chunk(final long seq, final byte[] data, final int length) {
+            this.seq = seq;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * One of the sockets carrying the stream.
+     */
+    private final class Path {
+        private final Socket socket;
+        private volatile double throughput = 0;
+        private volatile long bytesSent = 0;
+
+        private Path(final Socket socket) {
+            this.socket = socket;
+        }
+
+        private void write() {
+            try {
+                final DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(this.socket.getOutputStream(),
+                        CHUNK_SIZE + 12));
+                while (true) {
+                    final Chunk chunk = take();
+                    if (chunk == END) {
+                        dos.writeLong(out.sequence);
+                        dos.writeInt(FIN);
+                        dos.flush();
+                        this.socket.shutdownOutput();
+                        return;
+                    }
+                    final long start = System.nanoTime();
+                    dos.writeLong(chunk.seq);
+                    dos.writeInt(chunk.length);
+                    dos.write(chunk.data, 0, chunk.length);
+                    dos.flush();
+                    record(chunk.length, System.nanoTime() - start);
+                }
+            } catch (final IOException e) {
+                fail(e);
+            } catch (final InterruptedException e) {
+                fail(new IOException("Interrupted"));
+            } finally {
+                writersDone.countDown();
+            }
+        }
+
+        /**
+         * Takes the next chunk for this path, holding back if this path is
+         * much slower than the fastest and the others are keeping up.
+         */
+        private Chunk take() throws InterruptedException, IOException {
+            while (!closed) {
+                if (this.throughput > 0 &&
+                    this.throughput * SLOW_FACTOR < bestThroughput()) {
+                    synchronized (backlog) {
+                        // Checked under the lock, so a chunk queued after
+                        // the check wakes us. The timeout picks up changes
+                        // in the other paths' throughput.
+                        if (!closed && sendQueue.size() < paths.size() &&
+                            sendQueue.peek() != END) {
+                            backlog.wait(100);
+                            continue;
+                        }
+                    }
+                }
+                final Chunk chunk = sendQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    if (chunk == END) {
+                        // Leave the marker for the other paths.
+                        sendQueue.put(END);
+                    }
+                    return chunk;
+                }
+            }
+            throw new IOException("Socket closed");
+        }
+
+        /**
+         * Keeps a moving average of how fast this path takes data.
+         */
+        private void record(final int bytes, final long nanos) {
+            this.bytesSent += bytes;
+            final double rate = bytes * 1e9 / Math.max(nanos, 1000);
+            this.throughput = this.throughput == 0 ? rate :
+                this.throughput * 0.8 + rate * 0.2;
+        }
+
+        private void read() {
+            try {
+                // Timeouts apply to the striped stream, not to a path that
+                // happens to be idle.
+                this.socket.setSoTimeout(0);
+                final DataInputStream dis = new DataInputStream(
+                    new BufferedInputStream(this.socket.getInputStream(),
+                        CHUNK_SIZE + 12));
+                while (true) {
+                    final long seq = dis.readLong();
+                    final int length = dis.readInt();
+                    if (length == FIN) {
+                        in.finish(seq);
+                        return;
+                    }
+                    if (length < 0 || length > CHUNK_SIZE) {
+                        throw new IOException("Bad chunk length: "+length);
+                    }
+                    final byte[] data = new byte[length];
+                    dis.readFully(data);
+                    in.add(new Chunk(seq, data, length));
+                }
+            } catch (final EOFException e) {
+                fail(new EOFException("Path closed before the stream ended"));
+            } catch (final IOException e) {
+                fail(e);
+            }
+        }
+
+        private void close() {
+            try {
+                this.socket.close();
+            } catch (final IOException e) {
+                log.debug("Error closing path", e);
+            }
+        }
+    }
+
+    /**
+     * Cuts written data into chunks for the paths to send.
+     */
+    private final class StripedOutputStream extends OutputStream {
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+        private long sequence = 0;
+        private boolean shutdown = false;
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, int off, int len)
+            throws IOException {
+            if (this.shutdown) {
+                throw new IOException("Output shut down");
+            }
+            while (len > 0) {
+                final int n = Math.min(len, CHUNK_SIZE - this.count);
+                System.arraycopy(b, off, this.buffer, this.count, n);
+                this.count += n;
+                off += n;
+                len -= n;
+                if (this.count == CHUNK_SIZE) {
+                    send();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (this.count > 0) {
+                send();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (this.shutdown) {
+                return;
+            }
+            flush();
+            this.shutdown = true;
+            put(END);
+        }
+
+        private void send() throws IOException {
+            put(new Chunk(this.sequence++, this.buffer, this.count));
+            this.buffer = new byte[CHUNK_SIZE];
+            this.count = 0;
+        }
+
+        private void put(final Chunk chunk) throws IOException {
+            try {
+                while (!sendQueue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    checkOpen();
+                }
+                synchronized (backlog) {
+                    backlog.notifyAll();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing");
+            }
+        }
+    }
+
+    /**
+     * Puts chunks from all paths back in order.
+     */
+    private final class StripedInputStream extends InputStream {
+        private final TreeMap<Long, Chunk> pending = new TreeMap<Long, Chunk>();
+        private long next = 0;
+        private long total = -1;
+        private Chunk current;
+        private int position;
+        private boolean shutdown = false;
+
+        private synchronized void add(final Chunk chunk) throws IOException {
+            while (chunk.seq >= this.next + REORDER_WINDOW && !closed &&
+                !this.shutdown) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading");
+                }
+            }
+            checkOpen();
+            if (this.shutdown) {
+                // No one's reading.
+                return;
+            }
+            if (chunk.seq < this.next || this.pending.containsKey(chunk.seq)) {
+                throw new IOException("Duplicate chunk: "+chunk.seq);
+            }
+            this.pending.put(chunk.seq, chunk);
+            notifyAll();
+        }
+
+        private synchronized void finish(final long total) {
+            this.total = total;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off,
+            final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int timeout = soTimeout;
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (this.current == null) {
+                if (this.shutdown) {
+                    return -1;
+                }
+                final Chunk chunk = this.pending.remove(this.next);
+                if (chunk != null) {
+                    this.current = chunk;
+                    this.position = 0;
+                    this.next++;
+                    notifyAll();
+                } else if (this.total >= 0 && this.next >= this.total) {
+                    return -1;
+                } else {
+                    checkOpen();
+                    long wait = 0;
+                    if (timeout > 0) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    try {
+                        wait(wait);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted reading");
+                    }
+                }
+            }
+            final int n = Math.min(len, this.current.length - this.position);
+            System.arraycopy(this.current.data, this.position, b, off, n);
+            this.position += n;
+            if (this.position == this.current.length) {
+                this.current = null;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return this.current == null ? 0 :
+                this.current.length - this.position;
+        }
+
+        @Override
+        public synchronized void close() {
+            this.shutdown = true;
+            this.pending.clear();
+            notifyAll();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        if (this.closed) {
+            throw new IOException("Socket closed");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.littleshoot.p2p;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.SessionSocketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Session socket listener that groups incoming sockets into
+ * {@link StripedSocket}s. Each socket's header names its striped session
+ * and how many paths it has, and once every path has arrived the striped
+ * socket is passed on to the wrapped listener with the session ID of its
+ * first path. Sessions whose paths don't all arrive in time are dropped.
+ * <p>
+ * Every peer connecting to this listener must stripe, even if only over a
+ * single path.
+ */
+public class StripingSessionSocketListener implements SessionSocketListener {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(StripingSessionSocketListener.class);
+
+    /**
+     * Drops sessions whose paths haven't all arrived in time. One thread
+     * serves every listener since all it does is close sockets.
+     */
+    private static final ScheduledExecutorService expiry =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("P2P-Striping-Expiry"));
+
+    private final SessionSocketListener listener;
+
+    private final Executor executor;
+
+    private final long assemblyTimeoutMillis;
+
+    private final Map<Long, Assembly> assemblies =
+        new HashMap<Long, Assembly>();
+
+    /**
+     * Creates a new listener.
+     *
+     * @param listener The listener to pass striped sockets to.
+     * @param executor The executor for reading headers and for the striped
+     * sockets' threads.
+     * @param assemblyTimeoutMillis How long to wait for all of a session's
+     * paths to arrive.
+     */
+    public StripingSessionSocketListener(
+        final SessionSocketListener listener, final Executor executor,
+        final long assemblyTimeoutMillis) {
+        this.listener = listener;
+        this.executor = executor;
+        this.assemblyTimeoutMillis = assemblyTimeoutMillis;
+    }
+
+    public void onSocket(final String id, final Socket sock) {
+        // Don't hold up the caller waiting for the header.
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    readHeader(id, sock);
+                } catch (final IOException e) {
+                    log.debug("Bad striped path", e);
+                    closeQuietly(sock);
+                }
+            }
+        });
+    }
+
+    public void reconnected() {
+        this.listener.reconnected();
+    }
+
+    private void readHeader(final String id, final Socket sock)
+        throws IOException {
+        final int timeout = sock.getSoTimeout();
+        sock.setSoTimeout((int) this.assemblyTimeoutMillis);
+        final DataInputStream dis =
+            new DataInputStream(sock.getInputStream());
+        if (dis.readInt() != StripedSocket.MAGIC) {
+            throw new IOException("Not a striped path");
+        }
+        final long sessionId = dis.readLong();
+        final int index = dis.readUnsignedByte();
+        final int count = dis.readUnsignedByte();
+        sock.setSoTimeout(timeout);
+        if (count < 1 || count > StripedSocket.MAX_PATHS || index >= count) {
+            throw new IOException("Bad path "+index+" of "+count);
+        }
+        final Assembly complete;
+        synchronized (this.assemblies) {
+            Assembly assembly = this.assemblies.get(sessionId);
+            if (assembly == null) {
+                final Assembly created = new Assembly(count);
+                this.assemblies.put(sessionId, created);
+                expiry.schedule(new Runnable() {
+                    public void run() {
+                        expire(sessionId, created);
+                    }
+                }, this.assemblyTimeoutMillis, TimeUnit.MILLISECONDS);
+                assembly = created;
+            }
+            if (assembly.sockets.length != count ||
+                assembly.sockets[index] != null) {
+                throw new IOException("Conflicting path "+index+" of "+count);
+            }
+            assembly.sockets[index] = sock;
+            assembly.ids[index] = id;
+            if (++assembly.arrived < count) {
+                return;
+            }
+            this.assemblies.remove(sessionId);
+            complete = assembly;
+        }
+        final StripedSocket striped = new StripedSocket(
+            Arrays.asList(complete.sockets), sessionId, this.executor);
+        try {
+            this.listener.onSocket(complete.ids[0], striped);
+        } catch (final IOException e) {
+            log.debug("Listener rejected striped socket", e);
+            striped.close();
+        }
+    }
+
+    /**
+     * Drops the given session if it's still waiting for paths.
+     */
+    private void expire(final long sessionId, final Assembly assembly) {
+        synchronized (this.assemblies) {
+            if (this.assemblies.get(sessionId) != assembly) {
+                return;
+            }
+            this.assemblies.remove(sessionId);
+        }
+        log.debug("Dropping incomplete striped session");
+        for (final Socket sock : assembly.sockets) {
+            if (sock != null) {
+                closeQuietly(sock);
+            }
+        }
+    }
+
+    private static void closeQuietly(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            log.debug("Error closing socket", e);
+        }
+    }
+
+    /**
+     * The paths of a session that have arrived so far.
+     */
+    private static final class Assembly {
+        private final Socket[] sockets;
+        private final String[] ids;
+        private int arrived = 0;
+
+        private Assembly(final int count) {
+            this.sockets = new Socket[count];
+            this.ids = new String[count];
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Minimal RFC 5389 STUN binding client. This only does what the P2P layer
+ * needs to rank servers and learn server reflexive addresses -- it sends a
+ * binding request and reads the mapped address out of the response. Full
+ * STUN processing stays in the ICE library.
+ */
+public final class StunBinding {
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private static final int BINDING_REQUEST = 0x0001;
+
+    private static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+
+    private static final int MAPPED_ADDRESS = 0x0001;
+
+    private static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    private static final int CHANGE_REQUEST = 0x0003;
+
+    private static final int OTHER_ADDRESS = 0x802C;
+
+    private static final int CHANGE_IP = 0x04;
+
+    private static final int CHANGE_PORT = 0x02;
+
+    private static final int HEADER_LENGTH = 20;
+
+    private static final Random random = new SecureRandom();
+
+    private StunBinding() {
+        // Not instantiable.
+    }
+
+    /**
+     * Sends a single binding request to the given server and waits for the
+     * response.
+     *
+     * @param socket The socket to send from. The mapped address in the
+     * response is the public address of this socket.
+     * @param server The STUN server.
+     * @param timeoutMillis How long to wait for a response.
+     * @return The result, or <code>null</code> if the server didn't respond
+     * in time.
+     * @throws IOException If there's an error sending or receiving.
+     */
+    public static Result request(final DatagramSocket socket,
+        final InetSocketAddress server, final int timeoutMillis)
+        throws IOException {
+        return request(socket, server, timeoutMillis, false, false);
+    }
+
+    /**
+     * Sends a single binding request asking the server to respond from a
+     * different address or port, as described in RFC 5780, and waits for
+     * the response. Whether the response gets through tells us how our NAT
+     * filters incoming packets. Only servers that include an other address
+     * in their responses support this.
+     *
+     * @param socket The socket to send from.
+     * @param server The STUN server.
+     * @param timeoutMillis How long to wait for a response.
+     * @param changeIp Whether the server should respond from its other IP
+     * address.
+     * @param changePort Whether the server should respond from its other
+     * port.
+     * @return The result, or <code>null</code> if no response arrived in
+     * time.
+     * @throws IOException If there's an error sending or receiving.
+     */
+    public static Result request(final DatagramSocket socket,
+        final InetSocketAddress server, final int timeoutMillis,
+        final boolean changeIp, final boolean changePort)
+        throws IOException {
+        final byte[] transactionId = new byte[12];
+        random.nextBytes(transactionId);
+
+        final boolean change = changeIp || changePort;
+        final int bodyLength = change ? 8 : 0;
+        final ByteBuffer request =
+            ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        request.putShort((short) BINDING_REQUEST);
+        request.putShort((short) bodyLength);
+        request.putInt(MAGIC_COOKIE);
+        request.put(transactionId);
+        if (change) {
+            request.putShort((short) CHANGE_REQUEST);
+            request.putShort((short) 4);
+            request.putInt((changeIp ? CHANGE_IP : 0) |
+                (changePort ? CHANGE_PORT : 0));
+        }
+
+        final byte[] response = new byte[512];
+        final DatagramPacket packet =
+            new DatagramPacket(response, response.length);
+        final long start = System.nanoTime();
+        final long deadline = start + timeoutMillis * 1000000L;
+        socket.send(new DatagramPacket(request.array(), request.capacity(),
+            server));
+        while (true) {
+            final long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) remaining);
+            try {
+                socket.receive(packet);
+            } catch (final SocketTimeoutException e) {
+                return null;
+            }
+            final Result result = parseResponse(response,
+                packet.getLength(), transactionId, server, start);
+            if (result != null) {
+                return result;
+            }
+            // Not ours -- likely a late response to an earlier request.
+            packet.setLength(response.length);
+        }
+    }
+
+    private static Result parseResponse(final byte[] data, final int length,
+        final byte[] transactionId, final InetSocketAddress server,
+        final long start) throws IOException {
+        if (length < HEADER_LENGTH) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        final int type = buf.getShort() & 0xffff;
+        final int bodyLength = buf.getShort() & 0xffff;
+        final int cookie = buf.getInt();
+        final byte[] id = new byte[12];
+        buf.get(id);
+        if (type != BINDING_SUCCESS_RESPONSE || cookie != MAGIC_COOKIE ||
+            !Arrays.equals(id, transactionId) ||
+            bodyLength > buf.remaining()) {
+            return null;
+        }
+        InetSocketAddress mapped = null;
+        InetSocketAddress xorMapped = null;
+        InetSocketAddress other = null;
+        while (buf.remaining() >= 4) {
+            final int attributeType = buf.getShort() & 0xffff;
+            final int attributeLength = buf.getShort() & 0xffff;
+            if (attributeLength > buf.remaining()) {
+                break;
+            }
+            final byte[] value = new byte[attributeLength];
+            buf.get(value);
+            // Attributes are padded to a multiple of four bytes.
+            final int padding = (4 - attributeLength % 4) % 4;
+            buf.position(Math.min(buf.limit(), buf.position() + padding));
+            if (attributeType == XOR_MAPPED_ADDRESS) {
+                xorMapped = decodeAddress(value, true, transactionId);
+            } else if (attributeType == MAPPED_ADDRESS) {
+                mapped = decodeAddress(value, false, transactionId);
+            } else if (attributeType == OTHER_ADDRESS) {
+                other = decodeAddress(value, false, transactionId);
+            }
+        }
+        if (xorMapped != null) {
+            mapped = xorMapped;
+        }
+        if (mapped == null) {
+            return null;
+        }
+        return new Result(server, mapped, other, System.nanoTime() - start);
+    }
+
+    private static InetSocketAddress decodeAddress(final byte[] value,
+        final boolean xor, final byte[] transactionId) throws IOException {
+        if (value.length < 8) {
+            throw new IOException("Bad address attribute length: " +
+                value.length);
+        }
+        final int family = value[1];
+        final int addressLength = family == 0x02 ? 16 : 4;
+        if (value.length < 4 + addressLength) {
+            throw new IOException("Bad address attribute length: " +
+                value.length);
+        }
+        int port = ((value[2] & 0xff) << 8) | (value[3] & 0xff);
+        final byte[] address = new byte[addressLength];
+        System.arraycopy(value, 4, address, 0, addressLength);
+        if (xor) {
+            port ^= MAGIC_COOKIE >>> 16;
+            final byte[] mask = ByteBuffer.allocate(16).putInt(MAGIC_COOKIE).
+                put(transactionId).array();
+            for (int i = 0; i < addressLength; i++) {
+                address[i] ^= mask[i];
+            }
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    }
+
+    /**
+     * The result of a successful binding request.
+     */
+    public static final class Result {
+
+        private final InetSocketAddress server;
+        private final InetSocketAddress mappedAddress;
+        private final InetSocketAddress otherAddress;
+        private final long rttNanos;
+
+        private Result(final InetSocketAddress server,
+            final InetSocketAddress mappedAddress,
+            final InetSocketAddress otherAddress, final long rttNanos) {
+            this.server = server;
+            this.mappedAddress = mappedAddress;
+            this.otherAddress = otherAddress;
+            this.rttNanos = rttNanos;
+        }
+
+        /**
+         * @return The server that answered.
+         */
+        public InetSocketAddress getServer() {
+            return server;
+        }
+
+        /**
+         * @return The server reflexive address of the requesting socket.
+         */
+        public InetSocketAddress getMappedAddress() {
+            return mappedAddress;
+        }
+
+        /**
+         * @return The server's alternate address for NAT behavior
+         * discovery, or <code>null</code> if it doesn't have one.
+         */
+        public InetSocketAddress getOtherAddress() {
+            return otherAddress;
+        }
+
+        /**
+         * @return The round trip time of the request, in nanoseconds.
+         */
+        public long getRttNanos() {
+            return rttNanos;
+        }
+    }
+}
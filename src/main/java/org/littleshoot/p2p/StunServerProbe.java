@@ -0,0 +1,37 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Probes STUN servers with binding requests over UDP.
+ */
+public class StunServerProbe implements ServerProbe {
+
+    private final int timeoutMillis;
+
+    /**
+     * Creates a new probe.
+     * 
+     * @param timeoutMillis How long to wait for each binding response before
+     * counting it as lost.
+     */
+    public StunServerProbe(final int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long probe(final InetSocketAddress server) throws IOException {
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            final StunBinding.Result result = 
+                StunBinding.request(socket, server, this.timeoutMillis);
+            if (result == null) {
+                return -1;
+            }
+            return result.getRttNanos();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.littleshoot.p2p;
+
+/**
+ * Adapts {@link P2PMetrics} to named meters with tags, the model used by
+ * Micrometer and most other metrics libraries. Bridging to a registry only
+ * takes a {@link MeterSink} that looks meters up by name and tags, for
+ * example with Micrometer's <code>Timer.builder(name).tags(tags)</code>,
+ * so this library doesn't depend on any of them.
+ * <p>
+ * The meters are:
+ * <ul>
+ * <li><code>p2p.connection.attempt</code> timer, tagged with
+ * <code>transport</code> and <code>outcome</code></li>
+ * <li><code>p2p.connection.setup</code> timer, tagged with
+ * <code>transport</code>, <code>outcome</code> and <code>fallback</code>.
+ * The relay fallback rate is the share with <code>fallback=true</code>.</li>
+ * <li><code>p2p.bytes</code> counter, tagged with <code>transport</code>
+ * and <code>direction</code></li>
+ * <li><code>p2p.throughput</code> summary in bytes per second, tagged with
+ * <code>transport</code></li>
+ * <li><code>p2p.buffer.used</code>, <code>p2p.buffer.peak</code> and
+ * <code>p2p.buffer.throttled</code> gauges in bytes, read from the
+ * answerer servers' {@link ByteBudget}, which TURN data shares. The
+ * throttled bytes only grow.</li>
+ * </ul>
+ */
+public class TaggedP2PMetrics implements P2PMetrics {
+
+    private static final String NONE = "none";
+
+    private final MeterSink sink;
+
+    /**
+     * Creates new metrics that record to the given sink.
+     *
+     * @param sink The sink for the meters.
+     */
+    public TaggedP2PMetrics(final MeterSink sink) {
+        this.sink = sink;
+    }
+
+    public void connectionAttempt(final Transport transport,
+        final long elapsedNanos, final boolean success) {
+        this.sink.recordTime("p2p.connection.attempt", elapsedNanos,
+            "transport", tag(transport), "outcome", outcome(success));
+    }
+
+    public void connectionEstablished(final Transport transport,
+        final long setupNanos) {
+        this.sink.recordTime("p2p.connection.setup", setupNanos,
+            "transport", tag(transport), "outcome", outcome(true),
+            "fallback", String.valueOf(transport == Transport.TURN));
+    }
+
+    public void connectionFailed(final long setupNanos) {
+        this.sink.recordTime("p2p.connection.setup", setupNanos,
+            "transport", NONE, "outcome", outcome(false),
+            "fallback", NONE);
+    }
+
+    public void bytesTransferred(final Transport transport,
+        final long bytesRead, final long bytesWritten,
+        final long durationNanos) {
+        final String tag = tag(transport);
+        this.sink.increment("p2p.bytes", bytesRead, "transport", tag,
+            "direction", "read");
+        this.sink.increment("p2p.bytes", bytesWritten, "transport", tag,
+            "direction", "write");
+        if (durationNanos > 0) {
+            this.sink.recordValue("p2p.throughput",
+                (bytesRead + bytesWritten) * 1000000000.0 / durationNanos,
+                "transport", tag);
+        }
+    }
+
+    public void byteBudget(final ByteBudget budget) {
+        this.sink.gauge("p2p.buffer.used", new GaugeValue() {
+            public double value() {
+                return budget.getUsedBytes();
+            }
+        });
+        this.sink.gauge("p2p.buffer.peak", new GaugeValue() {
+            public double value() {
+                return budget.getPeakBytes();
+            }
+        });
+        this.sink.gauge("p2p.buffer.throttled", new GaugeValue() {
+            public double value() {
+                return budget.getThrottledBytes();
+            }
+        });
+    }
+
+    private static String tag(final Transport transport) {
+        return transport == null ? NONE : transport.name().toLowerCase();
+    }
+
+    private static String outcome(final boolean success) {
+        return success ? "success" : "failure";
+    }
+
+    /**
+     * Records values to named, tagged meters. Tags are given as alternating
+     * keys and values, like Micrometer's <code>Tags.of(String...)</code>.
+     */
+    public interface MeterSink {
+
+        /**
+         * Records a duration to a timer.
+         *
+         * @param name The name of the timer.
+         * @param nanos The duration.
+         * @param tags The tags as alternating keys and values.
+         */
+        void recordTime(String name, long nanos, String... tags);
+
+        /**
+         * Adds to a counter.
+         *
+         * @param name The name of the counter.
+         * @param amount The amount to add.
+         * @param tags The tags as alternating keys and values.
+         */
+        void increment(String name, long amount, String... tags);
+
+        /**
+         * Records a value to a distribution summary.
+         *
+         * @param name The name of the summary.
+         * @param value The value.
+         * @param tags The tags as alternating keys and values.
+         */
+        void recordValue(String name, double value, String... tags);
+
+        /**
+         * Registers a gauge that reads its value when sampled, for example
+         * with Micrometer's <code>Gauge.builder(name, value,
+         * GaugeValue::value)</code>. The same gauge can be registered more
+         * than once.
+         *
+         * @param name The name of the gauge.
+         * @param value The source of the gauge's value.
+         * @param tags The tags as alternating keys and values.
+         */
+        void gauge(String name, GaugeValue value, String... tags);
+    }
+
+    /**
+     * The current value of a gauge.
+     */
+    public interface GaugeValue {
+
+        /**
+         * Returns the gauge's value now.
+         *
+         * @return The value.
+         */
+        double value();
+    }
+}
@@ -0,0 +1,44 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.SocketFactory;
+
+/**
+ * Probes TCP servers, such as TURN relays, by timing a TCP connect.
+ */
+public class TcpServerProbe implements ServerProbe {
+
+    private final SocketFactory socketFactory;
+
+    private final int timeoutMillis;
+
+    /**
+     * Creates a new probe.
+     *
+     * @param socketFactory The factory for the probe sockets.
+     * @param timeoutMillis How long to wait for each connect before
+     * counting it as lost.
+     */
+    public TcpServerProbe(final SocketFactory socketFactory,
+        final int timeoutMillis) {
+        this.socketFactory = socketFactory;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long probe(final InetSocketAddress server) throws IOException {
+        final Socket socket = this.socketFactory.createSocket();
+        try {
+            final long start = System.nanoTime();
+            socket.connect(server, this.timeoutMillis);
+            return System.nanoTime() - start;
+        } catch (final SocketTimeoutException e) {
+            return -1;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.littleshoot.p2p;
+
+/**
+ * The transports a P2P connection can end up using, as reported to
+ * {@link P2PMetrics}.
+ */
+public enum Transport {
+
+    /**
+     * A direct TCP connection, typically through a mapped port.
+     */
+    TCP,
+
+    /**
+     * A direct UDT connection over a UDP pair ICE has punched through.
+     */
+    UDT,
+
+    /**
+     * A connection relayed through a TURN server.
+     */
+    TURN
+}
@@ -0,0 +1,215 @@
+package org.littleshoot.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.turn.client.TurnClientListener;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes data peers send us through a TURN server on to a local server, and
+ * the server's replies back to them, in place of the ICE library's
+ * <code>ServerDataFeeder</code>. Each peer gets its own connection to the
+ * server, relayed as a {@link NioRelay.Feed} on one of a set of relays, so
+ * the data buffered in both directions comes out of the relays'
+ * {@link ByteBudget}.
+ * <p>
+ * When a peer's connection falls behind, or the budget runs out, reading
+ * from its TURN session is suspended until there's room again. A session
+ * carries every peer relayed through the same TURN server, so one slow
+ * connection holds the others back too, as the TCP connection to the
+ * server would anyway. Only what the session already read when it was
+ * suspended is buffered outside the budget.
+ */
+final class TurnDataFeeder implements TurnClientListener {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(TurnDataFeeder.class);
+
+    private final InetSocketAddress serverAddress;
+
+    private final List<NioRelay> relays;
+
+    private final AtomicInteger nextRelay = new AtomicInteger();
+
+    private final Map<InetSocketAddress, NioRelay.Feed> feeds =
+        new HashMap<InetSocketAddress, NioRelay.Feed>();
+
+    /**
+     * The number of peers holding back each suspended session.
+     */
+    private final Map<IoSession, Integer> holds =
+        new HashMap<IoSession, Integer>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new feeder.
+     *
+     * @param serverAddress The address of the local server.
+     * @param relays The relays to spread peers' connections across.
+     */
+    TurnDataFeeder(final InetSocketAddress serverAddress,
+        final List<NioRelay> relays) {
+        if (relays.isEmpty()) {
+            throw new IllegalArgumentException("No relays");
+        }
+        this.serverAddress = serverAddress;
+        this.relays = new ArrayList<NioRelay>(relays);
+    }
+
+    public void onData(final InetSocketAddress remoteAddress,
+        final IoSession session, final byte[] data) {
+        final NioRelay.Feed feed;
+        try {
+            feed = feed(remoteAddress, session);
+        } catch (final IOException e) {
+            log.warn("Could not connect to local server at "+
+                this.serverAddress, e);
+            return;
+        }
+        if (feed != null) {
+            feed.offer(data);
+        }
+    }
+
+    public void onRemoteAddressClosed(final InetSocketAddress remoteAddress) {
+        final NioRelay.Feed feed;
+        synchronized (this.feeds) {
+            feed = this.feeds.remove(remoteAddress);
+        }
+        if (feed != null) {
+            feed.end();
+        }
+    }
+
+    public void close() {
+        this.closed = true;
+        final List<NioRelay.Feed> open;
+        synchronized (this.feeds) {
+            open = new ArrayList<NioRelay.Feed>(this.feeds.values());
+            this.feeds.clear();
+        }
+        for (final NioRelay.Feed feed : open) {
+            feed.close();
+        }
+    }
+
+    /**
+     * Returns the number of peers with a connection to the local server.
+     *
+     * @return The number of peers.
+     */
+    int getPeerCount() {
+        synchronized (this.feeds) {
+            return this.feeds.size();
+        }
+    }
+
+    private NioRelay.Feed feed(final InetSocketAddress remoteAddress,
+        final IoSession session) throws IOException {
+        synchronized (this.feeds) {
+            if (this.closed) {
+                return null;
+            }
+            NioRelay.Feed feed = this.feeds.get(remoteAddress);
+            if (feed == null) {
+                log.debug("Connecting peer {} to {}", remoteAddress,
+                    this.serverAddress);
+                final int index = (this.nextRelay.getAndIncrement() &
+                    0x7fffffff) % this.relays.size();
+                feed = this.relays.get(index).feed(this.serverAddress,
+                    new Peer(remoteAddress, session));
+                this.feeds.put(remoteAddress, feed);
+            }
+            return feed;
+        }
+    }
+
+    private void hold(final IoSession session) {
+        synchronized (this.holds) {
+            final Integer count = this.holds.get(session);
+            if (count == null) {
+                log.debug("Suspending reads from {}",
+                    session.getRemoteAddress());
+                session.suspendRead();
+                this.holds.put(session, Integer.valueOf(1));
+            } else {
+                this.holds.put(session, Integer.valueOf(count.intValue() + 1));
+            }
+        }
+    }
+
+    private void release(final IoSession session) {
+        synchronized (this.holds) {
+            final Integer count = this.holds.get(session);
+            if (count == null) {
+                return;
+            }
+            if (count.intValue() > 1) {
+                this.holds.put(session, Integer.valueOf(count.intValue() - 1));
+            } else {
+                this.holds.remove(session);
+                log.debug("Resuming reads from {}",
+                    session.getRemoteAddress());
+                session.resumeRead();
+            }
+        }
+    }
+
+    /**
+     * Sends a peer the local server's data through the TURN session it
+     * reached us on.
+     */
+    private final class Peer implements NioRelay.FeedTarget {
+
+        private final InetSocketAddress remoteAddress;
+
+        private final IoSession session;
+
+        private Peer(final InetSocketAddress remoteAddress,
+            final IoSession session) {
+            this.remoteAddress = remoteAddress;
+            this.session = session;
+        }
+
+        public void send(final byte[] data, final Runnable sent) {
+            this.session.write(new SendIndication(this.remoteAddress,
+                data)).addListener(new IoFutureListener() {
+                    public void operationComplete(final IoFuture future) {
+                        sent.run();
+                    }
+                });
+        }
+
+        public void hold() {
+            TurnDataFeeder.this.hold(this.session);
+        }
+
+        public void resume() {
+            release(this.session);
+        }
+
+        public void closed() {
+            synchronized (feeds) {
+                final NioRelay.Feed feed = feeds.get(this.remoteAddress);
+                if (feed != null && feed.isFor(this)) {
+                    feeds.remove(this.remoteAddress);
+                }
+            }
+        }
+    }
+}
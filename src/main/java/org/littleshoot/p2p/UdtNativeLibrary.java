@@ -0,0 +1,256 @@
+package org.littleshoot.p2p;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.littleshoot.util.CommonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.ResourceUDT;
+
+/**
+ * Points Barchart UDT at a directory for its native libraries before the
+ * first UDT socket is created. The directory is named after the bundle's
+ * version and a SHA-1 of its jar, so a different bundle gets a clean
+ * directory of its own even if a copy left the same size and timestamp.
+ * <p>
+ * Other processes may be using or extracting into sibling directories, so
+ * each process holds a lock on a file in its directory for as long as it
+ * runs, and only directories that are unlocked and haven't been used for
+ * {@link #STALE_MILLIS} are deleted.
+ * <p>
+ * Reusing libraries an earlier run extracted is up to Barchart: in the
+ * 2.3.0 bundle we depend on, it skips extracting a library whose size and
+ * timestamp already match the one in the jar.
+ */
+final class UdtNativeLibrary {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(UdtNativeLibrary.class);
+
+    /**
+     * How long a directory has to go unused before it may be deleted.
+     */
+    static final long STALE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The file in each directory its users lock.
+     */
+    static final String LOCK_FILE = ".lock";
+
+    private static boolean prepared = false;
+
+    /**
+     * The lock on our directory, held until the process exits.
+     */
+    private static FileLock lock;
+
+    private UdtNativeLibrary() {
+        // Not instantiable.
+    }
+
+    /**
+     * Sets the extract location for the native libraries, unless it's
+     * already been done or set by the user. This is cheap after the first
+     * call.
+     */
+    static synchronized void prepare() {
+        if (prepared) {
+            return;
+        }
+        prepared = true;
+        final String property = ResourceUDT.PROPERTY_LIBRARY_EXTRACT_LOCATION;
+        if (System.getProperty(property) != null) {
+            log.debug("Using configured UDT library location");
+            return;
+        }
+        // We need Barchart UDT to extract its libraries to a place where we
+        // always have permission to write to.
+        final File parent = new File(CommonUtils.getLittleShootDir(), "udt");
+        final File dir = new File(parent, key());
+        if (dir.isDirectory()) {
+            log.debug("Reusing UDT library directory: {}", dir);
+        } else if (!dir.mkdirs()) {
+            log.warn("Could not create UDT library directory: {}", dir);
+        }
+        lock = lock(dir);
+        if (!dir.setLastModified(System.currentTimeMillis())) {
+            log.debug("Could not touch {}", dir);
+        }
+        deleteOthers(parent, dir, System.currentTimeMillis() - STALE_MILLIS);
+        System.setProperty(property, dir.getAbsolutePath());
+    }
+
+    /**
+     * Returns the name of the directory for the bundle on the class path,
+     * or just its version if we can't read its jar.
+     */
+    private static String key() {
+        final Package pkg = ResourceUDT.class.getPackage();
+        final String version = pkg == null ||
+            pkg.getImplementationVersion() == null ? "unknown" :
+            pkg.getImplementationVersion().replaceAll("[^A-Za-z0-9._-]", "_");
+        final CodeSource source =
+            ResourceUDT.class.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return version;
+        }
+        final URL location = source.getLocation();
+        try {
+            final File jar = new File(location.toURI());
+            if (!jar.isFile()) {
+                return version;
+            }
+            return version + "-" + sha1(jar);
+        } catch (final URISyntaxException e) {
+            log.debug("Bad UDT jar location: "+location, e);
+        } catch (final IllegalArgumentException e) {
+            // Not a file URL.
+            log.debug("UDT classes not in a local jar: {}", location);
+        } catch (final IOException e) {
+            log.warn("Could not read UDT jar: "+location, e);
+        }
+        return version;
+    }
+
+    /**
+     * Returns the SHA-1 of a file's contents in hex.
+     */
+    static String sha1(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has to have SHA-1.
+            throw new IllegalStateException(e);
+        }
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Takes a shared lock on the lock file in a directory, so other
+     * processes can see the directory's in use. Returns <code>null</code>
+     * if we can't, which only means another process might delete it once
+     * it's stale.
+     */
+    static FileLock lock(final File dir) {
+        try {
+            final FileChannel channel =
+                new RandomAccessFile(new File(dir, LOCK_FILE), "rw")
+                    .getChannel();
+            final FileLock held = channel.tryLock(0, Long.MAX_VALUE, true);
+            if (held == null) {
+                channel.close();
+            }
+            return held;
+        } catch (final IOException e) {
+            log.debug("Could not lock "+dir, e);
+        } catch (final OverlappingFileLockException e) {
+            log.debug("Already locked: {}", dir);
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the other directories libraries were extracted to, skipping
+     * any that were used after <code>staleBefore</code> or that a process
+     * holds a lock on. Libraries another process still has loaded may not
+     * delete, and are tried again next time.
+     */
+    static void deleteOthers(final File parent, final File keep,
+        final long staleBefore) {
+        final File[] dirs = parent.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (final File dir : dirs) {
+            if (!dir.isDirectory() || dir.equals(keep)) {
+                continue;
+            }
+            if (dir.lastModified() > staleBefore) {
+                log.debug("Keeping recently used UDT directory: {}", dir);
+                continue;
+            }
+            if (!unlocked(dir)) {
+                log.debug("Keeping UDT directory in use: {}", dir);
+                continue;
+            }
+            log.debug("Deleting old UDT library directory: {}", dir);
+            delete(dir);
+        }
+    }
+
+    /**
+     * Returns whether no process holds a lock on a directory's lock file.
+     * A directory without one was left by a version that didn't lock, and
+     * is only deleted once it's stale.
+     */
+    private static boolean unlocked(final File dir) {
+        final File file = new File(dir, LOCK_FILE);
+        if (!file.isFile()) {
+            return true;
+        }
+        try {
+            final FileChannel channel =
+                new RandomAccessFile(file, "rw").getChannel();
+            try {
+                final FileLock held = channel.tryLock();
+                if (held == null) {
+                    return false;
+                }
+                held.release();
+                return true;
+            } finally {
+                channel.close();
+            }
+        } catch (final IOException e) {
+            log.debug("Could not check lock on "+dir, e);
+            return false;
+        } catch (final OverlappingFileLockException e) {
+            // Locked in this process.
+            return false;
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            log.debug("Could not delete {}", file);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.littleshoot.p2p;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.lastbamboo.common.ice.UdpSocketFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.OptionUDT;
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * Settings for the UDT sockets the ICE library creates. Set a profile with
+ * {@link P2PConfig#setUdtProfile(UdtProfile)}, and
+ * {@link IceInfrastructure#acquire(P2PConfig, javax.net.SocketFactory,
+ * javax.net.ServerSocketFactory, boolean)} applies it to every socket its
+ * UDT socket factory hands over, before the client sees it.
+ * <p>
+ * The factory creates and connects its sockets itself, and UDT only takes
+ * buffer sizes, flow windows and congestion control before connecting, so
+ * those stay at UDT's defaults. A profile sets what UDT still takes on a
+ * connected socket: the most bandwidth a session may use, which UDT's
+ * congestion control keeps the sending rate under, and how long closing
+ * waits for unsent data. Sockets the factory has layered another socket
+ * over, such as SSL, are left alone.
+ */
+public class UdtProfile {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log =
+        LoggerFactory.getLogger(UdtProfile.class);
+
+    private long maxBandwidth = -1L;
+
+    private int lingerSeconds = 180;
+
+    /**
+     * Returns the most bandwidth a session may use.
+     *
+     * @return The bandwidth in bytes per second, or -1 for no limit.
+     */
+    public long getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    /**
+     * Sets the most bandwidth a session may use. There's no limit by
+     * default, as with UDT itself.
+     *
+     * @param maxBandwidth The bandwidth in bytes per second, or -1 for no
+     * limit.
+     * @return This profile.
+     */
+    public UdtProfile setMaxBandwidth(final long maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+        return this;
+    }
+
+    /**
+     * Returns how long closing a session waits for unsent data.
+     *
+     * @return The time in seconds.
+     */
+    public int getLingerSeconds() {
+        return lingerSeconds;
+    }
+
+    /**
+     * Sets how long closing a session waits for unsent data. Zero discards
+     * it right away, which suits interactive sessions nobody waits on once
+     * they're closed. The default is UDT's own, 180 seconds.
+     *
+     * @param lingerSeconds The time in seconds.
+     * @return This profile.
+     */
+    public UdtProfile setLingerSeconds(final int lingerSeconds) {
+        this.lingerSeconds = lingerSeconds;
+        return this;
+    }
+
+    /**
+     * Applies this profile to the given socket if it's a UDT socket.
+     *
+     * @param sock The socket.
+     * @return <code>true</code> if the socket is a UDT socket and UDT took
+     * the settings.
+     */
+    public boolean apply(final Socket sock) {
+        final NetSocketUDT udt = ExecutingSessionSocketListener.udtSocket(sock);
+        if (udt == null) {
+            log.debug("Not a UDT socket: {}", sock);
+            return false;
+        }
+        try {
+            udt.socketUDT().setOption(OptionUDT.Maximum_Bandwidth,
+                Long.valueOf(this.maxBandwidth));
+            udt.setSoLinger(true, this.lingerSeconds);
+            return true;
+        } catch (final SocketException e) {
+            log.warn("UDT refused "+this, e);
+        }
+        return false;
+    }
+
+    /**
+     * Wraps the given factory so this profile is applied to each socket it
+     * hands to a listener.
+     *
+     * @param factory The factory.
+     * @return The wrapped factory.
+     */
+    @SuppressWarnings("unchecked")
+    UdpSocketFactory<Socket> tune(final UdpSocketFactory<Socket> factory) {
+        return (UdpSocketFactory<Socket>) Proxy.newProxyInstance(
+            UdpSocketFactory.class.getClassLoader(),
+            new Class<?>[] {UdpSocketFactory.class}, new Tuner(factory));
+    }
+
+    /**
+     * Wraps the given listener so this profile is applied to each socket
+     * before the listener sees it.
+     *
+     * @param listener The listener.
+     * @return The wrapped listener.
+     */
+    @SuppressWarnings("unchecked")
+    OfferAnswerListener<Socket> tune(
+        final OfferAnswerListener<Socket> listener) {
+        return (OfferAnswerListener<Socket>) Proxy.newProxyInstance(
+            OfferAnswerListener.class.getClassLoader(),
+            new Class<?>[] {OfferAnswerListener.class}, new Tuner(listener));
+    }
+
+    @Override
+    public String toString() {
+        return "UdtProfile [maxBandwidth=" + maxBandwidth +
+            ", lingerSeconds=" + lingerSeconds + "]";
+    }
+
+    /**
+     * Passes calls on to a factory or listener, wrapping the listeners
+     * given to the factory and tuning the sockets given to the listeners.
+     */
+    private final class Tuner implements InvocationHandler {
+
+        private final Object target;
+
+        private Tuner(final Object target) {
+            this.target = target;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object invoke(final Object proxy, final Method method,
+            final Object[] args) throws Throwable {
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] instanceof OfferAnswerListener) {
+                        args[i] = tune((OfferAnswerListener<Socket>) args[i]);
+                    } else if (args[i] instanceof Socket) {
+                        apply((Socket) args[i]);
+                    }
+                }
+            }
+            try {
+                return method.invoke(this.target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.littleshoot.p2p;
+
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.ExceptionUDT;
+import com.barchart.udt.MonitorUDT;
+import com.barchart.udt.SocketUDT;
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * A snapshot of a UDT session's state from UDT's own monitor, for tuning
+ * throughput route by route.
+ * <p>
+ * There are no buffer, window or congestion control settings to go with
+ * these. The ICE library creates and connects its UDT sockets itself, and
+ * UDT only takes those settings before connecting, so UDT's defaults
+ * apply to every session. A {@link UdtProfile} can still cap a session's
+ * bandwidth.
+ */
+public class UdtStats {
+
+    /**
+     * The logger for this class.
+     */
+    private final static Logger log = LoggerFactory.getLogger(UdtStats.class);
+
+    private final double sendRateMbps;
+
+    private final double receiveRateMbps;
+
+    private final double bandwidthMbps;
+
+    private final double rttMillis;
+
+    private final long sendLossTotal;
+
+    private final long receiveLossTotal;
+
+    private final long congestionWindow;
+
+    private final long flowWindow;
+
+    /**
+     * Reads the current stats of the given socket.
+     *
+     * @param sock The socket.
+     * @return The stats, or <code>null</code> if the socket isn't a UDT
+     * socket or its monitor can't be read.
+     */
+    public static UdtStats of(final Socket sock) {
+        final NetSocketUDT net = ExecutingSessionSocketListener.udtSocket(sock);
+        if (net == null) {
+            return null;
+        }
+        final SocketUDT udt = net.socketUDT();
+        try {
+            udt.updateMonitor(false);
+        } catch (final ExceptionUDT e) {
+            log.debug("Could not read UDT monitor", e);
+            return null;
+        }
+        final MonitorUDT monitor = udt.monitor();
+        return new UdtStats(monitor.mbpsSendRate(), monitor.mbpsRecvRate(),
+            monitor.mbpsBandwidth(), monitor.msRTT(),
+            monitor.pktSndLossTotal(), monitor.pktRcvLossTotal(),
+            monitor.pktCongestionWindow(), monitor.pktFlowWindow());
+    }
+
+    private UdtStats(final double sendRateMbps, final double receiveRateMbps,
+        final double bandwidthMbps, final double rttMillis,
+        final long sendLossTotal, final long receiveLossTotal,
+        final long congestionWindow, final long flowWindow) {
+        this.sendRateMbps = sendRateMbps;
+        this.receiveRateMbps = receiveRateMbps;
+        this.bandwidthMbps = bandwidthMbps;
+        this.rttMillis = rttMillis;
+        this.sendLossTotal = sendLossTotal;
+        this.receiveLossTotal = receiveLossTotal;
+        this.congestionWindow = congestionWindow;
+        this.flowWindow = flowWindow;
+    }
+
+    /**
+     * @return The current send rate in megabits per second.
+     */
+    public double getSendRateMbps() {
+        return sendRateMbps;
+    }
+
+    /**
+     * @return The current receive rate in megabits per second.
+     */
+    public double getReceiveRateMbps() {
+        return receiveRateMbps;
+    }
+
+    /**
+     * @return UDT's estimate of the link bandwidth in megabits per second.
+     */
+    public double getBandwidthMbps() {
+        return bandwidthMbps;
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds.
+     */
+    public double getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * @return The total packets lost sending.
+     */
+    public long getSendLossTotal() {
+        return sendLossTotal;
+    }
+
+    /**
+     * @return The total packets lost receiving.
+     */
+    public long getReceiveLossTotal() {
+        return receiveLossTotal;
+    }
+
+    /**
+     * @return The congestion window in packets.
+     */
+    public long getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    /**
+     * @return The flow window in packets.
+     */
+    public long getFlowWindow() {
+        return flowWindow;
+    }
+
+    @Override
+    public String toString() {
+        return "UdtStats [sendRateMbps=" + sendRateMbps +
+            ", receiveRateMbps=" + receiveRateMbps + ", bandwidthMbps=" +
+            bandwidthMbps + ", rttMillis=" + rttMillis + ", sendLossTotal=" +
+            sendLossTotal + ", receiveLossTotal=" + receiveLossTotal +
+            ", congestionWindow=" + congestionWindow + ", flowWindow=" +
+            flowWindow + "]";
+    }
+}
@@ -0,0 +1,130 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ByteBudget}.
+ */
+public class ByteBudgetTest {
+
+    @Test
+    public void testTracksUsedPeakAndThrottledBytes() throws Exception {
+        final ByteBudget budget = new ByteBudget(100);
+        assertTrue(budget.tryAcquire(60));
+        assertTrue(budget.tryAcquire(40));
+        assertFalse(budget.tryAcquire(10));
+        assertFalse(budget.tryAcquire(5));
+        assertEquals(100, budget.getUsedBytes());
+        assertEquals(100, budget.getPeakBytes());
+        assertEquals(2, budget.getThrottleCount());
+        assertEquals(15, budget.getThrottledBytes());
+
+        budget.release(60);
+        assertEquals(40, budget.getUsedBytes());
+        assertEquals(100, budget.getPeakBytes());
+        assertTrue(budget.tryAcquire(10));
+        assertEquals(50, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testOversizedRequestFitsAnEmptyBudget() throws Exception {
+        final ByteBudget budget = new ByteBudget(100);
+        assertTrue(budget.tryAcquire(500));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(500);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(500, budget.getPeakBytes());
+    }
+
+    @Test
+    public void testReleaseWakesWaitersAndListeners() throws Exception {
+        final ByteBudget budget = new ByteBudget(100);
+        final AtomicInteger released = new AtomicInteger();
+        budget.addReleaseListener(new Runnable() {
+            public void run() {
+                released.incrementAndGet();
+            }
+        });
+        assertTrue(budget.tryAcquire(100));
+
+        // Releasing with nobody turned away doesn't call the listeners.
+        budget.release(0);
+        assertEquals(0, released.get());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    budget.acquire(50);
+                    acquired.countDown();
+                } catch (final InterruptedException e) {
+                    // Test fails below.
+                }
+            }
+        });
+        waiter.setDaemon(true);
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(50, budget.getThrottledBytes());
+
+        budget.release(100);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, released.get());
+        assertEquals(50, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testTaggedMetricsExposeTheBudget() throws Exception {
+        final ByteBudget budget = new ByteBudget(100);
+        final GaugeSink sink = new GaugeSink();
+        new TaggedP2PMetrics(sink).byteBudget(budget);
+        assertTrue(budget.tryAcquire(80));
+        assertFalse(budget.tryAcquire(30));
+        budget.release(50);
+
+        assertEquals(30.0, sink.used.value(), 0.0);
+        assertEquals(80.0, sink.peak.value(), 0.0);
+        assertEquals(30.0, sink.throttled.value(), 0.0);
+    }
+
+    private static final class GaugeSink
+        implements TaggedP2PMetrics.MeterSink {
+
+        private TaggedP2PMetrics.GaugeValue used;
+
+        private TaggedP2PMetrics.GaugeValue peak;
+
+        private TaggedP2PMetrics.GaugeValue throttled;
+
+        public void recordTime(final String name, final long nanos,
+            final String... tags) {
+        }
+
+        public void increment(final String name, final long amount,
+            final String... tags) {
+        }
+
+        public void recordValue(final String name, final double value,
+            final String... tags) {
+        }
+
+        public void gauge(final String name,
+            final TaggedP2PMetrics.GaugeValue value, final String... tags) {
+            if (name.equals("p2p.buffer.used")) {
+                this.used = value;
+            } else if (name.equals("p2p.buffer.peak")) {
+                this.peak = value;
+            } else if (name.equals("p2p.buffer.throttled")) {
+                this.throttled = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link CachingSrvCandidateProvider} against a fake name server
+ * on the loopback interface.
+ */
+public class CachingSrvCandidateProviderTest {
+
+    private static final String NAME = "_turn._tcp.example.org";
+
+    private FakeDns dns;
+
+    private CachingSrvCandidateProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dns = new FakeDns();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.provider != null) {
+            this.provider.stop();
+        }
+        this.dns.close();
+    }
+
+    @Test
+    public void testResolvesAndCaches() throws Exception {
+        this.dns.ttl = 300;
+        this.dns.answer = true;
+        this.provider = newProvider(unresolvedFallback());
+
+        final Collection<InetSocketAddress> servers =
+            this.provider.getCandidates();
+        assertEquals(1, servers.size());
+        final InetSocketAddress server = servers.iterator().next();
+        assertEquals(3478, server.getPort());
+        assertEquals("10.0.0.1", server.getAddress().getHostAddress());
+
+        final int queries = this.dns.queries.get();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, this.provider.getCandidates().size());
+        }
+        assertEquals(queries, this.dns.queries.get());
+    }
+
+    @Test
+    public void testNegativeAnswerIsCached() throws Exception {
+        // No SRV records, and a fallback with nothing usable, gives an
+        // empty entry. It has to be cached for the negative TTL rather
+        // than overflowing into an already expired entry.
+        this.dns.answer = false;
+        this.provider = newProvider(unresolvedFallback());
+
+        assertTrue(this.provider.getCandidates().isEmpty());
+        final int queries = this.dns.queries.get();
+        assertEquals(1, queries);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(this.provider.getCandidates().isEmpty());
+        }
+        Thread.sleep(100);
+        assertEquals(queries, this.dns.queries.get());
+    }
+
+    @Test
+    public void testFallsBackWhenDnsIsDown() throws Exception {
+        final InetSocketAddress fallback =
+            new InetSocketAddress("127.0.0.1", 3479);
+        final DnsSrvResolver resolver = new DnsSrvResolver(
+            Arrays.asList(this.dns.getAddress()), 200);
+        this.dns.close();
+        this.provider = new CachingSrvCandidateProvider(NAME, resolver,
+            fixed(fallback), 2000);
+        final Collection<InetSocketAddress> servers =
+            this.provider.getCandidates();
+        assertEquals(Arrays.asList(fallback), new ArrayList<InetSocketAddress>(
+            servers));
+    }
+
+    private CachingSrvCandidateProvider newProvider(
+        final CandidateProvider<InetSocketAddress> fallback) {
+        final DnsSrvResolver resolver = new DnsSrvResolver(
+            Arrays.asList(this.dns.getAddress()), 200);
+        return new CachingSrvCandidateProvider(NAME, resolver, fallback,
+            2000);
+    }
+
+    private static CandidateProvider<InetSocketAddress> unresolvedFallback() {
+        return fixed(InetSocketAddress.createUnresolved("unknown.invalid",
+            3478));
+    }
+
+    private static CandidateProvider<InetSocketAddress> fixed(
+        final InetSocketAddress server) {
+        return new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Arrays.asList(server);
+            }
+            public InetSocketAddress getCandidate() {
+                return server;
+            }
+        };
+    }
+
+    /**
+     * Answers SRV queries for any name with a single record pointing at
+     * 10.0.0.1:3478, with the target's address in the additional section.
+     */
+    private static final class FakeDns implements Runnable {
+
+        private final DatagramSocket socket;
+
+        private final AtomicInteger queries = new AtomicInteger();
+
+        private volatile boolean answer = true;
+
+        private volatile long ttl = 300;
+
+        private FakeDns() throws SocketException {
+            this.socket = new DatagramSocket(0, loopback());
+            final Thread thread = new Thread(this, "Fake-DNS");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(loopback(), this.socket.getLocalPort());
+        }
+
+        private void close() {
+            this.socket.close();
+        }
+
+        public void run() {
+            final byte[] data = new byte[512];
+            while (!this.socket.isClosed()) {
+                final DatagramPacket packet =
+                    new DatagramPacket(data, data.length);
+                try {
+                    this.socket.receive(packet);
+                    this.queries.incrementAndGet();
+                    final byte[] response = respond(ByteBuffer.wrap(data, 0,
+                        packet.getLength()));
+                    this.socket.send(new DatagramPacket(response,
+                        response.length, packet.getSocketAddress()));
+                } catch (final IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private byte[] respond(final ByteBuffer query) {
+            final short id = query.getShort(0);
+            query.position(12);
+            while (query.get() != 0) {
+                query.position(query.position() + (query.get(
+                    query.position() - 1) & 0xff));
+            }
+            query.getInt();
+            final int questionEnd = query.position();
+
+            final ByteBuffer out = ByteBuffer.allocate(512);
+            out.putShort(id);
+            out.putShort((short) 0x8180);
+            out.putShort((short) 1);
+            out.putShort((short) (this.answer ? 1 : 0));
+            out.putShort((short) 0);
+            out.putShort((short) (this.answer ? 1 : 0));
+            out.put(query.array(), 12, questionEnd - 12);
+            if (this.answer) {
+                // SRV answer, owner name compressed to the question.
+                out.putShort((short) 0xc00c);
+                out.putShort((short) 33);
+                out.putShort((short) 1);
+                out.putInt((int) this.ttl);
+                final List<Byte> target = encode("relay.example.org");
+                out.putShort((short) (6 + target.size()));
+                out.putShort((short) 10);
+                out.putShort((short) 5);
+                out.putShort((short) 3478);
+                final int targetOffset = out.position();
+                put(out, target);
+
+                // A record for the target.
+                out.putShort((short) (0xc000 | targetOffset));
+                out.putShort((short) 1);
+                out.putShort((short) 1);
+                out.putInt((int) this.ttl);
+                out.putShort((short) 4);
+                out.put(new byte[] {10, 0, 0, 1});
+            }
+            final byte[] response = new byte[out.position()];
+            System.arraycopy(out.array(), 0, response, 0, response.length);
+            return response;
+        }
+
+        private static List<Byte> encode(final String name) {
+            final List<Byte> bytes = new ArrayList<Byte>();
+            for (final String label : name.split("\\.")) {
+                bytes.add((byte) label.length());
+                for (final char c : label.toCharArray()) {
+                    bytes.add((byte) c);
+                }
+            }
+            bytes.add((byte) 0);
+            return bytes;
+        }
+
+        private static void put(final ByteBuffer out, final List<Byte> bytes) {
+            for (final Byte b : bytes) {
+                out.put(b.byteValue());
+            }
+        }
+
+        private static InetAddress loopback() {
+            try {
+                return InetAddress.getByName("127.0.0.1");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
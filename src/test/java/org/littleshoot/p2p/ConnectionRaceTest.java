@@ -0,0 +1,192 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ConnectionRace}.
+ */
+public class ConnectionRaceTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstAttemptWins() throws Exception {
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(attempt("direct", 0, "a", 0));
+        attempts.add(attempt("relayed", 5000, "b", 0));
+        final ConnectionRace.Result<String> result =
+            new ConnectionRace<String>(this.executor).race(attempts, 10000);
+        assertEquals("direct", result.getName());
+        assertEquals("a", result.getConnection());
+    }
+
+    @Test
+    public void testFailureStartsNextAttemptEarly() throws Exception {
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(failing("direct"));
+        attempts.add(attempt("relayed", 60000, "b", 0));
+        final ConnectionRace.Result<String> result =
+            new ConnectionRace<String>(this.executor).race(attempts, 10000);
+        assertEquals("relayed", result.getName());
+        assertTrue(result.getElapsedMillis() < 5000);
+    }
+
+    @Test
+    public void testDelayedAttemptOvertakesSlowOne() throws Exception {
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(attempt("direct", 0, "a", 5000));
+        attempts.add(attempt("relayed", 50, "b", 0));
+        final ConnectionRace.Result<String> result =
+            new ConnectionRace<String>(this.executor).race(attempts, 10000);
+        assertEquals("relayed", result.getName());
+        assertTrue(result.getElapsedMillis() >= 50);
+    }
+
+    @Test
+    public void testAllFail() throws Exception {
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(failing("direct"));
+        attempts.add(failing("relayed"));
+        try {
+            new ConnectionRace<String>(this.executor).race(attempts, 10000);
+            fail("Race should have failed");
+        } catch (final IOException e) {
+            assertEquals("All attempts failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTimesOut() throws Exception {
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(attempt("direct", 0, "a", 5000));
+        final long start = System.currentTimeMillis();
+        try {
+            new ConnectionRace<String>(this.executor).race(attempts, 100);
+            fail("Race should have timed out");
+        } catch (final IOException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void testLoserIsClosed() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Socket loser = new Socket();
+        final List<ConnectionRace.Attempt<Socket>> attempts =
+            new ArrayList<ConnectionRace.Attempt<Socket>>();
+        attempts.add(new ConnectionRace.Attempt<Socket>("direct", 0,
+            new Callable<Socket>() {
+                public Socket call() throws Exception {
+                    // Ignore the interrupt from losing, and connect anyway.
+                    while (true) {
+                        try {
+                            release.await();
+                            return loser;
+                        } catch (final InterruptedException e) {
+                            release.countDown();
+                        }
+                    }
+                }
+            }));
+        final Socket winner = new Socket();
+        attempts.add(new ConnectionRace.Attempt<Socket>("relayed", 20,
+            new Callable<Socket>() {
+                public Socket call() {
+                    return winner;
+                }
+            }));
+        final ConnectionRace.Result<Socket> result =
+            new ConnectionRace<Socket>(this.executor).race(attempts, 10000);
+        assertTrue(result.getConnection() == winner);
+        this.executor.shutdown();
+        this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        assertTrue(loser.isClosed());
+        assertTrue(!winner.isClosed());
+        winner.close();
+    }
+
+    @Test
+    public void testLoserGoesToTheCloser() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> closed = new ArrayList<String>();
+        final List<ConnectionRace.Attempt<String>> attempts =
+            new ArrayList<ConnectionRace.Attempt<String>>();
+        attempts.add(new ConnectionRace.Attempt<String>("direct", 0,
+            new Callable<String>() {
+                public String call() throws Exception {
+                    // Ignore the interrupt from losing, and connect anyway.
+                    while (true) {
+                        try {
+                            release.await();
+                            return "loser";
+                        } catch (final InterruptedException e) {
+                            release.countDown();
+                        }
+                    }
+                }
+            }));
+        attempts.add(attempt("relayed", 20, "winner", 0));
+        final ConnectionRace.Result<String> result =
+            new ConnectionRace<String>(this.executor,
+                new ConnectionRace.Closer<String>() {
+                    public void close(final String connection) {
+                        synchronized (closed) {
+                            closed.add(connection);
+                        }
+                    }
+                }).race(attempts, 10000);
+        assertEquals("winner", result.getConnection());
+        this.executor.shutdown();
+        this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        synchronized (closed) {
+            assertEquals(1, closed.size());
+            assertEquals("loser", closed.get(0));
+        }
+    }
+
+    private static ConnectionRace.Attempt<String> attempt(final String name,
+        final long delayMillis, final String connection,
+        final long takesMillis) {
+        return new ConnectionRace.Attempt<String>(name, delayMillis,
+            new Callable<String>() {
+                public String call() throws Exception {
+                    Thread.sleep(takesMillis);
+                    return connection;
+                }
+            });
+    }
+
+    private static ConnectionRace.Attempt<String> failing(final String name) {
+        return new ConnectionRace.Attempt<String>(name, 0,
+            new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IOException(name + " failed");
+                }
+            });
+    }
+}
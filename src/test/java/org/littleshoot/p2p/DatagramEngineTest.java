@@ -0,0 +1,59 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DatagramEngine}.
+ */
+public class DatagramEngineTest {
+
+    private final DirectBufferPool pool = new DirectBufferPool(2048, 4);
+
+    @Test
+    public void testTakesOverBoundChannel() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(
+            InetAddress.getByName("127.0.0.1"), 0));
+        final InetSocketAddress local =
+            (InetSocketAddress) channel.socket().getLocalSocketAddress();
+
+        final DatagramEngine engine = new DatagramEngine(channel, this.pool);
+        assertEquals(local, engine.getLocalAddress());
+        assertFalse(channel.isBlocking());
+        engine.close();
+    }
+
+    @Test
+    public void testDoesNotShareAPort() throws Exception {
+        final DatagramEngine engine = DatagramEngine.bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+            this.pool);
+        try {
+            DatagramEngine.bind(engine.getLocalAddress(), this.pool);
+            fail("Bound a port the engine holds");
+        } catch (final SocketException e) {
+            // Expected.
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnboundChannel() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            new DatagramEngine(channel, this.pool);
+        } finally {
+            channel.close();
+        }
+    }
+}
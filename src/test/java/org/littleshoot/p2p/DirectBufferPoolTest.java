@@ -0,0 +1,74 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectBufferPool}.
+ */
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testAcquireAllocatesDirectBuffers() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 4);
+        final ByteBuffer buf = pool.acquire();
+        assertTrue(buf.isDirect());
+        assertEquals(1024, buf.capacity());
+        assertEquals(1024, buf.remaining());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void testReleasedBuffersAreReusedCleared() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 4);
+        final ByteBuffer buf = pool.acquire();
+        buf.put(new byte[100]).flip();
+        pool.release(buf);
+
+        final ByteBuffer again = pool.acquire();
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(1024, again.limit());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void testKeepsAtMostMaxPooled() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 2);
+        final ByteBuffer[] bufs = new ByteBuffer[3];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = pool.acquire();
+        }
+        for (final ByteBuffer buf : bufs) {
+            pool.release(buf);
+        }
+        assertEquals(3, pool.getAllocations());
+
+        // Two come back from the pool, and the third is allocated again.
+        pool.acquire();
+        pool.acquire();
+        assertEquals(3, pool.getAllocations());
+        pool.acquire();
+        assertEquals(4, pool.getAllocations());
+    }
+
+    @Test
+    public void testForeignBuffersAreNotPooled() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 4);
+        final ByteBuffer heap = ByteBuffer.allocate(1024);
+        final ByteBuffer wrongSize = ByteBuffer.allocateDirect(512);
+        pool.release(heap);
+        pool.release(wrongSize);
+
+        final ByteBuffer buf = pool.acquire();
+        assertNotSame(heap, buf);
+        assertNotSame(wrongSize, buf);
+        assertEquals(1, pool.getAllocations());
+    }
+}
@@ -0,0 +1,239 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DnsSrvResolver} against a fake name server on the
+ * loopback interface.
+ */
+public class DnsSrvResolverTest {
+
+    private static final String NAME = "_turn._tcp.example.org";
+
+    private FakeDns dns;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dns = new FakeDns();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.dns.close();
+    }
+
+    @Test
+    public void testFollowsCnames() throws Exception {
+        final List<SrvRecord> records = newResolver().resolve(NAME);
+        assertEquals(1, records.size());
+        final SrvRecord record = records.get(0);
+        assertEquals("alias.example.org", record.getTarget());
+        assertEquals("10.0.0.2", record.getAddress().getHostAddress());
+        assertEquals(3478, record.getPort());
+        // The lowest TTL along the chain, which is the CNAME's.
+        assertEquals(60, record.getTtlSeconds());
+    }
+
+    @Test
+    public void testIgnoresRepliesFromElsewhere() throws Exception {
+        this.dns.spoof = true;
+        final List<SrvRecord> records = newResolver().resolve(NAME);
+        assertEquals(1, records.size());
+        assertEquals("10.0.0.2",
+            records.get(0).getAddress().getHostAddress());
+    }
+
+    @Test
+    public void testParsesResolvConf() throws Exception {
+        final String conf =
+            "# Generated\n" +
+            "search example.org\n" +
+            "nameserver 127.0.0.53\n" +
+            "  nameserver\t10.1.2.3  \n" +
+            "nameserver fe80::1%eth0\n" +
+            "nameserver\n" +
+            "options edns0\n";
+        final List<InetSocketAddress> servers =
+            DnsSrvResolver.parseResolvConf(new StringReader(conf));
+        assertEquals(3, servers.size());
+        assertEquals(new InetSocketAddress("127.0.0.53", 53), servers.get(0));
+        assertEquals(new InetSocketAddress("10.1.2.3", 53), servers.get(1));
+        assertEquals(53, servers.get(2).getPort());
+    }
+
+    @Test
+    public void testPropertyOverridesSystemNameservers() throws Exception {
+        final String old =
+            System.getProperty(DnsSrvResolver.NAMESERVERS_PROPERTY);
+        System.setProperty(DnsSrvResolver.NAMESERVERS_PROPERTY,
+            "127.0.0.1:" + this.dns.getAddress().getPort());
+        try {
+            final List<SrvRecord> records =
+                DnsSrvResolver.newConfiguredResolver(1000).resolve(NAME);
+            assertEquals(1, records.size());
+        } finally {
+            if (old == null) {
+                System.clearProperty(DnsSrvResolver.NAMESERVERS_PROPERTY);
+            } else {
+                System.setProperty(DnsSrvResolver.NAMESERVERS_PROPERTY, old);
+            }
+        }
+    }
+
+    private DnsSrvResolver newResolver() {
+        return new DnsSrvResolver(Arrays.asList(this.dns.getAddress()), 1000);
+    }
+
+    /**
+     * Answers SRV queries with a record whose target is a CNAME, and A
+     * queries with the address of the CNAME's target. When spoofing it
+     * first answers from another port with a bogus address.
+     */
+    private static final class FakeDns implements Runnable {
+
+        private final DatagramSocket socket;
+
+        private final DatagramSocket spoofer;
+
+        private volatile boolean spoof;
+
+        private FakeDns() throws SocketException {
+            this.socket = new DatagramSocket(0, loopback());
+            this.spoofer = new DatagramSocket(0, loopback());
+            final Thread thread = new Thread(this, "Fake-DNS");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(loopback(), this.socket.getLocalPort());
+        }
+
+        private void close() {
+            this.socket.close();
+            this.spoofer.close();
+        }
+
+        public void run() {
+            final byte[] data = new byte[512];
+            while (!this.socket.isClosed()) {
+                final DatagramPacket packet =
+                    new DatagramPacket(data, data.length);
+                try {
+                    this.socket.receive(packet);
+                    final ByteBuffer query = ByteBuffer.wrap(data, 0,
+                        packet.getLength());
+                    if (this.spoof) {
+                        final byte[] bogus = respond(query, "10.6.6.6");
+                        this.spoofer.send(new DatagramPacket(bogus,
+                            bogus.length, packet.getSocketAddress()));
+                    }
+                    final byte[] response = respond(query, "10.0.0.2");
+                    this.socket.send(new DatagramPacket(response,
+                        response.length, packet.getSocketAddress()));
+                } catch (final IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private static byte[] respond(final ByteBuffer query,
+            final String address) throws IOException {
+            final short id = query.getShort(0);
+            query.position(12);
+            while (query.get() != 0) {
+                query.position(query.position() + (query.get(
+                    query.position() - 1) & 0xff));
+            }
+            final int type = query.getShort() & 0xffff;
+            query.getShort();
+            final int questionEnd = query.position();
+
+            final ByteBuffer out = ByteBuffer.allocate(512);
+            out.putShort(id);
+            out.putShort((short) 0x8180);
+            out.putShort((short) 1);
+            out.putShort((short) (type == 33 ? 1 : 2));
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            out.put(query.array(), 12, questionEnd - 12);
+            if (type == 33) {
+                // SRV answer pointing at an alias, with no additionals so
+                // the resolver has to look the alias up.
+                out.putShort((short) 0xc00c);
+                out.putShort((short) 33);
+                out.putShort((short) 1);
+                out.putInt(300);
+                final List<Byte> target = encode("alias.example.org");
+                out.putShort((short) (6 + target.size()));
+                out.putShort((short) 10);
+                out.putShort((short) 5);
+                out.putShort((short) 3478);
+                put(out, target);
+            } else {
+                // The CNAME for the queried alias, then the A record of
+                // its target.
+                out.putShort((short) 0xc00c);
+                out.putShort((short) 5);
+                out.putShort((short) 1);
+                out.putInt(60);
+                final List<Byte> target = encode("relay.example.org");
+                out.putShort((short) target.size());
+                final int targetOffset = out.position();
+                put(out, target);
+
+                out.putShort((short) (0xc000 | targetOffset));
+                out.putShort((short) 1);
+                out.putShort((short) 1);
+                out.putInt(300);
+                out.putShort((short) 4);
+                out.put(InetAddress.getByName(address).getAddress());
+            }
+            final byte[] response = new byte[out.position()];
+            System.arraycopy(out.array(), 0, response, 0, response.length);
+            return response;
+        }
+
+        private static List<Byte> encode(final String name) {
+            final List<Byte> bytes = new ArrayList<Byte>();
+            for (final String label : name.split("\\.")) {
+                bytes.add((byte) label.length());
+                for (final char c : label.toCharArray()) {
+                    bytes.add((byte) c);
+                }
+            }
+            bytes.add((byte) 0);
+            return bytes;
+        }
+
+        private static void put(final ByteBuffer out, final List<Byte> bytes) {
+            for (final Byte b : bytes) {
+                out.put(b.byteValue());
+            }
+        }
+
+        private static InetAddress loopback() {
+            try {
+                return InetAddress.getByName("127.0.0.1");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
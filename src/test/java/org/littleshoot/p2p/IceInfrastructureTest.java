@@ -0,0 +1,177 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.littleshoot.util.CandidateProvider;
+import org.junit.Test;
+
+/**
+ * Tests for sharing and releasing {@link IceInfrastructure}.
+ */
+public class IceInfrastructureTest {
+
+    /**
+     * Servers nothing listens on, so nothing here touches the network.
+     */
+    private final CandidateProvider<InetSocketAddress> servers =
+        new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Arrays.asList(new InetSocketAddress("127.0.0.1", 9));
+            }
+            public InetSocketAddress getCandidate() {
+                return getCandidates().iterator().next();
+            }
+        };
+
+    @Test
+    public void testSharedPerConfiguration() throws Exception {
+        final IceInfrastructure first = acquire();
+        final IceInfrastructure second = acquire();
+        assertSame(first, second);
+        assertEquals(2, first.getReferenceCount());
+        first.release();
+        second.release();
+        assertEquals(0, first.getReferenceCount());
+
+        final IceInfrastructure third = acquire();
+        assertNotSame(first, third);
+        third.release();
+    }
+
+    @Test
+    public void testPortMappingIsOptIn() throws Exception {
+        // The defaults never look for a gateway, let alone map on it.
+        assertSame(IceInfrastructure.EMPTY_NAT_PMP_SERVICE,
+            IceInfrastructure.defaultNatPmpService());
+        assertSame(IceInfrastructure.EMPTY_UPNP_SERVICE,
+            IceInfrastructure.defaultUpnpService());
+        assertFalse(new P2PConfig().isPortMapping());
+    }
+
+    @Test
+    public void testUdtProfileFromConfig() throws Exception {
+        final UdtProfile profile = new UdtProfile().setMaxBandwidth(1000000);
+        final P2PConfig config = new P2PConfig().setUdtProfile(profile);
+        final IceInfrastructure tuned = IceInfrastructure.acquire(config,
+            SocketFactory.getDefault(), ServerSocketFactory.getDefault(),
+            false);
+        final IceInfrastructure untuned = IceInfrastructure.acquire(
+            new P2PConfig(), SocketFactory.getDefault(),
+            ServerSocketFactory.getDefault(), false);
+        try {
+            assertSame(profile, tuned.getUdtProfile());
+            assertNull(untuned.getUdtProfile());
+            assertNotSame(tuned, untuned);
+        } finally {
+            tuned.release();
+            untuned.release();
+        }
+    }
+
+    @Test
+    public void testReleaseClient() throws Exception {
+        final IceInfrastructure infrastructure = acquire();
+        final Object client = new Object();
+        final Protocol protocol =
+            new Protocol("p2ptest", new NoSocketFactory(), 80);
+        Protocol.registerProtocol("p2ptest", protocol);
+        final boolean[] closed = new boolean[1];
+        IceInfrastructure.track(client, "p2ptest", protocol, new Closeable() {
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        infrastructure.adopt(client);
+
+        assertTrue(IceInfrastructure.releaseClient(client));
+        assertEquals(0, infrastructure.getReferenceCount());
+        assertTrue(closed[0]);
+        try {
+            Protocol.getProtocol("p2ptest");
+            fail("Protocol still registered");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        assertFalse(IceInfrastructure.releaseClient(client));
+    }
+
+    @Test
+    public void testAdoptWithoutClientReleases() throws Exception {
+        final IceInfrastructure infrastructure = acquire();
+        final IceInfrastructure other = acquire();
+        assertEquals(2, infrastructure.getReferenceCount());
+        infrastructure.adopt(null);
+        assertEquals(1, infrastructure.getReferenceCount());
+
+        // A client only ever holds one reference.
+        final Object client = new Object();
+        other.adopt(client);
+        acquire().adopt(client);
+        assertEquals(1, infrastructure.getReferenceCount());
+        assertTrue(IceInfrastructure.releaseClient(client));
+        assertEquals(0, infrastructure.getReferenceCount());
+    }
+
+    @Test
+    public void testReleaseClientKeepsNewerProtocol() throws Exception {
+        final Object client = new Object();
+        final Protocol older =
+            new Protocol("p2ptest2", new NoSocketFactory(), 80);
+        Protocol.registerProtocol("p2ptest2", older);
+        IceInfrastructure.track(client, "p2ptest2", older);
+        final Protocol newer =
+            new Protocol("p2ptest2", new NoSocketFactory(), 80);
+        Protocol.registerProtocol("p2ptest2", newer);
+
+        IceInfrastructure.releaseClient(client);
+        assertSame(newer, Protocol.getProtocol("p2ptest2"));
+        Protocol.unregisterProtocol("p2ptest2");
+    }
+
+    private IceInfrastructure acquire() {
+        return IceInfrastructure.acquire(IceInfrastructure.EMPTY_NAT_PMP_SERVICE,
+            IceInfrastructure.EMPTY_UPNP_SERVICE, SocketFactory.getDefault(),
+            ServerSocketFactory.getDefault(), this.servers, this.servers);
+    }
+
+    private static final class NoSocketFactory
+        implements ProtocolSocketFactory {
+
+        public Socket createSocket(final String host, final int port,
+            final InetAddress localAddress, final int localPort)
+            throws IOException {
+            throw new IOException("Not used");
+        }
+
+        public Socket createSocket(final String host, final int port,
+            final InetAddress localAddress, final int localPort,
+            final HttpConnectionParams params) throws IOException {
+            throw new IOException("Not used");
+        }
+
+        public Socket createSocket(final String host, final int port)
+            throws IOException {
+            throw new IOException("Not used");
+        }
+    }
+}
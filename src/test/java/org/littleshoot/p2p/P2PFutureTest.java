@@ -0,0 +1,114 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link P2PFuture}.
+ */
+public class P2PFutureTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("Future-Test"));
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testCancelInterruptsWhenAllowed() throws Exception {
+        final Attempt attempt = new Attempt();
+        final P2PFuture<Connection> future = start(attempt);
+        assertTrue(attempt.started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(attempt.finished.await(5, TimeUnit.SECONDS));
+        assertTrue(attempt.interrupted.get());
+    }
+
+    @Test
+    public void testCancelLetsAttemptFinishWhenNotAllowed()
+        throws Exception {
+        final Attempt attempt = new Attempt();
+        final P2PFuture<Connection> future = start(attempt);
+        assertTrue(attempt.started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        Thread.sleep(100);
+        assertFalse(attempt.interrupted.get());
+
+        // The connection made after cancelling is closed, not handed out.
+        attempt.proceed.countDown();
+        assertTrue(attempt.finished.await(5, TimeUnit.SECONDS));
+        assertFalse(attempt.interrupted.get());
+        assertTrue(attempt.connection.closed.await(5, TimeUnit.SECONDS));
+        assertFalse(future.cancel(true));
+    }
+
+    private P2PFuture<Connection> start(final Attempt attempt) {
+        final P2PFuture<Connection> future = new P2PFuture<Connection>();
+        future.setTask(this.executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    future.succeed(attempt.call());
+                } catch (final IOException e) {
+                    future.fail(e);
+                }
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * A connection attempt that blocks until it's told to go on.
+     */
+    private static final class Attempt {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch proceed = new CountDownLatch(1);
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private final AtomicBoolean interrupted = new AtomicBoolean();
+
+        private final Connection connection = new Connection();
+
+        private Connection call() throws IOException {
+            this.started.countDown();
+            try {
+                this.proceed.await();
+                return this.connection;
+            } catch (final InterruptedException e) {
+                this.interrupted.set(true);
+                throw new IOException("Interrupted");
+            } finally {
+                this.finished.countDown();
+            }
+        }
+    }
+
+    private static final class Connection extends Socket {
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void close() {
+            this.closed.countDown();
+        }
+    }
+}
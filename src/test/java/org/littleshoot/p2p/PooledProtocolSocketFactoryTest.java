@@ -0,0 +1,169 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PooledProtocolSocketFactory} against a loopback server
+ * standing in for a peer.
+ */
+public class PooledProtocolSocketFactoryTest {
+
+    private ServerSocket server;
+
+    private final List<Socket> accepted = new ArrayList<Socket>();
+
+    private final AtomicInteger connects = new AtomicInteger();
+
+    private PooledProtocolSocketFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new ServerSocket(0, 50, InetAddress.getByName(
+            "127.0.0.1"));
+        final Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket sock = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(sock);
+                            accepted.notifyAll();
+                        }
+                    }
+                } catch (final IOException e) {
+                    // Server closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.factory = new PooledProtocolSocketFactory(new LoopbackFactory(),
+            2, 60000, Executors.newCachedThreadPool());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.factory.close();
+        this.server.close();
+        synchronized (this.accepted) {
+            for (final Socket sock : this.accepted) {
+                sock.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCloseReturnsToPool() throws Exception {
+        final Socket first = this.factory.createSocket("peer", 80);
+        final int port = first.getLocalPort();
+        first.getOutputStream().write(1);
+        first.close();
+        assertTrue(first.isClosed());
+        final Socket second = this.factory.createSocket("peer", 80);
+        assertEquals(1, this.connects.get());
+        assertEquals(port, second.getLocalPort());
+        second.close();
+        assertEquals(1, peer(0).getInputStream().read());
+    }
+
+    @Test
+    public void testCloseWithUnreadDataDiscards() throws Exception {
+        final Socket first = this.factory.createSocket("peer", 80);
+        // A response the user gave up on part way through.
+        peer(0).getOutputStream().write(new byte[] {1, 2, 3});
+        peer(0).getOutputStream().flush();
+        assertEquals(1, first.getInputStream().read());
+        Thread.sleep(50);
+        first.getInputStream().close();
+        final Socket second = this.factory.createSocket("peer", 80);
+        assertEquals(2, this.connects.get());
+        second.close();
+        // The peer sees the first connection closed.
+        assertEquals(-1, peer(0).getInputStream().read());
+    }
+
+    @Test
+    public void testReleaseReuses() throws Exception {
+        final Socket first = this.factory.createSocket("peer", 80);
+        final int port = first.getLocalPort();
+        this.factory.release(first);
+        assertTrue(first.isClosed());
+        final Socket second = this.factory.createSocket("peer", 80);
+        assertEquals(1, this.connects.get());
+        assertEquals(port, second.getLocalPort());
+        this.factory.release(second);
+    }
+
+    @Test
+    public void testUnreadDataDiscards() throws Exception {
+        final Socket first = this.factory.createSocket("peer", 80);
+        this.factory.release(first);
+        // The peer writes something nobody asked for while it's pooled.
+        peer(0).getOutputStream().write(7);
+        peer(0).getOutputStream().flush();
+        Thread.sleep(50);
+        final Socket second = this.factory.createSocket("peer", 80);
+        assertEquals(2, this.connects.get());
+        second.close();
+    }
+
+    @Test
+    public void testPeersPooledSeparately() throws Exception {
+        final Socket first = this.factory.createSocket("alice", 80);
+        this.factory.release(first);
+        final Socket second = this.factory.createSocket("bob", 80);
+        assertEquals(2, this.connects.get());
+        second.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignSocket() throws Exception {
+        this.factory.release(new Socket());
+    }
+
+    private Socket peer(final int index) throws InterruptedException {
+        synchronized (this.accepted) {
+            while (this.accepted.size() <= index) {
+                this.accepted.wait();
+            }
+            return this.accepted.get(index);
+        }
+    }
+
+    private final class LoopbackFactory implements ProtocolSocketFactory {
+
+        public Socket createSocket(final String host, final int port)
+            throws IOException {
+            connects.incrementAndGet();
+            return new Socket(server.getInetAddress(), server.getLocalPort());
+        }
+
+        public Socket createSocket(final String host, final int port,
+            final InetAddress localAddress, final int localPort)
+            throws IOException {
+            return createSocket(host, port);
+        }
+
+        public Socket createSocket(final String host, final int port,
+            final InetAddress localAddress, final int localPort,
+            final HttpConnectionParams params) throws IOException {
+            return createSocket(host, port);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+
+import javax.net.ServerSocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PooledServerSocketFactory}.
+ */
+public class PooledServerSocketFactoryTest {
+
+    private PooledServerSocketFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.factory = new PooledServerSocketFactory(
+            ServerSocketFactory.getDefault(), null, 1, 2, 60000, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.factory.shutdown();
+    }
+
+    @Test
+    public void testBindingWhereItAlreadyIsIsAccepted() throws Exception {
+        final ServerSocket server = this.factory.createServerSocket();
+        final int port = server.getLocalPort();
+        assertTrue(port > 0);
+        server.bind(null);
+        server.bind(new InetSocketAddress(0));
+        server.bind(new InetSocketAddress(port));
+        assertEquals(port, server.getLocalPort());
+        server.close();
+    }
+
+    @Test
+    public void testBindingElsewhereIsRejected() throws Exception {
+        final ServerSocket server = this.factory.createServerSocket();
+        final int port = server.getLocalPort();
+        try {
+            server.bind(new InetSocketAddress(port == 65535 ? 1 : port + 1));
+            fail("Bound to another port");
+        } catch (final SocketException e) {
+            // Expected.
+        }
+        try {
+            server.bind(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port));
+            fail("Bound to another address");
+        } catch (final SocketException e) {
+            // Expected.
+        }
+        server.close();
+        try {
+            server.bind(new InetSocketAddress(0));
+            fail("Bound a closed socket");
+        } catch (final SocketException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.lastbamboo.common.portmapping.PortMapListener;
+import org.lastbamboo.common.portmapping.PortMappingProtocol;
+
+/**
+ * Tests for {@link PortMappingManager} against a fake gateway.
+ */
+public class PortMappingManagerTest {
+
+    private final FakeGateway gateway = new FakeGateway();
+
+    private PortMappingManager manager;
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.manager != null) {
+            this.manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestsForOnePortShareAMapping() throws Exception {
+        this.manager = new PortMappingManager(this.gateway, 3600, 60000);
+        final RecordingListener nat = new RecordingListener();
+        final RecordingListener other = new RecordingListener();
+        this.manager.addNatPmpMapping(PortMappingProtocol.TCP, 5000, 0, nat);
+        this.manager.addNatPmpMapping(PortMappingProtocol.TCP, 5000, 0, other);
+
+        assertTrue(nat.mapped.await(5, TimeUnit.SECONDS));
+        assertTrue(other.mapped.await(5, TimeUnit.SECONDS));
+        assertEquals(15000, nat.externalPort);
+        assertEquals(15000, other.externalPort);
+        assertEquals(1, this.gateway.maps.get());
+
+        // A later request is answered from the existing mapping.
+        final RecordingListener late = new RecordingListener();
+        this.manager.addNatPmpMapping(PortMappingProtocol.TCP, 5000, 0, late);
+        assertEquals(0, late.mapped.getCount());
+        assertEquals(1, this.gateway.maps.get());
+    }
+
+    @Test
+    public void testPremappedPortIsRetriedAfterFailures() throws Exception {
+        this.gateway.failures.set(3);
+        this.manager = new PortMappingManager(this.gateway, 3600, 60000, 50);
+        this.manager.premap(PortMappingProtocol.TCP, 5000);
+
+        waitFor(4);
+        assertEquals(3, this.manager.getFailureCount());
+
+        // The mapping survived the failures, so a request for the port is
+        // answered without going back to the gateway.
+        final RecordingListener listener = new RecordingListener();
+        this.manager.addNatPmpMapping(PortMappingProtocol.TCP, 5000, 0,
+            listener);
+        assertEquals(0, listener.mapped.getCount());
+        assertEquals(15000, listener.externalPort);
+        assertEquals(4, this.gateway.maps.get());
+    }
+
+    @Test
+    public void testRenewsAtHalfTheLease() throws Exception {
+        this.manager = new PortMappingManager(this.gateway, 2, 60000);
+        this.manager.premap(PortMappingProtocol.UDP, 5000);
+        waitFor(1);
+        final long start = System.currentTimeMillis();
+        waitFor(2);
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Renewed after "+elapsed, elapsed >= 800);
+        assertEquals(2, this.manager.getRequestCount());
+    }
+
+    @Test
+    public void testUnusedMappingIsRemovedAfterKeep() throws Exception {
+        this.manager = new PortMappingManager(this.gateway, 3600, 50);
+        final RecordingListener listener = new RecordingListener();
+        final int index = this.manager.addNatPmpMapping(
+            PortMappingProtocol.TCP, 5000, 0, listener);
+        assertTrue(listener.mapped.await(5, TimeUnit.SECONDS));
+        this.manager.removeNatPmpMapping(index);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.gateway.unmapped.isEmpty() &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, this.gateway.unmapped.size());
+        assertEquals(Integer.valueOf(5000), this.gateway.unmapped.get(0));
+    }
+
+    @Test
+    public void testShutdownRemovesMappings() throws Exception {
+        this.manager = new PortMappingManager(this.gateway, 3600, 60000);
+        this.manager.premap(PortMappingProtocol.TCP, 5000);
+        waitFor(1);
+        this.manager.shutdown();
+        this.manager.shutdown();
+        assertEquals(1, this.gateway.unmapped.size());
+
+        final RecordingListener listener = new RecordingListener();
+        assertEquals(0, this.manager.addNatPmpMapping(
+            PortMappingProtocol.TCP, 6000, 0, listener));
+    }
+
+    private void waitFor(final int maps) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.manager.getRequestCount() < maps &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(maps, this.manager.getRequestCount());
+    }
+
+    private static final class RecordingListener implements PortMapListener {
+
+        private final CountDownLatch mapped = new CountDownLatch(1);
+
+        private volatile int externalPort;
+
+        public void onPortMap(final int externalPort) {
+            this.externalPort = externalPort;
+            this.mapped.countDown();
+        }
+
+        public void onPortMapError() {
+        }
+    }
+
+    /**
+     * Maps every port to the port 10000 above it, after refusing as many
+     * requests as it's told to.
+     */
+    private static final class FakeGateway implements PortMappingGateway {
+
+        private final AtomicInteger maps = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final List<Integer> unmapped =
+            Collections.synchronizedList(new ArrayList<Integer>());
+
+        public PortMapping map(final PortMappingProtocol protocol,
+            final int internalPort, final int suggestedExternalPort,
+            final int lifetimeSeconds) throws IOException {
+            this.maps.incrementAndGet();
+            if (this.failures.getAndDecrement() > 0) {
+                throw new IOException("Refused");
+            }
+            return new PortMapping(protocol, internalPort,
+                internalPort + 10000, lifetimeSeconds);
+        }
+
+        public void unmap(final PortMappingProtocol protocol,
+            final int internalPort) {
+            this.unmapped.add(internalPort);
+        }
+    }
+}
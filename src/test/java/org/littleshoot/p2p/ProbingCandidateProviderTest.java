@@ -0,0 +1,185 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link ProbingCandidateProvider} against servers with made up
+ * round trip times.
+ */
+public class ProbingCandidateProviderTest {
+
+    private final InetSocketAddress first =
+        InetSocketAddress.createUnresolved("first", 3478);
+
+    private final InetSocketAddress second =
+        InetSocketAddress.createUnresolved("second", 3478);
+
+    private final InetSocketAddress third =
+        InetSocketAddress.createUnresolved("third", 3478);
+
+    private final FakeProbe probe = new FakeProbe();
+
+    private final FixedServers servers = new FixedServers();
+
+    private final ProbingCandidateProvider provider =
+        new ProbingCandidateProvider(this.servers, this.probe, 3, 1000);
+
+    @After
+    public void tearDown() throws Exception {
+        this.provider.stop();
+    }
+
+    @Test
+    public void testUnprobedServersKeepTheirOrder() throws Exception {
+        this.servers.set(this.first, this.second, this.third);
+        assertEquals(Arrays.asList(this.first, this.second, this.third),
+            candidates());
+        assertEquals(this.first, this.provider.getCandidate());
+    }
+
+    @Test
+    public void testRanksByRoundTripTimeAndLoss() throws Exception {
+        this.servers.set(this.first, this.second, this.third);
+        this.probe.set(this.first, millis(80));
+        this.probe.set(this.second, millis(5));
+        this.probe.set(this.third, -1);
+        this.provider.refresh();
+
+        assertEquals(Arrays.asList(this.second, this.first, this.third),
+            candidates());
+        assertTrue(this.provider.getScore(this.second) <
+            this.provider.getScore(this.first));
+        assertEquals(Double.MAX_VALUE, this.provider.getScore(this.third),
+            0.0);
+        assertEquals(9, this.probe.probes.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(this.second, this.provider.getCandidate());
+        }
+    }
+
+    @Test
+    public void testSpreadsLoadAcrossNearBestServers() throws Exception {
+        this.servers.set(this.first, this.second);
+        this.probe.set(this.first, millis(10));
+        this.probe.set(this.second, millis(11));
+        this.provider.refresh();
+
+        final Set<InetSocketAddress> picked = new HashSet<InetSocketAddress>();
+        for (int i = 0; i < 200; i++) {
+            picked.add(this.provider.getCandidate());
+        }
+        assertEquals(new HashSet<InetSocketAddress>(
+            Arrays.asList(this.first, this.second)), picked);
+    }
+
+    @Test
+    public void testFallsBackWhenNothingAnswers() throws Exception {
+        this.servers.set(this.first, this.second);
+        this.provider.refresh();
+        assertEquals(this.first, this.provider.getCandidate());
+
+        // Servers the underlying provider dropped aren't handed out.
+        this.servers.set(this.second);
+        assertEquals(Arrays.asList(this.second), candidates());
+    }
+
+    @Test
+    public void testUnderlyingProviderWithNoServers() throws Exception {
+        this.servers.set((InetSocketAddress[]) null);
+        assertTrue(this.provider.getCandidates().isEmpty());
+        assertNull(this.provider.getCandidate());
+        this.provider.refresh();
+        assertTrue(this.provider.getCandidates().isEmpty());
+    }
+
+    @Test
+    public void testStartsOnFirstUse() throws Exception {
+        this.servers.set(this.first, this.second);
+        this.provider.startOnFirstUse();
+        Thread.sleep(100);
+        assertFalse(this.provider.isStarted());
+        assertTrue(this.probe.probes.isEmpty());
+
+        assertEquals(Arrays.asList(this.first, this.second), candidates());
+        assertTrue(this.provider.isStarted());
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.probe.probes.size() < 6 &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, this.probe.probes.size());
+    }
+
+    private List<InetSocketAddress> candidates() {
+        return new ArrayList<InetSocketAddress>(
+            this.provider.getCandidates());
+    }
+
+    private static long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Serves whatever servers it was last given.
+     */
+    private static final class FixedServers
+        implements CandidateProvider<InetSocketAddress> {
+
+        private volatile List<InetSocketAddress> servers;
+
+        private void set(final InetSocketAddress... servers) {
+            this.servers = servers == null ? null : Arrays.asList(servers);
+        }
+
+        public Collection<InetSocketAddress> getCandidates() {
+            return this.servers;
+        }
+
+        public InetSocketAddress getCandidate() {
+            final List<InetSocketAddress> all = this.servers;
+            return all == null || all.isEmpty() ? null : all.get(0);
+        }
+    }
+
+    /**
+     * Answers each server with a fixed round trip time, or not at all.
+     */
+    private static final class FakeProbe implements ServerProbe {
+
+        private final Map<InetSocketAddress, Long> rtts =
+            new ConcurrentHashMap<InetSocketAddress, Long>();
+
+        private final List<InetSocketAddress> probes =
+            Collections.synchronizedList(
+                new ArrayList<InetSocketAddress>());
+
+        private void set(final InetSocketAddress server, final long rtt) {
+            this.rtts.put(server, Long.valueOf(rtt));
+        }
+
+        public long probe(final InetSocketAddress server) {
+            this.probes.add(server);
+            final Long rtt = this.rtts.get(server);
+            return rtt == null ? -1 : rtt.longValue();
+        }
+    }
+}
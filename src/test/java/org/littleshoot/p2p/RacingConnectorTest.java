@@ -0,0 +1,180 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.p2p.P2PClient;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link RacingConnector} and the racing clients it makes.
+ */
+public class RacingConnectorTest {
+
+    private static final URI PEER = URI.create("xmpp://peer@example.org");
+
+    @Test
+    public void testDirectWinsWithoutRelay() throws Exception {
+        final FakeClient fake = new FakeClient(true);
+        final PingClient client = RacingConnector.newRacingClient(
+            PingClient.class, fake, new P2PConfig());
+        assertSame(fake.direct, client.newSocket(PEER));
+        assertEquals(1, fake.unrelayedCalls.get());
+        assertEquals(0, fake.relayedCalls.get());
+    }
+
+    @Test
+    public void testRelayedStartsWhenDirectFails() throws Exception {
+        final FakeClient fake = new FakeClient(false);
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final PingClient client = RacingConnector.newRacingClient(
+            PingClient.class, fake, new P2PConfig().setMetrics(metrics));
+        final long start = System.currentTimeMillis();
+        assertSame(fake.relayed, client.newSocket(PEER));
+        // Well before the 5 second initial relay deadline.
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertEquals(1, fake.relayedCalls.get());
+        // A plain socket from the relayed attempt is still a direct path.
+        assertEquals(Transport.TCP, metrics.established.get(0));
+    }
+
+    @Test
+    public void testRelayedThroughTurnServer() throws Exception {
+        final ServerSocket relay =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Socket sock = new Socket("127.0.0.1", relay.getLocalPort());
+        try {
+            final FakeClient fake = new FakeClient(false, sock);
+            final RecordingMetrics metrics = new RecordingMetrics();
+            // The allocation is on the relay's host, but not on the port
+            // the relay listens on.
+            final PingClient client = RacingConnector.newRacingClient(
+                PingClient.class, fake, new P2PConfig().setMetrics(metrics),
+                fixed(new InetSocketAddress("127.0.0.1", 3478)));
+            assertSame(sock, client.newSocket(PEER));
+            assertEquals(Transport.TURN, metrics.established.get(0));
+        } finally {
+            sock.close();
+            relay.close();
+        }
+    }
+
+    @Test
+    public void testOtherMethodsDelegate() throws Exception {
+        final FakeClient fake = new FakeClient(true);
+        final PingClient client = RacingConnector.newRacingClient(
+            PingClient.class, fake, new P2PConfig());
+        assertEquals("pong", client.ping());
+        assertSame(fake.direct, client.newUnrelayedSocket(PEER));
+        assertEquals(0, fake.relayedCalls.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testExceptionsPassThrough() throws Exception {
+        final FakeClient fake = new FakeClient(true);
+        final PingClient client = RacingConnector.newRacingClient(
+            PingClient.class, fake, new P2PConfig());
+        client.fail();
+    }
+
+    @Test
+    public void testConnectorDoesNotRaceTwice() throws Exception {
+        final FakeClient fake = new FakeClient(false);
+        final P2PConfig config = new P2PConfig();
+        final PingClient client = RacingConnector.newRacingClient(
+            PingClient.class, fake, config);
+        new RacingConnector<Socket>(client, config).connect(PEER);
+        assertEquals(1, fake.unrelayedCalls.get());
+        assertEquals(1, fake.relayedCalls.get());
+    }
+
+    /**
+     * A client interface with more than the P2P methods, like the XMPP
+     * clients.
+     */
+    public interface PingClient extends P2PClient<Socket> {
+        String ping();
+        void fail() throws IOException;
+    }
+
+    private static final class FakeClient implements PingClient {
+
+        private final boolean directWorks;
+
+        private final Socket direct = new Socket();
+
+        private final Socket relayed;
+
+        private final AtomicInteger unrelayedCalls = new AtomicInteger();
+
+        private final AtomicInteger relayedCalls = new AtomicInteger();
+
+        private FakeClient(final boolean directWorks) {
+            this(directWorks, new Socket());
+        }
+
+        private FakeClient(final boolean directWorks, final Socket relayed) {
+            this.directWorks = directWorks;
+            this.relayed = relayed;
+        }
+
+        public Socket newSocket(final URI uri) {
+            this.relayedCalls.incrementAndGet();
+            return this.relayed;
+        }
+
+        public Socket newUnrelayedSocket(final URI uri) throws IOException {
+            this.unrelayedCalls.incrementAndGet();
+            if (!this.directWorks) {
+                throw new IOException("No direct path");
+            }
+            return this.direct;
+        }
+
+        public String ping() {
+            return "pong";
+        }
+
+        public void fail() throws IOException {
+            throw new IOException("Failed");
+        }
+    }
+
+    private static CandidateProvider<InetSocketAddress> fixed(
+        final InetSocketAddress server) {
+        return new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Arrays.asList(server);
+            }
+            public InetSocketAddress getCandidate() {
+                return server;
+            }
+        };
+    }
+
+    private static final class RecordingMetrics extends NoopP2PMetrics {
+
+        private final List<Transport> established =
+            new ArrayList<Transport>();
+
+        @Override
+        public void connectionEstablished(final Transport transport,
+            final long setupNanos) {
+            this.established.add(transport);
+        }
+    }
+}
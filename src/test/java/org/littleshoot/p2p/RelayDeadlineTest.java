@@ -0,0 +1,84 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RelayDeadline}.
+ */
+public class RelayDeadlineTest {
+
+    @Test
+    public void testInitialUntilEnoughSamples() throws Exception {
+        final RelayDeadline deadline = new RelayDeadline(1000, 30000, 5000);
+        assertEquals(5000, deadline.getDeadlineMillis());
+        deadline.recordDirectSuccess(1000);
+        deadline.recordDirectSuccess(1000);
+        deadline.recordDirectSuccess(1000);
+        assertEquals(5000, deadline.getDeadlineMillis());
+        deadline.recordDirectSuccess(1000);
+        assertEquals(1500, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void testTracksHighPercentile() throws Exception {
+        final RelayDeadline deadline = new RelayDeadline(100, 30000, 5000);
+        for (int i = 1; i <= 10; i++) {
+            deadline.recordDirectSuccess(i * 100);
+        }
+        // The 90th percentile of 100..1000 is 900, plus half again.
+        assertEquals(1350, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void testClamped() throws Exception {
+        final RelayDeadline deadline = new RelayDeadline(1000, 3000, 5000);
+        assertEquals(3000, deadline.getDeadlineMillis());
+        for (int i = 0; i < 4; i++) {
+            deadline.recordDirectSuccess(10);
+        }
+        assertEquals(1000, deadline.getDeadlineMillis());
+        for (int i = 0; i < 40; i++) {
+            deadline.recordDirectSuccess(60000);
+        }
+        assertEquals(3000, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void testOldSamplesAgeOut() throws Exception {
+        final RelayDeadline deadline = new RelayDeadline(100, 30000, 5000);
+        for (int i = 0; i < 32; i++) {
+            deadline.recordDirectSuccess(10000);
+        }
+        for (int i = 0; i < 32; i++) {
+            deadline.recordDirectSuccess(200);
+        }
+        assertEquals(300, deadline.getDeadlineMillis());
+    }
+
+    @Test
+    public void testMaxSecondsRoundsUp() throws Exception {
+        assertEquals(2, RelayDeadline.fixed(1001).getMaxSeconds());
+        assertEquals(30, new RelayDeadline().getMaxSeconds());
+    }
+
+    @Test
+    public void testRelayWaitFollowsTheDeadline() throws Exception {
+        final RelayDeadline deadline = new RelayDeadline(1000, 30000, 5000);
+        assertEquals(10, deadline.getRelayWaitSeconds());
+        for (int i = 0; i < 4; i++) {
+            deadline.recordDirectSuccess(1000);
+        }
+        assertEquals(3, deadline.getRelayWaitSeconds());
+        for (int i = 0; i < 32; i++) {
+            deadline.recordDirectSuccess(60000);
+        }
+        assertEquals(30, deadline.getRelayWaitSeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinAboveMax() throws Exception {
+        new RelayDeadline(2000, 1000, 1500);
+    }
+}
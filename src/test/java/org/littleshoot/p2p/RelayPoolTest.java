@@ -0,0 +1,153 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link RelayPool} against relays with made up round trip
+ * times.
+ */
+public class RelayPoolTest {
+
+    private final InetSocketAddress fast =
+        InetSocketAddress.createUnresolved("fast", 3478);
+
+    private final InetSocketAddress slow =
+        InetSocketAddress.createUnresolved("slow", 3478);
+
+    private final InetSocketAddress dead =
+        InetSocketAddress.createUnresolved("dead", 3478);
+
+    private final FakeProbe probe = new FakeProbe();
+
+    private RelayPool pool;
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.pool != null) {
+            this.pool.stop();
+        }
+    }
+
+    @Test
+    public void testSlowRelayIsDegradedAndDeadRelayIsDown()
+        throws Exception {
+        this.probe.rtts.put(this.fast, Long.valueOf(millis(10)));
+        this.probe.rtts.put(this.slow, Long.valueOf(millis(100)));
+        this.probe.rtts.put(this.dead, Long.valueOf(-1));
+        final RecordingListener listener = new RecordingListener();
+        this.pool = newPool(10);
+        this.pool.addListener(listener);
+        this.pool.start();
+
+        assertTrue(listener.down.await(5, TimeUnit.SECONDS));
+        waitForDegraded(this.slow);
+        assertEquals(Arrays.asList(this.dead), listener.relays);
+        assertTrue(this.pool.isDown(this.dead));
+        assertFalse(this.pool.isDown(this.slow));
+        assertFalse(this.pool.isDegraded(this.fast));
+        assertEquals(Arrays.asList(this.fast, this.slow, this.dead),
+            new ArrayList<InetSocketAddress>(this.pool.getCandidates()));
+    }
+
+    @Test
+    public void testLookupsDontCountAsSessions() throws Exception {
+        this.pool = newPool(1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(this.pool.getCandidate() != null);
+        }
+        assertEquals(0, this.pool.getLoad(this.fast));
+        assertEquals(3, this.pool.getCandidates().size());
+    }
+
+    @Test
+    public void testFullRelaysAreNotHandedOut() throws Exception {
+        this.pool = newPool(1);
+        assertTrue(this.pool.isRelay(this.fast));
+        assertFalse(this.pool.isRelay(
+            InetSocketAddress.createUnresolved("other", 3478)));
+
+        this.pool.sessionStarted(this.fast);
+        this.pool.sessionStarted(this.slow);
+        this.pool.sessionStarted(this.dead);
+        assertEquals(1, this.pool.getLoad(this.fast));
+        assertNull(this.pool.getCandidate());
+
+        this.pool.sessionEnded(this.slow);
+        assertEquals(0, this.pool.getLoad(this.slow));
+        assertEquals(this.slow, this.pool.getCandidate());
+    }
+
+    private RelayPool newPool(final int maxSessions) {
+        final List<InetSocketAddress> relays =
+            Arrays.asList(this.fast, this.slow, this.dead);
+        return new RelayPool(new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return relays;
+            }
+            public InetSocketAddress getCandidate() {
+                return relays.get(0);
+            }
+        }, this.probe, 2, 50, maxSessions);
+    }
+
+    private void waitForDegraded(final InetSocketAddress relay)
+        throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!this.pool.isDegraded(relay) &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(this.pool.isDegraded(relay));
+    }
+
+    private static long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static final class RecordingListener implements RelayListener {
+
+        private final CountDownLatch down = new CountDownLatch(1);
+
+        private final List<InetSocketAddress> relays =
+            new ArrayList<InetSocketAddress>();
+
+        public void onRelayDown(final InetSocketAddress relay) {
+            this.relays.add(relay);
+            this.down.countDown();
+        }
+
+        public void onRelayUp(final InetSocketAddress relay) {
+        }
+    }
+
+    /**
+     * Answers each relay with a fixed round trip time.
+     */
+    private static final class FakeProbe implements ServerProbe {
+
+        private final Map<InetSocketAddress, Long> rtts =
+            new ConcurrentHashMap<InetSocketAddress, Long>();
+
+        public long probe(final InetSocketAddress server) {
+            final Long rtt = this.rtts.get(server);
+            return rtt == null ? -1 : rtt.longValue();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SocketMultiplexer} over a loopback socket pair.
+ */
+public class SocketMultiplexerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final BlockingQueue<MuxStream> accepted =
+        new LinkedBlockingQueue<MuxStream>();
+
+    private Socket initiatorSocket;
+
+    private Socket acceptorSocket;
+
+    private SocketMultiplexer initiator;
+
+    private SocketMultiplexer acceptor;
+
+    @Before
+    public void setUp() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1,
+            InetAddress.getByName("127.0.0.1"));
+        this.initiatorSocket = new Socket(server.getInetAddress(),
+            server.getLocalPort());
+        this.acceptorSocket = server.accept();
+        server.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.initiator != null) {
+            this.initiator.close();
+        }
+        if (this.acceptor != null) {
+            this.acceptor.close();
+        }
+        this.initiatorSocket.close();
+        this.acceptorSocket.close();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        connect();
+        final MuxStream stream = this.initiator.openStream();
+        assertEquals(1, stream.getId());
+        stream.getOutputStream().write("hello".getBytes("US-ASCII"));
+        stream.shutdownOutput();
+
+        final MuxStream remote = next();
+        assertEquals(1, remote.getId());
+        assertEquals("hello", readAll(remote.getInputStream()));
+        remote.getOutputStream().write("back".getBytes("US-ASCII"));
+        remote.shutdownOutput();
+        assertEquals("back", readAll(stream.getInputStream()));
+    }
+
+    @Test
+    public void testBothSidesOpenStreams() throws Exception {
+        connect();
+        final MuxStream ours = this.initiator.openStream();
+        final MuxStream theirs = this.acceptor.openStream();
+        assertEquals(1, ours.getId());
+        assertEquals(2, theirs.getId());
+        ours.getOutputStream().write(1);
+        theirs.getOutputStream().write(2);
+        final MuxStream first = next();
+        final MuxStream second = next();
+        assertEquals(3, first.getId() + second.getId());
+    }
+
+    @Test
+    public void testWriterBlocksOnFullWindow() throws Exception {
+        connect();
+        final MuxStream stream = this.initiator.openStream();
+        final AtomicInteger written = new AtomicInteger();
+        this.executor.execute(new Runnable() {
+            public void run() {
+                final byte[] chunk = new byte[1024];
+                try {
+                    while (true) {
+                        stream.getOutputStream().write(chunk);
+                        written.addAndGet(chunk.length);
+                    }
+                } catch (final Exception e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+        final MuxStream remote = next();
+        Thread.sleep(300);
+        // Nothing read yet, so the writer stops at the window.
+        assertEquals(SocketMultiplexer.INITIAL_WINDOW, written.get());
+
+        final byte[] buf = new byte[SocketMultiplexer.INITIAL_WINDOW];
+        int read = 0;
+        while (read < buf.length) {
+            read += remote.getInputStream().read(buf, 0, buf.length - read);
+        }
+        Thread.sleep(300);
+        assertTrue(written.get() > SocketMultiplexer.INITIAL_WINDOW);
+    }
+
+    @Test
+    public void testStalledStreamDoesNotBlockOthers() throws Exception {
+        connect();
+        final MuxStream stalled = this.initiator.openStream();
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    stalled.getOutputStream().write(
+                        new byte[SocketMultiplexer.INITIAL_WINDOW * 2]);
+                } catch (final Exception e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+        next();
+        final MuxStream other = this.initiator.openStream();
+        other.getOutputStream().write("ok".getBytes("US-ASCII"));
+        other.shutdownOutput();
+        assertEquals("ok", readAll(next().getInputStream()));
+    }
+
+    @Test
+    public void testPeerUsingOurParityIsRejected() throws Exception {
+        this.initiator = new SocketMultiplexer(this.initiatorSocket, true,
+            listener(), this.executor);
+        // A broken peer opens stream 1, which is ours to use.
+        final DataOutputStream out =
+            new DataOutputStream(this.acceptorSocket.getOutputStream());
+        out.writeInt(1);
+        out.writeByte(SocketMultiplexer.OPEN);
+        out.writeInt(0);
+        out.flush();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!this.initiator.isClosed() &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(this.initiator.isClosed());
+        assertEquals(0, this.accepted.size());
+    }
+
+    private void connect() throws Exception {
+        this.initiator = new SocketMultiplexer(this.initiatorSocket, true,
+            listener(), this.executor);
+        this.acceptor = new SocketMultiplexer(this.acceptorSocket, false,
+            listener(), this.executor);
+    }
+
+    private MuxStreamListener listener() {
+        return new MuxStreamListener() {
+            public void onStream(final MuxStream stream) {
+                accepted.add(stream);
+            }
+        };
+    }
+
+    private MuxStream next() throws InterruptedException {
+        final MuxStream stream = this.accepted.poll(5, TimeUnit.SECONDS);
+        if (stream == null) {
+            throw new AssertionError("No stream opened");
+        }
+        return stream;
+    }
+
+    private static String readAll(final InputStream in) throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+}
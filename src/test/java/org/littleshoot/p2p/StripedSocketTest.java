@@ -0,0 +1,229 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.util.SessionSocketListener;
+
+/**
+ * Tests for {@link StripedSocket} and
+ * {@link StripingSessionSocketListener} over loopback sockets.
+ */
+public class StripedSocketTest {
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private ExecutorService executor;
+
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        this.executor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Striped-Test"));
+        this.server = new ServerSocket(0, 50, InetAddress.getByName(
+            "127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Socket sock : this.sockets) {
+            sock.close();
+        }
+        this.server.close();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testReordersChunksFromDifferentPaths() throws Exception {
+        final Socket[] near = new Socket[2];
+        final Socket[] far = new Socket[2];
+        for (int i = 0; i < 2; i++) {
+            near[i] = connect();
+            far[i] = accept();
+        }
+        final StripedSocket striped = new StripedSocket(Arrays.asList(far),
+            1L, this.executor);
+
+        // Path 1 carries the later chunks, and sends them before path 0
+        // sends the first one, so the receiver has to hold them back.
+        final DataOutputStream path0 =
+            new DataOutputStream(near[0].getOutputStream());
+        final DataOutputStream path1 =
+            new DataOutputStream(near[1].getOutputStream());
+        writeChunk(path1, 3);
+        writeChunk(path1, 1);
+        path1.flush();
+        Thread.sleep(100);
+        writeChunk(path0, 2);
+        writeChunk(path0, 0);
+        writeFin(path0, 4);
+        writeFin(path1, 4);
+
+        final DataInputStream in =
+            new DataInputStream(striped.getInputStream());
+        for (int seq = 0; seq < 4; seq++) {
+            final byte[] chunk = new byte[1000];
+            in.readFully(chunk);
+            final byte[] expected = new byte[1000];
+            Arrays.fill(expected, (byte) seq);
+            assertArrayEquals(expected, chunk);
+        }
+        assertEquals(-1, in.read());
+        striped.close();
+    }
+
+    @Test
+    public void testStripesAcrossPaths() throws Exception {
+        final BlockingQueue<Socket> accepted =
+            new LinkedBlockingQueue<Socket>();
+        final StripingSessionSocketListener listener =
+            new StripingSessionSocketListener(
+                new QueueingListener(accepted), this.executor, 5000);
+
+        final List<Socket> paths = new ArrayList<Socket>();
+        for (int i = 0; i < 3; i++) {
+            paths.add(connect());
+            listener.onSocket("session-"+i, accept());
+        }
+        final StripedSocket sender =
+            StripedSocket.connect(paths, this.executor);
+        final Socket receiver = accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull(receiver);
+        assertEquals(3, ((StripedSocket) receiver).getPathCount());
+
+        final byte[] data = new byte[StripedSocket.CHUNK_SIZE * 20 + 123];
+        new Random(42).nextBytes(data);
+        final OutputStream out = sender.getOutputStream();
+        out.write(data);
+        sender.close();
+
+        final DataInputStream in =
+            new DataInputStream(receiver.getInputStream());
+        final byte[] received = new byte[data.length];
+        in.readFully(received);
+        assertArrayEquals(data, received);
+        assertEquals(-1, in.read());
+        receiver.close();
+
+        long total = 0;
+        for (final long sent : sender.getPathBytesSent()) {
+            total += sent;
+        }
+        assertEquals(data.length, total);
+    }
+
+    @Test
+    public void testReadTimesOut() throws Exception {
+        connect();
+        final StripedSocket striped = new StripedSocket(
+            Arrays.asList(accept()), 1L, this.executor);
+        striped.setSoTimeout(100);
+        assertEquals(100, striped.getSoTimeout());
+        final InputStream in = striped.getInputStream();
+        final long start = System.currentTimeMillis();
+        try {
+            in.read();
+            fail("Read returned without data");
+        } catch (final SocketTimeoutException e) {
+            // Expected.
+        }
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertFalse(striped.isClosed());
+        striped.close();
+    }
+
+    @Test
+    public void testIncompleteSessionExpires() throws Exception {
+        final StripingSessionSocketListener listener =
+            new StripingSessionSocketListener(
+                new QueueingListener(new LinkedBlockingQueue<Socket>()),
+                this.executor, 100);
+        final Socket path = connect();
+        listener.onSocket("session", accept());
+
+        // One path of two, and no further headers to trigger a sweep.
+        final DataOutputStream dos =
+            new DataOutputStream(path.getOutputStream());
+        dos.writeInt(StripedSocket.MAGIC);
+        dos.writeLong(7L);
+        dos.writeByte(0);
+        dos.writeByte(2);
+        dos.flush();
+
+        path.setSoTimeout(5000);
+        assertEquals(-1, path.getInputStream().read());
+    }
+
+    private Socket connect() throws IOException {
+        final Socket sock = new Socket(this.server.getInetAddress(),
+            this.server.getLocalPort());
+        this.sockets.add(sock);
+        return sock;
+    }
+
+    private Socket accept() throws IOException {
+        final Socket sock = this.server.accept();
+        this.sockets.add(sock);
+        return sock;
+    }
+
+    private static void writeChunk(final DataOutputStream dos,
+        final int seq) throws IOException {
+        final byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) seq);
+        dos.writeLong(seq);
+        dos.writeInt(data.length);
+        dos.write(data);
+    }
+
+    private static void writeFin(final DataOutputStream dos,
+        final long total) throws IOException {
+        dos.writeLong(total);
+        dos.writeInt(-1);
+        dos.flush();
+    }
+
+    private static final class QueueingListener
+        implements SessionSocketListener {
+
+        private final BlockingQueue<Socket> sockets;
+
+        private QueueingListener(final BlockingQueue<Socket> sockets) {
+            this.sockets = sockets;
+        }
+
+        public void onSocket(final String id, final Socket sock) {
+            this.sockets.add(sock);
+        }
+
+        public void reconnected() {
+        }
+    }
+}
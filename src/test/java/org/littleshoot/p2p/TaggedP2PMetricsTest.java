@@ -0,0 +1,184 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.p2p.P2PClient;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link TaggedP2PMetrics}, fed by a {@link RacingConnector}
+ * connecting to a loopback server standing in for a peer.
+ */
+public class TaggedP2PMetricsTest {
+
+    private static final URI PEER = URI.create("xmpp://peer@example.org");
+
+    private ServerSocket server;
+
+    private final RecordingSink sink = new RecordingSink();
+
+    @Before
+    public void setUp() throws Exception {
+        this.server =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.server.close();
+    }
+
+    @Test
+    public void testDirectSocketReportsUnderItsTransport() throws Exception {
+        final Socket sock = newClient(true, null).newSocket(PEER);
+        assertTrue(sock instanceof MeteredSocket);
+        assertEquals(Transport.TCP, ((MeteredSocket) sock).getTransport());
+        assertTrue(this.sink.has("timer p2p.connection.setup " +
+            "[transport, tcp, outcome, success, fallback, false]"));
+
+        final Socket peer = this.server.accept();
+        sock.getOutputStream().write(new byte[] {1, 2, 3});
+        peer.getOutputStream().write(4);
+        assertEquals(4, sock.getInputStream().read());
+        sock.close();
+        sock.close();
+        peer.close();
+
+        assertTrue(this.sink.has(
+            "counter p2p.bytes 1 [transport, tcp, direction, read]"));
+        assertTrue(this.sink.has(
+            "counter p2p.bytes 3 [transport, tcp, direction, write]"));
+        assertEquals(1, this.sink.count("summary p2p.throughput"));
+    }
+
+    @Test
+    public void testRelayedSocketReportsAsTurn() throws Exception {
+        // The allocation is on the relay's host, but not on the port the
+        // relay listens on.
+        final Socket sock = newClient(false,
+            new InetSocketAddress("127.0.0.1", 3478)).newSocket(PEER);
+        assertEquals(Transport.TURN, ((MeteredSocket) sock).getTransport());
+        assertTrue(this.sink.has("timer p2p.connection.setup " +
+            "[transport, turn, outcome, success, fallback, true]"));
+        assertTrue(this.sink.has("timer p2p.connection.attempt " +
+            "[transport, none, outcome, failure]"));
+        sock.close();
+        assertTrue(this.sink.has(
+            "counter p2p.bytes 0 [transport, turn, direction, read]"));
+    }
+
+    @Test
+    public void testNoopMetricsLeaveSocketsAlone() throws Exception {
+        final LoopbackClient loopback = new LoopbackClient(true);
+        final P2PClient<Socket> client = RacingConnector.newRacingClient(
+            SocketClient.class, loopback, new P2PConfig());
+        final Socket sock = client.newSocket(PEER);
+        assertTrue(!(sock instanceof MeteredSocket));
+        sock.close();
+    }
+
+    private P2PClient<Socket> newClient(final boolean directWorks,
+        final InetSocketAddress relay) {
+        final CandidateProvider<InetSocketAddress> relays =
+            relay == null ? null : new CandidateProvider<InetSocketAddress>() {
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(relay);
+                }
+                public InetSocketAddress getCandidate() {
+                    return relay;
+                }
+            };
+        return RacingConnector.newRacingClient(SocketClient.class,
+            new LoopbackClient(directWorks), new P2PConfig().setMetrics(
+                new TaggedP2PMetrics(this.sink)), relays);
+    }
+
+    /**
+     * A client interface to proxy, standing in for the XMPP clients.
+     */
+    public interface SocketClient extends P2PClient<Socket> {
+    }
+
+    /**
+     * Connects to the loopback server, over the direct attempt only if
+     * told it works.
+     */
+    private final class LoopbackClient implements SocketClient {
+
+        private final boolean directWorks;
+
+        private LoopbackClient(final boolean directWorks) {
+            this.directWorks = directWorks;
+        }
+
+        public Socket newSocket(final URI uri) throws IOException {
+            return new Socket(server.getInetAddress(), server.getLocalPort());
+        }
+
+        public Socket newUnrelayedSocket(final URI uri) throws IOException {
+            if (!this.directWorks) {
+                throw new IOException("No direct path");
+            }
+            return newSocket(uri);
+        }
+    }
+
+    /**
+     * Records every meter update as a line of text.
+     */
+    private static final class RecordingSink
+        implements TaggedP2PMetrics.MeterSink {
+
+        private final List<String> records = new ArrayList<String>();
+
+        public synchronized void recordTime(final String name,
+            final long nanos, final String... tags) {
+            this.records.add("timer " + name + " " + Arrays.asList(tags));
+        }
+
+        public synchronized void increment(final String name,
+            final long amount, final String... tags) {
+            this.records.add("counter " + name + " " + amount + " " +
+                Arrays.asList(tags));
+        }
+
+        public synchronized void recordValue(final String name,
+            final double value, final String... tags) {
+            this.records.add("summary " + name + " " + Arrays.asList(tags));
+        }
+
+        public synchronized void gauge(final String name,
+            final TaggedP2PMetrics.GaugeValue value, final String... tags) {
+            this.records.add("gauge " + name + " " + Arrays.asList(tags));
+        }
+
+        private synchronized boolean has(final String record) {
+            return this.records.contains(record);
+        }
+
+        private synchronized int count(final String prefix) {
+            int count = 0;
+            for (final String record : this.records) {
+                if (record.startsWith(prefix)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
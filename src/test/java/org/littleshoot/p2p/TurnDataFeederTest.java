@@ -0,0 +1,220 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+
+/**
+ * Tests for {@link TurnDataFeeder} relaying between a fake TURN session and
+ * a loopback server.
+ */
+public class TurnDataFeederTest {
+
+    private final InetSocketAddress first =
+        new InetSocketAddress("10.0.0.1", 5000);
+
+    private final InetSocketAddress second =
+        new InetSocketAddress("10.0.0.2", 5000);
+
+    private final FakeSession session = new FakeSession();
+
+    private ServerSocket server;
+
+    private final ByteBudget budget = new ByteBudget(4096);
+
+    private NioRelay relay;
+
+    private TurnDataFeeder feeder;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.relay = new NioRelay(new DirectBufferPool(1024, 16), 2,
+            this.budget, null);
+        this.feeder = new TurnDataFeeder(
+            (InetSocketAddress) this.server.getLocalSocketAddress(),
+            Arrays.asList(this.relay));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.feeder.close();
+        this.relay.close();
+        this.server.close();
+    }
+
+    @Test
+    public void testEachPeerGetsItsOwnConnection() throws Exception {
+        this.feeder.onData(this.first, this.session.proxy, bytes("one"));
+        final Socket firstConn = this.server.accept();
+        this.feeder.onData(this.second, this.session.proxy, bytes("two"));
+        final Socket secondConn = this.server.accept();
+        this.feeder.onData(this.first, this.session.proxy, bytes("!"));
+        assertEquals(2, this.feeder.getPeerCount());
+
+        assertEquals("one!", read(firstConn.getInputStream(), 4));
+        assertEquals("two", read(secondConn.getInputStream(), 3));
+
+        secondConn.getOutputStream().write(bytes("reply"));
+        final SendIndication reply = this.session.poll();
+        assertNotNull(reply);
+        assertEquals(this.second, reply.getRemoteAddress());
+        assertEquals("reply", new String(reply.getData(), "US-ASCII"));
+
+        // The peer going away closes its connection once it's written.
+        this.feeder.onData(this.first, this.session.proxy, bytes("bye"));
+        this.feeder.onRemoteAddressClosed(this.first);
+        assertEquals("bye", read(firstConn.getInputStream(), 3));
+        assertEquals(-1, firstConn.getInputStream().read());
+        assertEquals(1, this.feeder.getPeerCount());
+
+        firstConn.close();
+        secondConn.close();
+    }
+
+    @Test
+    public void testServerClosingForgetsThePeer() throws Exception {
+        this.feeder.onData(this.first, this.session.proxy, bytes("one"));
+        final Socket conn = this.server.accept();
+        assertEquals("one", read(conn.getInputStream(), 3));
+        conn.close();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.feeder.getPeerCount() > 0 &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, this.feeder.getPeerCount());
+
+        // More data opens a new connection.
+        this.feeder.onData(this.first, this.session.proxy, bytes("two"));
+        final Socket again = this.server.accept();
+        assertEquals("two", read(again.getInputStream(), 3));
+        again.close();
+    }
+
+    @Test
+    public void testSuspendsTheSessionWhenTheBudgetRunsOut()
+        throws Exception {
+        // Other sessions have used up the budget.
+        this.budget.acquire(4096);
+        this.feeder.onData(this.first, this.session.proxy, bytes("held"));
+        final Socket conn = this.server.accept();
+        waitFor(this.session.suspended, 1);
+        assertEquals(0, this.session.resumed.get());
+        assertEquals(0, conn.getInputStream().available());
+        assertEquals(4096, this.budget.getUsedBytes());
+
+        this.budget.release(4096);
+        waitFor(this.session.resumed, 1);
+        assertEquals("held", read(conn.getInputStream(), 4));
+        assertEquals(1, this.session.suspended.get());
+        conn.close();
+    }
+
+    private static void waitFor(final AtomicInteger count, final int value)
+        throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (count.get() < value &&
+            System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, count.get());
+    }
+
+    private static byte[] bytes(final String text) throws Exception {
+        return text.getBytes("US-ASCII");
+    }
+
+    private static String read(final InputStream is, final int length)
+        throws Exception {
+        final byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = is.read(data, read, length - read);
+            assertTrue(n > 0);
+            read += n;
+        }
+        return new String(data, "US-ASCII");
+    }
+
+    /**
+     * A TURN session that records what's written to it and whether it's
+     * suspended, and completes writes right away.
+     */
+    private static final class FakeSession implements InvocationHandler {
+
+        private final IoSession proxy = (IoSession) Proxy.newProxyInstance(
+            IoSession.class.getClassLoader(), new Class<?>[] {IoSession.class},
+            this);
+
+        private final BlockingQueue<SendIndication> written =
+            new LinkedBlockingQueue<SendIndication>();
+
+        private final AtomicInteger suspended = new AtomicInteger();
+
+        private final AtomicInteger resumed = new AtomicInteger();
+
+        private SendIndication poll() throws InterruptedException {
+            return this.written.poll(5, TimeUnit.SECONDS);
+        }
+
+        public Object invoke(final Object proxy, final Method method,
+            final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("write")) {
+                this.written.add((SendIndication) args[0]);
+                return written();
+            } else if (name.equals("suspendRead")) {
+                this.suspended.incrementAndGet();
+            } else if (name.equals("resumeRead")) {
+                this.resumed.incrementAndGet();
+            } else if (name.equals("getRemoteAddress")) {
+                return new InetSocketAddress("10.0.0.100", 3478);
+            } else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            return null;
+        }
+
+        private WriteFuture written() {
+            return (WriteFuture) Proxy.newProxyInstance(
+                WriteFuture.class.getClassLoader(),
+                new Class<?>[] {WriteFuture.class}, new InvocationHandler() {
+                    public Object invoke(final Object future,
+                        final Method method, final Object[] args) {
+                        if (method.getName().equals("addListener")) {
+                            ((IoFutureListener) args[0]).operationComplete(
+                                (IoFuture) future);
+                        }
+                        return null;
+                    }
+                });
+        }
+    }
+}
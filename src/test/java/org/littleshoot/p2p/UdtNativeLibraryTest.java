@@ -0,0 +1,98 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link UdtNativeLibrary} cleaning up library directories.
+ */
+public class UdtNativeLibraryTest {
+
+    private File parent;
+
+    @Before
+    public void setUp() throws Exception {
+        this.parent = File.createTempFile("udt", "");
+        assertTrue(this.parent.delete());
+        assertTrue(this.parent.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final File dir : this.parent.listFiles()) {
+            for (final File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        this.parent.delete();
+    }
+
+    @Test
+    public void testDeletesOnlyStaleUnlockedDirectories() throws Exception {
+        final File keep = dir("keep", 0);
+        final File stale = dir("stale", 0);
+        final File recent = dir("recent", System.currentTimeMillis());
+        final File locked = dir("locked", 0);
+        final FileLock lock = UdtNativeLibrary.lock(locked);
+        assertNotNull(lock);
+        // Creating the lock file touched the directory.
+        assertTrue(locked.setLastModified(1000));
+        try {
+            UdtNativeLibrary.deleteOthers(this.parent, keep,
+                System.currentTimeMillis() - UdtNativeLibrary.STALE_MILLIS);
+        } finally {
+            lock.channel().close();
+        }
+        assertTrue(keep.isDirectory());
+        assertFalse(stale.exists());
+        assertTrue(recent.isDirectory());
+        assertTrue(locked.isDirectory());
+    }
+
+    @Test
+    public void testKeyFollowsContents() throws Exception {
+        final File first = new File(dir("jars", 0), "first.jar");
+        final File second = new File(first.getParentFile(), "second.jar");
+        write(first, "one");
+        write(second, "two");
+        assertTrue(second.setLastModified(first.lastModified()));
+        assertEquals(40, UdtNativeLibrary.sha1(first).length());
+        assertFalse(UdtNativeLibrary.sha1(first).equals(
+            UdtNativeLibrary.sha1(second)));
+    }
+
+    private File dir(final String name, final long lastModified)
+        throws IOException {
+        final File dir = new File(this.parent, name);
+        assertTrue(dir.mkdirs());
+        write(new File(dir, "libudt.so"), "library");
+        if (lastModified > 0) {
+            assertTrue(dir.setLastModified(lastModified));
+        } else {
+            assertTrue(dir.setLastModified(1000));
+        }
+        return dir;
+    }
+
+    private static void write(final File file, final String text)
+        throws IOException {
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
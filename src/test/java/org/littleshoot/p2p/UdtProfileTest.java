@@ -0,0 +1,100 @@
+package org.littleshoot.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+
+import com.barchart.udt.OptionUDT;
+import com.barchart.udt.net.NetServerSocketUDT;
+import com.barchart.udt.net.NetSocketUDT;
+
+/**
+ * Tests for {@link UdtProfile} applied to UDT sockets connected on the
+ * loopback interface.
+ */
+public class UdtProfileTest {
+
+    private ServerSocket server;
+
+    private NetSocketUDT client;
+
+    private Socket accepted;
+
+    @Before
+    public void setUp() throws Exception {
+        UdtNativeLibrary.prepare();
+        this.server = new NetServerSocketUDT();
+        this.server.bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        this.client = new NetSocketUDT();
+        this.client.connect(this.server.getLocalSocketAddress());
+        this.accepted = this.server.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.client.close();
+        this.accepted.close();
+        this.server.close();
+    }
+
+    @Test
+    public void testSettingsLandOnTheSocket() throws Exception {
+        final RecordingListener recording = new RecordingListener();
+        final OfferAnswerListener<Socket> listener = new UdtProfile()
+            .setMaxBandwidth(2 * 1024 * 1024).setLingerSeconds(5)
+            .tune(recording.proxy);
+
+        listener.onUdpSocket(this.client);
+        assertSame(this.client, recording.socket);
+        assertEquals(Long.valueOf(2 * 1024 * 1024),
+            this.client.socketUDT().getOption(OptionUDT.Maximum_Bandwidth));
+        assertEquals(5, this.client.getSoLinger());
+    }
+
+    @Test
+    public void testLeavesOtherSocketsAlone() throws Exception {
+        final Socket plain = new Socket();
+        try {
+            assertFalse(new UdtProfile().apply(plain));
+        } finally {
+            plain.close();
+        }
+    }
+
+    /**
+     * Records the socket an offer/answer listener is given.
+     */
+    private static final class RecordingListener
+        implements InvocationHandler {
+
+        @SuppressWarnings("unchecked")
+        private final OfferAnswerListener<Socket> proxy =
+            (OfferAnswerListener<Socket>) Proxy.newProxyInstance(
+                OfferAnswerListener.class.getClassLoader(),
+                new Class<?>[] {OfferAnswerListener.class}, this);
+
+        private volatile Socket socket;
+
+        public Object invoke(final Object proxy, final Method method,
+            final Object[] args) {
+            if (method.getName().equals("onUdpSocket")) {
+                this.socket = (Socket) args[0];
+            }
+            return null;
+        }
+    }
+}